@@ -9,6 +9,7 @@ LOCAL_SRC_FILES :=  PacketLossConcealer.cpp plc.c time_scale.c playout.c cb_sear
 	ltp.c 	speex.c 	stereo.c 	vbr.c 	vq.c bits.c exc_10_16_table.c \
 	exc_20_32_table.c exc_5_256_table.c exc_5_64_table.c gain_table_lbr.c hexc_10_32_table.c \
 	lpc.c lsp_tables_nb.c modes.c modes_wb.c nb_celp.c quant_lsp.c sb_celp.c \
-	speex_callbacks.c speex_header.c window.c SpeexCodec.cpp
+	speex_callbacks.c speex_header.c window.c SpeexCodec.cpp \
+	mdf.c preprocess.c fftwrap.c filterbank.c kiss_fft.c kiss_fftr.c EchoCanceller.cpp
 
 include $(BUILD_SHARED_LIBRARY)
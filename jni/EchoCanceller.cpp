@@ -0,0 +1,159 @@
+#include "org_thoughtcrime_redphone_audio_EchoCanceller.h"
+#include <speex/speex_echo.h>
+#include <speex/speex_preprocess.h>
+#include <stdlib.h>
+#include <stdint.h>
+#include "loghelper.h"
+
+//the preprocessor's own AGC only builds in floating point, so gain control is done here
+#define AGC_ONE          4096
+#define AGC_MIN_GAIN     (AGC_ONE / 2)
+#define AGC_MAX_GAIN     (AGC_ONE * 6)
+#define AGC_TARGET_LEVEL 3000
+#define AGC_SPEECH_FLOOR 100
+
+/*
+ * The state behind one EchoCanceller instance, referenced from Java by a long handle.
+ */
+typedef struct {
+  SpeexEchoState *echo;
+  SpeexPreprocessState *preprocess;
+  int frame_size;
+  int agc;
+  int agc_level;  //running mean absolute level of speech frames
+  int agc_gain;   //Q12
+} EchoState;
+
+static void destroy( EchoState *state ) {
+  if( state->preprocess != NULL ) speex_preprocess_state_destroy( state->preprocess );
+  if( state->echo != NULL )       speex_echo_state_destroy( state->echo );
+  free( state );
+}
+
+JNIEXPORT jlong JNICALL Java_org_thoughtcrime_redphone_audio_EchoCanceller_open (JNIEnv *env, jclass c, jint frameSize, jint filterLength, jint sampleRate, jboolean denoise, jboolean agc ) {
+  logv( env, "Initializing echo canceller, frame=%d filter=%d rate=%d", frameSize, filterLength, sampleRate );
+
+  EchoState *state = (EchoState *) calloc( 1, sizeof( EchoState ) );
+  if( state == NULL ) {
+    logv( env, "state allocation failed" );
+    return 0;
+  }
+
+  state->frame_size = frameSize;
+  state->agc        = agc;
+  state->agc_level  = AGC_TARGET_LEVEL;
+  state->agc_gain   = AGC_ONE;
+
+  state->echo = speex_echo_state_init( frameSize, filterLength );
+  if( state->echo == NULL ) {
+    logv( env, "echo canceller init failed" );
+    destroy( state );
+    return 0;
+  }
+
+  spx_int32_t tmp = sampleRate;
+  speex_echo_ctl( state->echo, SPEEX_ECHO_SET_SAMPLING_RATE, &tmp );
+
+  state->preprocess = speex_preprocess_state_init( frameSize, sampleRate );
+  if( state->preprocess == NULL ) {
+    logv( env, "preprocessor init failed" );
+    destroy( state );
+    return 0;
+  }
+
+  //suppresses the echo left over after the adaptive filter
+  speex_preprocess_ctl( state->preprocess, SPEEX_PREPROCESS_SET_ECHO_STATE, state->echo );
+
+  tmp = denoise ? 1 : 0;
+  speex_preprocess_ctl( state->preprocess, SPEEX_PREPROCESS_SET_DENOISE, &tmp );
+  tmp = agc ? 1 : 0;
+  speex_preprocess_ctl( state->preprocess, SPEEX_PREPROCESS_SET_VAD, &tmp );
+
+  return (jlong)(intptr_t)state;
+}
+
+JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_EchoCanceller_close (JNIEnv *env, jclass c, jlong handle ) {
+  EchoState *state = (EchoState *)(intptr_t)handle;
+  if( state == NULL ) {
+    logv( env, "tried to close echo canceller before initialization" );
+    return;
+  }
+
+  destroy( state );
+}
+
+JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_EchoCanceller_reset (JNIEnv *env, jclass c, jlong handle ) {
+  EchoState *state = (EchoState *)(intptr_t)handle;
+  if( state == NULL ) return;
+
+  speex_echo_state_reset( state->echo );
+}
+
+static void apply_agc( EchoState *state, spx_int16_t *frame, int speech ) {
+  int frame_size = state->frame_size;
+  int total = 0, peak = 0;
+
+  for( int i = 0; i < frame_size; i++ ) {
+    int sample = frame[i] < 0 ? -frame[i] : frame[i];
+    total += sample;
+    if( sample > peak ) peak = sample;
+  }
+
+  int level = total / frame_size;
+  if( speech && level > AGC_SPEECH_FLOOR ) {
+    state->agc_level += (level - state->agc_level) / 16;
+  }
+
+  int desired = state->agc_level > 0 ? AGC_TARGET_LEVEL * AGC_ONE / state->agc_level : AGC_MAX_GAIN;
+  if( desired < AGC_MIN_GAIN ) desired = AGC_MIN_GAIN;
+  if( desired > AGC_MAX_GAIN ) desired = AGC_MAX_GAIN;
+
+  //rise slowly, fall faster
+  int gain = state->agc_gain;
+  if( desired > gain ) gain += (desired - gain) / 32 + 1;
+  else                 gain -= (gain - desired) / 8;
+
+  //never clip the frame we are on
+  if( peak > 0 && (int64_t)peak * gain > (int64_t)32767 * AGC_ONE ) {
+    gain = (int)((int64_t)32767 * AGC_ONE / peak);
+  }
+
+  state->agc_gain = gain;
+
+  for( int i = 0; i < frame_size; i++ ) {
+    frame[i] = (spx_int16_t)(((int64_t)frame[i] * gain) >> 12);
+  }
+}
+
+JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_audio_EchoCanceller_process (JNIEnv *env, jclass c, jlong handle, jshortArray near, jshortArray far, jshortArray out ) {
+  EchoState *state = (EchoState *)(intptr_t)handle;
+  if( state == NULL ) {
+    logv( env, "tried to cancel echo without initializing" );
+    return -1;
+  }
+
+  if( env->GetArrayLength( near ) < state->frame_size ||
+      env->GetArrayLength( far  ) < state->frame_size ||
+      env->GetArrayLength( out  ) < state->frame_size )
+  {
+    logv( env, "echo canceller passed a short frame" );
+    return -1;
+  }
+
+  jshort *nearBuf = (jshort *)env->GetPrimitiveArrayCritical( near, NULL );
+  jshort *farBuf  = (jshort *)env->GetPrimitiveArrayCritical( far , NULL );
+  jshort *outBuf  = (jshort *)env->GetPrimitiveArrayCritical( out , NULL );
+
+  speex_echo_cancellation( state->echo, nearBuf, farBuf, outBuf );
+  int speech = speex_preprocess_run( state->preprocess, outBuf );
+
+  if( state->agc ) {
+    apply_agc( state, outBuf, speech );
+  }
+
+  env->ReleasePrimitiveArrayCritical( out , outBuf , 0 );
+  env->ReleasePrimitiveArrayCritical( far , farBuf , JNI_ABORT );
+  env->ReleasePrimitiveArrayCritical( near, nearBuf, JNI_ABORT );
+
+  return speech;
+}
@@ -44,6 +44,18 @@ JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_
   plcInit = 1;
 }
 
+JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_setSampleRate (JNIEnv *env, jclass c, jint sampleRate ) {
+  if( !plcInit ) {
+    logv( env, "tried to call PacketLossConcealer.setSampleRate() without initialization" );
+    return;
+  }
+
+  //reinitializes the existing state in place, discarding any audio it holds
+  if( NULL == time_scale_init( tsState, sampleRate, 1 ) ) {
+    logv( env, "error setting time scale sample rate to %d", sampleRate );
+  }
+}
+
 JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_rx (JNIEnv *env, jclass c, jshortArray audioData ) {
   if( !plcInit ) {
     logv( env, "tried to call PacketLossConcealer.rx() without initialization" );
@@ -78,7 +90,6 @@ JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_
   return time_scale_max_output_len( tsState, inLength );  
 }
 JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_changeSpeed (JNIEnv *env, jclass c, jshortArray output, jshortArray input, jint inputLen, jfloat rate ) {
-  curenv( env );
   if( 0 != time_scale_rate( tsState, rate ) ) {
     logv( env, "rate change failed" );
     return -1;
@@ -2,256 +2,311 @@
 #include <speex/speex.h>
 #include <speex/speex_preprocess.h>
 #include <stdlib.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdarg.h>
+#include <string.h>
 #include "loghelper.h"
 
-#define MAX_DEC_FRAMES 10
-
-static void *enc; //speex encoder
-static void *dec; //speex decoder
-static SpeexBits enc_bits, dec_bits;
-static int enc_frame_size, dec_frame_size;
-static int initialized = 0;
-
-static spx_int16_t *dec_buffer;
-static char *enc_buffer;
-
-//static JitterBuffer *jitter;
-
-//SpeexPreprocessState *prepState;
-
+#include "spandsp/telephony.h"
+#include "spandsp/time_scale.h"
+#include "spandsp/private/time_scale.h"
 
+#define MAX_DEC_FRAMES 10
+#define MAX_FRAME_SIZE 320 //a wideband frame
+
+/*
+ * The state behind one SpeexCodec instance.  Java holds a pointer to it as a long handle,
+ * so any number of codecs can be open at once.  Each has its own time scaler, running at
+ * the codec's sample rate, so the audio one holds back never ends up in another's output.
+ */
+typedef struct {
+  void *enc; //speex encoder
+  void *dec; //speex decoder
+  SpeexBits enc_bits, dec_bits;
+  int enc_frame_size, dec_frame_size;
+  time_scale_state_t scaler;
+  spx_int16_t scaling[MAX_DEC_FRAMES * MAX_FRAME_SIZE]; //decoded audio waiting to be time scaled
+} SpeexState;
+
+//Resolved once when the library is loaded, rather than on every log call.
+static JavaVM *jvm;
+static jclass log_class;
+static jmethodID log_w;
+
+static void logmsg( JNIEnv *env, const char *msg, va_list list ) {
+  if( env == NULL || log_class == NULL || log_w == NULL ) return;
 
-void logv( JNIEnv *env, const char *msg, ... ) {
-  jmethodID logw;
-  jclass logc;
-  
-  logc = env->FindClass( "android.util.Log" );
-  logw = env->GetStaticMethodID( logc, "w", "(Ljava/lang/String;Ljava/lang/String;)I" ); 
-
-  if( logc == NULL || logw == NULL ) return;
-
-  va_list list;
-  va_start( list, msg );
   char fullmsg[1024];
   vsnprintf( fullmsg, 1024, msg, list );
 
   jstring tagStr = env->NewStringUTF( "SPEEX-JNI" );
   jstring msgStr = env->NewStringUTF( fullmsg );
 
-  env->CallStaticIntMethod( logc, logw, tagStr, msgStr );
-
-  //don't know why I do this here... TODO try removing this
-  const char *utf = env->GetStringUTFChars( msgStr, NULL );
-  env->ReleaseStringUTFChars( msgStr, utf );
+  env->CallStaticIntMethod( log_class, log_w, tagStr, msgStr );
 
-  utf = env->GetStringUTFChars( tagStr, NULL );
-  env->ReleaseStringUTFChars( tagStr, utf );
+  env->DeleteLocalRef( msgStr );
+  env->DeleteLocalRef( tagStr );
 }
 
-static JNIEnv *cenv;
-
-void curenv( JNIEnv *_c ) {
-  cenv = _c;
+void logv( JNIEnv *env, const char *msg, ... ) {
+  va_list list;
+  va_start( list, msg );
+  logmsg( env, msg, list );
+  va_end( list );
 }
 
+//for native code with no JNIEnv at hand; logs nothing from a thread the VM doesn't know
 extern "C" void loge( const char *msg, ... ) {
-  jmethodID logw;
-  jclass logc;
-  
-  logc = cenv->FindClass( "android.util.Log" );
-  logw = cenv->GetStaticMethodID( logc, "w", "(Ljava/lang/String;Ljava/lang/String;)I" ); 
-
-  if( logc == NULL || logw == NULL ) return;
+  JNIEnv *env;
+  if( jvm == NULL || jvm->GetEnv( (void **)&env, JNI_VERSION_1_4 ) != JNI_OK ) return;
 
   va_list list;
   va_start( list, msg );
-  char fullmsg[1024];
-  vsnprintf( fullmsg, 1024, msg, list );
+  logmsg( env, msg, list );
+  va_end( list );
+}
 
-  jstring tagStr = cenv->NewStringUTF( "SPEEX-JNI" );
-  jstring msgStr = cenv->NewStringUTF( fullmsg );
+extern "C" JNIEXPORT jint JNICALL JNI_OnLoad( JavaVM *vm, void *reserved ) {
+  JNIEnv *env;
+  if( vm->GetEnv( (void **)&env, JNI_VERSION_1_4 ) != JNI_OK ) {
+    return -1;
+  }
+  jvm = vm;
 
-  cenv->CallStaticIntMethod( logc, logw, tagStr, msgStr );
+  jclass logc = env->FindClass( "android/util/Log" );
+  if( logc != NULL ) {
+    log_class = (jclass)env->NewGlobalRef( logc );
+    log_w     = env->GetStaticMethodID( log_class, "w", "(Ljava/lang/String;Ljava/lang/String;)I" );
+    env->DeleteLocalRef( logc );
+  }
 
-  //don't know why I do this here... TODO try removing this
-  const char *utf = cenv->GetStringUTFChars( msgStr, NULL );
-  cenv->ReleaseStringUTFChars( msgStr, utf );
+  return JNI_VERSION_1_4;
+}
 
-  utf = cenv->GetStringUTFChars( tagStr, NULL );
-  cenv->ReleaseStringUTFChars( tagStr, utf );
+static void destroy( SpeexState *state ) {
+  if( state->enc != NULL ) {
+    speex_bits_destroy( &state->enc_bits );
+    speex_encoder_destroy( state->enc );
+  }
+  if( state->dec != NULL ) {
+    speex_bits_destroy( &state->dec_bits );
+    speex_decoder_destroy( state->dec );
+  }
+  free( state );
 }
 
-JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_openSpeex (JNIEnv *env, jobject obj){
+JNIEXPORT jlong JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_openSpeex (JNIEnv *env, jclass c, jboolean wideband){
+  logv( env, "Initializing Speex Codec, wideband=%d", wideband );
+  int mode_id = wideband ? SPEEX_MODEID_WB : SPEEX_MODEID_NB;
 
-  if( initialized ) {
-    logv( env, "speex codec already initialized:%d", initialized );
+  SpeexState *state = (SpeexState *) calloc( 1, sizeof( SpeexState ) );
+  if( state == NULL ) {
+    logv( env, "state allocation failed" );
     return 0;
   }
 
-  logv( env, "Initializing Speex Codec" );
-
-  enc = speex_encoder_init( speex_lib_get_mode( SPEEX_MODEID_NB ) );
-  dec = speex_decoder_init( speex_lib_get_mode( SPEEX_MODEID_NB ) ); 
-
-  if( enc == NULL ) {
+  state->enc = speex_encoder_init( speex_lib_get_mode( mode_id ) );
+  if( state->enc == NULL ) {
     logv( env, "speex encoder init failed" );
-    return 1;
+    destroy( state );
+    return 0;
   }
-  if( dec == NULL ) {
+  speex_bits_init( &state->enc_bits );
+
+  state->dec = speex_decoder_init( speex_lib_get_mode( mode_id ) );
+  if( state->dec == NULL ) {
     logv( env, "speex decoder init failed" );
-    return 1;
+    destroy( state );
+    return 0;
   }
+  speex_bits_init( &state->dec_bits );
 
-  //  logv( env, "speex enc/dec allocated" );
+  if( time_scale_init( &state->scaler, wideband ? 16000 : 8000, 1.0f ) == NULL ) {
+    logv( env, "time scale init failed" );
+    destroy( state );
+    return 0;
+  }
 
   spx_int32_t tmp;
   tmp=1;
-  speex_decoder_ctl(dec, SPEEX_SET_ENH, &tmp);
+  speex_decoder_ctl(state->dec, SPEEX_SET_ENH, &tmp);
   tmp=0;
-  speex_encoder_ctl(enc, SPEEX_SET_VBR, &tmp);
+  speex_encoder_ctl(state->enc, SPEEX_SET_VBR, &tmp);
   tmp=3;
-  speex_encoder_ctl(enc, SPEEX_SET_QUALITY, &tmp);
+  speex_encoder_ctl(state->enc, SPEEX_SET_QUALITY, &tmp);
   tmp=1;
-  speex_encoder_ctl(enc, SPEEX_SET_COMPLEXITY, &tmp);
+  speex_encoder_ctl(state->enc, SPEEX_SET_COMPLEXITY, &tmp);
 
-  speex_encoder_ctl(enc, SPEEX_GET_FRAME_SIZE, &enc_frame_size );
-  speex_decoder_ctl(dec, SPEEX_GET_FRAME_SIZE, &dec_frame_size );
+  speex_encoder_ctl(state->enc, SPEEX_GET_FRAME_SIZE, &state->enc_frame_size );
+  speex_decoder_ctl(state->dec, SPEEX_GET_FRAME_SIZE, &state->dec_frame_size );
 
-  logv( env, "frame sizes ... enc: %d, dec: %d", enc_frame_size, dec_frame_size );
+  logv( env, "frame sizes ... enc: %d, dec: %d", state->enc_frame_size, state->dec_frame_size );
 
-  speex_bits_init(&enc_bits);
-  speex_bits_init(&dec_bits);
+  return (jlong)(intptr_t)state;
+}
 
-  //  logv( env, "speex bits initialized" );
+JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_closeSpeex (JNIEnv *env, jclass c, jlong handle ){
+  SpeexState *state = (SpeexState *)(intptr_t)handle;
+  if( state == NULL ) {
+    logv( env, "tried to shut down speex before initialization" );
+    return;
+  }
 
-  enc_buffer = (char *) malloc( sizeof( char ) * enc_frame_size );
-  dec_buffer = (spx_int16_t *) malloc( sizeof( spx_int16_t ) * dec_frame_size*MAX_DEC_FRAMES );
+  logv( env, "speex shutdown" );
+  destroy( state );
+}
+
+/*
+ * Decodes encLen bytes of frames into dec_buffer, or conceals one lost frame if enc_stream is
+ * NULL, returning the number of samples written.
+ */
+static int decode_frames( JNIEnv *env, SpeexState *state, char *enc_stream, int encLen,
+                          spx_int16_t *dec_buffer, int dec_buffer_len ) {
+  int dec_buffer_idx = 0;
 
-  if( enc_buffer == NULL || dec_buffer == NULL ) {
-    logv( env, "buffer allocation failed" );
-    return 1;
+  SpeexBits *dbits = NULL; //if this is null, speex will do PLC for us
+  if( enc_stream != NULL ) {
+    speex_bits_read_from( &state->dec_bits, enc_stream, encLen );
+    dbits = &state->dec_bits;
   }
 
-  //  jitter = jitter_buffer_init( 20 );
+  int dec_frame_size = state->dec_frame_size;
+  //a buffer sized for exactly as many frames as the packet holds must be filled, not cut short
+  while( dec_buffer_idx + dec_frame_size <= dec_buffer_len &&
+         dec_buffer_idx < dec_frame_size * MAX_DEC_FRAMES &&
+         0 == speex_decode_int( state->dec, dbits, dec_buffer+dec_buffer_idx ) ) {
+    dec_buffer_idx += dec_frame_size;
+
+    if( dbits == NULL ) {
+      break;//only generate one frame for PLC...
+    }
+  }
 
-  /*prepState = speex_preprocess_state_init( enc_frame_size, 8000 );
-  if( prepState == NULL ) {
-    logv( env, "preprocessor failed to initialize" );
-    return 1;
+  if( dbits != NULL && dec_buffer_idx + dec_frame_size > dec_buffer_len &&
+      speex_bits_remaining( dbits ) >= 8 ) {
+    logv( env, "out of space in the decoded buffer, idx=%d", dec_buffer_idx );
   }
-  tmp=1;
-  speex_preprocess_ctl( prepState, SPEEX_PREPROCESS_SET_DENOISE, &tmp );
-  tmp=1;
-  speex_preprocess_ctl( prepState, SPEEX_PREPROCESS_SET_AGC, &tmp );
-  tmp=0;
-  speex_preprocess_ctl( prepState, SPEEX_PREPROCESS_SET_VAD, &tmp );
-  //  float agcTarget = 32767*.8;
-  //speex_preprocess_ctl( prepState, SPEEX_PREPROCESS_SET_AGC_LEVEL, &agcTarget );
-  */
-  initialized = 123;  
 
-  return 0;
+  return dec_buffer_idx;
 }
-JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_closeSpeex (JNIEnv *env, jobject obj ){
-  if( !initialized ) {
-    logv( env, "tried to shut down speex before initialization" );
-    return;
-  }
 
-  logv( env, "speex shutdown" );
-  speex_bits_destroy( &enc_bits );
-  speex_bits_destroy( &dec_bits );
+/*
+ * Moves the audio the scaler held back at an earlier rate into out, which must already be
+ * at rate 1.  Returns its length, or -1 if it doesn't fit in out_len samples.
+ */
+static int drain_scaler( SpeexState *state, spx_int16_t *out, int out_len ) {
+  if( state->scaler.fill > out_len ) return -1;
+
+  //at rate 1 the scaler copies out what it holds, then the (empty) input
+  spx_int16_t none[1];
+  int held = time_scale( &state->scaler, state->scaling, none, 0 );
+  memcpy( out, state->scaling, held * sizeof( spx_int16_t ) );
+  return held;
+}
 
-  logv( env, "bits destroyed" );
+//returns the encoded stream, or NULL for PLC; sets *bad if the buffer can't be used
+static char *get_encoded( JNIEnv *env, jobject encBuf, jint encLen, int *bad ) {
+  *bad = 0;
+  if( encBuf == NULL ) return NULL;
+
+  char *enc_stream = (char *)env->GetDirectBufferAddress( encBuf );
+  if( enc_stream == NULL || encLen > env->GetDirectBufferCapacity( encBuf ) ) {
+    logv(env, "Speex decode passed a bad encoded buffer" );
+    *bad = 1;
+  }
+  return enc_stream;
+}
 
-  speex_encoder_destroy( enc );
-  speex_decoder_destroy( dec );
+JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_decode (JNIEnv *env, jclass c, jlong handle, jobject encBuf, jint encLen, jobject decBuf ){
+  SpeexState *state = (SpeexState *)(intptr_t)handle;
+  if( state == NULL ) {
+    logv(env, "tried to decode without initializing" );
+    return -1;
+  }
+
+  spx_int16_t *dec_buffer = decBuf == NULL ? NULL : (spx_int16_t *)env->GetDirectBufferAddress( decBuf );
+  if (dec_buffer == NULL) {
+    logv(env, "Speex decode passed a null or non-direct decode buffer" );
+    return -1;
+  }
 
-  //  jitter_buffer_destroy( jitter );
+  int bad;
+  char *enc_stream = get_encoded( env, encBuf, encLen, &bad );
+  if( bad ) return -1;
 
-  logv( env, "codecs destroyed" );
+  return decode_frames( env, state, enc_stream, encLen, dec_buffer,
+                        env->GetDirectBufferCapacity( decBuf ) );
 }
 
-JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_decode (JNIEnv *env, jobject obj, jbyteArray encArr, jshortArray decArr, jint encLen ){
-  cenv = env;
-  if( !initialized ) {
+JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_decodeAndChangeSpeed (JNIEnv *env, jclass c, jlong handle, jobject encBuf, jint encLen, jobject outBuf, jfloat rate ){
+  SpeexState *state = (SpeexState *)(intptr_t)handle;
+  if( state == NULL ) {
     logv(env, "tried to decode without initializing" );
     return -1;
   }
 
-  if (decArr == NULL) {
-    logv(env, "Speex decode passed a null decode buffer" );
+  spx_int16_t *out = outBuf == NULL ? NULL : (spx_int16_t *)env->GetDirectBufferAddress( outBuf );
+  if( out == NULL ) {
+    logv(env, "Speex decode passed a null or non-direct output buffer" );
     return -1;
   }
+  int out_len = env->GetDirectBufferCapacity( outBuf );
 
-  jint dec_buffer_len = env->GetArrayLength( decArr );
-  int dec_buffer_idx = 0;
+  int bad;
+  char *enc_stream = get_encoded( env, encBuf, encLen, &bad );
+  if( bad ) return -1;
 
-  jbyte *jb_enc_stream;
-  char *enc_stream;
-  SpeexBits *dbits = NULL; //if this is null, speex will do PLC for us
-  if( !env->IsSameObject( encArr, NULL ) ) {
-    jb_enc_stream = env->GetByteArrayElements( encArr, NULL );
-    enc_stream = (char *)jb_enc_stream;
-    speex_bits_read_from( &dec_bits, enc_stream, encLen );
-    env->ReleaseByteArrayElements( encArr, jb_enc_stream, JNI_ABORT );
-    dbits = &dec_bits;
-  } else {
-    //    logv( env, "null encArr" );
+  if( 0 != time_scale_rate( &state->scaler, rate ) ) {
+    logv( env, "rate change failed" );
+    return -1;
   }
 
-  while( 0 == speex_decode_int( dec, dbits, dec_buffer+dec_buffer_idx ) ) {
-    dec_buffer_idx += dec_frame_size;
-    if( dec_buffer_idx + dec_frame_size >= dec_buffer_len ) {
-      logv( env, "out of space in the decArr buffer, idx=%d", dec_buffer_idx );
-      break;
+  //time_scale_rate() snaps rates this close to 1 to it, and then nothing is scaled
+  if( state->scaler.playout_rate == 1.0f ) {
+    //decode straight into the output after anything scaled earlier
+    int held = drain_scaler( state, out, out_len );
+    if( held < 0 ) {
+      logv( env, "output buffer too small for held audio" );
+      return -1;
     }
+    return held + decode_frames( env, state, enc_stream, encLen, out + held, out_len - held );
+  }
 
-    if( dec_buffer_idx + dec_frame_size >= dec_frame_size * MAX_DEC_FRAMES ) {
-      logv( env, "out of space in the dec_buffer buffer, idx=%d", dec_buffer_idx );
-      break;
-    }
+  int decoded = decode_frames( env, state, enc_stream, encLen, state->scaling,
+                               MAX_DEC_FRAMES * MAX_FRAME_SIZE );
 
-    if( dbits == NULL ) {
-      //      logv(env, "did PLC" );
-      break;//only generate one frame for PLC...
-    }
+  if( out_len < time_scale_max_output_len( &state->scaler, decoded ) ) {
+    logv( env, "output buffer too small for rate change" );
+    return -1;
   }
-    
-  env->SetShortArrayRegion( decArr, 0, dec_buffer_idx, dec_buffer );
-  return dec_buffer_idx;
+
+  return time_scale( &state->scaler, out, state->scaling, decoded );
 }
 
-JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_encode (JNIEnv *env, jobject obj, jshortArray decArr, jbyteArray encArr, jint rawLen ){
-  if( !initialized ) {
+JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_encode (JNIEnv *env, jclass c, jlong handle, jobject decBuf, jint rawLen, jobject encBuf ){
+  SpeexState *state = (SpeexState *)(intptr_t)handle;
+  if( state == NULL ) {
     logv( env, "tried to encode without initializing" );
     return -1;
   }
 
-  //  logv( env, "entered encode %d", rawLen );
-  //  logv( env, "encoding %d samples", rawLen );
-  jshort *raw_stream = env->GetShortArrayElements( decArr, NULL );
-  speex_bits_reset( &enc_bits );
-
-  //  logv( env, "bits reset" );
-  //  speex_preprocess_run( prepState, (spx_int16_t *)raw_stream );
-  speex_encode_int( enc, (spx_int16_t *)raw_stream, &enc_bits );
-
-  //  logv( env, "encode complete" );
-
-  env->ReleaseShortArrayElements( decArr, raw_stream, JNI_ABORT );
-
-  //  logv( env, "writing up to %d bytes to buffer", enc_frame_size );
-
-  int nbytes = speex_bits_write( &enc_bits, enc_buffer, enc_frame_size );
+  spx_int16_t *raw_stream = (spx_int16_t *)env->GetDirectBufferAddress( decBuf );
+  char *enc_stream        = (char *)env->GetDirectBufferAddress( encBuf );
+  if( raw_stream == NULL || enc_stream == NULL ) {
+    logv( env, "Speex encode passed a non-direct buffer" );
+    return -1;
+  }
 
-  //  logv( env, "wrote %d bytes to buffer", nbytes );
+  if( rawLen < state->enc_frame_size || env->GetDirectBufferCapacity( decBuf ) < state->enc_frame_size ) {
+    logv( env, "Speex encode passed a short frame, len=%d", rawLen );
+    return -1;
+  }
 
-  env->SetByteArrayRegion( encArr, 0, nbytes, (jbyte*)enc_buffer );
+  speex_bits_reset( &state->enc_bits );
+  speex_encode_int( state->enc, raw_stream, &state->enc_bits );
 
-  //  logv( env, "wrote back to java buffer" );
+  int nbytes = speex_bits_write( &state->enc_bits, enc_stream, env->GetDirectBufferCapacity( encBuf ) );
 
   return (jint)nbytes;
 }
@@ -4,7 +4,6 @@ void logv( JNIEnv *env, const char *msg, ... );
 extern "C" {
 #endif
 void loge( const char *msg, ... );
-void curenv( JNIEnv *env );
 #ifdef __cplusplus
 }
 #endif
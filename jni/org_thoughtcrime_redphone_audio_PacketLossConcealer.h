@@ -11,6 +11,7 @@ extern "C"
 #endif
 
 JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_init (JNIEnv *env, jclass);
+JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_setSampleRate (JNIEnv *env, jclass, jint);
 JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_rx (JNIEnv *env, jclass, jshortArray);
 JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_fillIn (JNIEnv *env, jclass, jshortArray);
 JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_audio_PacketLossConcealer_maxOutputLengthAtSpeed (JNIEnv *env, jclass, jint, jfloat);
@@ -10,10 +10,11 @@ extern "C"
 {
 #endif
 
-JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_openSpeex (JNIEnv *env, jobject);
-JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_closeSpeex (JNIEnv *env, jobject);
-JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_decode (JNIEnv *env, jobject, jbyteArray, jshortArray, jint);
-JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_encode (JNIEnv *env, jobject, jshortArray, jbyteArray, jint);
+JNIEXPORT jlong JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_openSpeex (JNIEnv *env, jclass, jboolean);
+JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_closeSpeex (JNIEnv *env, jclass, jlong);
+JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_decode (JNIEnv *env, jclass, jlong, jobject, jint, jobject);
+JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_decodeAndChangeSpeed (JNIEnv *env, jclass, jlong, jobject, jint, jobject, jfloat);
+JNIEXPORT jint JNICALL Java_org_thoughtcrime_redphone_codec_SpeexCodec_encode (JNIEnv *env, jclass, jlong, jobject, jint, jobject);
 
 #ifdef __cplusplus
 }
@@ -48,7 +48,6 @@ import com.securecomcode.voice.contacts.PersonInfo;
 import com.securecomcode.voice.crypto.zrtp.SASInfo;
 import com.securecomcode.voice.gcm.GCMRegistrarHelper;
 import com.securecomcode.voice.monitor.CallDataImpl;
-import com.securecomcode.voice.network.RtpSocket;
 import com.securecomcode.voice.pstn.CallStateView;
 import com.securecomcode.voice.pstn.IncomingPstnCallListener;
 import com.securecomcode.voice.signaling.OtpCounterProvider;
@@ -405,7 +404,6 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
 
   private synchronized void terminate() {
     ApplicationPreferencesActivity.setInCallStatusPreference(getApplicationContext(), false);
-    RtpSocket.isOPSThreadStarted = false;
     lockManager.updatePhoneState(LockManager.PhoneState.PROCESSING);
     NotificationBarManager.setCallEnded(this);
 
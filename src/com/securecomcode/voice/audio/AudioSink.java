@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.securecomcode.voice.audio;
+
+/**
+ * Somewhere to play decoded audio: normally the device's {@link RobustAudioTrack}, or a
+ * simulated track when the playout logic is run offline.
+ */
+public interface AudioSink {
+  /**
+   * Called once per cycle before audio is written, to start or revive playback as needed.
+   */
+  public void update();
+
+  public void writeChunk(short chunk[], int chunkLen);
+
+  /**
+   * @return the number of samples written but not yet played.
+   */
+  public int getBufferRemaining();
+
+  public void terminate();
+}
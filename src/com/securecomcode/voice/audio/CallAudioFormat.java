@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.audio;
+
+import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.network.RtpAudioSender;
+
+/**
+ * The shape of a call's audio: its sample rate, how long a codec frame lasts, and how many
+ * frames a packet starts out holding.  One is made when the codec is chosen and handed to
+ * every part of the pipeline, which derive their buffer sizes and timing from it rather than
+ * from constants that assume 20ms narrowband frames.
+ *
+ * Tuning constants are written in milliseconds and converted here, so a pipeline running 10ms
+ * frames or 16kHz audio behaves as one running 20ms frames at 8kHz does.
+ *
+ * Settings saved between calls stay in 8kHz samples, so they carry over between formats.
+ */
+public class CallAudioFormat {
+
+  public static final int SAVED_SAMPLE_RATE = 8000;
+
+  public static final CallAudioFormat NARROWBAND =
+      new CallAudioFormat(AudioCodec.SAMPLE_RATE, 1000 / AudioCodec.FRAME_RATE,
+                          RtpAudioSender.LEGACY_FRAMES_PER_PACKET);
+
+  private final int sampleRate;
+  private final int frameMillis;
+  private final int framesPerPacket;
+
+  public CallAudioFormat(int sampleRate, int frameMillis, int framesPerPacket) {
+    if (sampleRate * frameMillis % 1000 != 0) {
+      throw new IllegalArgumentException("A " + frameMillis + "ms frame at " + sampleRate +
+                                         "Hz is not a whole number of samples");
+    }
+
+    this.sampleRate      = sampleRate;
+    this.frameMillis     = frameMillis;
+    this.framesPerPacket = framesPerPacket;
+  }
+
+  /**
+   * @return the format of a call using this codec, starting at the legacy packet size.
+   */
+  public static CallAudioFormat forCodec(AudioCodec codec) {
+    return new CallAudioFormat(codec.getSampleRate(),
+                               codec.getSamplesPerFrame() * 1000 / codec.getSampleRate(),
+                               RtpAudioSender.LEGACY_FRAMES_PER_PACKET);
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getFrameMillis() {
+    return frameMillis;
+  }
+
+  public int getFramesPerPacket() {
+    return framesPerPacket;
+  }
+
+  public int getFrameRate() {
+    return 1000 / frameMillis;
+  }
+
+  public int getSamplesPerFrame() {
+    return sampleRate * frameMillis / 1000;
+  }
+
+  public int getSamplesPerPacket() {
+    return getSamplesPerFrame() * framesPerPacket;
+  }
+
+  public int millisToSamples(float millis) {
+    return Math.round(millis * sampleRate / 1000);
+  }
+
+  public long samplesToMillis(long samples) {
+    return samples * 1000 / sampleRate;
+  }
+
+  public float millisToFrames(float millis) {
+    return millis / frameMillis;
+  }
+
+  public float framesToMillis(float frames) {
+    return frames * frameMillis;
+  }
+
+  /**
+   * @return a saved level in 8kHz samples, as samples of this format.
+   */
+  public int fromSavedSamples(int samples) {
+    return (int)((long)samples * sampleRate / SAVED_SAMPLE_RATE);
+  }
+
+  public int toSavedSamples(int samples) {
+    return (int)((long)samples * SAVED_SAMPLE_RATE / sampleRate);
+  }
+
+  @Override
+  public String toString() {
+    return sampleRate + "Hz/" + frameMillis + "ms/" + framesPerPacket;
+  }
+}
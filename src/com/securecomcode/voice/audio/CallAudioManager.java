@@ -22,18 +22,23 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.codec.MeteredAudioCodec;
 import com.securecomcode.voice.crypto.SecureRtpSocket;
 import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.network.PacketReservoir;
+import com.securecomcode.voice.network.PacketizationChooser;
 import com.securecomcode.voice.network.RtpAudioReader;
 import com.securecomcode.voice.network.RtpAudioSender;
 import com.securecomcode.voice.profiling.PacketLogger;
+import com.securecomcode.voice.profiling.PeriodicTimer;
 import com.securecomcode.voice.profiling.StatisticsWatcher;
 import com.securecomcode.voice.profiling.TimeProfiler;
 import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
+import com.securecomcode.voice.util.Factory;
+import com.securecomcode.voice.util.RingBuffer;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.nio.channels.Selector;
 
 /**
  * CallAudioManager controls the reading and writing of audio data from between the network stack
@@ -44,11 +49,41 @@ import java.util.NoSuchElementException;
  * Raw audio from the microphone input buffer is encoded by the {@link MicrophoneReader}, then
  * queued before being sent to the {@link com.securecomcode.voice.network.RtpAudioSender}.
  *
+ * The audio thread sleeps on a {@link Selector} between events: a new microphone frame wakes
+ * it, as does a readable socket, and the select timeout is set to when the audio track will
+ * have drained to its desired level.  The older loop that polls every stage back to back is
+ * kept for loopback mode, single-thread mode and as a user setting.
+ *
+ * Stages hand frames to each other through single-producer/single-consumer {@link RingBuffer}s
+ * whose overflow and underflow counts are reported to the {@link CallMonitor}.
+ *
+ * With echo cancellation turned on, a {@link VoiceProcessor} cleans each microphone frame before
+ * it is encoded, using a {@link FarEndReference} copy of the audio written to the track.
+ *
+ * With discontinuous transmission turned on, packets that hold only silence are replaced by
+ * occasional comfort noise packets.  With adaptive packetization turned on, a
+ * {@link PacketizationChooser} resizes outgoing packets once a second from the loss and jitter
+ * of the incoming audio, and forward error correction, if allowed, adds redundant copies of
+ * each packet while the incoming audio is losing more than a few percent of its frames.
+ *
  * @author Stuart O. Anderson
  */
 public class CallAudioManager {
-  private final LinkedList<EncodedAudioData> outgoingAudio = new LinkedList<EncodedAudioData>();
-  private final LinkedList<EncodedAudioData> incomingAudio = new LinkedList<EncodedAudioData>();
+  private static final long MAX_EVENT_WAIT_MILLIS = 10;
+
+  private static final int MAX_ENCODED_FRAME_SIZE = 512;
+  private static final int OUTGOING_QUEUE_CAPACITY = 8;
+  private static final long ADAPTATION_PERIOD_MILLIS = 1000;
+  //redundancy starts above one lost frame in thirty and stops below one in a hundred
+  private static final float FEC_ON_LOSS_RATE  = 0.03f;
+  private static final float FEC_OFF_LOSS_RATE = 0.01f;
+
+  private final RingBuffer<EncodedAudioData> outgoingAudio =
+      createQueue(OUTGOING_QUEUE_CAPACITY, MAX_ENCODED_FRAME_SIZE);
+  private final RingBuffer<EncodedAudioData> incomingAudio =
+      createQueue(RtpAudioReader.MAX_QUEUED_FRAMES, RtpAudioReader.MAX_PAYLOAD_SIZE);
+  private final PacketReservoir receivedPackets =
+      new PacketReservoir(RtpAudioReader.MAX_PAYLOAD_SIZE, 64);
 
   private boolean callDone = false;
   private long extraReads = 0;
@@ -57,26 +92,130 @@ public class CallAudioManager {
   private RtpAudioSender netSender;
   private RtpAudioReader netReader;
   private CallAudioStream audioStream;
+  private VoiceProcessor voiceProcessor;
+  private PacketizationChooser packetizationChooser;
+  private final PeriodicTimer adaptationTimer = new PeriodicTimer(ADAPTATION_PERIOD_MILLIS);
+  private boolean forwardErrorCorrectionAllowed;
+  private SecureRtpSocket socket;
   private AudioCodec codec;
+  private final CallAudioFormat format;
+  private Selector selector;
   private boolean runStarted = false;
   private boolean loopbackMode;
+  private boolean legacyLoop;
   private boolean simDrops;
-  private LinkedList<EncodedAudioData> stolenAudio = new LinkedList<EncodedAudioData>();
+  private final RingBuffer<EncodedAudioData> stolenAudio =
+      createQueue(2, RtpAudioReader.MAX_PAYLOAD_SIZE);
 
   private PacketLogger packetLogger = new PacketLogger();
 
   public CallAudioManager( SecureRtpSocket socket, String codecID, Context context, CallMonitor monitor) {
-    codec = AudioCodec.getInstance( codecID ); //begins init
+    this( socket, AudioCodec.getInstance( codecID ), codecID, context, monitor ); //begins init
+  }
 
-    netSender   = new RtpAudioSender( outgoingAudio, socket, packetLogger );
-    netReader   = new RtpAudioReader( incomingAudio, socket, packetLogger );
+  /**
+   * @param audioCodec an instance of codecID, which may still be initializing.
+   */
+  public CallAudioManager( SecureRtpSocket socket, AudioCodec audioCodec, String codecID,
+                           Context context, CallMonitor monitor )
+  {
+    codec = new MeteredAudioCodec( audioCodec, codecID );
+    format = CallAudioFormat.forCodec( codec );
+    this.socket = socket;
+
+    netSender   = new RtpAudioSender( outgoingAudio, socket, format.getSamplesPerFrame(), packetLogger );
+    netReader   = new RtpAudioReader( incomingAudio, socket, format.getSamplesPerFrame(), packetLogger );
     //create audioStream before micreader, so they pick up the same audio mode, since audiomode is set in audioStream
-    audioStream = new CallAudioStream(incomingAudio, codec, packetLogger, monitor);
-    micReader   = new MicrophoneReader(outgoingAudio, codec, packetLogger, monitor);
+    audioStream = new CallAudioStream(incomingAudio, receivedPackets, codec, format, packetLogger, monitor);
+    micReader   = new MicrophoneReader(outgoingAudio, codec, format, packetLogger, monitor);
+
+    FarEndReference farEnd = audioStream.getFarEndReference();
+    if( farEnd != null ) {
+      voiceProcessor = new VoiceProcessor(farEnd, format.getSamplesPerFrame(), format.getSampleRate(),
+                                          true, true);
+      micReader.setVoiceProcessor(voiceProcessor);
+      monitor.addSampledMetrics("voice-processor", voiceProcessor);
+    }
 
     //setup preferences
     loopbackMode  = ApplicationPreferencesActivity.getLoopbackEnabled(context);
     simDrops = ApplicationPreferencesActivity.isSimulateDroppedPackets(context);
+    legacyLoop = loopbackMode || micReader.isSingleThread() ||
+                 ApplicationPreferencesActivity.isLegacyAudioLoop(context);
+
+    monitor.addNominalValue("audio-loop", legacyLoop ? "polling" : "event");
+    monitor.addNominalValue("audio-format", format.toString());
+    monitor.addSampledMetrics("outgoing-queue", outgoingAudio);
+    monitor.addSampledMetrics("incoming-queue", incomingAudio);
+    monitor.addSampledMetrics("audio-sender", netSender.getMetrics());
+    monitor.addSampledMetrics("codec", (MeteredAudioCodec)codec);
+  }
+
+  /**
+   * Stops sending packets while the microphone hears only background noise.  Only turn this on
+   * for peers that play comfort noise packets.
+   */
+  public void setDiscontinuousTransmission(boolean enabled) {
+    netSender.setDiscontinuousTransmission(enabled);
+  }
+
+  /**
+   * Varies the frames sent in each packet with network conditions, and reads the frame count
+   * and timing from each packet received.  Only turn this on for peers that do the same.
+   */
+  public void setAdaptivePacketization(boolean enabled) {
+    netSender.setAdaptivePacketization(enabled);
+    netReader.setAdaptivePacketization(enabled);
+    packetizationChooser = enabled ? new PacketizationChooser(format) : null;
+  }
+
+  /**
+   * Lets redundant copies of each packet be sent while the network loses enough audio to need
+   * them.  Only turn this on for peers that read redundant audio, with adaptive packetization.
+   */
+  public void setForwardErrorCorrectionAllowed(boolean allowed) {
+    forwardErrorCorrectionAllowed = allowed;
+    if( !allowed ) netSender.setForwardErrorCorrection(false);
+  }
+
+  private void adaptToNetwork() {
+    if( packetizationChooser == null || !adaptationTimer.periodically() ) return;
+
+    netSender.setFramesPerPacket(packetizationChooser.choose(audioStream.sampleLossRate(),
+                                                             audioStream.getDesiredDelayMillis()));
+
+    if( forwardErrorCorrectionAllowed ) {
+      float lossRate = audioStream.getLossRate();
+      if( lossRate >= FEC_ON_LOSS_RATE ) netSender.setForwardErrorCorrection(true);
+      else if( lossRate < FEC_OFF_LOSS_RATE ) netSender.setForwardErrorCorrection(false);
+    }
+  }
+
+  private static RingBuffer<EncodedAudioData> createQueue(int capacity, final int frameSize) {
+    return new RingBuffer<EncodedAudioData>(capacity, new Factory<EncodedAudioData>() {
+      public EncodedAudioData getInstance() {
+        return new EncodedAudioData(frameSize);
+      }
+    });
+  }
+
+  /**
+   * Moves the oldest frame of one queue to the other, dropping it if the destination is full.
+   */
+  private static boolean transfer(RingBuffer<EncodedAudioData> from,
+                                  RingBuffer<EncodedAudioData> to)
+  {
+    EncodedAudioData source = from.peek();
+    if( source == null ) return false;
+
+    EncodedAudioData destination = to.claim();
+    if( destination != null ) {
+      destination.copyFrom(source);
+      to.publish();
+    }
+
+    from.release();
+    return true;
   }
 
   public void run() throws AudioException, IOException {
@@ -110,6 +249,11 @@ public class CallAudioManager {
 
     micReader.flush();
 
+    if( !legacyLoop ) {
+      runEventLoop();
+      return;
+    }
+
     while( !callDone ) {
       /*if( pt.periodically() ) {
         Log.w( "CallAudioManager", "executed " + cycleCount + " cycles" + " sendSequenceNumber=" + netSender.getSequenceNumber() + " recvSequenceNumber=" + netReader.sequenceNumber() );
@@ -130,25 +274,17 @@ public class CallAudioManager {
         t2 = t3 = SystemClock.uptimeMillis();
         if( simDrops ) {
           if( Math.random() < .25 ) {
-            try {
-              stolenAudio.add(outgoingAudio.remove());
+            if( transfer(outgoingAudio, stolenAudio) ) {
               if( stolenAudio.size() > 1 ) {
-                incomingAudio.add( stolenAudio.remove() );
-
+                transfer(stolenAudio, incomingAudio);
+              }
+              if( !outgoingAudio.isEmpty() ) {
+                outgoingAudio.release();
               }
-              outgoingAudio.remove();
-            }catch ( NoSuchElementException e ) {
-
             }
           }
         }
-        if (outgoingAudio.size() > 0) {
-          try {
-            EncodedAudioData ead = outgoingAudio.remove();
-            incomingAudio.add(ead);
-          } catch (NoSuchElementException e) {
-          }
-        }
+        transfer(outgoingAudio, incomingAudio);
       } else {
 
         t2 = SystemClock.uptimeMillis();
@@ -159,6 +295,7 @@ public class CallAudioManager {
 
       t4 = SystemClock.uptimeMillis();
       audioStream.go();
+      adaptToNetwork();
       t5 = SystemClock.uptimeMillis();
       if( netSender.sentPackets() > extraReads ) {
         extraReads++;
@@ -193,10 +330,48 @@ public class CallAudioManager {
     }
   }
 
+  private void runEventLoop() throws AudioException, IOException {
+    synchronized( this ) {
+      if( callDone ) return;
+      selector = Selector.open();
+    }
+
+    try {
+      socket.register( selector );
+      socket.setTimeout( 0 );
+
+      micReader.setFrameReadyListener( new Runnable() {
+        public void run() {
+          selector.wakeup();
+        }
+      });
+
+      while( !callDone ) {
+        micReader.go();
+        netSender.go();
+
+        netReader.drain();
+
+        audioStream.go();
+        adaptToNetwork();
+
+        long waitMillis = Math.min( audioStream.getMillisUntilRefill(), MAX_EVENT_WAIT_MILLIS );
+        if( waitMillis > 0 ) {
+          selector.select( waitMillis );
+          selector.selectedKeys().clear();
+        }
+      }
+    } finally {
+      micReader.setFrameReadyListener( null );
+      selector.close();
+    }
+  }
+
   private void doTerminate() {
     TimeProfiler.terminate();
     micReader.terminate();
     audioStream.terminate();
+    if( voiceProcessor != null ) voiceProcessor.terminate();
   }
 
   public void terminate() {
@@ -205,6 +380,7 @@ public class CallAudioManager {
     synchronized( this ) {
       callDone = true;
       if( !runStarted ) callTerm = true;
+      if( selector != null ) selector.wakeup();
     }
     if( callTerm ) doTerminate();
   }
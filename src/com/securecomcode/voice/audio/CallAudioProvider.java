@@ -17,16 +17,27 @@
 
 package com.securecomcode.voice.audio;
 
+import android.content.Context;
 import android.util.Log;
 
+import com.securecomcode.voice.ApplicationContext;
 import com.securecomcode.voice.codec.AudioCodec;
 import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.monitor.CountMetric;
+import com.securecomcode.voice.network.PacketReservoir;
+import com.securecomcode.voice.network.RtpAudioReader;
+import com.securecomcode.voice.network.RtpAudioSender;
 import com.securecomcode.voice.profiling.PacketLogger;
 import com.securecomcode.voice.profiling.StatisticsWatcher;
+import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
+import com.securecomcode.voice.util.AndroidClock;
 
 import org.thoughtcrime.redphone.audio.PacketLossConcealer;
 
-import java.util.TreeMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 /**
  * The CallAudioProvider stretches and shrinks audio on the fly to mask issues like
@@ -40,6 +51,21 @@ import java.util.TreeMap;
  * If too little audio is available the audio is slowed down or synthesized based on the
  * last few packets decoded.
  *
+ * Frames waiting to be played are held in a {@link JitterBuffer}.  The playhead, the buffer and
+ * the desired delay all count 20ms frames, and a packet holding several frames advances the
+ * playhead by all of them once it is decoded.  A lost frame is concealed one frame at a time.
+ *
+ * A silent frame means the far end has paused and stopped sending.  Noise at the level it
+ * reported is played until audio arrives again, and the packets it held back are not counted
+ * as lost.
+ *
+ * Codecs that decode natively decode, conceal and time-scale a packet in one call on direct
+ * buffers, made once the play rate for it is known.  At rate 1 nothing is time scaled.
+ *
+ * Redundant copies of earlier packets only go into the buffer if the original is still missing
+ * and due to be played.  A frame rebuilt this way still counts as lost in the loss rate, which
+ * decides whether such copies are sent at all.
+ *
  * @author Stuart O. Anderson
  */
 public class CallAudioProvider {
@@ -52,12 +78,23 @@ public class CallAudioProvider {
   private static final float bigRateShift    = .5f;
   private static final float littleRateShift = .05f;
 
-  private static final int   bigStart = 10; //start a quick correction if we exceed the average delay by this amount
-  private static final float littleStartShrink = 3f;
-  private static final float littleStartStretch = 2f;
+  //thresholds in milliseconds, converted to frames of the call's format
+  private static final int bigStartMillis = 400; //start a quick correction if we exceed the average delay by this amount
+  private static final int littleStartShrinkMillis = 120;
+  private static final int littleStartStretchMillis = 80;
 
-  private static final int maxGap = 1;
-  private static final int maxBuffer = 25;
+  private static final int maxGapMillis = 40;
+  private static final int maxBufferMillis = 1000;
+
+  //the saved delay counts two-frame packets, as it did before packets could vary
+  private static final int savedDelayUnitMillis = 40;
+
+  private final int   bigStart;
+  private final float littleStartShrink;
+  private final float littleStartStretch;
+  private final int   maxGap;
+  private final int   maxBuffer;
+  private static final int jitterBufferCapacity = 256;
 
   private PacketLogger packetLogger;
 
@@ -72,24 +109,72 @@ public class CallAudioProvider {
   private int decodeBufferLength;
   private int outputFrameLength;
 
-  private final short decodeBuffer[] = new short[1024];
-  private final short rateBuffer[] = new short[2048];
+  private final short decodeBuffer[];
+  private final short rateBuffer[];
+  private int framesPulled;
+
+  private final boolean     nativeDecode;
+  private ByteBuffer        encodedBuffer;
+  private final ShortBuffer outputBuffer;
+  private int               pendingEncodedLength;
+  private boolean           decodePending;
+  private boolean           timeScalerHoldsAudio;
 
   private StatisticsWatcher frameDelayStats = new StatisticsWatcher();
   private StatisticsWatcher samplesPerPacketStats = new StatisticsWatcher();
   private StatisticsWatcher frameSizeStats = new StatisticsWatcher();
 
   private AudioCodec codec;
-  private TreeMap<Long, EncodedAudioData> audioFrames = new TreeMap<Long, EncodedAudioData>();
-  private DesiredCallAudioDelayChooser delayChooser;
+  private final CallAudioFormat format;
+  private PacketReservoir reservoir;
+  private final JitterBuffer audioFrames;
+  private final DesiredCallAudioDelayChooser delayChooser;
+
+  private final ComfortNoiseGenerator comfortNoise = new ComfortNoiseGenerator();
+  private boolean playingComfortNoise;
 
   private int gapLength;
+  private int droppedOnArrival;
 
   private int decodedCount;
+  private int framesDecoded, framesConcealed;
+  private final CountMetric recoveryStats = new CountMetric();
+
+  CallAudioProvider(AudioCodec _codec, CallAudioFormat format, PacketReservoir reservoir,
+                    PacketLogger packetLogger, CallLogger callLogger, CallMonitor monitor) {
+    this(_codec, format, new JitterBuffer(jitterBufferCapacity),
+         new DesiredCallAudioDelayChooser(packetLogger, format, AndroidClock.INSTANCE,
+             format.millisToFrames(ApplicationPreferencesActivity.getCallStreamDesBufferLevel(getContext()) *
+                                   savedDelayUnitMillis),
+             ApplicationPreferencesActivity.isMinimizeLatency(getContext())),
+         reservoir, packetLogger, callLogger, monitor);
+  }
 
-  CallAudioProvider(AudioCodec _codec, PacketLogger packetLogger, CallLogger callLogger, CallMonitor monitor) {
-    delayChooser = new DesiredCallAudioDelayChooser( packetLogger );
+  CallAudioProvider(AudioCodec _codec, CallAudioFormat format, JitterBuffer jitterBuffer,
+                    DesiredCallAudioDelayChooser delayChooser, PacketReservoir reservoir,
+                    PacketLogger packetLogger, CallLogger callLogger, CallMonitor monitor) {
+    audioFrames = jitterBuffer;
+    this.delayChooser = delayChooser;
     codec = _codec;
+    this.format = format;
+    bigStart           = (int)format.millisToFrames(bigStartMillis);
+    littleStartShrink  = format.millisToFrames(littleStartShrinkMillis);
+    littleStartStretch = format.millisToFrames(littleStartStretchMillis);
+    maxGap             = (int)format.millisToFrames(maxGapMillis);
+    maxBuffer          = (int)format.millisToFrames(maxBufferMillis);
+    PacketLossConcealer.setSampleRate(format.getSampleRate());
+    //time scaling can at most double a packet
+    decodeBuffer = new short[RtpAudioSender.MAX_FRAMES_PER_PACKET * format.getSamplesPerFrame()];
+    rateBuffer   = new short[2 * decodeBuffer.length + format.getSamplesPerFrame()];
+    nativeDecode = codec.canDecodeAndChangeSpeed();
+    if( nativeDecode ) {
+      encodedBuffer = ByteBuffer.allocateDirect( RtpAudioReader.MAX_PAYLOAD_SIZE );
+      outputBuffer  = ByteBuffer.allocateDirect( rateBuffer.length * 2 )
+                                .order( ByteOrder.nativeOrder() ).asShortBuffer();
+    } else {
+      outputBuffer  = null;
+    }
+    this.reservoir = reservoir;
     this.packetLogger = packetLogger;
     this.callAudioLogger = callLogger;
     frameDelayStats.setW(1 / 20.0f);
@@ -99,6 +184,7 @@ public class CallAudioProvider {
     monitor.addSampledMetrics("cap-latency", frameDelayStats.getSampler());
     monitor.addSampledMetrics("cap-samples-per-packet", samplesPerPacketStats.getSampler());
     monitor.addSampledMetrics("cap-frame-size", frameSizeStats.getSampler());
+    monitor.addSampledMetrics("cap-recovery", recoveryStats);
   }
 
   private void pullAudio() {
@@ -106,7 +192,7 @@ public class CallAudioProvider {
     EncodedAudioData eadAtHead = null;
     if( audioFrames.size() != 0 ) {
       //see if the next sample is the one we want
-      ead       = audioFrames.get(audioFrames.firstKey());
+      ead       = audioFrames.first();
       eadAtHead = audioFrames.get(streamPlayheadPosition);
     }
 
@@ -127,7 +213,16 @@ public class CallAudioProvider {
     }
 
     if( ead != null && ead.sequenceNumber == streamPlayheadPosition ) {
-      decodeBufferLength = codec.decode( ead.data, decodeBuffer, ead.data.length );
+      playingComfortNoise = ead.silent;
+      if( playingComfortNoise ) {
+        comfortNoise.setNoiseLevel( ead.noiseLevel );
+        decodeBufferLength = comfortNoise.generate( decodeBuffer, format.getSamplesPerFrame() );
+      } else if( nativeDecode ) {
+        setPendingDecode( ead.data, ead.length );
+        decodeBufferLength = ead.frames * format.getSamplesPerFrame();
+      } else {
+        decodeBufferLength = codec.decode( ead.data, decodeBuffer, ead.length );
+      }
       decodedCount++;
       packetLogger.logPacket( ead.sourceSequenceNumber, PacketLogger.PACKET_DECODED );
       if( gapLength < CallLogger.gapLengthCounts.length &&
@@ -136,8 +231,22 @@ public class CallAudioProvider {
       }
       gapLength = 0;
       lastGoodFrame = ead.sequenceNumber;
+      framesPulled = playingComfortNoise ? 1 : ead.frames;
+      if( !playingComfortNoise ) framesDecoded += framesPulled;
+      if( ead.redundant ) {
+        delayChooser.notifyRecovered( ead.frames );
+        recoveryStats.increment( "recovered-frames", ead.frames );
+      }
       audioFrames.remove(ead.sequenceNumber);
-      if( audioFrames.size() == 0 ) delayChooser.notifyJustInTime();
+      reservoir.returnPacket(ead);
+      if( audioFrames.size() == 0 && !playingComfortNoise ) delayChooser.notifyJustInTime();
+      return;
+    }
+    if( playingComfortNoise ) {
+      //the far end has nothing to send until it starts talking again, so this isn't a gap
+      decodeBufferLength = comfortNoise.generate( decodeBuffer, format.getSamplesPerFrame() );
+      lastGoodFrame = streamPlayheadPosition;
+      framesPulled = 1;
       return;
     }
     if( ead != null ) {
@@ -147,26 +256,113 @@ public class CallAudioProvider {
       //Log.d( "CAP", "PLCNULL" );
       packetLogger.logPacket(streamPlayheadPosition, PacketLogger.PLAY_BUFFER_EMPTY );
     }
-    decodeBufferLength = codec.decode(null, decodeBuffer, 0 );
-    if( gapLength % 2 == 0 ) streamPlayheadPosition--; //FIXME: Assumes 2 frames per packet here...
+    if( nativeDecode ) {
+      setPendingDecode( null, 0 );
+      decodeBufferLength = format.getSamplesPerFrame();
+    } else {
+      decodeBufferLength = codec.decode(null, decodeBuffer, 0 );
+    }
+    framesPulled = 1;
+    framesConcealed++;
     delayChooser.notifyMissing();
     gapLength++;
 
     if( decodeBufferLength == 0 ) {
       Log.e( TAG, "zero length decode buffer returned" );
-      decodeBufferLength = 160; //v.bad, just feed it _something_
+      decodeBufferLength = format.getSamplesPerFrame(); //v.bad, just feed it _something_
     }
   }
 
+  private void setPendingDecode( byte[] data, int length ) {
+    if( data != null ) {
+      if( length > encodedBuffer.capacity() ) encodedBuffer = ByteBuffer.allocateDirect( length );
+      encodedBuffer.clear();
+      encodedBuffer.put( data, 0, length );
+    }
+    pendingEncodedLength = data == null ? -1 : length;
+    decodePending        = true;
+  }
+
+  /**
+   * Plays the pulled audio at rate.  A native decode waiting for the rate is made now, and
+   * scales in the same call.  Otherwise, at rate 1 the decoded audio is played as it is, once
+   * the time scaler has given back what it held from an earlier rate.
+   *
+   * @return the buffer holding {@link #outputFrameLength} samples to play.
+   */
+  private short[] changeSpeed( float rate ) {
+    if( decodePending ) {
+      decodePending = false;
+      outputFrameLength = codec.decodeAndChangeSpeed( pendingEncodedLength < 0 ? null : encodedBuffer,
+                                                      Math.max( 0, pendingEncodedLength ),
+                                                      outputBuffer, rate );
+      if( outputFrameLength < 0 ) {
+        Log.e( TAG, "native decode failed" );
+        outputFrameLength = format.getSamplesPerFrame();
+        Arrays.fill( rateBuffer, 0, outputFrameLength, (short)0 );
+      } else {
+        outputBuffer.clear();
+        outputBuffer.get( rateBuffer, 0, outputFrameLength );
+      }
+      timeScalerHoldsAudio = rate != 1;
+      return rateBuffer;
+    }
+
+    if( rate == 1 && !timeScalerHoldsAudio ) {
+      outputFrameLength = decodeBufferLength;
+      return decodeBuffer;
+    }
+
+    outputFrameLength = PacketLossConcealer.changeSpeed( rateBuffer, decodeBuffer, decodeBufferLength, rate );
+    timeScalerHoldsAudio = rate != 1;
+    return rateBuffer;
+  }
+
   public void addFrame( EncodedAudioData ead ) {
     //Log.d( "CAP", "added: " + ead.sequenceNumber );
-    audioFrames.put( ead.sequenceNumber, ead );
+    if( ead.redundant ) {
+      addRedundantFrame( ead );
+      return;
+    }
     delayChooser.notifyArrival(ead.sequenceNumber);
+
+    //frames more than a buffer's width apart can't be held together, keep the newest ones
+    if( audioFrames.isTooOld( ead.sequenceNumber ) ) {
+      reservoir.returnPacket( ead );
+      droppedOnArrival++;
+      return;
+    }
+    while( audioFrames.isTooNew( ead.sequenceNumber ) ) {
+      reservoir.returnPacket( audioFrames.pollFirst() );
+      droppedOnArrival++;
+    }
+
+    EncodedAudioData replaced = audioFrames.put( ead );
+    if( replaced != null ) reservoir.returnPacket( replaced );
+  }
+  /**
+   * Keeps a redundant copy only if it fills a gap still ahead of the playhead.  Copies usually
+   * arrive after their originals have played, so they say nothing about lateness.
+   */
+  private void addRedundantFrame( EncodedAudioData ead ) {
+    if( ead.sequenceNumber < streamPlayheadPosition ||
+        audioFrames.isTooOld( ead.sequenceNumber ) ||
+        audioFrames.isTooNew( ead.sequenceNumber ) ||
+        audioFrames.get( ead.sequenceNumber ) != null ) {
+      reservoir.returnPacket( ead );
+      return;
+    }
+
+    audioFrames.put( ead );
   }
+
   private void updatePlayRate() {
+    //while the far end is paused there is no delay to measure
+    if( playingComfortNoise && audioFrames.size() == 0 ) return;
+
     long frameDelay = lastGoodFrame - streamPlayheadPosition;
     if( audioFrames.size() > 0 ) {
-      frameDelay = audioFrames.lastKey() - streamPlayheadPosition;
+      frameDelay = audioFrames.lastSequenceNumber() - streamPlayheadPosition;
     }
     frameDelayStats.observeValue((int)frameDelay);
 
@@ -215,11 +411,15 @@ public class CallAudioProvider {
 
   private void discardStaleFrames() {
     //discard frames that happened before the last data-frame we played
-    int sizeBeforeDiscard = audioFrames.size();
-    audioFrames.headMap(lastGoodFrame).clear();
-    while( audioFrames.size() > maxBuffer ) {
-      audioFrames.remove( audioFrames.firstKey());
-      streamPlayheadPosition = audioFrames.firstKey();
+    int sizeBeforeDiscard = audioFrames.size() + droppedOnArrival;
+    droppedOnArrival = 0;
+    while( audioFrames.size() != 0 && audioFrames.firstSequenceNumber() < lastGoodFrame ) {
+      reservoir.returnPacket( audioFrames.pollFirst() );
+    }
+    while( audioFrames.size() != 0 &&
+           audioFrames.lastSequenceNumber() - audioFrames.firstSequenceNumber() > maxBuffer ) {
+      reservoir.returnPacket( audioFrames.pollFirst() );
+      streamPlayheadPosition = audioFrames.firstSequenceNumber();
     }
     int sizeAfterDiscard = audioFrames.size();
     if( sizeAfterDiscard != sizeBeforeDiscard ) {
@@ -234,7 +434,7 @@ public class CallAudioProvider {
     CallLogger.avgDelay = frameDelayStats.getAvg();
     CallLogger.shiftMode = shiftMode;
     if( audioFrames.size() > 0 )
-      CallLogger.largestHeldFrame = audioFrames.lastKey();
+      CallLogger.largestHeldFrame = audioFrames.lastSequenceNumber();
   }
 
   public short[] getFrame() {
@@ -246,15 +446,11 @@ public class CallAudioProvider {
 
     updatePlayRate();
     //model prediction frame delay offset ... is this really a good idea - confirm that it improves our estimates
-    frameDelayStats.setAvg(frameDelayStats.getAvg() + playRate-1 );//include our actions in the buffer model
+    frameDelayStats.setAvg(frameDelayStats.getAvg() + (playRate-1) * framesPulled );//include our actions in the buffer model
 
-    if( lastGoodFrame == streamPlayheadPosition ) {
-      outputFrameLength = PacketLossConcealer.changeSpeed(rateBuffer, decodeBuffer, decodeBufferLength, playRate);
-    } else {
-      outputFrameLength = PacketLossConcealer.changeSpeed(rateBuffer, decodeBuffer, decodeBufferLength, 1 );
-    }
+    short[] output = changeSpeed( lastGoodFrame == streamPlayheadPosition ? playRate : 1 );
     frameSizeStats.observeValue(outputFrameLength);
-    streamPlayheadPosition++;
+    streamPlayheadPosition += framesPulled;
     packetLogger.logPacket(streamPlayheadPosition, PacketLogger.PLAYHEAD);
 
     delayChooser.updateDesired();
@@ -262,14 +458,45 @@ public class CallAudioProvider {
     if( decodedCount % 500 == 1 ) {
       Log.d( "CAP", "Decoded: " + decodedCount );
     }
-    return rateBuffer;
+    return output;
   }
 
   public int getFrameSize() {
     return outputFrameLength;
   }
 
+  /**
+   * @return the share of frames played since the last call that had to be concealed.  Comfort
+   * noise doesn't count either way.
+   */
+  public float sampleLossRate() {
+    int total = framesDecoded + framesConcealed;
+    float rate = total == 0 ? 0 : framesConcealed / (float)total;
+    framesDecoded = framesConcealed = 0;
+    return rate;
+  }
+
+  /**
+   * @see DesiredCallAudioDelayChooser#getLossRate()
+   */
+  public float getLossRate() {
+    return delayChooser.getLossRate();
+  }
+
+  /**
+   * @return how long the jitter buffer aims to hold audio back.
+   */
+  public float getDesiredDelayMillis() {
+    return format.framesToMillis(delayChooser.getDesFrameDelay());
+  }
+
   public void terminate() {
-    delayChooser.terminate();
+    //store the current desired delay for next time
+    ApplicationPreferencesActivity.setCallStreamDesBufferLevel(getContext(),
+        format.framesToMillis(delayChooser.getDesFrameDelay()) / savedDelayUnitMillis);
+  }
+
+  private static Context getContext() {
+    return ApplicationContext.getInstance().getContext();
   }
 }
@@ -17,11 +17,14 @@
 
 package com.securecomcode.voice.audio;
 
+import com.securecomcode.voice.ApplicationContext;
 import com.securecomcode.voice.codec.AudioCodec;
 import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.network.PacketReservoir;
 import com.securecomcode.voice.profiling.PacketLogger;
-
-import java.util.List;
+import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
+import com.securecomcode.voice.util.AndroidClock;
+import com.securecomcode.voice.util.RingBuffer;
 
 /**
  * CallAudioStream constructs the audio output processing pipeline that plays an incoming
@@ -36,27 +39,102 @@ public class CallAudioStream {
   private final LatencyMinimizingAudioPlayer audioPlayer;
   private CallAudioProvider audioProvider;
   private CallLogger callAudioLog = new CallLogger();
-  private List<EncodedAudioData> incomingAudio;
+  private RingBuffer<EncodedAudioData> incomingAudio;
+  private PacketReservoir reservoir;
   private PacketLogger packetLogger;
-  public CallAudioStream( List<EncodedAudioData> incomingAudio, AudioCodec codec, PacketLogger packetLogger, CallMonitor monitor ) {
-    audioProvider = new CallAudioProvider(codec, packetLogger, callAudioLog, monitor);
+  private final CallAudioFormat format;
+  private final FarEndReference farEndReference;
+  public CallAudioStream( RingBuffer<EncodedAudioData> incomingAudio, PacketReservoir reservoir,
+                          AudioCodec codec, CallAudioFormat format, PacketLogger packetLogger,
+                          CallMonitor monitor ) {
+    audioProvider = new CallAudioProvider(codec, format, reservoir, packetLogger, callAudioLog, monitor);
+    this.packetLogger = packetLogger;
+    this.format = format;
+    int desiredBufferLevel = format.fromSavedSamples(ApplicationPreferencesActivity.getAudioTrackDesBufferLevel(
+        ApplicationContext.getInstance().getContext()));
+    AudioSink track = new RobustAudioTrack(format);
+    if (ApplicationPreferencesActivity.isEchoCancellationEnabled(ApplicationContext.getInstance().getContext())) {
+      //a second of history covers the track buffer and the microphone backlog
+      farEndReference = new FarEndReference(track, format.millisToSamples(1000));
+      track = farEndReference;
+    } else {
+      farEndReference = null;
+    }
+    audioPlayer = new LatencyMinimizingAudioPlayer(audioProvider, track,
+        desiredBufferLevel, format, AndroidClock.INSTANCE);
+    this.incomingAudio = incomingAudio;
+    this.reservoir = reservoir;
+  }
+
+  /**
+   * Plays through the given provider into track instead of the device's audio hardware.
+   */
+  CallAudioStream( RingBuffer<EncodedAudioData> incomingAudio, PacketReservoir reservoir,
+                   CallAudioProvider audioProvider, AudioSink track, int desiredBufferLevel,
+                   CallAudioFormat format, PacketLogger packetLogger ) {
+    this.audioProvider = audioProvider;
     this.packetLogger = packetLogger;
-    audioPlayer = new LatencyMinimizingAudioPlayer(audioProvider, new RobustAudioTrack());
+    this.format = format;
+    this.farEndReference = null;
+    audioPlayer = new LatencyMinimizingAudioPlayer(audioProvider, track,
+        desiredBufferLevel, format, AndroidClock.INSTANCE);
     this.incomingAudio = incomingAudio;
+    this.reservoir = reservoir;
   }
 
   public void go() {
-    while( incomingAudio.size() != 0 ) {
-      EncodedAudioData ead = incomingAudio.remove(0);
+    //only an empty queue when the player is about to refill is an underflow
+    EncodedAudioData queued = audioPlayer.getMillisUntilRefill() <= 0 ?
+        incomingAudio.peekRequired() : incomingAudio.peek();
+
+    while( queued != null ) {
+      EncodedAudioData ead = reservoir.getPacket();
+      ead.copyFrom( queued );
+      incomingAudio.release();
+
       packetLogger.logPacket( ead.sequenceNumber, PacketLogger.PLAY_QUEUE_INSERT,
               incomingAudio.size() );
       audioProvider.addFrame( ead );
+
+      queued = incomingAudio.peek();
     }
     audioPlayer.update();
   }
 
+  /**
+   * @return a record of the audio sent to the track, or null if echo cancellation is off.
+   */
+  public FarEndReference getFarEndReference() {
+    return farEndReference;
+  }
+
+  /**
+   * @see CallAudioProvider#sampleLossRate()
+   */
+  public float sampleLossRate() {
+    return audioProvider.sampleLossRate();
+  }
+
+  /**
+   * @see CallAudioProvider#getLossRate()
+   */
+  public float getLossRate() {
+    return audioProvider.getLossRate();
+  }
+
+  public float getDesiredDelayMillis() {
+    return audioProvider.getDesiredDelayMillis();
+  }
+
+  public long getMillisUntilRefill() {
+    return audioPlayer.getMillisUntilRefill();
+  }
+
   public void terminate() {
     audioPlayer.terminate();
+    //store the current desired level for next time
+    ApplicationPreferencesActivity.setAudioTrackDesBufferLevel(ApplicationContext.getInstance().getContext(),
+        format.toSavedSamples(audioPlayer.getDesiredBufferLevel()));
     audioProvider.terminate();
     callAudioLog.terminate();
   }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.audio;
+
+/**
+ * Fills the pauses the far end stopped sending with soft background noise at the level it
+ * reported, so the line doesn't sound dead.  The noise is gently low-passed, which sounds
+ * closer to a room than white noise does.
+ *
+ * Allocates nothing, so it can run on the audio thread.
+ */
+public class ComfortNoiseGenerator {
+
+  private int    seed = 1;
+  private double amplitude;
+  private double target;
+  private double last;
+
+  /**
+   * @param noiseLevel the level in -dBov, as carried by a comfort noise packet.
+   */
+  public void setNoiseLevel(int noiseLevel) {
+    // uniform noise in [-a, a) has an rms of a / sqrt(3)
+    target = 32768 * Math.pow(10, -noiseLevel / 20.0) * Math.sqrt(3);
+  }
+
+  /**
+   * Writes length samples of noise, fading towards a new level rather than jumping to it.
+   */
+  public int generate(short[] out, int length) {
+    for (int i=0;i<length;i++) {
+      seed       = seed * 1103515245 + 12345;
+      amplitude += 0.005 * (target - amplitude);
+
+      double white = ((seed >> 8) / (double)(1 << 23)) * amplitude;
+      last         = 0.6 * last + 0.4 * white;
+
+      // low-passing leaves a quarter of the power, so double the amplitude
+      out[i] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, 2 * last));
+    }
+
+    return length;
+  }
+}
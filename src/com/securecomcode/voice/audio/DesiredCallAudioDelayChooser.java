@@ -17,30 +17,36 @@
 
 package com.securecomcode.voice.audio;
 
-import com.securecomcode.voice.ApplicationContext;
 import com.securecomcode.voice.profiling.PacketLogger;
-import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
+import com.securecomcode.voice.util.Clock;
 import com.securecomcode.voice.util.LeakyIntegrator;
 
 /**
- * Selects the number of packets to buffer to avoid underruns while minimizing latency.
+ * Selects the number of frames to buffer to avoid underruns while minimizing latency.
  * The desired buffer level is adjusted smoothly within fixed bounds.
  *
+ * The starting level and the minimize-latency setting are supplied by the caller, which is also
+ * responsible for saving {@link #getDesFrameDelay()} at the end of the call.  Delays count frames
+ * of the call's {@link CallAudioFormat}, and the bounds on them are set in milliseconds.
+ *
  * @author Stuart O. Anderson
  */
 public class DesiredCallAudioDelayChooser {
   private static final String TAG = "DelayChooser";
-  private final boolean minimizeLatency =
-          ApplicationPreferencesActivity.isMinimizeLatency(ApplicationContext.getInstance().getContext());
+  private final boolean minimizeLatency;
+
+  private static final int maxDesDelayMillis = 480;
+  private static final int minDesDelayMillis = 20;
 
-  private final float maxDesFrameDelay = 12;
-  private final float minDesFrameDelay = 0.5f;
+  private final float maxDesFrameDelay;
+  private final float minDesFrameDelay;
 
   private static final int dropoutThreshold = 10;
+  private static final int lossWindow = 1000;
 
-  private LeakyIntegrator lateCount = new LeakyIntegrator(1000); //how many packets arrived late
+  private LeakyIntegrator lateCount = new LeakyIntegrator(1000); //how many frames arrived late
   private LeakyIntegrator jitCount  = new LeakyIntegrator(1000);  //how many packets arrived 'just in time'
-  private LeakyIntegrator lostCount = new LeakyIntegrator(1000); //how many packets never arrived
+  private LeakyIntegrator lostCount = new LeakyIntegrator(lossWindow); //how many frames never arrived
   private LeakyIntegrator veryLateCount = new LeakyIntegrator(1000);
 
   private DropoutTracker dropoutTracker;
@@ -51,10 +57,13 @@ public class DesiredCallAudioDelayChooser {
 
   private float dynDesFrameDelay;
 
-  public DesiredCallAudioDelayChooser( PacketLogger packetLogger) {
-    dropoutTracker = new DropoutTracker( packetLogger );
-    dynDesFrameDelay = ApplicationPreferencesActivity
-            .getCallStreamDesBufferLevel(ApplicationContext.getInstance().getContext() );
+  public DesiredCallAudioDelayChooser( PacketLogger packetLogger, CallAudioFormat format, Clock clock,
+                                       float initialFrameDelay, boolean minimizeLatency ) {
+    dropoutTracker = new DropoutTracker( packetLogger, format, clock );
+    maxDesFrameDelay = format.millisToFrames( maxDesDelayMillis );
+    minDesFrameDelay = format.millisToFrames( minDesDelayMillis );
+    dynDesFrameDelay = initialFrameDelay;
+    this.minimizeLatency = minimizeLatency;
   }
 
   public float getDesFrameDelay() {
@@ -69,6 +78,21 @@ public class DesiredCallAudioDelayChooser {
     lostCount.observe(1);
   }
 
+  /**
+   * A lost frame was rebuilt from a redundant copy.  It still counts as lost, so the loss rate
+   * reflects the network rather than what was heard.
+   */
+  public void notifyRecovered( int nRecovered ) {
+    lostCount.observe( nRecovered );
+  }
+
+  /**
+   * @return roughly the share of frames lost on the network over the last thousand played.
+   */
+  public float getLossRate() {
+    return Math.max( 0, lostCount.get() ) / lossWindow;
+  }
+
   public void notifyLate( int nLate ) {
     lateCount.observe( nLate );
     lostCount.observe( -nLate );
@@ -108,7 +132,7 @@ public class DesiredCallAudioDelayChooser {
     jitCountDelay.observe(0);
 
     if( minimizeLatency ) {
-      dynDesFrameDelay = 0.5f;
+      dynDesFrameDelay = minDesFrameDelay;
       return;
     }
 
@@ -121,9 +145,4 @@ public class DesiredCallAudioDelayChooser {
     if( dynDesFrameDelay > maxDesFrameDelay ) dynDesFrameDelay = maxDesFrameDelay;
     if( dynDesFrameDelay < minDesFrameDelay ) dynDesFrameDelay = minDesFrameDelay;
   }
-
-  public void terminate() {
-    ApplicationPreferencesActivity
-            .setCallStreamDesBufferLevel(ApplicationContext.getInstance().getContext(),dynDesFrameDelay);
-  }
 }
@@ -17,11 +17,9 @@
 
 package com.securecomcode.voice.audio;
 
-import android.os.SystemClock;
-
-import com.securecomcode.voice.network.RtpAudioSender;
 import com.securecomcode.voice.profiling.PacketLogger;
 import com.securecomcode.voice.profiling.PeriodicTimer;
+import com.securecomcode.voice.util.Clock;
 
 /**
  * When a network dropout occurs packet latency will increase quickly to a maximum latency before
@@ -34,34 +32,45 @@ import com.securecomcode.voice.profiling.PeriodicTimer;
  * The predicted arrival times allow the estimation of an arrival  lateness value for each packet
  * The last several lateness values are tracked and local peaks in lateness are detected
  *
+ * Packets the far end holds back during a pause leave a gap in the sequence numbers, but
+ * lateness is measured against each packet's own sequence number, so the gap does not look
+ * like a dropout.
+ *
  * Peak latencies above a the "threshold of actionability" (300msec) are discarded since we never
  * want to buffer more than 300msec worth of audio packets.
  *
- * We track how many peaks occurred in several latency ranges (expressed as a packet count) and
+ * We track how many peaks occurred in several latency ranges (expressed as a frame count) and
  * provide the ability to answer the question:
  *
  * If we wanted to have only N buffer underflows in the past M seconds, how many packets would need
  * to be stored in the buffer?
  *
+ * Sequence numbers count frames, so packets may hold any number of them.  How long a frame
+ * lasts comes from the call's {@link CallAudioFormat}.
+ *
  * @author Stuart O. Anderson
  */
-//TODO this class assumes a codec frame is 20msec - not true for non-speex
 public class DropoutTracker {
   private final static long maxActionableLatency = 300;
+  private final static int lateBinsMillis = 400;
   private float zeroTimeOffset;
   private static final float u = 1/50f; //adaptivity of zero estimate
-  private static final float binsPerPacket = 2;
+  private final int frameMillis;
 
   private long priorLateness[] = new long[6];
-  private EventWindow[] lateBins = new EventWindow[20];
+  private final EventWindow[] lateBins;
   private PacketLogger packetLogger;
+  private final Clock clock;
   private long zeroTime, zeroTimeBase;
   private boolean zeroTimeInitialized = false;
   private PeriodicTimer debugTimer = new PeriodicTimer(1000);
 
 
-  public DropoutTracker( PacketLogger packetLogger ) {
+  public DropoutTracker( PacketLogger packetLogger, CallAudioFormat format, Clock clock ) {
     this.packetLogger = packetLogger;
+    this.clock = clock;
+    this.frameMillis = format.getFrameMillis();
+    this.lateBins = new EventWindow[(int)format.millisToFrames( lateBinsMillis )];
 
     for( int i=0; i <lateBins.length; i++ ) {
       lateBins[i] = new EventWindow( 30000 );
@@ -69,11 +78,11 @@ public class DropoutTracker {
   }
 
   private long getExpectedSequenceNumber( long now ) {
-    return (now - zeroTime)/(20 * RtpAudioSender.audioChunksPerPacket);
+    return (now - zeroTime)/frameMillis;
   }
 
   private long getExpectedTime( long seqNum ) {
-    return zeroTime + seqNum * 20 * RtpAudioSender.audioChunksPerPacket;
+    return zeroTime + seqNum * frameMillis;
   }
 
   //TODO(Stuart Anderson): Use a list or ring buffer here
@@ -98,13 +107,13 @@ public class DropoutTracker {
 
   public void observeSequenceNumber( long seqNum ) {
     if( !zeroTimeInitialized ) {
-      zeroTimeBase = SystemClock.uptimeMillis();
+      zeroTimeBase = clock.uptimeMillis();
       zeroTimeInitialized = true;
     }
     zeroTime = zeroTimeBase + (long)zeroTimeOffset;
 
     long expectedTime = getExpectedTime( seqNum );
-    long now = SystemClock.uptimeMillis();
+    long now = clock.uptimeMillis();
     long msecLate = now-expectedTime;
 
     packetLogger.logPacket( getExpectedSequenceNumber( now ), PacketLogger.EXPECTED_PACKET_NUM, (int)msecLate );
@@ -114,7 +123,7 @@ public class DropoutTracker {
     long peakLatency;
 
     if( (peakLatency = detectPeak() ) > 0) {
-      int lateBin = (int)(peakLatency/(20f * RtpAudioSender.audioChunksPerPacket / binsPerPacket ));
+      int lateBin = (int)(peakLatency/frameMillis);
       if( lateBin < 0 ) lateBin = 0;
       if( lateBin >= lateBins.length ) {
         lateBin = lateBins.length - 1;
@@ -134,18 +143,18 @@ public class DropoutTracker {
     }
   }
 
-  //How many packets would we have needed to buffer to
+  //How many frames would we have needed to buffer to
   //stay below the desired dropout event count
   public float getDepthForThreshold( int maxEvents ) {
     int eventCount = 0;
     int depth;
-    long now = System.currentTimeMillis();
+    long now = clock.currentTimeMillis();
     for( depth = lateBins.length-1; depth >= 0; depth-- ) {
       eventCount += lateBins[depth].countEvents(now);
       if( eventCount > maxEvents ) {
         break;
       }
     }
-    return depth/binsPerPacket;
+    return depth;
   }
 }
@@ -21,18 +21,76 @@ package com.securecomcode.voice.audio;
  * Stores encoded (not encrypted) audio data along with sequence information from the encoding
  * stream and the packet stream this data arrived in.
  *
+ * The sequence number counts frames, so a packet holding several frames is numbered by its
+ * first and plays for as many frames as it holds.
+ *
+ * A silent frame holds no speech.  On the sending side it is a frame the
+ * {@link VoiceActivityDetector} judged to be background noise, which need not be sent, and on
+ * the receiving side it is a comfort noise packet with no audio, to be played as noise at the
+ * given level until the next frame arrives.
+ *
+ * A redundant frame is a second copy of earlier audio, carried in a later packet for forward
+ * error correction.  It is only played if the original never arrived.
+ *
  * @author Stuart O. Anderson
  */
 //TODO(Stuart Anderson): Should know how to decode and encode itself.
 public class EncodedAudioData implements Comparable<EncodedAudioData>{
   public byte[] data;
+  public int length;
   public long sequenceNumber;
   public long sourceSequenceNumber;
+  public int frames;
+  public boolean silent;
+  public int noiseLevel;
+  public boolean redundant;
 
   public EncodedAudioData( byte data[], long sequenceNumber, long sourceSequenceNumber ) {
     this.data = data;
+    this.length = data.length;
     this.sequenceNumber = sequenceNumber;
     this.sourceSequenceNumber = sourceSequenceNumber;
+    this.frames = 1;
+  }
+
+  /**
+   * Creates an empty, reusable frame whose buffer can hold up to capacity encoded bytes.
+   */
+  public EncodedAudioData( int capacity ) {
+    this.data = new byte[capacity];
+    this.frames = 1;
+  }
+
+  public void set( int length, long sequenceNumber, long sourceSequenceNumber ) {
+    this.length = length;
+    this.sequenceNumber = sequenceNumber;
+    this.sourceSequenceNumber = sourceSequenceNumber;
+    this.frames = 1;
+    this.silent = false;
+    this.noiseLevel = 0;
+    this.redundant = false;
+  }
+
+  /**
+   * Marks this frame as holding no speech.
+   *
+   * @param noiseLevel the background noise level in -dBov.
+   */
+  public void setSilent( int noiseLevel ) {
+    this.silent = true;
+    this.noiseLevel = noiseLevel;
+  }
+
+  /**
+   * Copies another frame's data and sequence information into this one's buffer.
+   */
+  public void copyFrom( EncodedAudioData source ) {
+    System.arraycopy( source.data, 0, data, 0, source.length );
+    set( source.length, source.sequenceNumber, source.sourceSequenceNumber );
+    frames = source.frames;
+    silent = source.silent;
+    noiseLevel = source.noiseLevel;
+    redundant = source.redundant;
   }
 
   public int compareTo(EncodedAudioData data) {
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.audio;
+
+/**
+ * Sits in front of the real {@link AudioSink} and keeps a copy of the audio written to it, so
+ * the echo canceller can be given the far-end audio that was playing when a microphone frame
+ * was recorded.
+ *
+ * Samples are numbered in the order they were written.  The sample at the speaker is the
+ * number written less the sink's unplayed backlog, and a microphone frame that has waited in
+ * the queue is matched with audio from that long before it.  Any delay this misses, such as
+ * the output and input hardware latency, is left to the echo canceller's filter tail.
+ *
+ * Used only from the audio thread, which both writes the sink and encodes microphone frames.
+ */
+public class FarEndReference implements AudioSink {
+
+  private final AudioSink sink;
+  private final short[]   history;
+
+  private long written;
+
+  /**
+   * @param historySamples how far back the reference can be read; at least the sink's
+   * buffer plus the microphone backlog.
+   */
+  public FarEndReference(AudioSink sink, int historySamples) {
+    this.sink    = sink;
+    this.history = new short[historySamples];
+  }
+
+  @Override
+  public void update() {
+    sink.update();
+  }
+
+  @Override
+  public void writeChunk(short[] chunk, int chunkLen) {
+    sink.writeChunk(chunk, chunkLen);
+
+    for (int i=0;i<chunkLen;i++) {
+      history[(int)((written + i) % history.length)] = chunk[i];
+    }
+
+    written += chunkLen;
+  }
+
+  @Override
+  public int getBufferRemaining() {
+    return sink.getBufferRemaining();
+  }
+
+  @Override
+  public void terminate() {
+    sink.terminate();
+  }
+
+  /**
+   * @return the number of the sample now playing.
+   */
+  public long getPlayPosition() {
+    return written - Math.max(0, sink.getBufferRemaining());
+  }
+
+  /**
+   * Copies the audio that started playing samplesAgo before the current play position.
+   * Audio never written, or too old to still be held, reads as silence.
+   */
+  public void read(short[] out, int length, int samplesAgo) {
+    long start = getPlayPosition() - samplesAgo;
+
+    for (int i=0;i<length;i++) {
+      long position = start + i;
+
+      if (position < 0 || position >= written || position < written - history.length) {
+        out[i] = 0;
+      } else {
+        out[i] = history[(int)(position % history.length)];
+      }
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.securecomcode.voice.audio;
+
+/**
+ * Holds encoded frames waiting to be played, in a fixed array indexed by
+ * sequenceNumber % capacity.
+ *
+ * Frames waiting for playout always fall within a short window of sequence numbers, so the
+ * window maps onto the array without collisions and insert, lookup, removal of the oldest
+ * frame and the largest held sequence number are all constant time with no boxing or entry
+ * allocation.  A frame that would stretch the window past the capacity is reported by
+ * {@link #isTooOld(long)} or {@link #isTooNew(long)} and must be dealt with by the caller
+ * before it is inserted.
+ *
+ * Only the call audio thread touches the buffer; it is not synchronized.
+ */
+public class JitterBuffer {
+  private final EncodedAudioData[] frames;
+  private final int mask;
+
+  private int size;
+  private long first;
+  private long last;
+
+  public JitterBuffer( int capacity ) {
+    if( Integer.bitCount(capacity) != 1 ) {
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    }
+    frames = new EncodedAudioData[capacity];
+    mask   = capacity - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the frame with the given sequence number, or null if it is not held.
+   */
+  public EncodedAudioData get( long sequenceNumber ) {
+    if( size == 0 || sequenceNumber < first || sequenceNumber > last ) return null;
+
+    EncodedAudioData frame = frames[index(sequenceNumber)];
+    if( frame == null || frame.sequenceNumber != sequenceNumber ) return null;
+    return frame;
+  }
+
+  /**
+   * @return the frame with the lowest sequence number, or null if the buffer is empty.
+   */
+  public EncodedAudioData first() {
+    if( size == 0 ) return null;
+    return frames[index(first)];
+  }
+
+  /**
+   * Must not be called on an empty buffer.
+   */
+  public long firstSequenceNumber() {
+    return first;
+  }
+
+  /**
+   * Must not be called on an empty buffer.
+   */
+  public long lastSequenceNumber() {
+    return last;
+  }
+
+  /**
+   * @return true if the frame is so far behind the newest held frame that it does not fit.
+   */
+  public boolean isTooOld( long sequenceNumber ) {
+    return size != 0 && sequenceNumber <= last - frames.length;
+  }
+
+  /**
+   * @return true if the frame is so far ahead of the oldest held frame that it does not fit.
+   */
+  public boolean isTooNew( long sequenceNumber ) {
+    return size != 0 && sequenceNumber >= first + frames.length;
+  }
+
+  /**
+   * Inserts a frame that is neither too old nor too new.
+   *
+   * @return the frame previously held for the same sequence number, or null.
+   */
+  public EncodedAudioData put( EncodedAudioData frame ) {
+    long sequenceNumber = frame.sequenceNumber;
+    int  index          = index(sequenceNumber);
+    EncodedAudioData replaced = frames[index];
+
+    frames[index] = frame;
+
+    if( replaced != null ) {
+      return replaced;
+    }
+
+    if( size == 0 ) {
+      first = last = sequenceNumber;
+    } else if( sequenceNumber < first ) {
+      first = sequenceNumber;
+    } else if( sequenceNumber > last ) {
+      last = sequenceNumber;
+    }
+
+    size++;
+    return null;
+  }
+
+  /**
+   * @return the removed frame, or null if it was not held.
+   */
+  public EncodedAudioData remove( long sequenceNumber ) {
+    EncodedAudioData frame = get(sequenceNumber);
+    if( frame == null ) return null;
+
+    frames[index(sequenceNumber)] = null;
+    size--;
+
+    if( size != 0 ) {
+      if( sequenceNumber == first ) {
+        do { first++; } while( frames[index(first)] == null );
+      } else if( sequenceNumber == last ) {
+        do { last--; } while( frames[index(last)] == null );
+      }
+    }
+
+    return frame;
+  }
+
+  /**
+   * @return the removed frame with the lowest sequence number, or null if the buffer is empty.
+   */
+  public EncodedAudioData pollFirst() {
+    if( size == 0 ) return null;
+    return remove(first);
+  }
+
+  private int index( long sequenceNumber ) {
+    return (int)(sequenceNumber & mask);
+  }
+}
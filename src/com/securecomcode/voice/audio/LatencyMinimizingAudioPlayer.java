@@ -17,13 +17,10 @@
 
 package com.securecomcode.voice.audio;
 
-import android.content.Context;
-import android.os.SystemClock;
 import android.util.Log;
 
-import com.securecomcode.voice.ApplicationContext;
 import com.securecomcode.voice.profiling.PeriodicTimer;
-import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
+import com.securecomcode.voice.util.Clock;
 import com.securecomcode.voice.util.LeakyIntegrator;
 
 /**
@@ -33,6 +30,10 @@ import com.securecomcode.voice.util.LeakyIntegrator;
  * buffer level.  The audio source must always provide new audio data when requested, and must
  * be robust to having fewer than the expected number of requests made.
  *
+ * The starting buffer level is supplied by the caller, which is also responsible for saving
+ * {@link #getDesiredBufferLevel()} at the end of the call.  Buffer levels are counted in samples
+ * of the call's {@link CallAudioFormat}, and the steps the level moves by are set in time.
+ *
  * @author Stuart O. Anderson
  */
 public class LatencyMinimizingAudioPlayer {
@@ -41,6 +42,13 @@ public class LatencyMinimizingAudioPlayer {
   private final float zeroBufferEventsBeforeDecrease = 1;
   //msec before we try reducing the desired buffer level
   private final long baseRecoveryTime = 15000;
+  //buffer level steps
+  private static final float INCREASE_STEP_MILLIS = 6.25f;
+  private static final float DECREASE_STEP_MILLIS = 3.125f;
+
+  private final CallAudioFormat format;
+  private final int increaseStep;
+  private final int decreaseStep;
 
   //these change dynamically
   private int dynamicDesiredBufferLevel;
@@ -55,17 +63,20 @@ public class LatencyMinimizingAudioPlayer {
   private int zeroBufferCount = 0;
   PeriodicTimer debugTimer = new PeriodicTimer(5000);
 
-  private RobustAudioTrack audioPlayer;
+  private AudioSink audioPlayer;
   private CallAudioProvider audioStream;
+  private final Clock clock;
   private static final String TAG = "LatencyMinimizingAudioPlayer";
 
-  public LatencyMinimizingAudioPlayer(CallAudioProvider audioStream,
-                                      RobustAudioTrack audioPlayer) {
+  public LatencyMinimizingAudioPlayer(CallAudioProvider audioStream, AudioSink audioPlayer,
+                                      int desiredBufferLevel, CallAudioFormat format, Clock clock) {
     this.audioStream = audioStream;
     this.audioPlayer = audioPlayer;
-    //load the desired level from the preferences
-    Context context = ApplicationContext.getInstance().getContext();
-    dynamicDesiredBufferLevel = ApplicationPreferencesActivity.getAudioTrackDesBufferLevel(context);
+    this.clock = clock;
+    this.format = format;
+    this.increaseStep = format.millisToSamples(INCREASE_STEP_MILLIS);
+    this.decreaseStep = format.millisToSamples(DECREASE_STEP_MILLIS);
+    dynamicDesiredBufferLevel = desiredBufferLevel;
   }
 
   public void update() {
@@ -77,7 +88,7 @@ public class LatencyMinimizingAudioPlayer {
     int remainder = audioPlayer.getBufferRemaining();
     if (remainder <= 0) {
       zeroBufferCount++;
-      lastZeroBufferEventTime =  SystemClock.uptimeMillis();
+      lastZeroBufferEventTime =  clock.uptimeMillis();
       zeroBufferObserver.observe( 1 );
     } else {
       zeroBufferObserver.observe( 0 );
@@ -91,7 +102,7 @@ public class LatencyMinimizingAudioPlayer {
   private void updateDynamicBufferLevelAdjustment() {
     //increase buffer level if we've had too many zero buffers lately
     if( zeroBufferObserver.get() > zeroBufferEventsBeforeIncrease ) {
-      dynamicDesiredBufferLevel += 50;
+      dynamicDesiredBufferLevel += increaseStep;
       zeroBufferObserver.reset();
       if( lastDesBufferChange == -1 ) {
         recoveryTime *= 2; //if we reduced, and are now increasing again, double the recovery time
@@ -100,12 +111,12 @@ public class LatencyMinimizingAudioPlayer {
     }
 
     //if it has been a while since we had a zero-buffer, and the zero-buffer rate is very low, try decreasing the desired buffer level
-    long now = SystemClock.uptimeMillis();
+    long now = clock.uptimeMillis();
     long timeSinceZeroBufferEvent = now - lastZeroBufferEventTime;
     if( timeSinceZeroBufferEvent > recoveryTime &&
       zeroBufferObserver.get() < zeroBufferEventsBeforeDecrease ) {
       lastZeroBufferEventTime = now;
-      dynamicDesiredBufferLevel -= 25;
+      dynamicDesiredBufferLevel -= decreaseStep;
       if( lastDesBufferChange == -2 ) {
         recoveryTime = baseRecoveryTime; //if we've already had a pair, and we get a 3rd, reset to baseline
       } else
@@ -136,6 +147,20 @@ public class LatencyMinimizingAudioPlayer {
     }
   }
 
+  /**
+   * @return how long the sink can play before it drops to the desired buffer level
+   * and needs to be refilled.
+   */
+  public long getMillisUntilRefill() {
+    int excess = audioPlayer.getBufferRemaining() - dynamicDesiredBufferLevel;
+    if (excess <= 0) return 0;
+    return format.samplesToMillis(excess);
+  }
+
+  public int getDesiredBufferLevel() {
+    return dynamicDesiredBufferLevel;
+  }
+
   private void printDebug() {
     if (!debugTimer.periodically())
       return;
@@ -148,9 +173,5 @@ public class LatencyMinimizingAudioPlayer {
 
   public void terminate() {
     if( audioPlayer != null ) audioPlayer.terminate();
-
-    //store the current dynDesBufferLevel for next time
-    ApplicationPreferencesActivity.setAudioTrackDesBufferLevel(ApplicationContext.getInstance().getContext(),
-            dynamicDesiredBufferLevel );
   }
 }
\ No newline at end of file
@@ -35,14 +35,10 @@ import com.securecomcode.voice.profiling.PeriodicTimer;
 import com.securecomcode.voice.profiling.ProfilingTimer;
 import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
 import com.securecomcode.voice.util.Factory;
-import com.securecomcode.voice.util.Pool;
+import com.securecomcode.voice.util.RingBuffer;
 
 import java.text.DecimalFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -52,30 +48,34 @@ import java.util.concurrent.atomic.AtomicReference;
  * The microphone reader provides non-blocking access to any data in this queue and handles
  * clearing and restarting the reader in the event of buffer overflows or hardware issues.
  *
+ * Raw frames are read straight into the preallocated slots of a {@link RingBuffer} and encoded
+ * straight into the slots of the outgoing ring, so the hand-off takes no locks and allocates
+ * nothing.
+ *
+ * Each encoded frame is marked silent or not by a {@link VoiceActivityDetector}, so the sender
+ * can stop sending during pauses.
+ *
  * @author Stuart O. Anderson
  */
 public class MicrophoneReader {
   public static final String TAG = "MicrophoneReader";
+  private static final int MAX_QUEUED_CHUNKS = 50;
+  private static final int MIC_QUEUE_CAPACITY = 64;
   private static final int AUDIO_SOURCE =
     Build.VERSION.SDK_INT >= 11 ? MediaRecorder.AudioSource.VOICE_COMMUNICATION
       : MediaRecorder.AudioSource.DEFAULT;
 
-  public static final int AUDIO_BUFFER_SIZE = 8000 + AudioRecord
-      .getMinBufferSize(AudioCodec.SAMPLE_RATE,
-          AudioFormat.CHANNEL_CONFIGURATION_MONO,
-          AudioFormat.ENCODING_PCM_16BIT);
-  private AudioRecord audioSource = new AudioRecord(
-      AUDIO_SOURCE, AudioCodec.SAMPLE_RATE,
-      AudioFormat.CHANNEL_CONFIGURATION_MONO,
-      AudioFormat.ENCODING_PCM_16BIT, AUDIO_BUFFER_SIZE * 10);
-  private byte encodedData[] = new byte[512];
-  private LinkedList<EncodedAudioData> audioQueue;
+  private final int sampleRate;
+  private final int samplesPerFrame;
+  private final int audioBufferSize;
+  private AudioRecord audioSource;
+  private RingBuffer<EncodedAudioData> audioQueue;
   private AudioCodec codec;
   private boolean micStarted = false;
   private long sequenceNumber = 0;
   PeriodicTimer debugTimer = new PeriodicTimer(5000);
   private int totalSamplesRead;
-  private MicReadThread micThread = new MicReadThread();
+  private final MicReadThread micThread;
   private final boolean singleThread = ApplicationPreferencesActivity.isSingleThread(ApplicationContext.getInstance().getContext());
 
   private ProfilingTimer readTime = new ProfilingTimer("Mic Read Time");
@@ -85,20 +85,33 @@ public class MicrophoneReader {
 
   private final AtomicReference<AudioException> micThreadException;
   private final AtomicReference<Boolean> enableMute;
+  private volatile Runnable frameReadyListener;
+  private VoiceProcessor voiceProcessor;
+  private final VoiceActivityDetector voiceActivityDetector;
   private final CountMetric counter;
   private final HistogramMetric waveformStats = new HistogramMetric(Short.MIN_VALUE, Short.MAX_VALUE, 16);
 
-  private List<AudioChunk> micAudioList =
-    Collections.synchronizedList(new ArrayList<AudioChunk>());
-  private Pool<AudioChunk> chunkPool = new Pool<AudioChunk>( new Factory<AudioChunk>() {
-    public AudioChunk getInstance() {
-      return new AudioChunk( new short[AudioCodec.SAMPLES_PER_FRAME], 0);
-    }
-  });
+  private final RingBuffer<AudioChunk> micAudioList;
 
-  public MicrophoneReader(LinkedList<EncodedAudioData> outgoingAudio,
-      AudioCodec codec, PacketLogger packetLogger, CallMonitor monitor) {
+  public MicrophoneReader(RingBuffer<EncodedAudioData> outgoingAudio,
+      AudioCodec codec, CallAudioFormat format, PacketLogger packetLogger, CallMonitor monitor) {
     this.codec = codec;
+    this.sampleRate      = format.getSampleRate();
+    this.samplesPerFrame = format.getSamplesPerFrame();
+    this.voiceActivityDetector = new VoiceActivityDetector(format);
+    this.audioBufferSize = format.millisToSamples(1000) + AudioRecord.getMinBufferSize(sampleRate,
+        AudioFormat.CHANNEL_CONFIGURATION_MONO,
+        AudioFormat.ENCODING_PCM_16BIT);
+    this.audioSource = new AudioRecord(
+        AUDIO_SOURCE, sampleRate,
+        AudioFormat.CHANNEL_CONFIGURATION_MONO,
+        AudioFormat.ENCODING_PCM_16BIT, audioBufferSize * 10);
+    this.micAudioList = new RingBuffer<AudioChunk>( MIC_QUEUE_CAPACITY, new Factory<AudioChunk>() {
+      public AudioChunk getInstance() {
+        return new AudioChunk( new short[samplesPerFrame], 0);
+      }
+    });
+    this.micThread = new MicReadThread();
     this.packetLogger = packetLogger;
     audioQueue = outgoingAudio;
     micThreadException = new AtomicReference<AudioException>();
@@ -107,6 +120,7 @@ public class MicrophoneReader {
     counter = new CountMetric();
     monitor.addSampledMetrics("mic-reader", counter);
     monitor.addSampledMetrics("mic-reader", waveformStats);
+    monitor.addSampledMetrics("mic-queue", micAudioList);
   }
 
   private void waitForMicReady() throws AudioException {
@@ -120,9 +134,9 @@ public class MicrophoneReader {
       waitCount++;
       audioSource.release();
       audioSource = new AudioRecord(
-          MediaRecorder.AudioSource.MIC, AudioCodec.SAMPLE_RATE,
+          MediaRecorder.AudioSource.MIC, sampleRate,
           AudioFormat.CHANNEL_CONFIGURATION_MONO,
-          AudioFormat.ENCODING_PCM_16BIT, AUDIO_BUFFER_SIZE * 10);
+          AudioFormat.ENCODING_PCM_16BIT, audioBufferSize * 10);
       try {
         Log.d( TAG, "Waiting for Microphone to initialize...["+waitCount+"]" );
         Thread.sleep(100);
@@ -132,8 +146,8 @@ public class MicrophoneReader {
   }
 
   public void go() throws AudioException {
-    short audioData[];
     AudioChunk chunk;
+    EncodedAudioData encoded;
 
     AudioException exception = micThreadException.get();
     if(exception != null) {
@@ -147,27 +161,28 @@ public class MicrophoneReader {
       micThread.start();
     }
 
-    if( micAudioList.size() > 50 ) {
+    if( micAudioList.size() > MAX_QUEUED_CHUNKS ) {
       micAudioList.clear();
       Log.d( TAG, "cleared mic queue, too much backlog");
     }
-    while( !micAudioList.isEmpty() &&
-        audioQueue.size() < RtpAudioSender.audioChunksPerPacket) {
-      try {
-        chunk = micAudioList.remove(0);
-        audioData = chunk.getChunk();
-      } catch( IndexOutOfBoundsException e ) {
-        return; //no data
+    while( audioQueue.size() < RtpAudioSender.MAX_FRAMES_PER_PACKET &&
+           (chunk = micAudioList.peek()) != null &&
+           (encoded = audioQueue.claim()) != null )
+    {
+      if( voiceProcessor != null ) {
+        voiceProcessor.process(chunk.getChunk(), micAudioList.size());
+      }
+      int encodedDataLen = codec.encode(chunk.getChunk(), encoded.data,
+          samplesPerFrame);
+      encoded.set(encodedDataLen, chunk.sequenceNumber, chunk.sequenceNumber);
+      if( !voiceActivityDetector.isSpeech(chunk.getChunk(), samplesPerFrame) ) {
+        encoded.setSilent(voiceActivityDetector.getNoiseLevel());
+        counter.increment("silent", 1);
       }
-
-      int encodedDataLen = codec.encode(audioData, encodedData,
-          AudioCodec.SAMPLES_PER_FRAME);
-      chunkPool.returnItem(chunk);
-      byte encodedBuffer[] = new byte[encodedDataLen];
-
-      System.arraycopy(encodedData, 0, encodedBuffer, 0, encodedDataLen);
       packetLogger.logPacket( chunk.sequenceNumber, PacketLogger.PACKET_ENCODED );
-      audioQueue.add(new EncodedAudioData(encodedBuffer, chunk.sequenceNumber, chunk.sequenceNumber ));
+
+      micAudioList.release();
+      audioQueue.publish();
     }
   }
 
@@ -220,7 +235,7 @@ public class MicrophoneReader {
       terminate = true;
     }
 
-    AudioChunk staticChunk = new AudioChunk( new short[AudioCodec.SAMPLES_PER_FRAME], 0 );
+    AudioChunk staticChunk = new AudioChunk( new short[samplesPerFrame], 0 );
 
     public void readFromMic() throws AudioException {
       /*if (debugTextUpdateTimer.periodically()) {
@@ -246,10 +261,13 @@ public class MicrophoneReader {
       }
 
       long readStartTime = SystemClock.uptimeMillis();
-      AudioChunk chunk = chunkPool.getItem();
+      AudioChunk chunk = micAudioList.claim();
+      if (chunk == null) {
+        chunk = staticChunk; //encoder is too far behind, read and drop this frame
+      }
       readTime.start();
       int samplesRead = audioSource.read(chunk.getChunk(), 0,
-          AudioCodec.SAMPLES_PER_FRAME);
+          samplesPerFrame);
       readTime.stop();
       chunk.sequenceNumber = sequenceNumber++;
 
@@ -261,9 +279,16 @@ public class MicrophoneReader {
         muteAudio(chunk);
       }
 
-      micAudioList.add( chunk );
+      if( chunk != staticChunk ) {
+        micAudioList.publish();
 
-      if (samplesRead != AudioCodec.SAMPLES_PER_FRAME) {
+        Runnable listener = frameReadyListener;
+        if( listener != null ) {
+          listener.run();
+        }
+      }
+
+      if (samplesRead != samplesPerFrame) {
         Log.w("RedPhone", "VoiceSender read only "
             + Integer.toString(samplesRead) + " samples");
       }
@@ -296,6 +321,24 @@ public class MicrophoneReader {
     micAudioList.clear();
   }
 
+  /**
+   * Sets a callback that is run on the microphone thread each time a new frame is queued.
+   */
+  public void setFrameReadyListener(Runnable listener) {
+    frameReadyListener = listener;
+  }
+
+  /**
+   * Sets a stage that cleans each frame before it is encoded, on the thread calling {@link #go()}.
+   */
+  public void setVoiceProcessor(VoiceProcessor processor) {
+    voiceProcessor = processor;
+  }
+
+  public boolean isSingleThread() {
+    return singleThread;
+  }
+
   public void setMute(boolean updatedMuteSetting) {
     enableMute.set(updatedMuteSetting);
   }
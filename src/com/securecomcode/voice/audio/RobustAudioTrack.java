@@ -28,7 +28,6 @@ import android.util.Log;
 import com.securecomcode.voice.ApplicationContext;
 import com.securecomcode.voice.R;
 import com.securecomcode.voice.Release;
-import com.securecomcode.voice.codec.AudioCodec;
 import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
 import com.securecomcode.voice.util.Util;
 
@@ -41,11 +40,10 @@ import com.securecomcode.voice.util.Util;
  *
  * @author Stuart O. Anderson
  */
-public class RobustAudioTrack  {
+public class RobustAudioTrack implements AudioSink {
   private final int deadMsecThreshold = 1000;
-  private final static int AUDIO_BUFFER_SIZE = 16000 + AudioTrack.getMinBufferSize(
-      AudioCodec.SAMPLE_RATE, AudioFormat.CHANNEL_CONFIGURATION_MONO,
-      AudioFormat.ENCODING_PCM_16BIT);
+  private final int bufferMillis = 2000;
+  private final int audioBufferSize;
   private short[] silence = new short[2048];
   private int bufferedSamples;
   private long lastPlayheadUpdateTime;
@@ -53,7 +51,12 @@ public class RobustAudioTrack  {
   private AudioTrack audioPlayer;
   private final static String TAG = "RobustAudioTrack";
 
-  public RobustAudioTrack() {
+  public RobustAudioTrack(CallAudioFormat format) {
+    int sampleRate = format.getSampleRate();
+    audioBufferSize = format.millisToSamples(bufferMillis) + AudioTrack.getMinBufferSize(
+        sampleRate, AudioFormat.CHANNEL_CONFIGURATION_MONO,
+        AudioFormat.ENCODING_PCM_16BIT);
+
     //play a tone on init, instead of silence
     if (Release.DEBUG) {
       for (int i = 0; i < silence.length; i++) {
@@ -71,8 +74,8 @@ public class RobustAudioTrack  {
     }
 
     audioPlayer = new AudioTrack(AudioManager.STREAM_VOICE_CALL,
-        AudioCodec.SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO,
-        AudioFormat.ENCODING_PCM_16BIT, AUDIO_BUFFER_SIZE,
+        sampleRate, AudioFormat.CHANNEL_OUT_MONO,
+        AudioFormat.ENCODING_PCM_16BIT, audioBufferSize,
         AudioTrack.MODE_STREAM);
     waitForAudioTrackReady();
   }
@@ -91,7 +94,7 @@ public class RobustAudioTrack  {
         throw new RuntimeException("AudioTrack did not initialize");
       }
     }
-    Log.d("ATM", "track initialized, buffer size = " + AUDIO_BUFFER_SIZE);
+    Log.d("ATM", "track initialized, buffer size = " + audioBufferSize);
   }
   //writes a chunk of audio to the system buffer
   public void writeChunk(short chunk[], int chunkLen ) {
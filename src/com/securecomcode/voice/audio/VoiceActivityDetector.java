@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.audio;
+
+/**
+ * Decides whether a microphone frame holds speech, so that silent stretches need not be sent.
+ *
+ * A frame is speech when its level is well above the background noise.  The noise floor follows
+ * the quietest frames of the last second and a half, which nearly always include a pause between
+ * words, so it adapts to a noisy room without being dragged up by long talk spurts.  Frames
+ * stay marked as speech for a while after the level drops, so that quiet word endings are not
+ * clipped.
+ *
+ * Frames last as long as the call's {@link CallAudioFormat} says.
+ *
+ * Levels are in dBov, decibels relative to a full scale square wave.
+ */
+public class VoiceActivityDetector {
+
+  private static final int    HANGOVER_MILLIS = 200;
+  private static final int    WINDOW_MILLIS   = 1500;
+
+  // how far above the noise floor a frame must be to count as speech
+  private static final double ONSET_DB        = 6;
+  // frames quieter than this are never speech, however quiet the room
+  private static final double MIN_SPEECH_DBOV = -55;
+  private static final double SILENCE_DBOV    = -100;
+
+  private final int      hangoverFrames;
+  private final double[] levels;
+
+  private int     frames;
+  private int     hangover;
+  private double  noiseFloor;
+  private double  noiseLevel;
+
+  public VoiceActivityDetector() {
+    this(CallAudioFormat.NARROWBAND);
+  }
+
+  public VoiceActivityDetector(CallAudioFormat format) {
+    this.hangoverFrames = (int)format.millisToFrames(HANGOVER_MILLIS);
+    this.levels         = new double[(int)format.millisToFrames(WINDOW_MILLIS)];
+  }
+
+  /**
+   * @return true if the frame holds speech, or follows speech closely enough to be kept.
+   */
+  public boolean isSpeech(short[] frame, int length) {
+    double level = getLevel(frame, length);
+
+    levels[frames % levels.length] = level;
+
+    double minimum = level;
+    for (int i=0;i<Math.min(frames + 1, levels.length);i++) {
+      minimum = Math.min(minimum, levels[i]);
+    }
+
+    if (frames == 0) {
+      noiseFloor = noiseLevel = level;
+    } else {
+      noiseFloor += 0.1 * (minimum - noiseFloor);
+    }
+
+    frames++;
+
+    if (level > noiseFloor + ONSET_DB && level > MIN_SPEECH_DBOV) {
+      hangover = hangoverFrames;
+      return true;
+    }
+
+    noiseLevel += 0.1 * (level - noiseLevel);
+
+    if (hangover > 0) {
+      hangover--;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * @return the level of the background noise between talk spurts, in -dBov as carried by a
+   * comfort noise packet: 0 is full scale and 127 is silence.
+   */
+  public int getNoiseLevel() {
+    return (int)Math.max(0, Math.min(127, Math.round(-noiseLevel)));
+  }
+
+  static double getLevel(short[] frame, int length) {
+    double sum = 0;
+    for (int i=0;i<length;i++) sum += frame[i] * frame[i];
+
+    if (sum == 0) return SILENCE_DBOV;
+
+    double rms = Math.sqrt(sum / length);
+    return Math.max(SILENCE_DBOV, 20 * Math.log10(rms / 32768));
+  }
+}
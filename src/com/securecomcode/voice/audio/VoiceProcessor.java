@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.audio;
+
+import com.securecomcode.voice.monitor.SampledMetrics;
+
+import org.thoughtcrime.redphone.audio.EchoCanceller;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cleans microphone frames before they are encoded: cancels the echo of the far end's audio,
+ * then suppresses noise and evens out the level.
+ *
+ * The far-end audio comes from a {@link FarEndReference} in front of the audio track.  The
+ * reference is read from a little before the frame's estimated recording time, since the
+ * microphone's own latency makes frames older than they look, and the filter can only model
+ * echo that arrives after the reference.
+ *
+ * Reports the echo return loss enhancement, in dB, over frames where the far end was playing,
+ * and the time spent per frame.
+ */
+public class VoiceProcessor implements SampledMetrics {
+
+  private static final int TAIL_MILLIS           = 200;
+  private static final int REFERENCE_LEAD_MILLIS = 40;
+
+  // mean square level of the far end above which a frame counts towards ERLE
+  private static final long FAR_END_ACTIVE = 100 * 100;
+
+  private final EchoCanceller   canceller;
+  private final FarEndReference reference;
+  private final int             frameSize;
+  private final int             leadSamples;
+  private final short[]         far;
+  private final short[]         out;
+
+  private int    frames, speechFrames, erleFrames;
+  private double nearEnergy, outEnergy;
+  private long   processNanos, maxProcessNanos;
+
+  public VoiceProcessor(FarEndReference reference, int frameSize, int sampleRate,
+                        boolean denoise, boolean agc)
+  {
+    this(new EchoCanceller(frameSize, sampleRate, TAIL_MILLIS, denoise, agc), reference,
+         sampleRate * REFERENCE_LEAD_MILLIS / 1000);
+  }
+
+  VoiceProcessor(EchoCanceller canceller, FarEndReference reference, int leadSamples) {
+    this.canceller   = canceller;
+    this.reference   = reference;
+    this.frameSize   = canceller.getFrameSize();
+    this.leadSamples = leadSamples;
+    this.far         = new short[frameSize];
+    this.out         = new short[frameSize];
+  }
+
+  /**
+   * Cleans a frame in place.
+   *
+   * @param framesQueued how many frames, including this one, were read from the
+   * microphone since this one started recording.
+   */
+  public void process(short[] frame, int framesQueued) {
+    reference.read(far, frameSize, framesQueued * frameSize + leadSamples);
+    process(frame, far);
+  }
+
+  /**
+   * Cleans a frame in place against a far-end frame that is already aligned with it.
+   */
+  public void process(short[] frame, short[] farFrame) {
+    long start  = System.nanoTime();
+    int  speech = canceller.process(frame, farFrame, out);
+    long time   = System.nanoTime() - start;
+
+    synchronized (this) {
+      frames++;
+      if (speech > 0) speechFrames++;
+      processNanos   += time;
+      maxProcessNanos = Math.max(maxProcessNanos, time);
+
+      if (meanSquare(farFrame) > FAR_END_ACTIVE) {
+        erleFrames++;
+        nearEnergy += energy(frame);
+        outEnergy  += energy(out);
+      }
+    }
+
+    System.arraycopy(out, 0, frame, 0, frameSize);
+  }
+
+  /**
+   * @return the echo return loss enhancement, in dB, since the last sample.
+   */
+  public synchronized double getErle() {
+    return erle(nearEnergy, outEnergy);
+  }
+
+  public void terminate() {
+    canceller.terminate();
+  }
+
+  static double erle(double nearEnergy, double outEnergy) {
+    if (nearEnergy == 0) return 0;
+    return 10 * Math.log10(nearEnergy / Math.max(outEnergy, 1));
+  }
+
+  private static double energy(short[] samples) {
+    double sum = 0;
+    for (short sample : samples) sum += sample * sample;
+    return sum;
+  }
+
+  private long meanSquare(short[] samples) {
+    long sum = 0;
+    for (int i=0;i<frameSize;i++) sum += samples[i] * samples[i];
+    return sum / frameSize;
+  }
+
+  @Override
+  public synchronized Map<String, Object> sample() {
+    Map<String, Object> result = new HashMap<String, Object>(6);
+    result.put("frames", frames);
+    result.put("speech-frames", speechFrames);
+    result.put("erle-frames", erleFrames);
+    result.put("erle-db", getErle());
+    result.put("process-us", frames == 0 ? 0 : processNanos / frames / 1000);
+    result.put("max-process-us", maxProcessNanos / 1000);
+
+    frames = speechFrames = erleFrames = 0;
+    nearEnergy = outEnergy = 0;
+    processNanos = maxProcessNanos = 0;
+    return result;
+  }
+}
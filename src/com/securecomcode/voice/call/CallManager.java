@@ -27,7 +27,11 @@ import android.os.Process;
 import android.util.Log;
 import com.securecomcode.voice.audio.AudioException;
 import com.securecomcode.voice.audio.CallAudioManager;
+import com.securecomcode.voice.codec.CodecPreloader;
+import com.securecomcode.voice.codec.CodecRegistry;
 import com.securecomcode.voice.crypto.SecureRtpSocket;
+import com.securecomcode.voice.crypto.zrtp.EphemeralKeyPool;
+import com.securecomcode.voice.crypto.zrtp.HandshakeTimeline;
 import com.securecomcode.voice.crypto.zrtp.MasterSecret;
 import com.securecomcode.voice.crypto.zrtp.NegotiationFailedException;
 import com.securecomcode.voice.crypto.zrtp.RecipientUnavailableException;
@@ -52,8 +56,6 @@ import java.io.IOException;
  */
 
 public abstract class CallManager extends Thread {
-  private static final String CODEC_NAME = "SPEEX";
-
   protected final String remoteNumber;
   protected final CallStateListener callStateListener;
   protected final Context context;
@@ -62,6 +64,7 @@ public abstract class CallManager extends Thread {
   private boolean terminated;
   private boolean loopbackMode;
   private CallAudioManager callAudioManager;
+  private final CodecPreloader codecs;
   private SignalManager signalManager;
   private SASInfo sasInfo;
   private boolean muteEnabled;
@@ -85,6 +88,10 @@ public abstract class CallManager extends Thread {
     this.loopbackMode      = ApplicationPreferencesActivity.getLoopbackEnabled(context);
     this.monitor           = new CallMonitor(context);
 
+    //key pairs generate while signaling connects, instead of on this thread once it has
+    EphemeralKeyPool.getInstance().prime();
+    //and the codecs the handshake chooses between load while it runs
+    this.codecs = new CodecPreloader();
     initMonitor();
     printInitDebug();
     AudioUtils.resetConfiguration(context);
@@ -101,17 +108,19 @@ public abstract class CallManager extends Thread {
     lifecycleMonitor.emitEvent("call-begin");
     try {
       Log.d( "CallManager", "negotiating..." );
-      if (!terminated) {
-        callAudioManager = new CallAudioManager(secureSocket, CODEC_NAME, context, monitor);
-        callAudioManager.setMute(muteEnabled);
-        lifecycleMonitor.emitEvent("start-negotiate");
-        zrtpSocket.negotiateStart();
-      }
-
-      if (!terminated) {
-        lifecycleMonitor.emitEvent("performing-handshake");
-        callStateListener.notifyPerformingHandshake();
-        zrtpSocket.negotiateFinish();
+      try {
+        if (!terminated) {
+          lifecycleMonitor.emitEvent("start-negotiate");
+          zrtpSocket.negotiateStart();
+        }
+
+        if (!terminated) {
+          lifecycleMonitor.emitEvent("performing-handshake");
+          callStateListener.notifyPerformingHandshake();
+          zrtpSocket.negotiateFinish();
+        }
+      } finally {
+        recordHandshakeTimeline();
       }
 
       if (!terminated) {
@@ -121,9 +130,30 @@ public abstract class CallManager extends Thread {
         signalManager.shutdownQueue();
       }
 
+      if (!terminated) {
+        //the codec depends on what the other side advertised in the handshake
+        String codecName = getNegotiatedCodecName();
+        monitor.addNominalValue("codec", codecName);
+        boolean dtx = zrtpSocket.getForeignClientId().supportsDiscontinuousTransmission();
+        boolean adaptivePacketization =
+            zrtpSocket.getForeignClientId().supportsAdaptivePacketization();
+        boolean fec = zrtpSocket.getForeignClientId().supportsForwardErrorCorrection();
+        monitor.addNominalValue("dtx", dtx);
+        monitor.addNominalValue("adaptive-packetization", adaptivePacketization);
+        monitor.addNominalValue("fec", fec);
+        callAudioManager = new CallAudioManager(secureSocket, codecs.take(codecName), codecName,
+                                                context, monitor);
+        codecs.release();
+        callAudioManager.setDiscontinuousTransmission(dtx);
+        callAudioManager.setAdaptivePacketization(adaptivePacketization);
+        callAudioManager.setForwardErrorCorrectionAllowed(fec);
+        callAudioManager.setMute(muteEnabled);
+      }
+
       if (!terminated) {
         Log.d("CallManager", "Finished handshake, calling run() on CallAudioManager...");
         callConnected = true;
+        secureSocket.startHealthMonitor();
         callAudioManager.run();
       }
 
@@ -139,9 +169,22 @@ public abstract class CallManager extends Thread {
     } catch (IOException e) {
       Log.w("CallManager", e);
       callStateListener.    notifyCallDisconnected();
+    } finally {
+      codecs.release();
     }
   }
 
+  private void recordHandshakeTimeline() {
+    if (zrtpSocket == null) return;
+
+    HandshakeTimeline timeline = zrtpSocket.getTimeline();
+    timeline.finish();
+
+    Log.d("CallManager", "ZRTP handshake timeline:\n" + timeline);
+    monitor.addNominalValue("zrtp-handshake", timeline.toMap());
+    ApplicationPreferencesActivity.setLastHandshakeTimeline(context, timeline.toString());
+  }
+
   public void resetSignalManager(){
       signalManager = null;
   }
@@ -157,6 +200,8 @@ public abstract class CallManager extends Thread {
         callAudioManager.terminate();
     }
 
+    codecs.release();
+
     if (signalManager != null) {
         signalManager.terminate();
     }
@@ -185,6 +230,15 @@ public abstract class CallManager extends Thread {
 
   protected abstract void setSecureSocketKeys(MasterSecret masterSecret);
 
+  /**
+   * Both sides choose the first codec in the registry that both advertised, so they always
+   * agree, and older clients that advertise nothing get narrowband Speex.
+   */
+  private String getNegotiatedCodecName() {
+    return CodecRegistry.negotiate(CodecRegistry.getLocalCapabilities(),
+                                   zrtpSocket.getForeignClientId().getCodecCapabilities());
+  }
+
   private void printInitDebug() {
     Context c = context;
     String vName = "unknown";
@@ -226,7 +280,12 @@ public abstract class CallManager extends Thread {
   // Methods below are SOA's loopback and testing shims.
   //For loopback operation
   public void doLoopback() throws AudioException, IOException {
-    callAudioManager = new CallAudioManager(null, "SPEEX", context, new CallMonitor(context));
+    try {
+      callAudioManager = new CallAudioManager(null, codecs.take(CodecRegistry.SPEEX),
+                                              CodecRegistry.SPEEX, context, new CallMonitor(context));
+    } finally {
+      codecs.release();
+    }
     callAudioManager.run();
   }
 }
@@ -101,9 +101,11 @@ public class InitiatingCallManager extends CallManager implements CallSignalStat
       InetSocketAddress remoteAddress = new InetSocketAddress(sessionDescriptor.getFullServerName(),
                                                               sessionDescriptor.relayPort);
 
-      secureSocket  = new SecureRtpSocket(new RtpSocket(context, localPort, remoteAddress, sessionDescriptor));
+      secureSocket  = new SecureRtpSocket(new RtpSocket(context, localPort, remoteAddress, sessionDescriptor),
+                                          monitor);
 
       zrtpSocket    = new ZRTPInitiatorSocket(context, secureSocket, zid, remoteNumber);
+      zrtpSocket.setRoundTripEstimate(signalingSocket.getRoundTripMillis());
 
       processSignals();
 
@@ -91,9 +91,11 @@ public class ResponderCallManager extends CallManager {
       InetSocketAddress remoteAddress = new InetSocketAddress(sessionDescriptor.getFullServerName(),
                                                               sessionDescriptor.relayPort);
 
-      secureSocket  = new SecureRtpSocket(new RtpSocket(context, localPort, remoteAddress, sessionDescriptor));
+      secureSocket  = new SecureRtpSocket(new RtpSocket(context, localPort, remoteAddress, sessionDescriptor),
+                                          monitor);
 
       zrtpSocket    = new ZRTPResponderSocket(context, secureSocket, zid, remoteNumber, sessionDescriptor.version <= 0);
+      zrtpSocket.setRoundTripEstimate(signalingSocket.getRoundTripMillis());
 
       callStateListener.notifyConnectingtoInitiator();
 
@@ -17,12 +17,14 @@
 
 package com.securecomcode.voice.codec;
 
-import org.thoughtcrime.redphone.codec.SpeexCodec;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
 /**
  * Provides the basic interface for all audio codecs as well as default implementations
  * for some less common methods.  .
  *
- * New codecs need to be added to this static factory method in this class.
+ * New codecs need to be added to the {@link CodecRegistry}.
  *
  * @author Stuart O. Anderson
  */
@@ -38,20 +40,44 @@ public abstract class AudioCodec {
   //returns the number of encoded bytes written to encodedData
   public abstract int encode( short [] rawData, byte [] encodedData, int rawSamples );
 
+  /**
+   * Decodes a packet, or conceals a lost one if encodedData is null, and time-scales the
+   * result to play at rate, in one native call on direct buffers.  Only codecs for which
+   * {@link #canDecodeAndChangeSpeed()} is true implement this.
+   *
+   * @return the number of samples written to out, or -1 on error.
+   */
+  public int decodeAndChangeSpeed(ByteBuffer encodedData, int encodedBytes, ShortBuffer out,
+                                  float rate)
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean canDecodeAndChangeSpeed() {
+    return false;
+  }
+
   public void waitForInitializationComplete() {
     return;
   }
 
   public void terminate() {}
 
+  /**
+   * @return the rate of the raw audio this codec encodes and decodes.
+   */
+  public int getSampleRate() {
+    return SAMPLE_RATE;
+  }
+
+  public int getSamplesPerFrame() {
+    return getSampleRate() / FRAME_RATE;
+  }
+
   public static AudioCodec getInstance(String codecID) {
-    if( codecID.equals( "SPEEX" ) )
-      return new SpeexCodec();
-    if( codecID.equals( "G711" ) )
-      return new G711AudioCodec();
     if( codecID.equals( "NullAudioCodec"))
       return new NullAudioCodec();
 
-    throw new AssertionError("Unknown codec: " + codecID);
+    return CodecRegistry.create( codecID );
   }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opens every codec this client advertises before the handshake that picks one of them has
+ * finished, so the native library is loaded and the chosen codec is ready once the call
+ * connects.  The codec the handshake chooses is taken, and the rest are closed.
+ */
+public class CodecPreloader {
+
+  private final Map<String, AudioCodec> codecs = new HashMap<String, AudioCodec>();
+
+  public CodecPreloader() {
+    for (CodecRegistry.Entry entry : CodecRegistry.getEntries()) {
+      if (entry.isAdvertised()) {
+        codecs.put(entry.getName(), CodecRegistry.create(entry.getName()));
+      }
+    }
+  }
+
+  /**
+   * @return the preloaded instance of the named codec, or a new one if it wasn't preloaded.
+   * Either may still be initializing.
+   */
+  public synchronized AudioCodec take(String name) {
+    AudioCodec codec = codecs.remove(name);
+    return codec != null ? codec : CodecRegistry.create(name);
+  }
+
+  /**
+   * Closes the codecs that weren't taken.
+   */
+  public synchronized void release() {
+    for (AudioCodec codec : codecs.values()) {
+      codec.waitForInitializationComplete();
+      codec.terminate();
+    }
+
+    codecs.clear();
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.codec;
+
+import com.securecomcode.voice.util.Factory;
+
+import org.thoughtcrime.redphone.codec.SpeexCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The codecs this client can speak, and how two clients agree on one during call setup.
+ *
+ * Each codec has a fixed bit in the low byte of the capability mask a client advertises in
+ * its ZRTP Hello.  Clients from before the mask existed advertise nothing, and play only
+ * narrowband Speex.  Both sides pick the first codec in this registry's order that both
+ * support, so they always agree without another round trip, and fall back to narrowband
+ * Speex, which every client can play.
+ *
+ * Adding a codec is one entry here.  Entries are in order of preference, and neither the
+ * order nor the bits of existing entries may change, or two versions would disagree.  So far
+ * calls only ever use Speex: a low-bitrate codec with its own FEC and DTX, such as Opus, needs
+ * a native library that isn't part of this tree yet.
+ *
+ * G.711 is registered so it can be created by name, but it isn't advertised.  Every client
+ * that could play it also plays Speex, which comes first, so negotiation would never pick it.
+ * Its bits stay reserved.
+ */
+public class CodecRegistry {
+
+  public static final String SPEEX      = "SPEEX";
+  public static final String SPEEX_WB   = "SPEEX_WB";
+  public static final String G711       = "G711";
+  public static final String G711_ALAW  = "G711_ALAW";
+
+  public static final String FALLBACK   = SPEEX;
+
+  private static final List<Entry> entries = new ArrayList<Entry>();
+
+  static {
+    register(SPEEX_WB, 0x002, true, new Factory<AudioCodec>() {
+      @Override
+      public AudioCodec getInstance() {
+        return new SpeexCodec(true);
+      }
+    });
+    register(SPEEX, 0x001, true, new Factory<AudioCodec>() {
+      @Override
+      public AudioCodec getInstance() {
+        return new SpeexCodec();
+      }
+    });
+    register(G711, 0x004, false, new Factory<AudioCodec>() {
+      @Override
+      public AudioCodec getInstance() {
+        return new G711AudioCodec();
+      }
+    });
+    register(G711_ALAW, 0x008, false, new Factory<AudioCodec>() {
+      @Override
+      public AudioCodec getInstance() {
+        return new G711AudioCodec(true);
+      }
+    });
+  }
+
+  private static void register(String name, int bit, boolean advertised, Factory<AudioCodec> factory) {
+    entries.add(new Entry(name, bit, advertised, factory));
+  }
+
+  public static List<Entry> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * @return a new instance of the named codec, which may still be initializing.
+   */
+  public static AudioCodec create(String name) {
+    Entry entry = getEntry(name);
+
+    if (entry == null) {
+      throw new AssertionError("Unknown codec: " + name);
+    }
+
+    return entry.factory.getInstance();
+  }
+
+  /**
+   * @return the capability mask this client advertises.
+   */
+  public static int getLocalCapabilities() {
+    int capabilities = 0;
+    for (Entry entry : entries) {
+      if (entry.advertised) capabilities |= entry.bit;
+    }
+
+    return capabilities;
+  }
+
+  /**
+   * @return the codecs a client that advertises no mask can play.
+   */
+  public static int getFallbackCapabilities() {
+    return getEntry(FALLBACK).bit;
+  }
+
+  /**
+   * @return the name of the codec both sides will use.  The result is the same whichever side's
+   * mask is passed first.
+   */
+  public static String negotiate(int localCapabilities, int remoteCapabilities) {
+    int shared = localCapabilities & remoteCapabilities;
+
+    for (Entry entry : entries) {
+      if ((shared & entry.bit) != 0) return entry.name;
+    }
+
+    return FALLBACK;
+  }
+
+  private static Entry getEntry(String name) {
+    for (Entry entry : entries) {
+      if (entry.name.equals(name)) return entry;
+    }
+
+    return null;
+  }
+
+  public static class Entry {
+    private final String              name;
+    private final int                 bit;
+    private final boolean             advertised;
+    private final Factory<AudioCodec> factory;
+
+    Entry(String name, int bit, boolean advertised, Factory<AudioCodec> factory) {
+      this.name       = name;
+      this.bit        = bit;
+      this.advertised = advertised;
+      this.factory    = factory;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getBit() {
+      return bit;
+    }
+
+    public boolean isAdvertised() {
+      return advertised;
+    }
+  }
+}
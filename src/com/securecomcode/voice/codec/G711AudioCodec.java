@@ -17,219 +17,126 @@
 
 package com.securecomcode.voice.codec;
 
-
-import android.util.Log;
-
+import java.util.Arrays;
 
 /**
  * An implementation of G.711 audio companding.  This is a stateless codec that
  * transforms each input short of 16 bit audio by representing the 16 bit value
- * according to a modified log scale.
+ * according to a modified log scale, with either the mu-law used in North America and Japan or
+ * the A-law used elsewhere.
+ *
+ * Both directions are table lookups: a 256 entry table per law for decoding and a 16K entry
+ * table per law for encoding, indexed by the top 14 bits of the sample, which is all the
+ * precision either law looks at.  The tables are built once from the segment arithmetic of the
+ * ITU-T G.191 reference implementation and match it bit for bit.  A frame is encoded or decoded
+ * in one straight loop with no branches, whatever its length.
+ *
+ * G.711 has no loss concealment of its own, so a missing frame decodes to silence.
  *
  * @author Stuart O. Anderson
  */
 
 public class G711AudioCodec extends AudioCodec {
 
-  private static final boolean ZEROTRAP = false; /*
-                           * turn on the trap as per
-                           * the MIL-STD
-                           */
-  private static final int BIAS = 0x84; /*
-                     * define the add-in bias for 16 bit
-                     * samples
-                     */
-  private static final int CLIP = 32635;
-
-  private static final int exp_lut[] = { 0, 0, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3,
-      3, 3, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 5, 5,
-      5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5,
-      5, 5, 5, 5, 5, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-      6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-      6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-      6, 6, 6, 6, 6, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-      7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-      7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-      7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-      7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-      7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-      7, 7 };
-  private static final int decoder_exp_lut[] = { 0, 132, 396, 924, 1980,
-      4092, 8316, 16764 };
+  private static final short[] ULAW_TO_LINEAR = new short[256];
+  private static final short[] ALAW_TO_LINEAR = new short[256];
+  private static final byte[]  LINEAR_TO_ULAW = new byte[1 << 14];
+  private static final byte[]  LINEAR_TO_ALAW = new byte[1 << 14];
 
-  @Override
-  public int decode(byte[] encodedData, short[] rawData, int encLen ) {
-    int nBytes = encodedPacketSize();
-    for (int i = 0; i < nBytes; i++) {
-      rawData[i] = ulaw2linear(encodedData[i]);
+  static {
+    for (int code=0;code<256;code++) {
+      ULAW_TO_LINEAR[code] = ulawToLinear(code);
+      ALAW_TO_LINEAR[code] = alawToLinear(code);
     }
-    return nBytes;
+
+    for (int index=0;index<LINEAR_TO_ULAW.length;index++) {
+      //sign extend the 14 bit index back to the smallest sample that maps to it
+      int sample = (index << 18) >> 16;
+      LINEAR_TO_ULAW[index] = linearToUlaw(sample);
+      LINEAR_TO_ALAW[index] = linearToAlaw(sample);
+    }
+  }
+
+  private final short[] decodeTable;
+  private final byte[]  encodeTable;
+
+  public G711AudioCodec() {
+    this(false);
   }
 
-  public static void test() {
-    for( short i=-32768; i < 32767; i+=10 ) {
-      byte b = linear2ulaw(i);
-      short u = ulaw2linear(b);
+  public G711AudioCodec(boolean aLaw) {
+    this.decodeTable = aLaw ? ALAW_TO_LINEAR : ULAW_TO_LINEAR;
+    this.encodeTable = aLaw ? LINEAR_TO_ALAW : LINEAR_TO_ULAW;
+  }
+
+  @Override
+  public int decode(byte[] encodedData, short[] rawData, int encLen ) {
+    if (encodedData == null) {
+      Arrays.fill(rawData, 0, getSamplesPerFrame(), (short)0);
+      return getSamplesPerFrame();
+    }
 
-      Log.d("ULAW TEST:", i + ", " + b + ", " + u );
+    for (int i = 0; i < encLen; i++) {
+      rawData[i] = decodeTable[encodedData[i] & 0xFF];
     }
+    return encLen;
   }
 
   @Override
   public int encode(short[] rawData, byte[] encodedData, int rawLen ) {
-    int nBytes = encodedPacketSize();
-    for (int i = 0; i < nBytes; i++) {
-      encodedData[i] = linear2ulaw(rawData[i]);
+    for (int i = 0; i < rawLen; i++) {
+      encodedData[i] = encodeTable[(rawData[i] >> 2) & 0x3FFF];
     }
-    return nBytes;
+    return rawLen;
   }
 
-  private static byte linear2ulaw(short sample) {
-    int sign, exponent, mantissa;
-    byte ulawbyte;
-
-    /* Get the sample into sign-magnitude. */
-    sign = (sample > 0) ? 1 : 0; /* set aside the sign */
-    if (sign == 0)
-      sample = (short) -sample; /* get magnitude */
-    if (sample > CLIP)
-      sample = CLIP; /* clip the magnitude */
-
-    /* Convert from 16 bit linear to ulaw. */
-    sample = (short) (sample + BIAS);
-    exponent = exp_lut[(sample >> 7) & 0xFF];
-    mantissa = (sample >> (exponent + 3)) & 0x0F;
-    ulawbyte = (byte) ~( (sign<<7) | (exponent << 4) | mantissa);
-    if (ZEROTRAP)
-      if (ulawbyte == 0)
-        ulawbyte = 0x02; /* optional CCITT trap */
-
-    return (ulawbyte);
+  /**
+   * Encodes one 16 bit sample: mu-law keeps 14 bits of it, biased by 33 so the segments are
+   * powers of two, and codes the segment and the four bits below its top bit, inverted.
+   */
+  private static byte linearToUlaw(int sample) {
+    int magnitude = Math.min(((sample < 0 ? ~sample : sample) >> 2) + 33, 0x1FFF);
+    int segment   = 33 - Integer.numberOfLeadingZeros(magnitude >> 6);
+    int code      = ((8 - segment) << 4) | (15 - ((magnitude >> segment) & 0x0F));
+
+    return (byte)(sample >= 0 ? code | 0x80 : code);
   }
 
-  private static short ulaw2linear(byte ulawbyte) {
+  private static short ulawToLinear(int code) {
+    int inverted = ~code;
+    int exponent = (inverted >> 4) & 0x07;
+    int step     = 4 << (exponent + 1);
+    int sample   = (0x80 << exponent) + step * (inverted & 0x0F) + step / 2 - 4 * 33;
 
-    int sign, exponent, mantissa;
-    short sample;
+    return (short)(code < 0x80 ? -sample : sample);
+  }
 
-    ulawbyte = (byte) ~ulawbyte;
-    sign = (ulawbyte & 0x80);
-    exponent = (ulawbyte >> 4) & 0x07;
-    mantissa = ulawbyte & 0x0F;
-    sample = (short) (decoder_exp_lut[exponent] + (mantissa << (exponent + 3)));
-    if (sign == 0)
-      sample = (short) -sample;
+  /**
+   * Encodes one 16 bit sample: A-law keeps 12 bits of magnitude, codes the lowest segment
+   * linearly and the rest as a segment and four bits of mantissa, and inverts every other bit.
+   */
+  private static byte linearToAlaw(int sample) {
+    int magnitude = (sample < 0 ? ~sample : sample) >> 4;
+    int code      = magnitude;
+
+    if (magnitude > 15) {
+      int exponent = 28 - Integer.numberOfLeadingZeros(magnitude);
+      code = (exponent << 4) | ((magnitude >> (exponent - 1)) - 16);
+    }
 
-    return (sample);
+    if (sample >= 0) code |= 0x80;
+    return (byte)(code ^ 0x55);
   }
 
-  public int encodedPacketSize() {
-    return AudioCodec.SAMPLES_PER_FRAME;
+  private static short alawToLinear(int code) {
+    int toggled  = (code ^ 0x55) & 0x7F;
+    int exponent = toggled >> 4;
+    int mantissa = toggled & 0x0F;
+
+    if (exponent > 0) mantissa += 16;
+    mantissa = (mantissa << 4) + 8;
+    if (exponent > 1) mantissa <<= exponent - 1;
+
+    return (short)(code > 127 ? mantissa : -mantissa);
   }
 }
-
-// /**
-// ** Signal conversion routines for use with Sun4/60 audio chip
-// **/
-//
-// #include stdio.h
-//
-// unsigned char linear2ulaw(/* int */);
-// int ulaw2linear(/* unsigned char */);
-//
-// /*
-// ** This routine converts from linear to ulaw
-// **
-// ** Craig Reese: IDA/Supercomputing Research Center
-// ** Joe Campbell: Department of Defense
-// ** 29 September 1989
-// **
-// ** References:
-// ** 1) CCITT Recommendation G.711 (very difficult to follow)
-// ** 2) "A New Digital Technique for Implementation of Any
-// ** Continuous PCM Companding Law," Villeret, Michel,
-// ** et al. 1973 IEEE Int. Conf. on Communications, Vol 1,
-// ** 1973, pg. 11.12-11.17
-// ** 3) MIL-STD-188-113,"Interoperability and Performance Standards
-// ** for Analog-to_Digital Conversion Techniques,"
-// ** 17 February 1987
-// **
-// ** Input: Signed 16 bit linear sample
-// ** Output: 8 bit ulaw sample
-// */
-//
-// #define ZEROTRAP /* turn on the trap as per the MIL-STD */
-// #define BIAS 0x84 /* define the add-in bias for 16 bit samples */
-// #define CLIP 32635
-//
-// unsigned char
-// linear2ulaw(sample)
-// int sample; {
-// static int exp_lut[256] = {0,0,1,1,2,2,2,2,3,3,3,3,3,3,3,3,
-// 4,4,4,4,4,4,4,4,4,4,4,4,4,4,4,4,
-// 5,5,5,5,5,5,5,5,5,5,5,5,5,5,5,5,
-// 5,5,5,5,5,5,5,5,5,5,5,5,5,5,5,5,
-// 6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,
-// 6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,
-// 6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,
-// 6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,
-// 7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,
-// 7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,
-// 7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,
-// 7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,
-// 7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,
-// 7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,
-// 7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,
-// 7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7};
-// int sign, exponent, mantissa;
-// unsigned char ulawbyte;
-//
-// /* Get the sample into sign-magnitude. */
-// sign = (sample >> 8) & 0x80; /* set aside the sign */
-// if (sign != 0) sample = -sample; /* get magnitude */
-// if (sample > CLIP) sample = CLIP; /* clip the magnitude */
-//
-// /* Convert from 16 bit linear to ulaw. */
-// sample = sample + BIAS;
-// exponent = exp_lut[(sample >> 7) & 0xFF];
-// mantissa = (sample >> (exponent + 3)) & 0x0F;
-// ulawbyte = ~(sign | (exponent << 4) | mantissa);
-// #ifdef ZEROTRAP
-// if (ulawbyte == 0) ulawbyte = 0x02; /* optional CCITT trap */
-// #endif
-//
-// return(ulawbyte);
-// }
-//
-// /*
-// ** This routine converts from ulaw to 16 bit linear.
-// **
-// ** Craig Reese: IDA/Supercomputing Research Center
-// ** 29 September 1989
-// **
-// ** References:
-// ** 1) CCITT Recommendation G.711 (very difficult to follow)
-// ** 2) MIL-STD-188-113,"Interoperability and Performance Standards
-// ** for Analog-to_Digital Conversion Techniques,"
-// ** 17 February 1987
-// **
-// ** Input: 8 bit ulaw sample
-// ** Output: signed 16 bit linear sample
-// */
-//
-// int
-// ulaw2linear(ulawbyte)
-// unsigned char ulawbyte;
-// {
-// static int exp_lut[8] = {0,132,396,924,1980,4092,8316,16764};
-// int sign, exponent, mantissa, sample;
-//
-// ulawbyte = ~ulawbyte;
-// sign = (ulawbyte & 0x80);
-// exponent = (ulawbyte >> 4) & 0x07;
-// mantissa = ulawbyte & 0x0F;
-// sample = exp_lut[exponent] + (mantissa << (exponent + 3));
-// if (sign != 0) sample = -sample;
-//
-// return(sample);
-// }
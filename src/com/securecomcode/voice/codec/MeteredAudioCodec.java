@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.codec;
+
+import com.securecomcode.voice.monitor.SampledMetrics;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps a codec to report how much CPU its encoder and decoder use and the bitrate it
+ * produces, so calls on different codecs can be compared.
+ *
+ * The microphone thread is the only one to encode and the playout thread the only one to
+ * decode, so each counter has a single writer and the audio threads never take a lock.
+ * A sample may see one direction a frame further along than the other, which is fine for
+ * metrics.
+ */
+public class MeteredAudioCodec extends AudioCodec implements SampledMetrics {
+
+  private final AudioCodec codec;
+  private final String     name;
+
+  private volatile long encodeNanos, encodedFrames, encodedBytes;
+  private volatile long decodeNanos, decodedFrames, decodedBytes;
+
+  private long lastEncodeNanos, lastEncodedFrames, lastEncodedBytes;
+  private long lastDecodeNanos, lastDecodedFrames, lastDecodedBytes;
+
+  public MeteredAudioCodec(AudioCodec codec, String name) {
+    this.codec = codec;
+    this.name  = name;
+  }
+
+  @Override
+  public int encode(short[] rawData, byte[] encodedData, int rawSamples) {
+    long start  = System.nanoTime();
+    int  length = codec.encode(rawData, encodedData, rawSamples);
+
+    encodeNanos   += System.nanoTime() - start;
+    encodedFrames += rawSamples / codec.getSamplesPerFrame();
+    encodedBytes  += length;
+
+    return length;
+  }
+
+  @Override
+  public int decode(byte[] encodedData, short[] rawData, int encodedBytes) {
+    long start   = System.nanoTime();
+    int  samples = codec.decode(encodedData, rawData, encodedBytes);
+
+    decodeNanos   += System.nanoTime() - start;
+    decodedFrames += samples / codec.getSamplesPerFrame();
+    if (encodedData != null) decodedBytes += encodedBytes;
+
+    return samples;
+  }
+
+  /**
+   * Time scaling is counted as decoding, so a call that scales reports more decode CPU.  The
+   * frames decoded are estimated from the samples played out at the rate.
+   */
+  @Override
+  public int decodeAndChangeSpeed(ByteBuffer encodedData, int encodedBytes, ShortBuffer out,
+                                  float rate)
+  {
+    long start   = System.nanoTime();
+    int  samples = codec.decodeAndChangeSpeed(encodedData, encodedBytes, out, rate);
+
+    decodeNanos   += System.nanoTime() - start;
+    decodedFrames += Math.round(samples / rate / codec.getSamplesPerFrame());
+    if (encodedData != null) decodedBytes += encodedBytes;
+
+    return samples;
+  }
+
+  @Override
+  public boolean canDecodeAndChangeSpeed() {
+    return codec.canDecodeAndChangeSpeed();
+  }
+
+  @Override
+  public void waitForInitializationComplete() {
+    codec.waitForInitializationComplete();
+  }
+
+  @Override
+  public void terminate() {
+    codec.terminate();
+  }
+
+  @Override
+  public int getSampleRate() {
+    return codec.getSampleRate();
+  }
+
+  @Override
+  public int getSamplesPerFrame() {
+    return codec.getSamplesPerFrame();
+  }
+
+  @Override
+  public synchronized Map<String, Object> sample() {
+    long encodeNanos   = this.encodeNanos,   decodeNanos   = this.decodeNanos;
+    long encodedFrames = this.encodedFrames, decodedFrames = this.decodedFrames;
+    long encodedBytes  = this.encodedBytes,  decodedBytes  = this.decodedBytes;
+
+    long encodeFrames = encodedFrames - lastEncodedFrames;
+    long decodeFrames = decodedFrames - lastDecodedFrames;
+
+    Map<String, Object> result = new HashMap<String, Object>(7);
+    result.put("name", name);
+    result.put("encode-frames", encodeFrames);
+    result.put("encode-us", encodeFrames == 0 ? 0 : (encodeNanos - lastEncodeNanos) / encodeFrames / 1000);
+    result.put("encode-bps", getBitrate(encodedBytes - lastEncodedBytes, encodeFrames * getFrameMillis()));
+    result.put("decode-frames", decodeFrames);
+    result.put("decode-us", decodeFrames == 0 ? 0 : (decodeNanos - lastDecodeNanos) / decodeFrames / 1000);
+    result.put("decode-bps", getBitrate(decodedBytes - lastDecodedBytes, decodeFrames * getFrameMillis()));
+
+    lastEncodeNanos = encodeNanos; lastEncodedFrames = encodedFrames; lastEncodedBytes = encodedBytes;
+    lastDecodeNanos = decodeNanos; lastDecodedFrames = decodedFrames; lastDecodedBytes = decodedBytes;
+
+    return result;
+  }
+
+  private int getFrameMillis() {
+    return codec.getSamplesPerFrame() * 1000 / codec.getSampleRate();
+  }
+
+  private static long getBitrate(long bytes, long millis) {
+    return millis == 0 ? 0 : bytes * 8 * 1000 / millis;
+  }
+}
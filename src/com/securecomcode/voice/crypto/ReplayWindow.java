@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.securecomcode.voice.crypto;
+
+import com.securecomcode.voice.monitor.SampledMetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sliding window of recently received logical sequence numbers, as described in
+ * RFC 3711 section 3.3.2.
+ *
+ * A packet is checked against the window before any crypto is done: packets too far behind the
+ * highest one received, and packets already received, are rejected.  A packet only enters the
+ * window once its MAC has been verified, so forged packets can't move it.
+ *
+ *
+ */
+
+public class ReplayWindow implements SampledMetrics {
+
+  public static final int WINDOW_SIZE = 64;
+
+  private boolean initialized;
+  private long highest;
+  private long bitmap;
+
+  private volatile int duplicates;
+  private volatile int tooOld;
+
+  /**
+   * @return true if a packet with this logical sequence may be processed.
+   */
+  public boolean check(long sequence) {
+    if (!initialized || sequence > highest)
+      return true;
+
+    long delta = highest - sequence;
+
+    if (delta >= WINDOW_SIZE) {
+      tooOld++;
+      return false;
+    }
+
+    if ((bitmap & (1L << delta)) != 0) {
+      duplicates++;
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Records an authenticated packet that passed {@link #check(long)}.
+   */
+  public void update(long sequence) {
+    if (!initialized) {
+      initialized = true;
+      highest     = sequence;
+      bitmap      = 1;
+    } else if (sequence > highest) {
+      long shift = sequence - highest;
+      bitmap     = shift >= WINDOW_SIZE ? 1 : (bitmap << shift) | 1;
+      highest    = sequence;
+    } else {
+      bitmap |= 1L << (highest - sequence);
+    }
+  }
+
+  /**
+   * Forgets every sequence number seen, for when the stream is rekeyed.
+   */
+  public void reset() {
+    initialized = false;
+    bitmap      = 0;
+  }
+
+  public int getDuplicateCount() {
+    return duplicates;
+  }
+
+  public int getTooOldCount() {
+    return tooOld;
+  }
+
+  @Override
+  public Map<String, Object> sample() {
+    Map<String, Object> result = new HashMap<String, Object>(2);
+    result.put("duplicate", duplicates);
+    result.put("too-old", tooOld);
+    return result;
+  }
+}
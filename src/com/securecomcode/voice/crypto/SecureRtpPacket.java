@@ -42,6 +42,10 @@ public class SecureRtpPacket extends RtpPacket {
     super(packet.getPacket(), packet.getPacketLength());
   }
 
+  public int getMacOffset() {
+    return packetLength - MAC_SIZE;
+  }
+
   public byte[] getMac() {
     byte[] mac = new byte[MAC_SIZE];
     System.arraycopy(data, packetLength - MAC_SIZE, mac, 0, mac.length);
@@ -60,13 +64,37 @@ public class SecureRtpPacket extends RtpPacket {
 
   @Override
   public byte[] getPayload() {
-    int payloadLength = packetLength - HEADER_LENGTH - MAC_SIZE;
+    int payloadLength = getPayloadLength();
     byte[] payload    = new byte[payloadLength];
     System.arraycopy(data, HEADER_LENGTH, payload, 0, payloadLength);
 
     return payload;
   }
 
+  /**
+   * Copies the payload into a caller supplied buffer.
+   *
+   * @return the number of payload bytes copied.
+   */
+  public int getPayload(byte[] buffer) {
+    int payloadLength = getPayloadLength();
+    System.arraycopy(data, HEADER_LENGTH, buffer, 0, payloadLength);
+
+    return payloadLength;
+  }
+
+  @Override
+  public int getPayloadLength() {
+    return packetLength - HEADER_LENGTH - MAC_SIZE;
+  }
+
+  /**
+   * @return true if the received datagram is long enough to hold a header and a mac.
+   */
+  public boolean isValidLength() {
+    return packetLength >= HEADER_LENGTH + MAC_SIZE;
+  }
+
   public long getLogicalSequence() {
     return logicalSequence;
   }
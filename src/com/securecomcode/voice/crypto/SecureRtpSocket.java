@@ -20,33 +20,53 @@ package com.securecomcode.voice.crypto;
 import android.util.Log;
 
 import com.securecomcode.voice.crypto.zrtp.HandshakePacket;
+import com.securecomcode.voice.crypto.zrtp.HandshakeTransport;
+import com.securecomcode.voice.monitor.CallMonitor;
 import com.securecomcode.voice.network.RtpPacket;
 import com.securecomcode.voice.network.RtpSocket;
 import com.securecomcode.voice.profiling.TimeProfiler;
 
 import java.io.IOException;
+import java.nio.channels.Selector;
 
 /**
  * A socket that does SRTP.
  *
  * Every outgoing packet is encrypted/authenticated, and every incoming
- * packet is verified/decrypted.
+ * packet is verified/decrypted.  Incoming duplicates and packets too old
+ * for the {@link ReplayWindow} are dropped before any crypto is done.
  *
  * @author Moxie Marlinspike
  *
  */
 
-public class SecureRtpSocket {
+public class SecureRtpSocket implements HandshakeTransport {
+
+  /** No datagram was waiting. */
+  public static final int RECEIVE_NONE     = 0;
+  /** The packet now holds a verified, decrypted packet. */
+  public static final int RECEIVE_OK       = 1;
+  /** A datagram was read but was malformed, replayed or failed verification. */
+  public static final int RECEIVE_REJECTED = 2;
 
   private SecureStream incomingContext;
   private SecureStream outgoingContext;
   private final RtpSocket socket;
+  private final ReplayWindow replayWindow = new ReplayWindow();
 
-  public SecureRtpSocket(RtpSocket socket) {
+  public SecureRtpSocket(RtpSocket socket, CallMonitor monitor) {
     this.socket = socket;
     initializeStreamContexts();
+    monitor.addSampledMetrics("srtp-replay", replayWindow);
+    monitor.addSampledMetrics("rtp-socket", socket);
+    monitor.addSampledMetrics("connection-health", socket.getConnectionHealth());
+  }
+
+  public void startHealthMonitor() {
+    this.socket.startHealthMonitor();
   }
 
+  @Override
   public void close() {
     this.socket.close();
   }
@@ -56,6 +76,7 @@ public class SecureRtpSocket {
   {
     this.incomingContext = new SecureStream(incomingCipherKey, incomingMacKey, incomingSalt);
     this.outgoingContext = new SecureStream(outgoingCipherKey, outgoingMacKey, outgoingSalt);
+    this.replayWindow.reset();
   }
 
   private void initializeStreamContexts() {
@@ -70,11 +91,13 @@ public class SecureRtpSocket {
     this.outgoingContext = new SecureStream(outgoingCipherKey, outgoingMacKey, outgoingSalt);
   }
 
+  @Override
   public void send(HandshakePacket packet) throws IOException {
     packet.setCRC();
     socket.send(packet);
   }
 
+  @Override
   public HandshakePacket receiveHandshakePacket(boolean verifyCRC) throws IOException {
     RtpPacket barePacket = socket.receive();
     if (barePacket == null)
@@ -89,10 +112,15 @@ public class SecureRtpSocket {
     }
   }
 
+  @Override
   public void setTimeout(int timeoutMillis) {
     socket.setTimeout(timeoutMillis);
   }
 
+  public void register(Selector selector) throws IOException {
+    socket.register(selector);
+  }
+
   public void send(SecureRtpPacket packet) throws IOException {
     TimeProfiler.startBlock("SRPS:send:updateSeq" );
     outgoingContext.updateSequence(packet);
@@ -119,17 +147,52 @@ public class SecureRtpSocket {
 
     SecureRtpPacket packet = new SecureRtpPacket(barePacket);
 
+    if (verifyAndDecrypt(packet))
+      return packet;
+
+    return null;
+  }
+
+  /**
+   * Receives, verifies and decrypts the next packet in place inside the caller's
+   * packet buffer.  The same packet can be handed back in on every call, so the
+   * receive path does not allocate.
+   *
+   * @return RECEIVE_OK, RECEIVE_NONE, or RECEIVE_REJECTED if a datagram was consumed but
+   * should be ignored.  Callers draining the socket keep reading until RECEIVE_NONE.
+   */
+  public int receive(SecureRtpPacket packet) throws IOException {
+    TimeProfiler.startBlock( "SecureRedphoneSocket::receive" );
+    boolean received = socket.receive(packet);
+    TimeProfiler.stopBlock( "SecureRedphoneSocket::receive" );
+
+    if (!received)
+      return RECEIVE_NONE;
+
+    if (packet.isValidLength() && verifyAndDecrypt(packet))
+      return RECEIVE_OK;
+
+    return RECEIVE_REJECTED;
+  }
+
+  private boolean verifyAndDecrypt(SecureRtpPacket packet) {
+    long sequence = incomingContext.peekSequence(packet);
+
+    if (!replayWindow.check(sequence))
+      return false;
+
     TimeProfiler.startBlock( "VerfiyRcvMac" );
     if (incomingContext.verifyMac(packet)) {
       TimeProfiler.stopBlock( "VerfiyRcvMac" );
       incomingContext.updateSequence(packet);
+      replayWindow.update(sequence);
       TimeProfiler.startBlock( "RecvDecrypt" );
       incomingContext.decrypt(packet);
       TimeProfiler.stopBlock( "RecvDecrypt" );
-      return packet;
+      return true;
     }
 
     Log.w("SecureRedPhoneSocket", "Bad mac on packet...");
-    return null;
+    return false;
   }
 }
@@ -58,4 +58,11 @@ public class SecureStream {
     sequenceCounter.updateSequence(packet);
   }
 
+  /**
+   * @return the logical sequence updateSequence would give this packet.
+   */
+  public long peekSequence(SecureRtpPacket packet) {
+    return sequenceCounter.peekNext((short)packet.getSequenceNumber());
+  }
+
 }
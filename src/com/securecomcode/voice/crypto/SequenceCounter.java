@@ -29,10 +29,16 @@ package com.securecomcode.voice.crypto;
 public class SequenceCounter {
   private long curLongId;
   public long convertNext(short nextShortId) {
-    short smallestDeltaToCongruentId = (short)(nextShortId - curLongId); 
-    curLongId += smallestDeltaToCongruentId;
+    curLongId = peekNext(nextShortId);
     return curLongId;
   }
+  /**
+   * Returns the id convertNext would return, without advancing the counter.
+   */
+  public long peekNext(short nextShortId) {
+    short smallestDeltaToCongruentId = (short)(nextShortId - curLongId);
+    return curLongId + smallestDeltaToCongruentId;
+  }
   public void updateSequence(SecureRtpPacket packet) {
     packet.setLogicalSequence(convertNext((short)packet.getSequenceNumber()));
   }
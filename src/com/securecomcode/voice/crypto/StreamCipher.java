@@ -17,121 +17,93 @@
 
 package com.securecomcode.voice.crypto;
 
-import com.securecomcode.voice.profiling.ProfilingTimer;
-import com.securecomcode.voice.profiling.TimeProfiler;
-
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.Key;
-import java.security.NoSuchAlgorithmException;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import org.spongycastle.crypto.engines.AESFastEngine;
+import org.spongycastle.crypto.params.KeyParameter;
 
 /**
  * A StreamCipher handles the block cipher operations for
  * a stream of SRTP data.
  *
+ * The AES key schedule is expanded once per stream.  For each packet the CTR
+ * keystream is generated directly from the (ssrc, logicalSequence) counter block and
+ * XORed into the payload in place, so no per-packet cipher initialization or
+ * temporary arrays are needed.  The output is identical to AES/CTR/NoPadding.
+ *
  * @author Moxie Marlinspike
  *
  */
 
 public class StreamCipher {
-  private final Cipher cipher;
-  private final Key secret;
+  private static final int BLOCK_SIZE = 16;
+
+  private final AESFastEngine cipher;
   private final byte[] salt;
+  private final byte[] counter   = new byte[BLOCK_SIZE];
+  private final byte[] keyStream = new byte[BLOCK_SIZE];
 
   public StreamCipher(byte[] secret, byte[] salt) {
-    try {
-      this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      this.secret = new SecretKeySpec(secret, 0, secret.length, "AES");
-      this.salt   = salt;
-    } catch (NoSuchPaddingException nspe) {
-      throw new IllegalArgumentException(nspe);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    }
-
+    this.cipher = new AESFastEngine();
+    this.cipher.init(true, new KeyParameter(secret, 0, secret.length));
+    this.salt   = salt;
   }
 
   public void encrypt(SecureRtpPacket packet) {
-    try {
-      TimeProfiler.startBlock("SC:enc:gCypher" );
-      Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, packet);
-      TimeProfiler.stopBlock("SC:enc:gCypher" );
-      TimeProfiler.startBlock("SC:enc:setPayLoad" );
-      packet.setPayload(cipher.doFinal(packet.getPayload()));
-      TimeProfiler.stopBlock("SC:enc:setPayLoad" );
-    } catch (IllegalBlockSizeException e) {
-      throw new IllegalArgumentException(e);
-    } catch (BadPaddingException e) {
-      throw new IllegalArgumentException(e);
-    }
+    transformInPlace(packet);
   }
 
   public void decrypt(SecureRtpPacket packet) {
-    try {
-      TimeProfiler.startBlock("SC:dec:gCypher" );
-      Cipher cipher = getCipher(Cipher.DECRYPT_MODE, packet);
-      TimeProfiler.stopBlock("SC:dec:gCypher" );
-      TimeProfiler.startBlock("SC:dec:setPayl" );
-      packet.setPayload(cipher.doFinal(packet.getPayload()));
-      TimeProfiler.stopBlock("SC:dec:setPayl" );
-    } catch (IllegalBlockSizeException e) {
-      throw new IllegalArgumentException(e);
-    } catch (BadPaddingException e) {
-      throw new IllegalArgumentException(e);
-    }
+    transformInPlace(packet);
   }
 
+  private void transformInPlace(SecureRtpPacket packet) {
+    byte[] data   = packet.getPacket();
+    int offset    = packet.getPayloadOffset();
+    int remaining = packet.getPayloadLength();
+
+    setCounterForSequence(packet);
 
-  private byte[] getIvForSequence(SecureRtpPacket packet) {
+    while (remaining > 0) {
+      cipher.processBlock(counter, 0, keyStream, 0);
+
+      int blockLength = Math.min(BLOCK_SIZE, remaining);
+
+      for (int i=0;i<blockLength;i++) {
+        data[offset + i] ^= keyStream[i];
+      }
+
+      offset    += blockLength;
+      remaining -= blockLength;
+
+      incrementCounter();
+    }
+  }
+
+  private void setCounterForSequence(SecureRtpPacket packet) {
     long logicalSequence = packet.getLogicalSequence();
     long ssrc            = packet.getSSRC();
-    byte[] iv            = new byte[16];
 
-    System.arraycopy(this.salt, 0, iv, 0, this.salt.length);
+    System.arraycopy(this.salt, 0, counter, 0, this.salt.length);
 
-    iv[6]   ^= (byte)(ssrc >> 8);
-    iv[7]   ^= (byte)(ssrc);
-    iv[8]   ^= (byte)(logicalSequence >> 40);
-    iv[9]   ^= (byte)(logicalSequence >> 32);
-    iv[10]  ^= (byte)(logicalSequence >> 24);
-    iv[11]  ^= (byte)(logicalSequence >> 16);
-    iv[12]  ^= (byte)(logicalSequence >> 8);
-    iv[13]  ^= (byte)(logicalSequence);
+    for (int i=this.salt.length;i<BLOCK_SIZE;i++) {
+      counter[i] = 0;
+    }
 
-    return iv;
+    counter[6]   ^= (byte)(ssrc >> 8);
+    counter[7]   ^= (byte)(ssrc);
+    counter[8]   ^= (byte)(logicalSequence >> 40);
+    counter[9]   ^= (byte)(logicalSequence >> 32);
+    counter[10]  ^= (byte)(logicalSequence >> 24);
+    counter[11]  ^= (byte)(logicalSequence >> 16);
+    counter[12]  ^= (byte)(logicalSequence >> 8);
+    counter[13]  ^= (byte)(logicalSequence);
   }
 
-  ProfilingTimer cgiT = new ProfilingTimer( "getCipher::getInstance" );
-  ProfilingTimer ivbT = new ProfilingTimer( "getCipher::getIvForSequence");
-  ProfilingTimer ivpT = new ProfilingTimer( "getCipher::IvParameterSpec" );
-  ProfilingTimer cinT = new ProfilingTimer( "getCipher::init");
-
-  private Cipher getCipher(int mode, SecureRtpPacket packet)  {
-    try {
-      ivbT.start();
-      byte[] ivBytes     = getIvForSequence(packet);
-      ivbT.stop();
-      ivpT.start();
-      IvParameterSpec iv = new IvParameterSpec(ivBytes);
-      ivpT.stop();
-      cinT.start();
-      cipher.init(mode, secret, iv);
-      cinT.stop();
-
-      return cipher;
-    } catch (InvalidKeyException e) {
-      throw new IllegalArgumentException("Invaid Key?");
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new IllegalArgumentException("Bad IV?");
+  private void incrementCounter() {
+    for (int i=BLOCK_SIZE-1;i>=0;i--) {
+      if (++counter[i] != 0) {
+        break;
+      }
     }
   }
 
-
 }
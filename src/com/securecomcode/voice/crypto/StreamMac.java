@@ -17,52 +17,71 @@
 
 package com.securecomcode.voice.crypto;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import org.spongycastle.crypto.digests.SHA1Digest;
 
 /**
  * A StreamMac handles the authentication (Hmac) operations
  * for a stream of SRTP packets.
  *
+ * Tags are written directly into, or compared directly against, the packet
+ * buffer, so neither operation allocates.  The HMAC is built here over a
+ * SHA1Digest rather than with HMac, whose doFinal() allocates a buffer for
+ * the inner hash on every call in the provider we ship.
+ *
  * @author Moxie Marlinspike
  *
  */
 
 public class StreamMac {
 
-  private final Mac mac;
+  private static final int BLOCK_LENGTH = 64;
+
+  private final SHA1Digest digest    = new SHA1Digest();
+  private final byte[]     inputPad  = new byte[BLOCK_LENGTH];
+  private final byte[]     outputPad = new byte[BLOCK_LENGTH];
+  private final byte[]     innerHash = new byte[digest.getDigestSize()];
+  private final byte[]     macBuffer = new byte[digest.getDigestSize()];
 
   public StreamMac(byte[] macKey) {
-    try {
-      SecretKeySpec key = new SecretKeySpec(macKey, "HmacSHA1");
-      this.mac          = Mac.getInstance("HmacSHA1");
-      this.mac.init(key);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new IllegalArgumentException(nsae);
-    } catch (InvalidKeyException e) {
-      throw new IllegalArgumentException(e);
+    if (macKey.length > BLOCK_LENGTH) {
+      digest.update(macKey, 0, macKey.length);
+      digest.doFinal(inputPad, 0);
+    } else {
+      System.arraycopy(macKey, 0, inputPad, 0, macKey.length);
+    }
+
+    for (int i=0;i<BLOCK_LENGTH;i++) {
+      outputPad[i] = (byte)(inputPad[i] ^ 0x5c);
+      inputPad[i]  = (byte)(inputPad[i] ^ 0x36);
     }
   }
 
   public boolean verifyPacket(SecureRtpPacket packet) {
-    byte[] myMacBytes    = getMacForPacket(packet);
-    byte[] theirMacBytes = packet.getMac();
+    calculateMac(packet, macBuffer, 0);
 
-    return Arrays.equals(myMacBytes, theirMacBytes);
+    byte[] packetBytes = packet.getPacket();
+    int theirMacOffset = packet.getMacOffset();
+    int difference     = 0;
+
+    for (int i=0;i<macBuffer.length;i++) {
+      difference |= macBuffer[i] ^ packetBytes[theirMacOffset + i];
+    }
+
+    return difference == 0;
   }
 
   public void macPacket(SecureRtpPacket packet) {
-    byte[] macBytes = getMacForPacket(packet);
-    packet.setMac(macBytes);
+    calculateMac(packet, packet.getPacket(), packet.getMacOffset());
   }
 
-  private byte[] getMacForPacket(SecureRtpPacket packet) {
-      mac.update(packet.getDataToMac(), 0, packet.getDataToMacLength());
-      return mac.doFinal();
+  private void calculateMac(SecureRtpPacket packet, byte[] output, int outputOffset) {
+    digest.update(inputPad, 0, inputPad.length);
+    digest.update(packet.getDataToMac(), 0, packet.getDataToMacLength());
+    digest.doFinal(innerHash, 0);
+
+    digest.update(outputPad, 0, outputPad.length);
+    digest.update(innerHash, 0, innerHash.length);
+    digest.doFinal(output, outputOffset);
   }
 
 }
@@ -20,8 +20,6 @@ package com.securecomcode.voice.crypto.zrtp;
 import com.securecomcode.voice.network.RtpPacket;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 /**
  * ZRTP handshake 'Commit' packet.
@@ -72,7 +70,7 @@ public class CommitPacket extends HandshakePacket {
     fixOffsetsForHeaderBug();
   }
 
-  public CommitPacket(HashChain hashChain, byte[] helloBytes,
+  public CommitPacket(HandshakeCrypto crypto, HashChain hashChain, byte[] helloBytes,
                       DHPartTwoPacket dhPacket, byte[] zid,
                       boolean includeLegacyHeaderBug)
     throws InvalidPacketException
@@ -82,8 +80,8 @@ public class CommitPacket extends HandshakePacket {
     setHash(hashChain.getH2());
     setZID(zid);
     setSpec(dhPacket.getAgreementSpec());
-    setHvi(calculateHvi(helloBytes, dhPacket.getMessageBytes()));
-    setMac(hashChain.getH1(), MAC_OFFSET, COMMIT_LENGTH - 8);
+    setHvi(calculateHvi(crypto, helloBytes, dhPacket.getMessageBytes()));
+    setMac(crypto, hashChain.getH1(), MAC_OFFSET, COMMIT_LENGTH - 8);
   }
 
   public byte[] getHvi() {
@@ -98,16 +96,18 @@ public class CommitPacket extends HandshakePacket {
     return hash;
   }
 
-  public void verifyHvi(byte[] helloBytes, byte[] dhBytes) throws InvalidPacketException {
-    byte[] calculatedHvi = calculateHvi(helloBytes, dhBytes);
+  public void verifyHvi(HandshakeCrypto crypto, byte[] helloBytes, byte[] dhBytes)
+      throws InvalidPacketException
+  {
+    byte[] calculatedHvi = calculateHvi(crypto, helloBytes, dhBytes);
     byte[] packetHvi     = getHvi();
 
-    if (!Arrays.equals(calculatedHvi, packetHvi))
+    if (!HandshakeCrypto.isEqual(calculatedHvi, packetHvi))
       throw new InvalidPacketException("HVI doesn't match.");
   }
 
-  public void verifyMac(byte[] key) throws InvalidPacketException {
-    super.verifyMac(key, MAC_OFFSET, COMMIT_LENGTH - 8, getHash());
+  public void verifyMac(HandshakeCrypto crypto, byte[] key) throws InvalidPacketException {
+    super.verifyMac(crypto, key, MAC_OFFSET, COMMIT_LENGTH - 8, getHash());
   }
 
   private void setHash(byte[] hash) {
@@ -126,16 +126,12 @@ public class CommitPacket extends HandshakePacket {
     System.arraycopy(SAS_SPEC, 0, this.data, SAS_OFFSET, SAS_SPEC.length);
   }
 
-  private byte[] calculateHvi(byte[] helloBytes, byte[] dhBytes) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      md.update(dhBytes);
-      md.update(helloBytes);
+  private byte[] calculateHvi(HandshakeCrypto crypto, byte[] helloBytes, byte[] dhBytes) {
+    MessageDigest md = crypto.getDigest();
+    md.update(dhBytes);
+    md.update(helloBytes);
 
-      return md.digest();
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    }
+    return md.digest();
   }
 
   private void setHvi(byte[] hvi) {
@@ -34,10 +34,11 @@ public class ConfirmOnePacket extends ConfirmPacket {
     super(packet, legacy);
   }
 
-  public ConfirmOnePacket(byte[] macKey, byte[] cipherKey, HashChain hashChain,
+  public ConfirmOnePacket(HandshakeCrypto crypto, byte[] macKey, byte[] cipherKey,
+                          HashChain hashChain,
                           boolean includeLegacyConfirmPacketBug,
                           boolean includeLegacyHeaderBug)
   {
-    super(TYPE, macKey, cipherKey, hashChain, includeLegacyConfirmPacketBug, includeLegacyHeaderBug);
+    super(crypto, TYPE, macKey, cipherKey, hashChain, includeLegacyConfirmPacketBug, includeLegacyHeaderBug);
   }
 }
@@ -24,19 +24,13 @@ import com.securecomcode.voice.network.RtpPacket;
 import com.securecomcode.voice.util.Conversions;
 import com.securecomcode.voice.util.Hex;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Confirm ZRTP handshake packet.
@@ -70,7 +64,7 @@ public class ConfirmPacket extends HandshakePacket {
     fixOffsetsForHeaderBug();
   }
 
-  public ConfirmPacket(String type, byte[] macKey, byte[] cipherKey,
+  public ConfirmPacket(HandshakeCrypto crypto, String type, byte[] macKey, byte[] cipherKey,
                        HashChain hashChain,
                        boolean includeLegacyConfirmPacketBug,
                        boolean includeLegacyHeaderBug)
@@ -81,15 +75,15 @@ public class ConfirmPacket extends HandshakePacket {
     setPreimage(hashChain.getH0());
     setCacheTime();
     setIv();
-    computeCipherOperation(cipherKey, Cipher.ENCRYPT_MODE);
-    setMac(macKey);
+    computeCipherOperation(crypto, cipherKey, Cipher.ENCRYPT_MODE);
+    setMac(crypto, macKey);
   }
 
-  public void verifyMac(byte[] macKey) throws InvalidPacketException {
+  public void verifyMac(HandshakeCrypto crypto, byte[] macKey) throws InvalidPacketException {
     if (this.getPacketLength() - PREIMAGE_OFFSET < ENCRYPTED_LENGTH)
       throw new InvalidPacketException("Confirm packet too short.");
 
-    byte[] digest          = calculateMac(macKey);
+    byte[] digest          = calculateMac(crypto, macKey);
     byte[] truncatedDigest = new byte[8];
     System.arraycopy(digest, 0, truncatedDigest, 0, truncatedDigest.length);
 
@@ -98,12 +92,12 @@ public class ConfirmPacket extends HandshakePacket {
     Log.w("ConfirmPacket", "Given Digest: " + Hex.toString(givenDigest));
     Log.w("ConfirmPacket", "Calcu Digest: " + Hex.toString(digest));
 
-    if (!Arrays.equals(truncatedDigest, givenDigest))
+    if (!HandshakeCrypto.isEqual(truncatedDigest, givenDigest))
       throw new InvalidPacketException("HMAC doesn't match!");
   }
 
-  public void decrypt(byte[] cipherKey) {
-    computeCipherOperation(cipherKey, Cipher.DECRYPT_MODE);
+  public void decrypt(HandshakeCrypto crypto, byte[] cipherKey) {
+    computeCipherOperation(crypto, cipherKey, Cipher.DECRYPT_MODE);
   }
 
   public byte[] getPreimage() {
@@ -112,22 +106,15 @@ public class ConfirmPacket extends HandshakePacket {
     return preimage;
   }
 
-  private byte[] calculateMac(byte[] macKey) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-      mac.update(this.data, PREIMAGE_OFFSET, ENCRYPTED_LENGTH);
+  private byte[] calculateMac(HandshakeCrypto crypto, byte[] macKey) {
+    Mac mac = crypto.getMac(macKey);
+    mac.update(this.data, PREIMAGE_OFFSET, ENCRYPTED_LENGTH);
 
-      return mac.doFinal();
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    } catch (InvalidKeyException e) {
-      throw new IllegalArgumentException(e);
-    }
+    return mac.doFinal();
   }
 
-  private void setMac(byte[] macKey) {
-    byte[] digest = calculateMac(macKey);
+  private void setMac(HandshakeCrypto crypto, byte[] macKey) {
+    byte[] digest = calculateMac(crypto, macKey);
     System.arraycopy(digest, 0, this.data, HMAC_OFFSET, 8);
   }
 
@@ -155,23 +142,12 @@ public class ConfirmPacket extends HandshakePacket {
     }
   }
 
-  private void computeCipherOperation(byte[] cipherKey, int mode) {
+  private void computeCipherOperation(HandshakeCrypto crypto, byte[] cipherKey, int mode) {
     try {
-      IvParameterSpec ivSpec = new IvParameterSpec(getIv());
-      SecretKeySpec keySpec  = new SecretKeySpec(cipherKey, "AES");
-      Cipher cipher          = Cipher.getInstance("AES/CFB/NoPadding");
-      cipher.init(mode, keySpec, ivSpec);
+      Cipher cipher = crypto.getConfirmCipher(mode, cipherKey, getIv());
 
       byte[] encryptedData = cipher.doFinal(this.data, PREIMAGE_OFFSET, ENCRYPTED_LENGTH);
       System.arraycopy(encryptedData, 0, this.data, PREIMAGE_OFFSET, ENCRYPTED_LENGTH);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    } catch (InvalidKeyException e) {
-      throw new IllegalArgumentException(e);
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new IllegalArgumentException(e);
-    } catch (NoSuchPaddingException e) {
-      throw new IllegalArgumentException(e);
     } catch (IllegalBlockSizeException e) {
       throw new IllegalArgumentException(e);
     } catch (BadPaddingException e) {
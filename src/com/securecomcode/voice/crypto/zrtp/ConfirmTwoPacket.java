@@ -33,11 +33,12 @@ public class ConfirmTwoPacket extends ConfirmPacket {
     super(packet, legacy);
   }
 
-  public ConfirmTwoPacket(byte[] macKey, byte[] cipherKey, HashChain hashChain,
+  public ConfirmTwoPacket(HandshakeCrypto crypto, byte[] macKey, byte[] cipherKey,
+                          HashChain hashChain,
                           boolean includeLegacyConfirmPacketBug,
                           boolean includeLegacyHeaderBug)
   {
-    super(TYPE, macKey, cipherKey, hashChain, includeLegacyConfirmPacketBug, includeLegacyHeaderBug);
+    super(crypto, TYPE, macKey, cipherKey, hashChain, includeLegacyConfirmPacketBug, includeLegacyHeaderBug);
   }
 
 }
\ No newline at end of file
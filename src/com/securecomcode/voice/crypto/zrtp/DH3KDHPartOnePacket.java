@@ -36,10 +36,10 @@ public class DH3KDHPartOnePacket extends DHPartOnePacket {
     super(packet, DHPacket.DH3K_AGREEMENT_TYPE, deepCopy);
   }
 
-  public DH3KDHPartOnePacket(HashChain hashChain, byte[] pvr,
+  public DH3KDHPartOnePacket(HandshakeCrypto crypto, HashChain hashChain, byte[] pvr,
                              RetainedSecretsDerivatives retainedSecrets,
                              boolean includeLegacyHeaderBug)
   {
-    super(DHPacket.DH3K_AGREEMENT_TYPE, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
+    super(crypto, DHPacket.DH3K_AGREEMENT_TYPE, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
   }
 }
@@ -22,9 +22,7 @@ import android.util.Log;
 import com.securecomcode.voice.util.Conversions;
 
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 
@@ -39,23 +37,23 @@ import javax.crypto.spec.DHPublicKeySpec;
  */
 public class DH3KSecretCalculator extends SecretCalculator {
 
+  public DH3KSecretCalculator(HandshakeCrypto crypto) {
+    super(crypto);
+  }
+
   @Override
   public byte[] calculateKeyAgreement(KeyPair localKey, byte[] publicKeyBytes) {
     try {
       Log.w("SecretCalculator", "Calculating DH secret...");
       DHPublicKeySpec keySpec = new DHPublicKeySpec(Conversions.byteArrayToBigInteger(publicKeyBytes),
                                                     ZRTPSocket.PRIME, ZRTPSocket.GENERATOR);
-      KeyFactory keyFactory   = KeyFactory.getInstance("DH");
-      PublicKey publicKey     = keyFactory.generatePublic(keySpec);
+      PublicKey publicKey     = crypto.getDH3KKeyFactory().generatePublic(keySpec);
 
-      KeyAgreement agreement = KeyAgreement.getInstance("DH");
+      KeyAgreement agreement = crypto.getDH3KKeyAgreement();
       agreement.init(localKey.getPrivate());
       agreement.doPhase(publicKey, true);
 
       return agreement.generateSecret();
-    } catch (NoSuchAlgorithmException e) {
-      Log.w("SecretCalculator", e);
-      throw new IllegalArgumentException(e);
     } catch (InvalidKeySpecException e) {
       Log.w("SecretCalculator", e);
       throw new IllegalArgumentException(e);
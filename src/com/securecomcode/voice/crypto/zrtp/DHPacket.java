@@ -85,7 +85,8 @@ public abstract class DHPacket extends HandshakePacket {
     fixOffsetsForHeaderBug();
   }
 
-  public DHPacket(String typeTag, int agreementType, HashChain hashChain, byte[] pvr,
+  public DHPacket(HandshakeCrypto crypto, String typeTag, int agreementType,
+                  HashChain hashChain, byte[] pvr,
                   RetainedSecretsDerivatives retainedSecrets,
                   boolean includeLegacyHeaderBug)
   {
@@ -100,10 +101,10 @@ public abstract class DHPacket extends HandshakePacket {
 
     switch (agreementType) {
     case DH3K_AGREEMENT_TYPE:
-      setMac(hashChain.getH0(), DH3K_MAC_OFFSET, DH3K_DH_LENGTH - 8);
+      setMac(crypto, hashChain.getH0(), DH3K_MAC_OFFSET, DH3K_DH_LENGTH - 8);
       break;
     case EC25_AGREEMENT_TYPE:
-      setMac(hashChain.getH0(), EC25_MAC_OFFSET, EC25_DH_LENGTH - 8);
+      setMac(crypto, hashChain.getH0(), EC25_MAC_OFFSET, EC25_DH_LENGTH - 8);
       break;
     default:
       throw new AssertionError("Bad agreement type: " + agreementType);
@@ -145,13 +146,13 @@ public abstract class DHPacket extends HandshakePacket {
     return hash;
   }
 
-  public void verifyMac(byte[] key) throws InvalidPacketException {
+  public void verifyMac(HandshakeCrypto crypto, byte[] key) throws InvalidPacketException {
     switch (agreementType) {
     case DH3K_AGREEMENT_TYPE:
-      super.verifyMac(key, DH3K_MAC_OFFSET, DH3K_DH_LENGTH-8, getHash());
+      super.verifyMac(crypto, key, DH3K_MAC_OFFSET, DH3K_DH_LENGTH-8, getHash());
       return;
     case EC25_AGREEMENT_TYPE:
-      super.verifyMac(key, EC25_MAC_OFFSET, EC25_DH_LENGTH-8, getHash());
+      super.verifyMac(crypto, key, EC25_MAC_OFFSET, EC25_DH_LENGTH-8, getHash());
       return;
     default:
       throw new AssertionError("Bad agreement type: " + agreementType);
@@ -38,10 +38,10 @@ public abstract class DHPartOnePacket extends DHPacket {
     super(packet, agreementType, deepCopy);
   }
 
-  public DHPartOnePacket(int agreementType, HashChain hashChain, byte[] pvr,
+  public DHPartOnePacket(HandshakeCrypto crypto, int agreementType, HashChain hashChain, byte[] pvr,
                          RetainedSecretsDerivatives retainedSecrets,
                          boolean includeLegacyHeaderBug)
   {
-    super(TYPE, agreementType, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
+    super(crypto, TYPE, agreementType, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
   }
 }
@@ -38,11 +38,11 @@ public abstract class DHPartTwoPacket extends DHPacket {
     super(packet, agreementType, deepCopy);
   }
 
-  public DHPartTwoPacket(int agreementType, HashChain hashChain, byte[] pvr,
+  public DHPartTwoPacket(HandshakeCrypto crypto, int agreementType, HashChain hashChain, byte[] pvr,
                          RetainedSecretsDerivatives retainedSecrets,
                          boolean includeLegacyHeaderBug)
   {
-    super(TYPE, agreementType, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
+    super(crypto, TYPE, agreementType, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
   }
 
   public abstract byte[] getAgreementSpec();
@@ -37,11 +37,11 @@ public class EC25DHPartOnePacket extends DHPartOnePacket {
     super(packet, DHPacket.EC25_AGREEMENT_TYPE, deepCopy);
   }
 
-  public EC25DHPartOnePacket(HashChain hashChain, byte[] pvr,
+  public EC25DHPartOnePacket(HandshakeCrypto crypto, HashChain hashChain, byte[] pvr,
                              RetainedSecretsDerivatives retainedSecrets,
                              boolean includeLegacyHeaderBug)
   {
-    super(DHPacket.EC25_AGREEMENT_TYPE, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
+    super(crypto, DHPacket.EC25_AGREEMENT_TYPE, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
     assert(pvr.length == 64);
   }
 
@@ -39,11 +39,11 @@ public class EC25DHPartTwoPacket extends DHPartTwoPacket {
     super(packet, DHPacket.EC25_AGREEMENT_TYPE, deepCopy);
   }
 
-  public EC25DHPartTwoPacket(HashChain hashChain, byte[] pvr,
+  public EC25DHPartTwoPacket(HandshakeCrypto crypto, HashChain hashChain, byte[] pvr,
                              RetainedSecretsDerivatives retainedSecrets,
                              boolean includeLegacyHeaderBug)
   {
-    super(DHPacket.EC25_AGREEMENT_TYPE, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
+    super(crypto, DHPacket.EC25_AGREEMENT_TYPE, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
     assert(pvr.length == 64);
   }
 
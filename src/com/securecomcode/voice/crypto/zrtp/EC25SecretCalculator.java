@@ -19,17 +19,13 @@ package com.securecomcode.voice.crypto.zrtp;
 
 import android.util.Log;
 
-import org.spongycastle.jce.ECNamedCurveTable;
 import org.spongycastle.jce.spec.ECParameterSpec;
 import org.spongycastle.jce.spec.ECPublicKeySpec;
 import org.spongycastle.math.ec.ECPoint;
 import com.securecomcode.voice.util.Conversions;
 
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 
@@ -44,6 +40,10 @@ import javax.crypto.KeyAgreement;
 
 public class EC25SecretCalculator extends SecretCalculator {
 
+  public EC25SecretCalculator(HandshakeCrypto crypto) {
+    super(crypto);
+  }
+
   @Override
   public byte[] calculateKeyAgreement(KeyPair localKey, byte[] publicKeyBytes) {
     Log.w("EC25SecretCalculator", "Calculating EC25 Secret...");
@@ -54,24 +54,19 @@ public class EC25SecretCalculator extends SecretCalculator {
       System.arraycopy(publicKeyBytes, 0, x, 0, x.length);
       System.arraycopy(publicKeyBytes, x.length, y, 0, y.length);
 
-      ECParameterSpec params = ECNamedCurveTable.getParameterSpec("secp256r1");
+      ECParameterSpec params = HandshakeCrypto.getEC25Parameters();
       ECPoint point          = params.getCurve().createPoint(Conversions.byteArrayToBigInteger(x),
                                                              Conversions.byteArrayToBigInteger(y),
                                                              false);
 
       ECPublicKeySpec keySpec = new ECPublicKeySpec(point, params);
-      KeyFactory keyFactory   = KeyFactory.getInstance("ECDH", "SC");
-      PublicKey publicKey     = keyFactory.generatePublic(keySpec);
+      PublicKey publicKey     = crypto.getEC25KeyFactory().generatePublic(keySpec);
 
-      KeyAgreement agreement = KeyAgreement.getInstance("ECDH", "SC");
+      KeyAgreement agreement = crypto.getEC25KeyAgreement();
       agreement.init(localKey.getPrivate());
       agreement.doPhase(publicKey, true);
 
       return agreement.generateSecret();
-    } catch (NoSuchProviderException nspe) {
-      throw new AssertionError(nspe);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       throw new IllegalArgumentException(e);
     } catch (InvalidKeySpecException e) {
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.util.Log;
+
+import com.securecomcode.voice.util.AndroidClock;
+import com.securecomcode.voice.util.Clock;
+import com.securecomcode.voice.util.Factory;
+
+import javax.crypto.spec.DHParameterSpec;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps ephemeral key pairs ready for the ZRTP handshake, so a call does not wait on key
+ * generation before its first packet goes out.
+ *
+ * A DH3K pair is a 3072-bit modular exponentiation, which takes hundreds of milliseconds on
+ * older phones.  Pairs are generated on a background thread and handed out once each, so
+ * no two handshakes ever share a key.  EC25 pairs, which almost every call uses, are kept
+ * ready from the start.  DH3K pairs are only kept once a call has needed one, since few
+ * clients still agree on DH3K.
+ *
+ * Pairs older than {@link #MAX_AGE_MILLIS} are thrown away rather than used, and each pair
+ * schedules its own eviction when it's added, so a private key never sits in memory for long
+ * whether or not another call comes along.  When no fresh pair is ready, one is
+ * generated on the caller's thread, as before there was a pool.
+ */
+public class EphemeralKeyPool {
+
+  static {
+    Security.addProvider(new org.spongycastle.jce.provider.BouncyCastleProvider());
+  }
+
+  private static final String TAG = "EphemeralKeyPool";
+
+  static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+  private static final int EC25_POOL_SIZE = 2;
+  private static final int DH3K_POOL_SIZE = 1;
+
+  private static final EphemeralKeyPool instance =
+      new EphemeralKeyPool(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, TAG);
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      }), AndroidClock.INSTANCE, new Factory<KeyPair>() {
+        @Override
+        public KeyPair getInstance() {
+          return generateEC25KeyPair();
+        }
+      }, new Factory<KeyPair>() {
+        @Override
+        public KeyPair getInstance() {
+          return generateDH3kKeyPair();
+        }
+      });
+
+  private final ScheduledExecutorService executor;
+  private final Clock                    clock;
+  private final Pool                     ec25;
+  private final Pool                     dh3k;
+
+  EphemeralKeyPool(ScheduledExecutorService executor, Clock clock,
+                   Factory<KeyPair> ec25Generator, Factory<KeyPair> dh3kGenerator)
+  {
+    this.executor = executor;
+    this.clock    = clock;
+    this.ec25     = new Pool("EC25", ec25Generator, EC25_POOL_SIZE, true);
+    this.dh3k     = new Pool("DH3K", dh3kGenerator, DH3K_POOL_SIZE, false);
+  }
+
+  public static EphemeralKeyPool getInstance() {
+    return instance;
+  }
+
+  /**
+   * Drops expired pairs and starts generating replacements in the background.  Called when a
+   * call starts, so the pairs are ready by the time signaling has connected.
+   */
+  public void prime() {
+    ec25.refill();
+    dh3k.refill();
+  }
+
+  /**
+   * @return a key pair of the given ZRTPSocket key agreement type that has never been handed
+   * out before.  Only blocks to generate one when none is ready.
+   */
+  public KeyPair take(int keyAgreementType) {
+    switch (keyAgreementType) {
+    case ZRTPSocket.KA_TYPE_EC25: return ec25.take();
+    case ZRTPSocket.KA_TYPE_DH3K: return dh3k.take();
+    default:                      throw new AssertionError("Unknown KA type: " + keyAgreementType);
+    }
+  }
+
+  synchronized int getReadyCount(int keyAgreementType) {
+    switch (keyAgreementType) {
+    case ZRTPSocket.KA_TYPE_EC25: return ec25.ready.size();
+    case ZRTPSocket.KA_TYPE_DH3K: return dh3k.ready.size();
+    default:                      throw new AssertionError("Unknown KA type: " + keyAgreementType);
+    }
+  }
+
+  static KeyPair generateDH3kKeyPair() {
+    try {
+      KeyPairGenerator kg    = KeyPairGenerator.getInstance("DH");
+      DHParameterSpec dhSpec = new DHParameterSpec(ZRTPSocket.PRIME, ZRTPSocket.GENERATOR);
+      kg.initialize(dhSpec);
+
+      return kg.generateKeyPair();
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new IllegalArgumentException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  static KeyPair generateEC25KeyPair() {
+    try {
+      KeyPairGenerator kg       = KeyPairGenerator.getInstance("ECDH", "SC");
+      ECGenParameterSpec ecSpec = new ECGenParameterSpec("secp256r1");
+      kg.initialize(ecSpec);
+
+      return kg.generateKeyPair();
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new AssertionError(nsae);
+    } catch (NoSuchProviderException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static class PooledKeyPair {
+    final KeyPair keyPair;
+    final long    created;
+
+    PooledKeyPair(KeyPair keyPair, long created) {
+      this.keyPair = keyPair;
+      this.created = created;
+    }
+  }
+
+  /**
+   * The ready pairs of one key agreement type.  Guarded by the EphemeralKeyPool's lock, which
+   * is never held while generating.
+   */
+  private class Pool implements Runnable {
+    private final Runnable evictor = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (EphemeralKeyPool.this) {
+          dropExpired();
+        }
+      }
+    };
+
+    private final String                    name;
+    private final Factory<KeyPair>          generator;
+    private final int                       size;
+    private final LinkedList<PooledKeyPair> ready = new LinkedList<PooledKeyPair>();
+
+    private boolean wanted;
+    private boolean refilling;
+
+    Pool(String name, Factory<KeyPair> generator, int size, boolean wanted) {
+      this.name      = name;
+      this.generator = generator;
+      this.size      = size;
+      this.wanted    = wanted;
+    }
+
+    KeyPair take() {
+      PooledKeyPair pooled;
+
+      synchronized (EphemeralKeyPool.this) {
+        wanted = true;
+        dropExpired();
+        pooled = ready.poll();
+      }
+
+      refill();
+
+      if (pooled != null) return pooled.keyPair;
+
+      Log.w(TAG, "No " + name + " key pair ready, generating one on the call thread");
+      return generator.getInstance();
+    }
+
+    void refill() {
+      synchronized (EphemeralKeyPool.this) {
+        dropExpired();
+        if (!wanted || refilling || ready.size() >= size) return;
+        refilling = true;
+      }
+
+      executor.execute(this);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        synchronized (EphemeralKeyPool.this) {
+          if (ready.size() >= size) {
+            refilling = false;
+            return;
+          }
+        }
+
+        KeyPair keyPair = null;
+
+        try {
+          keyPair = generator.getInstance();
+        } finally {
+          synchronized (EphemeralKeyPool.this) {
+            if (keyPair == null) {
+              refilling = false;
+            } else {
+              ready.add(new PooledKeyPair(keyPair, clock.currentTimeMillis()));
+              executor.schedule(evictor, MAX_AGE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+          }
+        }
+      }
+    }
+
+    private void dropExpired() {
+      long now = clock.currentTimeMillis();
+
+      while (!ready.isEmpty() && now - ready.peek().created >= MAX_AGE_MILLIS) {
+        ready.poll();
+      }
+    }
+  }
+}
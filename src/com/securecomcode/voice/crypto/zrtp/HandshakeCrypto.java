@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.crypto.zrtp;
+
+import org.spongycastle.jce.ECNamedCurveTable;
+import org.spongycastle.jce.spec.ECParameterSpec;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The hash, MAC, cipher and key agreement engines one ZRTP handshake uses,
+ * looked up the first time they're needed and reused from then on, rather
+ * than fetched from the provider for every packet MAC'd or verified.
+ *
+ * Engines are stateful, so an instance belongs to a single handshake and
+ * must only be used from the thread running it.
+ *
+ *
+ */
+
+public class HandshakeCrypto {
+
+  private static ECParameterSpec ec25Parameters;
+
+  private Mac           mac;
+  private MessageDigest digest;
+  private Cipher        confirmCipher;
+  private KeyFactory    ec25KeyFactory;
+  private KeyAgreement  ec25KeyAgreement;
+  private KeyFactory    dh3kKeyFactory;
+  private KeyAgreement  dh3kKeyAgreement;
+
+  /**
+   * @return HMAC-SHA256, keyed with key.
+   */
+  public Mac getMac(byte[] key) {
+    try {
+      if (mac == null)
+        mac = Mac.getInstance("HmacSHA256");
+
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * @return SHA-256, with nothing yet digested.
+   */
+  public MessageDigest getDigest() {
+    try {
+      if (digest == null)
+        digest = MessageDigest.getInstance("SHA-256");
+
+      digest.reset();
+      return digest;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return the AES-CFB cipher Confirm packets are encrypted with, ready for mode.
+   */
+  public Cipher getConfirmCipher(int mode, byte[] cipherKey, byte[] iv) {
+    try {
+      if (confirmCipher == null)
+        confirmCipher = Cipher.getInstance("AES/CFB/NoPadding");
+
+      confirmCipher.init(mode, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+      return confirmCipher;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      throw new IllegalArgumentException(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * @return the secp256r1 domain parameters.  They never change, so every
+   * handshake shares one copy.
+   */
+  public static synchronized ECParameterSpec getEC25Parameters() {
+    if (ec25Parameters == null)
+      ec25Parameters = ECNamedCurveTable.getParameterSpec("secp256r1");
+
+    return ec25Parameters;
+  }
+
+  public KeyFactory getEC25KeyFactory() {
+    try {
+      if (ec25KeyFactory == null)
+        ec25KeyFactory = KeyFactory.getInstance("ECDH", "SC");
+
+      return ec25KeyFactory;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchProviderException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public KeyAgreement getEC25KeyAgreement() {
+    try {
+      if (ec25KeyAgreement == null)
+        ec25KeyAgreement = KeyAgreement.getInstance("ECDH", "SC");
+
+      return ec25KeyAgreement;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchProviderException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public KeyFactory getDH3KKeyFactory() {
+    try {
+      if (dh3kKeyFactory == null)
+        dh3kKeyFactory = KeyFactory.getInstance("DH");
+
+      return dh3kKeyFactory;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public KeyAgreement getDH3KKeyAgreement() {
+    try {
+      if (dh3kKeyAgreement == null)
+        dh3kKeyAgreement = KeyAgreement.getInstance("DH");
+
+      return dh3kKeyAgreement;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Compares a MAC, hash or preimage we calculated with one we were sent, in
+   * time that depends only on their length, so a forger can't learn how many
+   * leading bytes of a guess were right.
+   */
+  public static boolean isEqual(byte[] expected, byte[] given) {
+    if (expected == null || given == null || expected.length != given.length)
+      return false;
+
+    int difference = 0;
+
+    for (int i=0;i<expected.length;i++) {
+      difference |= expected[i] ^ given[i];
+    }
+
+    return difference == 0;
+  }
+
+}
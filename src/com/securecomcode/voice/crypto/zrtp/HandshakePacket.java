@@ -25,14 +25,9 @@ import com.securecomcode.voice.util.Conversions;
 import com.securecomcode.voice.util.Hex;
 
 import java.io.UnsupportedEncodingException;
-import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.zip.CRC32;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Base ZRTP handshake packet, from which all
@@ -118,52 +113,41 @@ public class HandshakePacket extends RtpPacket {
     Conversions.shortToByteArray(this.data, LENGTH_OFFSET, length);
   }
 
-  private byte[] calculateMac(byte[] key, int messageLength) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
-      mac.update(this.data, getHeaderBugOffset() + MESSAGE_BASE, messageLength);
-      return mac.doFinal();
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    } catch (InvalidKeyException e) {
-      throw new IllegalArgumentException(e);
-    }
+  private byte[] calculateMac(HandshakeCrypto crypto, byte[] key, int messageLength) {
+    Mac mac = crypto.getMac(key);
+    mac.update(this.data, getHeaderBugOffset() + MESSAGE_BASE, messageLength);
+    return mac.doFinal();
   }
 
-  protected void setMac(byte[] key, int macOffset, int messageLength) {
-    byte[] digest = calculateMac(key, messageLength);
+  protected void setMac(HandshakeCrypto crypto, byte[] key, int macOffset, int messageLength) {
+    byte[] digest = calculateMac(crypto, key, messageLength);
     System.arraycopy(digest, 0, this.data, macOffset, 8);
 
     if (Release.DEBUG)
       Log.w("HandshakePacket", "Setting MAC: " + Hex.toString(digest));
   }
 
-  protected void verifyMac(byte[] key, int macOffset, int messageLength, byte[] subhash)
+  protected void verifyMac(HandshakeCrypto crypto, byte[] key, int macOffset,
+                           int messageLength, byte[] subhash)
       throws InvalidPacketException
   {
-    byte[] digest          = calculateMac(key, messageLength);
+    byte[] digest          = calculateMac(crypto, key, messageLength);
     byte[] truncatedDigest = new byte[8];
     byte[] messageDigest   = new byte[8];
 
     System.arraycopy(digest, 0, truncatedDigest, 0, truncatedDigest.length);
     System.arraycopy(this.data, macOffset, messageDigest, 0, messageDigest.length);
 
-    if (!Arrays.equals(truncatedDigest, messageDigest))
+    if (!HandshakeCrypto.isEqual(truncatedDigest, messageDigest))
       throw new InvalidPacketException("Bad MAC!");
 
-    if (!verifySubHash(key, subhash))
+    if (!verifySubHash(crypto, key, subhash))
       throw new InvalidPacketException("MAC key is not preimage of hash included in message!");
   }
 
-  private boolean verifySubHash(byte[] key, byte[] subhash) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      byte[] digest    = md.digest(key);
-      return Arrays.equals(digest, subhash);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    }
+  private boolean verifySubHash(HandshakeCrypto crypto, byte[] key, byte[] subhash) {
+    byte[] digest = crypto.getDigest().digest(key);
+    return HandshakeCrypto.isEqual(digest, subhash);
   }
 
   private long calculateCRC(byte[] data, int packetLength) {
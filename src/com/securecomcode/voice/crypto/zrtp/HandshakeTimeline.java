@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.crypto.zrtp;
+
+import com.securecomcode.voice.util.Clock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records where the time in one ZRTP handshake went: how long each state lasted, how long
+ * each packet took to be answered and how often it was resent, and how long the key
+ * agreement and hashing took.
+ *
+ * A slow setup with long round trips is the network, one with retransmits that were
+ * answered soon after is the retransmit timer, and one with long crypto times is the phone.
+ *
+ * Only the handshake thread records; the timeline is read once the handshake is over.
+ */
+public class HandshakeTimeline {
+
+  private final Clock clock;
+  private final long  start;
+
+  private final List<StateSpan>  states  = new ArrayList<StateSpan>();
+  private final List<RoundTrip> packets = new ArrayList<RoundTrip>();
+
+  private String outstandingType;
+  private long   outstandingSent;
+  private int    outstandingRetransmits;
+  private String lastReceivedType;
+  private long   lastReceivedTime;
+
+  private long firstHello = -1;
+  private int  retransmits;
+  private long keyPairNanos;
+  private long keyAgreementNanos;
+  private long hashNanos;
+  private long smoothedRoundTrip = -1;
+  private long finished = -1;
+
+  public HandshakeTimeline(Clock clock) {
+    this.clock = clock;
+    this.start = clock.uptimeMillis();
+  }
+
+  public void enterState(String state) {
+    long now = getElapsed();
+
+    if (!states.isEmpty()) states.get(states.size() - 1).exit = now;
+    states.add(new StateSpan(state, now));
+
+    if (outstandingType != null && lastReceivedType != null) {
+      packets.add(new RoundTrip(outstandingType.trim(), lastReceivedType.trim(),
+                                lastReceivedTime - outstandingSent, outstandingRetransmits));
+      outstandingType = null;
+    }
+  }
+
+  public void packetSent(String type, boolean retransmit) {
+    long now = getElapsed();
+
+    if (retransmit) {
+      retransmits++;
+      outstandingRetransmits++;
+      return;
+    }
+
+    if (firstHello == -1 && HelloPacket.TYPE.equals(type)) firstHello = now;
+
+    outstandingType        = type;
+    outstandingSent        = now;
+    outstandingRetransmits = 0;
+  }
+
+  public void packetReceived(String type) {
+    lastReceivedType = type;
+    lastReceivedTime = getElapsed();
+  }
+
+  public void setSmoothedRoundTrip(long millis) {
+    smoothedRoundTrip = millis;
+  }
+
+  public void addKeyPairTime(long nanos) {
+    keyPairNanos += nanos;
+  }
+
+  public void addKeyAgreementTime(long nanos) {
+    keyAgreementNanos += nanos;
+  }
+
+  public void addHashTime(long nanos) {
+    hashNanos += nanos;
+  }
+
+  /**
+   * Closes the last state.  Called once, when the handshake completes or is abandoned.
+   */
+  public void finish() {
+    if (finished != -1) return;
+
+    finished = getElapsed();
+    if (!states.isEmpty()) states.get(states.size() - 1).exit = finished;
+  }
+
+  /**
+   * @return milliseconds from the start of the handshake to the first Hello going out, or -1.
+   */
+  public long getMillisToFirstHello() {
+    return firstHello;
+  }
+
+  public int getRetransmits() {
+    return retransmits;
+  }
+
+  public boolean isComplete() {
+    return !states.isEmpty() &&
+           states.get(states.size() - 1).state.equals(ZRTPSocket.getStateName(ZRTPSocket.HANDSHAKE_COMPLETE));
+  }
+
+  public Map<String, Object> toMap() {
+    List<Map<String, Object>> stateList  = new ArrayList<Map<String, Object>>(states.size());
+    List<Map<String, Object>> packetList = new ArrayList<Map<String, Object>>(packets.size());
+
+    for (StateSpan span : states) {
+      Map<String, Object> state = new HashMap<String, Object>(3);
+      state.put("state", span.state);
+      state.put("enter-ms", span.enter);
+      state.put("ms", span.exit == -1 ? -1 : span.exit - span.enter);
+      stateList.add(state);
+    }
+
+    for (RoundTrip trip : packets) {
+      Map<String, Object> packet = new HashMap<String, Object>(4);
+      packet.put("sent", trip.sent);
+      packet.put("answer", trip.answer);
+      packet.put("rtt-ms", trip.millis);
+      packet.put("retransmits", trip.retransmits);
+      packetList.add(packet);
+    }
+
+    Map<String, Object> result = new HashMap<String, Object>(10);
+    result.put("complete", isComplete());
+    result.put("total-ms", finished);
+    result.put("first-hello-ms", firstHello);
+    result.put("retransmits", retransmits);
+    result.put("srtt-ms", smoothedRoundTrip);
+    result.put("key-pair-us", keyPairNanos / 1000);
+    result.put("key-agreement-us", keyAgreementNanos / 1000);
+    result.put("hash-us", hashNanos / 1000);
+    result.put("states", stateList);
+    result.put("packets", packetList);
+
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+
+    builder.append(isComplete() ? "Complete" : "Incomplete").append(" in ").append(finished)
+           .append("ms, first Hello at ").append(firstHello).append("ms, ")
+           .append(retransmits).append(" retransmits, smoothed round trip ")
+           .append(smoothedRoundTrip).append("ms\n");
+    builder.append("Key pair ").append(keyPairNanos / 1000).append("us, key agreement ")
+           .append(keyAgreementNanos / 1000).append("us, hashing ")
+           .append(hashNanos / 1000).append("us\n");
+
+    for (StateSpan span : states) {
+      builder.append(span.enter).append("ms ").append(span.state);
+      if (span.exit != -1) builder.append(" (").append(span.exit - span.enter).append("ms)");
+      builder.append('\n');
+    }
+
+    for (RoundTrip trip : packets) {
+      builder.append(trip.sent).append(" -> ").append(trip.answer).append(": ")
+             .append(trip.millis).append("ms");
+      if (trip.retransmits > 0) builder.append(", resent ").append(trip.retransmits).append("x");
+      builder.append('\n');
+    }
+
+    return builder.toString();
+  }
+
+  private long getElapsed() {
+    return clock.uptimeMillis() - start;
+  }
+
+  private static class StateSpan {
+    final String state;
+    final long   enter;
+    long         exit = -1;
+
+    StateSpan(String state, long enter) {
+      this.state = state;
+      this.enter = enter;
+    }
+  }
+
+  /**
+   * A packet and the one that answered it.  When the packet was resent, the time is from the
+   * first send, so it includes the retransmit timer as well as the network.
+   */
+  private static class RoundTrip {
+    final String sent;
+    final String answer;
+    final long   millis;
+    final int    retransmits;
+
+    RoundTrip(String sent, String answer, long millis, int retransmits) {
+      this.sent        = sent;
+      this.answer      = answer;
+      this.millis      = millis;
+      this.retransmits = retransmits;
+    }
+  }
+}
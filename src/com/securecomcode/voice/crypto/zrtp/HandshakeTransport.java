@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.crypto.zrtp;
+
+import java.io.IOException;
+
+/**
+ * Where a ZRTPSocket sends and receives its handshake packets.  On a call this is the
+ * SecureRtpSocket the audio will use afterwards.
+ */
+public interface HandshakeTransport {
+
+  public void send(HandshakePacket packet) throws IOException;
+
+  /**
+   * Waits up to the timeout for a packet.
+   *
+   * @return the packet, or null if none arrived or its CRC was wrong and verifyCRC was set.
+   */
+  public HandshakePacket receiveHandshakePacket(boolean verifyCRC) throws IOException;
+
+  public void setTimeout(int timeoutMillis);
+
+  public void close();
+}
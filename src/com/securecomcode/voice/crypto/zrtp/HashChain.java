@@ -34,11 +34,11 @@ public class HashChain {
   private byte[] h2;
   private byte[] h3;
 
-  public HashChain() {
+  public HashChain(HandshakeCrypto crypto) {
     try {
       SecureRandom.getInstance("SHA1PRNG").nextBytes(h0);
 
-      MessageDigest md = MessageDigest.getInstance("SHA256");
+      MessageDigest md = crypto.getDigest();
       h1               = md.digest(h0);
       h2               = md.digest(h1);
       h3               = md.digest(h2);
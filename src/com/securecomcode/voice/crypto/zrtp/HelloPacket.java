@@ -42,7 +42,6 @@ public class HelloPacket extends HandshakePacket {
   }};
 
   private static final int HELLO_MIN_LENGTH       = 88;
-  private static final int OPTIONAL_VALUES_LENGTH = KEY_AGREEMENTS.size() * 4;
 
   private static final int MAGIC_LENGTH   = 2;
   private static final int LENGTH_LENGTH  = 2;
@@ -95,17 +94,28 @@ public class HelloPacket extends HandshakePacket {
     fixOffsetsForHeaderBug();
   }
 
-  public HelloPacket(HashChain hashChain, byte[] zid, boolean includeLegacyHeaderBug) {
-    super(TYPE, HELLO_MIN_LENGTH + OPTIONAL_VALUES_LENGTH, includeLegacyHeaderBug);
+  public HelloPacket(HandshakeCrypto crypto, HashChain hashChain, byte[] zid,
+                     boolean includeLegacyHeaderBug)
+  {
+    this(crypto, hashChain, zid, includeLegacyHeaderBug, getLocalClientId(), KEY_AGREEMENTS);
+  }
+
+  /**
+   * A Hello as another client version would send it, for tests.
+   */
+  HelloPacket(HandshakeCrypto crypto, HashChain hashChain, byte[] zid,
+              boolean includeLegacyHeaderBug, String clientId, List<byte[]> keyAgreements)
+  {
+    super(TYPE, HELLO_MIN_LENGTH + keyAgreements.size() * 4, includeLegacyHeaderBug);
     fixOffsetsForHeaderBug();
     setZrtpVersion();
-    setClientId();
+    setClientId(clientId);
     setH3(hashChain.getH3());
     setZID(zid);
-    setKeyAgreement();
-    setMac(hashChain.getH2(),
-           OPTIONS_OFFSET + OPTIONAL_VALUES_LENGTH,
-           HELLO_MIN_LENGTH + OPTIONAL_VALUES_LENGTH - MAC_LENGTH);
+    setKeyAgreement(keyAgreements);
+    setMac(crypto, hashChain.getH2(),
+           OPTIONS_OFFSET + keyAgreements.size() * 4,
+           HELLO_MIN_LENGTH + keyAgreements.size() * 4 - MAC_LENGTH);
   }
 
   public int getLength() {
@@ -125,11 +135,11 @@ public class HelloPacket extends HandshakePacket {
     return hashValue;
   }
 
-  public void verifyMac(byte[] key) throws InvalidPacketException {
+  public void verifyMac(HandshakeCrypto crypto, byte[] key) throws InvalidPacketException {
     if (getLength() < HELLO_MIN_LENGTH)
       throw new InvalidPacketException("Encoded length longer than data length.");
 
-    super.verifyMac(key,
+    super.verifyMac(crypto, key,
                     OPTIONS_OFFSET + getOptionsLength(),
                     getMessageLength() - MAC_LENGTH,
                     getH3());
@@ -208,8 +218,16 @@ public class HelloPacket extends HandshakePacket {
     "1.10".getBytes(0, 4, this.data, VERSION_OFFSET);
   }
 
-  private void setClientId() {
-    "RedPhone 024    ".getBytes(0, 16, this.data, CLIENT_OFFSET);
+  // From 029 the codecs and features this client supports follow the version, as a hex
+  // RedPhoneClientId capability mask.
+  private static String getLocalClientId() {
+    return String.format("RedPhone 029 %03X", RedPhoneClientId.getLocalCapabilities());
+  }
+
+  private void setClientId(String clientId) {
+    byte[] padded = "                ".getBytes();
+    clientId.getBytes(0, Math.min(clientId.length(), CLIENT_LENGTH), padded, 0);
+    System.arraycopy(padded, 0, this.data, CLIENT_OFFSET, CLIENT_LENGTH);
   }
 
   public String getClientId() {
@@ -224,9 +242,9 @@ public class HelloPacket extends HandshakePacket {
     System.arraycopy(zid, 0, this.data, ZID_OFFSET, zid.length);
   }
 
-  private void setKeyAgreement() {
-    setKeyAgreementOptionsCount(KEY_AGREEMENTS.size());
-    setKeyAgreementOptions(KEY_AGREEMENTS);
+  private void setKeyAgreement(List<byte[]> keyAgreements) {
+    setKeyAgreementOptionsCount(keyAgreements.size());
+    setKeyAgreementOptions(keyAgreements);
   }
 
   private void fixOffsetsForHeaderBug() {
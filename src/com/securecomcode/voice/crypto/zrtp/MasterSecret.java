@@ -19,11 +19,7 @@ package com.securecomcode.voice.crypto.zrtp;
 
 import com.securecomcode.voice.util.Conversions;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Class that represents the ZRTP master secret.
@@ -51,27 +47,29 @@ public class MasterSecret {
   private byte[] sas;
   private byte[] rs1;
 
-  public MasterSecret(byte[] sharedSecret, byte[] totalHash, byte[] zidi, byte[] zidr) {
+  public MasterSecret(HandshakeCrypto crypto, byte[] sharedSecret, byte[] totalHash,
+                      byte[] zidi, byte[] zidr)
+  {
     this.zidi         = zidi;
     this.zidr         = zidr;
     this.totalHash    = totalHash;
     this.sharedSecret = sharedSecret;
     this.counter      = Conversions.intToByteArray(1);
 
-    this.srtpKeyI  = calculateKDF("Initiator SRTP master key", 16);
-    this.srtpKeyR  = calculateKDF("Responder SRTP master key", 16);
-    this.srtpSaltI = calculateKDF("Initiator SRTP master salt", 14);
-    this.srtpSaltR = calculateKDF("Responder SRTP master salt", 14);
+    this.srtpKeyI  = calculateKDF(crypto, "Initiator SRTP master key", 16);
+    this.srtpKeyR  = calculateKDF(crypto, "Responder SRTP master key", 16);
+    this.srtpSaltI = calculateKDF(crypto, "Initiator SRTP master salt", 14);
+    this.srtpSaltR = calculateKDF(crypto, "Responder SRTP master salt", 14);
 
-    this.macI      = calculateKDF("Initiator HMAC key", 20);
-    this.macR      = calculateKDF("Responder HMAC key", 20);
+    this.macI      = calculateKDF(crypto, "Initiator HMAC key", 20);
+    this.macR      = calculateKDF(crypto, "Responder HMAC key", 20);
 
-    this.zrtpKeyI  = calculateKDF("Initiator ZRTP key", 16);
-    this.zrtpKeyR  = calculateKDF("Responder ZRTP key", 16);
+    this.zrtpKeyI  = calculateKDF(crypto, "Initiator ZRTP key", 16);
+    this.zrtpKeyR  = calculateKDF(crypto, "Responder ZRTP key", 16);
 
-    this.sas       = calculateKDF("SAS", 4);
+    this.sas       = calculateKDF(crypto, "SAS", 4);
 
-    this.rs1       = calculateKDF("retained secret", 32);
+    this.rs1       = calculateKDF(crypto, "retained secret", 32);
   }
 
   public byte[] getSAS() {
@@ -114,32 +112,25 @@ public class MasterSecret {
     return rs1;
   }
 
-  private byte[] calculateKDF(String label, int truncatedLength) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(this.sharedSecret, "HmacSHA256"));
-
-      mac.update(counter);
-      mac.update(label.getBytes());
-      mac.update((byte)0x00);
-      mac.update(zidi);
-      mac.update(zidr);
-      mac.update(totalHash);
-      mac.update(Conversions.intToByteArray(truncatedLength));
-
-      byte[] digest = mac.doFinal();
-
-      if (digest.length == truncatedLength)
-        return digest;
-
-      byte[] truncated = new byte[truncatedLength];
-      System.arraycopy(digest, 0, truncated, 0, truncated.length);
-      return truncated;
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    } catch (InvalidKeyException e) {
-      throw new IllegalArgumentException(e);
-    }
+  private byte[] calculateKDF(HandshakeCrypto crypto, String label, int truncatedLength) {
+    Mac mac = crypto.getMac(this.sharedSecret);
+
+    mac.update(counter);
+    mac.update(label.getBytes());
+    mac.update((byte)0x00);
+    mac.update(zidi);
+    mac.update(zidr);
+    mac.update(totalHash);
+    mac.update(Conversions.intToByteArray(truncatedLength));
+
+    byte[] digest = mac.doFinal();
+
+    if (digest.length == truncatedLength)
+      return digest;
+
+    byte[] truncated = new byte[truncatedLength];
+    System.arraycopy(digest, 0, truncated, 0, truncated.length);
+    return truncated;
   }
 
 }
@@ -2,10 +2,32 @@ package com.securecomcode.voice.crypto.zrtp;
 
 import android.util.Log;
 
+import com.securecomcode.voice.codec.CodecRegistry;
+
+/**
+ * The version and capabilities a peer announced in the client id of its ZRTP Hello.
+ *
+ * From version 029 the client id ends in a hex capability mask.  The low byte holds the
+ * {@link CodecRegistry} bits of the codecs the peer plays, and the bits above it the call
+ * features the peer supports.  Features are turned on from those bits alone.  Older peers
+ * send no mask, and play only narrowband Speex with none of the features.
+ */
 public class RedPhoneClientId {
 
+  public static final int CODECS                     = 0x0FF;
+  public static final int DISCONTINUOUS_TRANSMISSION = 0x100;
+  public static final int ADAPTIVE_PACKETIZATION     = 0x200;
+  public static final int FORWARD_ERROR_CORRECTION   = 0x400;
+
+  private static final int MASK_VERSION = 29;
+
+  private static final int LOCAL_FEATURES = DISCONTINUOUS_TRANSMISSION |
+                                            ADAPTIVE_PACKETIZATION     |
+                                            FORWARD_ERROR_CORRECTION;
+
   private boolean isRedphoneClient;
   private int     clientIdInteger;
+  private int     capabilities = -1;
 
   public RedPhoneClientId(String clientId) {
     String[] clientIdParts = clientId.split(" ");
@@ -28,6 +50,14 @@ public class RedPhoneClientId {
     }
 
     this.isRedphoneClient = true;
+
+    if (clientIdParts.length > 2 && this.clientIdInteger >= MASK_VERSION) {
+      try {
+        this.capabilities = Integer.parseInt(clientIdParts[2].trim(), 16);
+      } catch (NumberFormatException nfe) {
+        Log.w("RedPhoneClientId", nfe);
+      }
+    }
   }
 
   public boolean isImplicitDh3kVersion() {
@@ -37,4 +67,36 @@ public class RedPhoneClientId {
   public boolean isLegacyConfirmConnectionVersion() {
     return this.isRedphoneClient && this.clientIdInteger < 24;
   }
+
+  public boolean supportsDiscontinuousTransmission() {
+    return supports(DISCONTINUOUS_TRANSMISSION);
+  }
+
+  public boolean supportsAdaptivePacketization() {
+    return supports(ADAPTIVE_PACKETIZATION);
+  }
+
+  public boolean supportsForwardErrorCorrection() {
+    return supports(FORWARD_ERROR_CORRECTION);
+  }
+
+  /**
+   * @return the codecs the client advertised, as a {@link CodecRegistry} mask, or the
+   * fallback codec if it advertised none.
+   */
+  public int getCodecCapabilities() {
+    if (this.capabilities >= 0) return this.capabilities & CODECS;
+    return CodecRegistry.getFallbackCapabilities();
+  }
+
+  /**
+   * @return the capability mask this client advertises.
+   */
+  public static int getLocalCapabilities() {
+    return CodecRegistry.getLocalCapabilities() | LOCAL_FEATURES;
+  }
+
+  private boolean supports(int feature) {
+    return this.isRedphoneClient && this.capabilities >= 0 && (this.capabilities & feature) != 0;
+  }
 }
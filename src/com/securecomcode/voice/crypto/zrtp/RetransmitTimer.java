@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.crypto.zrtp;
+
+/**
+ * Decides how long the handshake waits for an answer before resending a packet, from the
+ * round trips it has measured, in the manner of TCP's retransmission timer (RFC 6298).
+ *
+ * Until anything is known the timeout is the old fixed 150ms.  A round trip measured during
+ * signaling can seed the estimate, which the first round trip measured on the call's own path
+ * then replaces.  After that each measurement is smoothed in.
+ *
+ * The first retransmit of each packet never waits longer than the old fixed 150ms.  A seeded
+ * estimate is only a guess, and on a slow path that early copy is what recovers a lost packet
+ * quickly.  Later waits are the longer of two schedules: the first timeout doubling with each
+ * retransmit, and the estimate itself before the second retransmit, doubling after that.
+ * This skips the copies the fixed timer sent while the answer was still on its way.  Each new
+ * packet starts again from the first timeout, as the fixed timer did.  With nothing measured
+ * this is the fixed timer exactly.
+ *
+ * Round trips to resent packets are never measured, since the answer could be to either send
+ * (Karn's rule); callers only report samples for packets sent once.
+ *
+ * A handshake measures only three or four round trips, too few for RFC 6298's first
+ * variance of half the round trip to settle, so the first variance here is a quarter of it.
+ */
+public class RetransmitTimer {
+
+  static final int INITIAL_TIMEOUT_MILLIS = 150;
+  static final int MIN_TIMEOUT_MILLIS     = 50;
+  static final int MAX_TIMEOUT_MILLIS     = 1500;
+
+  private static final int    GRANULARITY_MILLIS = 10;
+  private static final double ALPHA              = 1.0 / 8;
+  private static final double BETA               = 1.0 / 4;
+
+  private double  smoothedRoundTrip = -1;
+  private double  roundTripVariance;
+  private boolean seeded;
+  private int     timeout = INITIAL_TIMEOUT_MILLIS;
+  private int     backoffs;
+
+  /**
+   * Starts from a round trip measured on another path, such as to the signaling server.
+   * Ignored once a round trip has been measured on the call's own path.
+   */
+  public void seed(long roundTripMillis) {
+    if (roundTripMillis <= 0 || (smoothedRoundTrip >= 0 && !seeded)) return;
+
+    initialize(roundTripMillis);
+    seeded = true;
+  }
+
+  public void addSample(long roundTripMillis) {
+    if (smoothedRoundTrip < 0 || seeded) {
+      initialize(roundTripMillis);
+      seeded = false;
+    } else {
+      roundTripVariance = (1 - BETA) * roundTripVariance +
+                          BETA * Math.abs(smoothedRoundTrip - roundTripMillis);
+      smoothedRoundTrip = (1 - ALPHA) * smoothedRoundTrip + ALPHA * roundTripMillis;
+      updateTimeout();
+    }
+
+    backoffs = 0;
+  }
+
+  public void resetBackoff() {
+    backoffs = 0;
+  }
+
+  public void backOff() {
+    if (getTimeout() < MAX_TIMEOUT_MILLIS) backoffs++;
+  }
+
+  /**
+   * @return how long to wait for an answer after the latest send of the current packet.
+   */
+  public int getTimeout() {
+    long first = Math.min(timeout, INITIAL_TIMEOUT_MILLIS);
+
+    if (backoffs == 0) return (int)first;
+
+    return (int)Math.min(MAX_TIMEOUT_MILLIS,
+                         Math.max(first << backoffs, (long)timeout << (backoffs - 1)));
+  }
+
+  /**
+   * @return the retransmit timeout the round trip estimate alone gives, before backoff.
+   */
+  public int getRoundTripTimeout() {
+    return timeout;
+  }
+
+  /**
+   * @return the smoothed round trip in milliseconds, or -1 if none is known.
+   */
+  public long getSmoothedRoundTrip() {
+    return Math.round(smoothedRoundTrip);
+  }
+
+  private void initialize(long roundTripMillis) {
+    smoothedRoundTrip = roundTripMillis;
+    roundTripVariance = roundTripMillis / 4.0;
+    updateTimeout();
+  }
+
+  private void updateTimeout() {
+    double rto = smoothedRoundTrip + Math.max(GRANULARITY_MILLIS, 4 * roundTripVariance);
+    timeout    = (int)Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, Math.round(rto)));
+  }
+}
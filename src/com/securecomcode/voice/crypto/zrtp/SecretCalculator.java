@@ -21,7 +21,6 @@ import com.securecomcode.voice.util.Conversions;
 
 import java.security.KeyPair;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * Calculates a shared secret based on the DH parts.
@@ -34,49 +33,47 @@ import java.security.NoSuchAlgorithmException;
  */
 public abstract class SecretCalculator {
 
+  protected final HandshakeCrypto crypto;
+
+  public SecretCalculator(HandshakeCrypto crypto) {
+    this.crypto = crypto;
+  }
+
   public byte[] calculateSharedSecret(byte[] dhResult, byte[] totalHash, byte[] s1,
                                       byte[] zidi, byte[] zidr)
   {
-    try {
-      byte[] counter  = Conversions.intToByteArray(1);
-      byte[] s1Length = Conversions.intToByteArray(s1 == null ? 0 : s1.length);
-      byte[] s2Length = Conversions.intToByteArray(0);
-      byte[] s3Length = Conversions.intToByteArray(0);
+    byte[] counter  = Conversions.intToByteArray(1);
+    byte[] s1Length = Conversions.intToByteArray(s1 == null ? 0 : s1.length);
+    byte[] s2Length = Conversions.intToByteArray(0);
+    byte[] s3Length = Conversions.intToByteArray(0);
 
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      md.update(counter);
-      md.update(dhResult);
-      md.update("ZRTP-HMAC-KDF".getBytes());
-      md.update(zidi);
-      md.update(zidr);
-      md.update(totalHash);
-      md.update(s1Length);
-      if (s1 != null) {
-        md.update(s1);
-      }
-      md.update(s2Length);
-      md.update(s3Length);
-
-      return md.digest();
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
+    MessageDigest md = crypto.getDigest();
+    md.update(counter);
+    md.update(dhResult);
+    md.update("ZRTP-HMAC-KDF".getBytes());
+    md.update(zidi);
+    md.update(zidr);
+    md.update(totalHash);
+    md.update(s1Length);
+    if (s1 != null) {
+      md.update(s1);
     }
+    md.update(s2Length);
+    md.update(s3Length);
+
+    return md.digest();
   }
 
   public byte[] calculateTotalHash(HelloPacket responderHello, CommitPacket commit,
                                    DHPartOnePacket dhPartOne, DHPartTwoPacket dhPartTwo)
     throws InvalidPacketException
   {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      md.update(responderHello.getMessageBytes());
-      md.update(commit.getMessageBytes());
-      md.update(dhPartOne.getMessageBytes());
-      md.update(dhPartTwo.getMessageBytes());
-      return md.digest();
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    }
+    MessageDigest md = crypto.getDigest();
+    md.update(responderHello.getMessageBytes());
+    md.update(commit.getMessageBytes());
+    md.update(dhPartOne.getMessageBytes());
+    md.update(dhPartTwo.getMessageBytes());
+    return md.digest();
   }
 
   public abstract byte[] calculateKeyAgreement(KeyPair localKey, byte[] publicKeyBytes);
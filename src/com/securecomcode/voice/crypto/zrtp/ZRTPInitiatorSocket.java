@@ -26,9 +26,9 @@ import com.securecomcode.voice.crypto.zrtp.retained.InitiatorRetainedSecretsCalc
 import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecrets;
 import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsCalculator;
 import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsDerivatives;
+import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsStore;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.KeyPair;
 
 /**
  * The "initiator" side of a ZRTP handshake.  This side just hangs out and waits
@@ -59,6 +59,13 @@ public class ZRTPInitiatorSocket extends ZRTPSocket {
     this.includeLegacyHeaderBug = false;
   }
 
+  public ZRTPInitiatorSocket(RetainedSecretsStore retainedSecretsStore, HandshakeTransport socket,
+                             byte[] localZid, String foreignNumber)
+  {
+    super(retainedSecretsStore, socket, localZid, foreignNumber, EXPECTING_HELLO);
+    this.includeLegacyHeaderBug = false;
+  }
+
   @Override
   protected void handleCommit(HandshakePacket packet) {
     throw new AssertionError("Invalid state!");
@@ -80,14 +87,14 @@ public class ZRTPInitiatorSocket extends ZRTPSocket {
   protected void handleConfirmOne(HandshakePacket packet) throws InvalidPacketException {
     confirmPacket = new ConfirmOnePacket(packet, isLegacyConfirmConnection());
 
-    confirmPacket.verifyMac(masterSecret.getResponderMacKey());
-    confirmPacket.decrypt(masterSecret.getResponderZrtpKey());
+    confirmPacket.verifyMac(crypto, masterSecret.getResponderMacKey());
+    confirmPacket.decrypt(crypto, masterSecret.getResponderZrtpKey());
 
     byte[] preimage = confirmPacket.getPreimage();
-    foreignDH.verifyMac(preimage);
+    foreignDH.verifyMac(crypto, preimage);
 
     setState(EXPECTING_CONFIRM_ACK);
-    sendFreshPacket(new ConfirmTwoPacket(masterSecret.getInitiatorMacKey(),
+    sendFreshPacket(new ConfirmTwoPacket(crypto, masterSecret.getInitiatorMacKey(),
                                          masterSecret.getInitiatorZrtpKey(),
                                          this.hashChain, isLegacyConfirmConnection(),
                                          includeLegacyHeaderBug));
@@ -107,11 +114,11 @@ public class ZRTPInitiatorSocket extends ZRTPSocket {
     switch (getKeyAgreementType()) {
     case KA_TYPE_EC25:
       foreignDH  = new EC25DHPartOnePacket(packet, true);
-      calculator = new EC25SecretCalculator();
+      calculator = new EC25SecretCalculator(crypto);
       break;
     case KA_TYPE_DH3K:
       foreignDH  = new DH3KDHPartOnePacket(packet, true);
-      calculator = new DH3KSecretCalculator();
+      calculator = new DH3KSecretCalculator(crypto);
       break;
     default:
       throw new AssertionError("Unknown KA type: " + getKeyAgreementType());
@@ -121,11 +128,16 @@ public class ZRTPInitiatorSocket extends ZRTPSocket {
       Log.w("ZRTPInitiatorSocket", "Got DH part 1...");
 
     byte[] h1 = foreignDH.getHash();
-    byte[] h2 = calculateH2(h1);
+    byte[] h2 = crypto.getDigest().digest(h1);
 
-    foreignHello.verifyMac(h2);
+    foreignHello.verifyMac(crypto, h2);
 
-    byte[] dhResult     = calculator.calculateKeyAgreement(getKeyPair(), foreignDH.getPvr());
+    KeyPair keyPair     = getKeyPair();
+    long    start       = System.nanoTime();
+    byte[] dhResult     = calculator.calculateKeyAgreement(keyPair, foreignDH.getPvr());
+
+    timeline.addKeyAgreementTime(System.nanoTime() - start);
+    start               = System.nanoTime();
 
     byte[] totalHash    = calculator.calculateTotalHash(foreignHello, commitPacket,
                                                         foreignDH, localDH);
@@ -137,9 +149,11 @@ public class ZRTPInitiatorSocket extends ZRTPSocket {
                                                            localHello.getZID(),
                                                            foreignHello.getZID());
 
-    this.masterSecret   = new MasterSecret(sharedSecret, totalHash, localHello.getZID(),
+    this.masterSecret   = new MasterSecret(crypto, sharedSecret, totalHash, localHello.getZID(),
                                            foreignHello.getZID());
 
+    timeline.addHashTime(System.nanoTime() - start);
+
     setState(EXPECTING_CONFIRM_ONE);
     sendFreshPacket(localDH);
   }
@@ -152,14 +166,14 @@ public class ZRTPInitiatorSocket extends ZRTPSocket {
 
     switch (getKeyAgreementType()) {
     case KA_TYPE_EC25:
-      localDH = new EC25DHPartTwoPacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug);
+      localDH = new EC25DHPartTwoPacket(crypto, hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug);
       break;
     case KA_TYPE_DH3K:
-      localDH = new DH3KDHPartTwoPacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug);
+      localDH = new DH3KDHPartTwoPacket(crypto, hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug);
       break;
     }
 
-    commitPacket = new CommitPacket(hashChain, foreignHello.getMessageBytes(), localDH, localZid, includeLegacyHeaderBug);
+    commitPacket = new CommitPacket(crypto, hashChain, foreignHello.getMessageBytes(), localDH, localZid, includeLegacyHeaderBug);
 
     setState(EXPECTING_DH_1);
     sendFreshPacket(commitPacket);
@@ -169,21 +183,12 @@ public class ZRTPInitiatorSocket extends ZRTPSocket {
   protected void handleHello(HandshakePacket packet) throws InvalidPacketException {
     foreignHello           = new HelloPacket(packet, true);
     includeLegacyHeaderBug = foreignHello.isLegacyHeaderBugPresent();
-    localHello             = new HelloPacket(hashChain, localZid, includeLegacyHeaderBug);
+    localHello             = createLocalHello(includeLegacyHeaderBug);
 
     setState(EXPECTING_HELLO_ACK);
     sendFreshPacket(localHello);
   }
 
-  private byte[] calculateH2(byte[] h1) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      return md.digest(h1);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    }
-  }
-
   @Override
   public void negotiateStart() throws NegotiationFailedException {
     super.negotiateStart();
@@ -25,6 +25,9 @@ import com.securecomcode.voice.crypto.zrtp.retained.ResponderRetainedSecretsCalc
 import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecrets;
 import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsCalculator;
 import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsDerivatives;
+import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsStore;
+
+import java.security.KeyPair;
 
 /**
  * The "responder" side of a ZRTP handshake.  We've received a signal from the
@@ -53,7 +56,16 @@ public class ZRTPResponderSocket extends ZRTPSocket {
     super(context, socket, localZid, foreignNumber, EXPECTING_HELLO);
     Log.w("ZRTPResponderSocket", "includeLegacyHeaderBug: " + includeLegacyHeaderBug);
     this.includeLegacyHeaderBug = includeLegacyHeaderBug;
-    this.localHello             = new HelloPacket(hashChain, localZid, includeLegacyHeaderBug);
+    this.localHello             = createLocalHello(includeLegacyHeaderBug);
+  }
+
+  public ZRTPResponderSocket(RetainedSecretsStore retainedSecretsStore, HandshakeTransport socket,
+                             byte[] localZid, String foreignNumber,
+                             boolean includeLegacyHeaderBug)
+  {
+    super(retainedSecretsStore, socket, localZid, foreignNumber, EXPECTING_HELLO);
+    this.includeLegacyHeaderBug = includeLegacyHeaderBug;
+    this.localHello             = createLocalHello(includeLegacyHeaderBug);
   }
 
   @Override
@@ -73,11 +85,11 @@ public class ZRTPResponderSocket extends ZRTPSocket {
     RetainedSecretsDerivatives derivatives = retainedSecretsCalculator.getRetainedSecretsDerivatives();
 
     switch (getKeyAgreementType()) {
-    case KA_TYPE_EC25: localDH = new EC25DHPartOnePacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug); break;
-    case KA_TYPE_DH3K: localDH = new DH3KDHPartOnePacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug); break;
+    case KA_TYPE_EC25: localDH = new EC25DHPartOnePacket(crypto, hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug); break;
+    case KA_TYPE_DH3K: localDH = new DH3KDHPartOnePacket(crypto, hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug); break;
     }
 
-    foreignHello.verifyMac(foreignCommit.getHash());
+    foreignHello.verifyMac(crypto, foreignCommit.getHash());
 
     setState(EXPECTING_DH_2);
     sendFreshPacket(localDH);
@@ -90,20 +102,25 @@ public class ZRTPResponderSocket extends ZRTPSocket {
     switch (getKeyAgreementType()) {
     case KA_TYPE_EC25:
       foreignDH  = new EC25DHPartTwoPacket(packet, true);
-      calculator = new EC25SecretCalculator();
+      calculator = new EC25SecretCalculator(crypto);
       break;
     case KA_TYPE_DH3K:
       foreignDH  = new DH3KDHPartTwoPacket(packet, true);
-      calculator = new DH3KSecretCalculator();
+      calculator = new DH3KSecretCalculator(crypto);
       break;
     default:
       throw new AssertionError("Unknown KA type: " + getKeyAgreementType());
     }
 
-    foreignCommit.verifyMac(foreignDH.getHash());
-    foreignCommit.verifyHvi(localHello.getMessageBytes(), foreignDH.getMessageBytes());
+    foreignCommit.verifyMac(crypto, foreignDH.getHash());
+    foreignCommit.verifyHvi(crypto, localHello.getMessageBytes(), foreignDH.getMessageBytes());
 
-    byte[] dhResult     = calculator.calculateKeyAgreement(getKeyPair(), foreignDH.getPvr());
+    KeyPair keyPair     = getKeyPair();
+    long    start       = System.nanoTime();
+    byte[] dhResult     = calculator.calculateKeyAgreement(keyPair, foreignDH.getPvr());
+
+    timeline.addKeyAgreementTime(System.nanoTime() - start);
+    start               = System.nanoTime();
 
     byte[] totalHash    = calculator.calculateTotalHash(localHello, foreignCommit,
                                                         localDH, foreignDH);
@@ -115,11 +132,13 @@ public class ZRTPResponderSocket extends ZRTPSocket {
                                                            foreignHello.getZID(),
                                                            localHello.getZID());
 
-    this.masterSecret   = new MasterSecret(sharedSecret, totalHash, foreignHello.getZID(),
+    this.masterSecret   = new MasterSecret(crypto, sharedSecret, totalHash, foreignHello.getZID(),
                                            localHello.getZID());
 
+    timeline.addHashTime(System.nanoTime() - start);
+
     setState(EXPECTING_CONFIRM_TWO);
-    sendFreshPacket(new ConfirmOnePacket(masterSecret.getResponderMacKey(),
+    sendFreshPacket(new ConfirmOnePacket(crypto, masterSecret.getResponderMacKey(),
                                          masterSecret.getResponderZrtpKey(),
                                          this.hashChain, isLegacyConfirmConnection(),
                                          includeLegacyHeaderBug));
@@ -129,11 +148,11 @@ public class ZRTPResponderSocket extends ZRTPSocket {
   protected void handleConfirmTwo(HandshakePacket packet) throws InvalidPacketException {
     ConfirmTwoPacket confirmPacket = new ConfirmTwoPacket(packet, isLegacyConfirmConnection());
 
-    confirmPacket.verifyMac(masterSecret.getInitiatorMacKey());
-    confirmPacket.decrypt(masterSecret.getInitiatorZrtpKey());
+    confirmPacket.verifyMac(crypto, masterSecret.getInitiatorMacKey());
+    confirmPacket.decrypt(crypto, masterSecret.getInitiatorZrtpKey());
 
     byte[] preimage = confirmPacket.getPreimage();
-    foreignDH.verifyMac(preimage);
+    foreignDH.verifyMac(crypto, preimage);
 
     setState(HANDSHAKE_COMPLETE);
     sendFreshPacket(new ConfAckPacket(includeLegacyHeaderBug));
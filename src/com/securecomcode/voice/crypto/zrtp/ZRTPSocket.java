@@ -25,21 +25,16 @@ import org.spongycastle.math.ec.ECPoint;
 import com.securecomcode.voice.Release;
 import com.securecomcode.voice.crypto.SecureRtpSocket;
 import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecrets;
+import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsStore;
 import com.securecomcode.voice.database.DatabaseFactory;
-import com.securecomcode.voice.database.RetainedSecretsDatabase;
+import com.securecomcode.voice.util.AndroidClock;
 import com.securecomcode.voice.util.Conversions;
 
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.Security;
-import java.security.spec.ECGenParameterSpec;
 
 /**
  * The base ZRTP socket implementation.
@@ -48,6 +43,8 @@ import java.security.spec.ECGenParameterSpec;
  * parts in the ZRTP handshake.
  *
  * This is fundamentally just a simple state machine which iterates through the ZRTP handshake.
+ * It only needs somewhere to send packets and somewhere to keep retained secrets, so both
+ * sides can run against each other without a network or a database.
  *
  * @author Moxie Marlinspike
  *
@@ -61,8 +58,7 @@ public abstract class ZRTPSocket {
   public static final BigInteger PRIME     = new BigInteger("FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF6955817183995497CEA956AE515D2261898FA051015728E5A8AAAC42DAD33170D04507A33A85521ABDF1CBA64ECFB850458DBEF0A8AEA71575D060C7DB3970F85A6E1E4C7ABF5AE8CDB0933D71E8C94E04A25619DCEE3D2261AD2EE6BF12FFA06D98A0864D87602733EC86A64521F2B18177B200CBBE117577A615D6C770988C0BAD946E208E24FA074E5AB3143DB5BFCE0FD108E4B82D120A93AD2CAFFFFFFFFFFFFFFFF", 16);
   public static final BigInteger GENERATOR = new BigInteger("02", 16);
 
-  private static final int RETRANSMIT_INTERVAL_MILLIS = 150;
-  private static final int MAX_RETRANSMIT_COUNT       = 45;
+  private static final int MAX_RETRANSMIT_COUNT = 45;
 
   protected static final int EXPECTING_HELLO            = 0;
   protected static final int EXPECTING_HELLO_ACK        = 1;
@@ -78,20 +74,28 @@ public abstract class ZRTPSocket {
   protected static final int KA_TYPE_DH3K = 100;
   protected static final int KA_TYPE_EC25 = 200;
 
-  private long transmitStartTime  = 0;
-  private int  retransmitInterval = RETRANSMIT_INTERVAL_MILLIS;
-  private int  retransmitCount    = 0;
-  private int  sequence           = 0;
-  private int  state;
+  private long    transmitStartTime  = 0;
+  private long    freshTransmitTime  = 0;
+  private long    receiveTime        = 0;
+  private boolean awaitingAnswer     = false;
+  private boolean roundTripSample    = false;
+  private int     retransmitCount    = 0;
+  private int     sequence           = 0;
+  private int     state;
 
-  private   final Context context;
-  private   final SecureRtpSocket socket;
+  private RetransmitTimer retransmitTimer = new RetransmitTimer();
+
+  private   final RetainedSecretsStore retainedSecretsStore;
+  private   final HandshakeTransport socket;
   protected final byte[] localZid;
   protected final String remoteNumber;
 
   private HandshakePacket lastPacket;
-  private KeyPair dh3kKeyPair;
-  private KeyPair ec25KeyPair;
+  private KeyPair keyPair;
+  private int     keyPairType;
+
+  protected final HandshakeTimeline timeline;
+  protected final HandshakeCrypto   crypto;
 
   protected HashChain hashChain;
   protected MasterSecret masterSecret;
@@ -99,16 +103,24 @@ public abstract class ZRTPSocket {
   public ZRTPSocket(Context context, SecureRtpSocket socket,
                     byte[] localZid, String remoteNumber, int initialState)
   {
-    this.context           = context.getApplicationContext();
-    this.localZid          = localZid;
-    this.remoteNumber      = remoteNumber;
-    this.socket            = socket;
-    this.state             = initialState;
-    this.dh3kKeyPair       = initializeDH3kKeys();
-    this.ec25KeyPair       = initializeEC25Keys();
-    this.hashChain         = new HashChain();
-
-    this.socket.setTimeout(RETRANSMIT_INTERVAL_MILLIS);
+    this(DatabaseFactory.getRetainedSecretsDatabase(context), socket,
+         localZid, remoteNumber, initialState);
+  }
+
+  public ZRTPSocket(RetainedSecretsStore retainedSecretsStore, HandshakeTransport socket,
+                    byte[] localZid, String remoteNumber, int initialState)
+  {
+    this.timeline             = new HandshakeTimeline(AndroidClock.INSTANCE);
+    this.retainedSecretsStore = retainedSecretsStore;
+    this.localZid             = localZid;
+    this.remoteNumber         = remoteNumber;
+    this.socket               = socket;
+    this.state                = initialState;
+    this.crypto               = new HandshakeCrypto();
+    this.hashChain            = new HashChain(crypto);
+
+    this.socket.setTimeout(RetransmitTimer.MIN_TIMEOUT_MILLIS);
+    this.timeline.enterState(getStateName(initialState));
   }
 
   protected abstract void handleHello(HandshakePacket packet) throws InvalidPacketException;
@@ -130,28 +142,41 @@ public abstract class ZRTPSocket {
     }
   }
 
+  /**
+   * The key pair is only taken once the key agreement type is known, so a handshake
+   * never generates a pair it will not use.
+   */
   protected KeyPair getKeyPair() {
-    switch (getKeyAgreementType()) {
-    case KA_TYPE_EC25: return ec25KeyPair;
-    case KA_TYPE_DH3K: return dh3kKeyPair;
-    default:           throw new AssertionError("Unknown KA type: " + getKeyAgreementType());
+    int type = getKeyAgreementType();
+
+    if (keyPair == null) {
+      long start  = System.nanoTime();
+      keyPair     = EphemeralKeyPool.getInstance().take(type);
+      keyPairType = type;
+      timeline.addKeyPairTime(System.nanoTime() - start);
+    } else if (keyPairType != type) {
+      throw new AssertionError("KA type changed from " + keyPairType + " to " + type);
     }
+
+    return keyPair;
   }
 
   private byte[] getPublicDH3kKey() {
+    DHPublicKey publicKey = (DHPublicKey)getKeyPair().getPublic();
+
     if (Release.DEBUG)
-      Log.w("ZRTPSocket", "Sending public key: " + ((DHPublicKey)dh3kKeyPair.getPublic()).getY());
+      Log.w("ZRTPSocket", "Sending public key: " + publicKey.getY());
 
     byte[] temp = new byte[384];
-    Conversions.bigIntegerToByteArray(temp, ((DHPublicKey)dh3kKeyPair.getPublic()).getY());
+    Conversions.bigIntegerToByteArray(temp, publicKey.getY());
     return temp;
   }
 
   private byte[] getPublicEC25Key() {
     if (Release.DEBUG)
-      Log.w("ZRTPSocket", "Sending public key: " + ec25KeyPair.getPublic());
+      Log.w("ZRTPSocket", "Sending public key: " + getKeyPair().getPublic());
 
-    ECPublicKey publicKey = (ECPublicKey)ec25KeyPair.getPublic();
+    ECPublicKey publicKey = (ECPublicKey)getKeyPair().getPublic();
     ECPoint q             = publicKey.getQ();
 
     byte[] x = new byte[32];
@@ -164,15 +189,20 @@ public abstract class ZRTPSocket {
   }
 
   protected RetainedSecrets getRetainedSecrets(String number, byte[] zid) {
-    RetainedSecretsDatabase database = DatabaseFactory.getRetainedSecretsDatabase(context);
-    return database.getRetainedSecrets(number, zid);
+    return retainedSecretsStore.getRetainedSecrets(number, zid);
   }
 
   protected void cacheRetainedSecret(String number, byte[] zid, byte[] rs1,
                                      long expiration, boolean continuity)
   {
-    RetainedSecretsDatabase database = DatabaseFactory.getRetainedSecretsDatabase(context);
-    database.setRetainedSecret(number, zid, rs1, expiration, continuity);
+    retainedSecretsStore.setRetainedSecret(number, zid, rs1, expiration, continuity);
+  }
+
+  /**
+   * The Hello this side opens with.  Tests override it to stand in for older clients.
+   */
+  protected HelloPacket createLocalHello(boolean includeLegacyHeaderBug) {
+    return new HelloPacket(crypto, hashChain, localZid, includeLegacyHeaderBug);
   }
 
 
@@ -184,18 +214,73 @@ public abstract class ZRTPSocket {
   // here, where we intentionally do the wrong thing for older devices.  We'll
   // phase this out after a couple of months.
   protected boolean isLegacyConfirmConnection() {
-    RedPhoneClientId clientId = new RedPhoneClientId(getForeignHello().getClientId());
-    return clientId.isLegacyConfirmConnectionVersion();
+    return getForeignClientId().isLegacyConfirmConnectionVersion();
+  }
+
+  /**
+   * @return the client version the other side sent in its Hello, which tells us
+   * what it supports beyond the handshake itself.
+   */
+  public RedPhoneClientId getForeignClientId() {
+    return new RedPhoneClientId(getForeignHello().getClientId());
+  }
+
+  /**
+   * Seeds the retransmit timer with a round trip measured before the handshake, such as
+   * during signaling.
+   */
+  public void setRoundTripEstimate(long millis) {
+    retransmitTimer.seed(millis);
+  }
+
+  /**
+   * Times retransmits with another timer, such as one that behaves as older clients' did.
+   * Only before the handshake starts.
+   */
+  void setRetransmitTimer(RetransmitTimer retransmitTimer) {
+    this.retransmitTimer = retransmitTimer;
   }
 
   protected void setState(int state) {
-    this.state = state;
+    if (awaitingAnswer && roundTripSample) {
+      retransmitTimer.addSample(receiveTime - freshTransmitTime);
+      timeline.setSmoothedRoundTrip(retransmitTimer.getSmoothedRoundTrip());
+    }
+
+    awaitingAnswer = false;
+    this.state     = state;
+    timeline.enterState(getStateName(state));
   }
 
+  static String getStateName(int state) {
+    switch (state) {
+    case EXPECTING_HELLO:       return "EXPECTING_HELLO";
+    case EXPECTING_HELLO_ACK:   return "EXPECTING_HELLO_ACK";
+    case EXPECTING_COMMIT:      return "EXPECTING_COMMIT";
+    case EXPECTING_DH_1:        return "EXPECTING_DH_1";
+    case EXPECTING_DH_2:        return "EXPECTING_DH_2";
+    case EXPECTING_CONFIRM_ONE: return "EXPECTING_CONFIRM_ONE";
+    case EXPECTING_CONFIRM_TWO: return "EXPECTING_CONFIRM_TWO";
+    case HANDSHAKE_COMPLETE:    return "HANDSHAKE_COMPLETE";
+    case EXPECTING_CONFIRM_ACK: return "EXPECTING_CONFIRM_ACK";
+    case TERMINATED:            return "TERMINATED";
+    default:                    return String.valueOf(state);
+    }
+  }
+
+  /**
+   * Sends a packet that has not been sent before.  The time until it is answered is a round
+   * trip sample unless answering it means key agreement, which would count the other side's
+   * CPU as network, or it opens the handshake, when the other side may not be listening yet.
+   */
   protected void sendFreshPacket(HandshakePacket packet) {
     retransmitCount    = 0;
-    retransmitInterval = RETRANSMIT_INTERVAL_MILLIS;
+    awaitingAnswer     = true;
+    retransmitTimer.resetBackoff();
+    roundTripSample    = !(packet instanceof DHPacket) && state != EXPECTING_HELLO;
+    timeline.packetSent(packet.getType(), false);
     sendPacket(packet);
+    freshTransmitTime  = transmitStartTime;
   }
 
   private void sendPacket(HandshakePacket packet) {
@@ -224,66 +309,57 @@ public abstract class ZRTPSocket {
       }
     }
 
-    retransmitInterval = Math.min(retransmitInterval*2, 1500);
+    retransmitTimer.backOff();
+    roundTripSample = false;
 
+    if (lastPacket != null) timeline.packetSent(lastPacket.getType(), true);
     sendPacket(lastPacket);
   }
 
-  private KeyPair initializeDH3kKeys() {
-    try {
-      KeyPairGenerator kg    = KeyPairGenerator.getInstance("DH");
-      DHParameterSpec dhSpec = new DHParameterSpec(PRIME, GENERATOR);
-      kg.initialize(dhSpec);
-
-      return kg.generateKeyPair();
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new IllegalArgumentException(e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    }
-  }
-
-  private KeyPair initializeEC25Keys() {
-    try {
-      KeyPairGenerator kg       = KeyPairGenerator.getInstance("ECDH", "SC");
-      ECGenParameterSpec ecSpec = new ECGenParameterSpec("secp256r1");
-      kg.initialize(ecSpec);
-
-      return kg.generateKeyPair();
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError(nsae);
-    } catch (NoSuchProviderException e) {
-      throw new AssertionError(e);
-    }
+  private void packetReceived(HandshakePacket packet) {
+    receiveTime = System.currentTimeMillis();
+    timeline.packetReceived(packet.getType());
   }
 
   private boolean isRetransmitTime() {
-    return (System.currentTimeMillis() - transmitStartTime >= retransmitInterval);
+    return (System.currentTimeMillis() - transmitStartTime >= retransmitTimer.getTimeout());
   }
 
   private void resendPacketIfTimeout() throws NegotiationFailedException {
     if (isRetransmitTime()) {
-      Log.w("ZRTPSocket", "Retransmitting after: " + retransmitInterval);
+      Log.w("ZRTPSocket", "Retransmitting after: " + retransmitTimer.getTimeout());
       resendPacket();
     }
   }
 
+  /**
+   * @return how long after this socket was created the first Hello went out, or -1 if none
+   * has yet.  Nothing about the handshake can start before then.
+   */
+  public long getMillisToFirstHello() {
+    return timeline.getMillisToFirstHello();
+  }
+
+  /**
+   * @return where the time in this handshake has gone so far.
+   */
+  public HandshakeTimeline getTimeline() {
+    return timeline;
+  }
+
   public MasterSecret getMasterSecret() {
     return this.masterSecret;
   }
 
   public SASInfo getSasInfo() {
-    RetainedSecretsDatabase database    = DatabaseFactory.getRetainedSecretsDatabase(context);
-    String                  sasText     = SASCalculator.calculateSAS(masterSecret.getSAS());
-    boolean                 sasVerified = database.isVerified(remoteNumber, getForeignHello().getZID());
+    String  sasText     = SASCalculator.calculateSAS(masterSecret.getSAS());
+    boolean sasVerified = retainedSecretsStore.isVerified(remoteNumber, getForeignHello().getZID());
 
     return new SASInfo(sasText, sasVerified);
   }
 
   public void setSasVerified() {
-    DatabaseFactory.getRetainedSecretsDatabase(context).setVerified(remoteNumber, getForeignHello().getZID());
+    retainedSecretsStore.setVerified(remoteNumber, getForeignHello().getZID());
   }
 
   public void close() {
@@ -296,6 +372,8 @@ public abstract class ZRTPSocket {
       while (state == EXPECTING_HELLO) {
         HandshakePacket packet = socket.receiveHandshakePacket(true);
 
+        if (packet != null) packetReceived(packet);
+
         if (packet == null) {
           resendPacketIfTimeout();
         } else if (packet.getType().equals(HelloPacket.TYPE) && (state == EXPECTING_HELLO)) {
@@ -322,6 +400,7 @@ public abstract class ZRTPSocket {
 
         if( packet != null ) {
           Log.w("ZRTPSocket", "Received packet: " + (packet != null ? packet.getType() : "null"));
+          packetReceived(packet);
         }
 
         if      (packet == null)                                                                       resendPacketIfTimeout();
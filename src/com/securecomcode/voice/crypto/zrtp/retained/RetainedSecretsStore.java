@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.crypto.zrtp.retained;
+
+/**
+ * Keeps the retained secrets and SAS verification for each (number, ZID) the handshake
+ * has completed with.
+ */
+public interface RetainedSecretsStore {
+
+  /**
+   * @return the unexpired secrets for this endpoint.  Either may be null.
+   */
+  public RetainedSecrets getRetainedSecrets(String number, byte[] zid);
+
+  /**
+   * Stores rs1 for this endpoint, which moves the previous rs1 to rs2.  Clears any SAS
+   * verification if the handshake did not show continuity.
+   */
+  public void setRetainedSecret(String number, byte[] zid, byte[] rs1, long expiration, boolean continuity);
+
+  public boolean isVerified(String number, byte[] zid);
+
+  public void setVerified(String number, byte[] zid);
+}
@@ -26,6 +26,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecrets;
+import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsStore;
 import com.securecomcode.voice.util.Base64;
 import com.securecomcode.voice.util.PhoneNumberFormatter;
 import com.securecomcode.voice.util.Util;
@@ -36,7 +37,7 @@ import java.io.IOException;
  * Manages the cache of retained secrets (rs1 and rs2) for each
  * (ZID, phone number) endpoint tuple.
  */
-public class RetainedSecretsDatabase {
+public class RetainedSecretsDatabase implements RetainedSecretsStore {
 
   private static final String TABLE_NAME = "retained_secrets";
   private static final String ID         = "_id";
@@ -62,6 +63,7 @@ public class RetainedSecretsDatabase {
     this.databaseHelper = databaseHelper;
   }
 
+  @Override
   public void setVerified(String number, byte[] zid) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
       String encodedNumber = "";
@@ -81,6 +83,7 @@ public class RetainedSecretsDatabase {
                     new String[] {encodedNumber, encodedZid});
   }
 
+  @Override
   public boolean isVerified(String number, byte[] zid) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     String encodedZid       = Base64.encodeBytes(zid);
@@ -111,6 +114,7 @@ public class RetainedSecretsDatabase {
     }
   }
 
+  @Override
   public void setRetainedSecret(String number, byte[] zid, byte[] rs1, long expiration, boolean continuity) {
     if (System.currentTimeMillis() >= expiration)
       return;
@@ -161,6 +165,7 @@ public class RetainedSecretsDatabase {
   }
 
 
+  @Override
   public RetainedSecrets getRetainedSecrets(String number, byte[] zid) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     String encodedZid       = Base64.encodeBytes(zid);
@@ -1,25 +1,56 @@
 package com.securecomcode.voice.monitor;
 
+import android.os.Process;
+import android.os.SystemClock;
+
 import com.securecomcode.voice.util.LinuxUtils;
 
 import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Monitors system level metrics
+ * Monitors system level metrics, along with the CPU time consumed by this process
+ * so that audio loop changes can be compared by CPU time per call-minute.
+ *
+ * The per-minute figure comes from {@link Process#getElapsedCpuTime()}, which is already in
+ * milliseconds, so it doesn't depend on the kernel's clock tick rate.
  */
 public class SystemMetrics implements SampledMetrics {
   private String lastStat;
+  private String lastProcessStat;
+  private long lastCpuTime;
+  private long lastSampleTime;
   private Map<String, Object> result = new HashMap<String, Object>();
 
 
   @Override
   public Map<String, Object> sample() {
-    String stat = LinuxUtils.readSystemStat();
+    String stat        = LinuxUtils.readSystemStat();
+    String processStat = LinuxUtils.readProcessStat(Process.myPid());
+    long cpuTime       = Process.getElapsedCpuTime();
+    long now           = SystemClock.elapsedRealtime();
+
     if(lastStat != null) {
       result.put( "cpu-load", LinuxUtils.getSystemCpuUsage(lastStat, stat));
     }
-    lastStat = stat;
+
+    if (lastStat != null && lastProcessStat != null && processStat != null && now > lastSampleTime) {
+      String[] lastSystem = lastStat.split(" ");
+      String[] system     = stat.split(" ");
+      long systemJiffies  = LinuxUtils.getSystemUptime(system) + LinuxUtils.getSystemIdleTime(system) -
+                            LinuxUtils.getSystemUptime(lastSystem) - LinuxUtils.getSystemIdleTime(lastSystem);
+
+      result.put("process-cpu-load", LinuxUtils.getProcessCpuUsage(lastProcessStat, processStat, systemJiffies));
+    }
+
+    if (lastSampleTime != 0 && now > lastSampleTime) {
+      result.put("process-cpu-msec-per-minute", (cpuTime - lastCpuTime) * 60000 / (now - lastSampleTime));
+    }
+
+    lastStat        = stat;
+    lastProcessStat = processStat;
+    lastCpuTime     = cpuTime;
+    lastSampleTime  = now;
     return result;
   }
 }
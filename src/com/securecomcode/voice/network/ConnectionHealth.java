@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.network;
+
+import android.util.Log;
+
+import com.securecomcode.voice.monitor.SampledMetrics;
+import com.securecomcode.voice.util.Clock;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Watches the silence on the relay connection once a call is up, and re-opens the relay
+ * port when packets stop arriving.
+ *
+ * The receive path only records the time of the latest packet.  A separate thread checks
+ * that time once a second and moves the connection through its states:
+ *
+ * <ul>
+ * <li>HEALTHY: a packet arrived within the last second.</li>
+ * <li>DEGRADED: silent for a second.  The {@link Relay} is asked to reconnect on every check.</li>
+ * <li>RECONNECTING: silent for two seconds.  Reconnecting continues, and the user is told.</li>
+ * <li>LOST: silent for a minute.  Monitoring stops and the call should be ended.</li>
+ * </ul>
+ *
+ * The state is kept here, and the {@link Listener} is only called when it changes.  A packet
+ * arriving in DEGRADED or RECONNECTING returns the connection to HEALTHY straight away.
+ */
+public class ConnectionHealth implements Runnable, SampledMetrics {
+
+  public enum State { HEALTHY, DEGRADED, RECONNECTING, LOST }
+
+  public interface Listener {
+    public void onStateChanged(State previous, State current);
+  }
+
+  public interface Relay {
+    /**
+     * Works towards a new path to the relay.  Called on every check while the connection
+     * is unhealthy, so an attempt that is still in progress can simply return.
+     */
+    public void reconnect() throws IOException;
+  }
+
+  static final long CHECK_INTERVAL_MILLIS = 1000;
+  static final long DEGRADED_MILLIS       = 1000;
+  static final long RECONNECTING_MILLIS   = 2000;
+  static final long LOST_MILLIS           = 60000;
+
+  private final Clock clock;
+  private final Relay relay;
+  private final Listener listener;
+
+  private volatile long lastPacketTime;
+  private volatile State state = State.HEALTHY;
+  private volatile boolean running;
+  private Thread thread;
+
+  private volatile int transitions, reconnectAttempts, reconnectFailures;
+
+  public ConnectionHealth(Clock clock, Relay relay, Listener listener) {
+    this.clock    = clock;
+    this.relay    = relay;
+    this.listener = listener;
+  }
+
+  /**
+   * Starts checking the connection.  The silence is measured from this call.
+   */
+  public synchronized void start() {
+    if (running) return;
+
+    lastPacketTime = clock.uptimeMillis();
+    running        = true;
+    thread         = new Thread(this, "ConnectionHealth");
+    thread.start();
+  }
+
+  public synchronized void stop() {
+    running = false;
+
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  /**
+   * Called from the receive path for every datagram.  Costs a clock read and a volatile
+   * write unless the connection was unhealthy.
+   */
+  public void onPacketReceived() {
+    lastPacketTime = clock.uptimeMillis();
+
+    if (state != State.HEALTHY) {
+      recover();
+    }
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        Thread.sleep(CHECK_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        continue;
+      }
+
+      if (!tick()) {
+        running = false;
+      }
+    }
+  }
+
+  /**
+   * One pass of the monitoring loop.
+   *
+   * @return false once the connection is lost.
+   */
+  boolean tick() {
+    State current = check();
+
+    if (current == State.LOST) {
+      return false;
+    }
+
+    if (current != State.HEALTHY) {
+      reconnect();
+    }
+
+    return true;
+  }
+
+  synchronized State check() {
+    if (state == State.LOST) {
+      return state;
+    }
+
+    long silence = clock.uptimeMillis() - lastPacketTime;
+
+    if      (silence >  LOST_MILLIS)         transition(State.LOST);
+    else if (silence >= RECONNECTING_MILLIS) transition(State.RECONNECTING);
+    else if (silence >= DEGRADED_MILLIS)     transition(State.DEGRADED);
+    else                                     transition(State.HEALTHY);
+
+    return state;
+  }
+
+  private synchronized void recover() {
+    if (state != State.LOST) {
+      transition(State.HEALTHY);
+    }
+  }
+
+  private void transition(State next) {
+    State previous = state;
+
+    if (previous == next) {
+      return;
+    }
+
+    state = next;
+    transitions++;
+    Log.d("ConnectionHealth", previous + " -> " + next);
+    listener.onStateChanged(previous, next);
+  }
+
+  private void reconnect() {
+    reconnectAttempts++;
+
+    try {
+      relay.reconnect();
+    } catch (IOException e) {
+      reconnectFailures++;
+      Log.w("ConnectionHealth", e);
+    }
+  }
+
+  @Override
+  public Map<String, Object> sample() {
+    Map<String, Object> result = new HashMap<String, Object>(4);
+    result.put("state", state.name());
+    result.put("transitions", transitions);
+    result.put("reconnect-attempts", reconnectAttempts);
+    result.put("reconnect-failures", reconnectFailures);
+    return result;
+  }
+}
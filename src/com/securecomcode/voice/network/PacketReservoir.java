@@ -19,43 +19,79 @@ package com.securecomcode.voice.network;
 
 import android.util.Log;
 
-import java.net.DatagramPacket;
-import java.util.LinkedList;
+import com.securecomcode.voice.audio.EncodedAudioData;
 
 /**
- * Keeps a pool of byte arrays that are used to construct DatagramPackets.  Recycles buffers
- * that are no longer in use
+ * Keeps a fixed ring of preallocated {@link EncodedAudioData} frames that carry received
+ * packet payloads from the incoming audio queue to the jitter buffer.  Frames are handed
+ * back once they have been played or discarded, so the receive path runs without
+ * allocating once the reservoir has been filled.
+ *
+ * The reservoir is only touched from the call audio thread and is not synchronized.
  *
  * @author Stuart O. Anderson
  */
- //TODO(Stuart Anderson): Refactor to use {@link com.securecomcode.voice.util.Pool}
- //TODO(Stuart Anderson): Test if removing this results in a noticeable performance loss.
-
 public class PacketReservoir {
-  private int bufferSize;
-  private int totalAllocatedBuffers = 0;
-  private LinkedList<byte []> buffers = new LinkedList<byte[]>();
-  public PacketReservoir( int bufferSize ) {
+  private static final String TAG = "PacketReservoir";
+
+  private final int bufferSize;
+  private final EncodedAudioData[] buffers;
+  private int available;
+  private int totalAllocatedBuffers;
+  private int foreignReturns;
+
+  public PacketReservoir( int bufferSize, int capacity ) {
     this.bufferSize = bufferSize;
+    this.buffers    = new EncodedAudioData[capacity];
+
+    for( int i=0; i < capacity; i++ ) {
+      buffers[i] = new EncodedAudioData( bufferSize );
+    }
+
+    this.available             = capacity;
+    this.totalAllocatedBuffers = capacity;
   }
 
-  public synchronized DatagramPacket getPacket() {
-    if( buffers.size() != 0 ) {
-      return new DatagramPacket( buffers.removeFirst(), bufferSize );
+  public EncodedAudioData getPacket() {
+    if( available != 0 ) {
+      EncodedAudioData packet = buffers[--available];
+      buffers[available] = null;
+      return packet;
     }
 
     totalAllocatedBuffers++;
-    Log.d("PacketReservoir", "enlarging packet reservoir, new size = " + totalAllocatedBuffers );
-    byte [] newBuffer = new byte [bufferSize];
-    return new DatagramPacket( newBuffer, bufferSize );
+    Log.d( TAG, "enlarging packet reservoir, new size = " + totalAllocatedBuffers );
+    return new EncodedAudioData( bufferSize );
   }
 
-  public synchronized void returnPacket( DatagramPacket packet ) {
-    byte [] returnedBuffer = packet.getData();
-    if( returnedBuffer.length != bufferSize ) {
-      Log.e( "PacketReservoir", "returned a mis-sized buffer: " + returnedBuffer.length );
+  public void returnPacket( EncodedAudioData packet ) {
+    if( packet.data.length != bufferSize ) {
+      //not one of ours, so whoever handed it in skipped getPacket()
+      foreignReturns++;
+      Log.w( TAG, "dropping returned buffer of " + packet.data.length + " bytes, expected " + bufferSize );
       return;
     }
-    buffers.add( returnedBuffer );
+
+    if( available == buffers.length ) {
+      Log.w( TAG, "reservoir full, dropping returned buffer" );
+      return;
+    }
+
+    buffers[available++] = packet;
+  }
+
+  public int getAvailable() {
+    return available;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return how many returned frames were dropped for not being the reservoir's size.
+   */
+  public int getForeignReturns() {
+    return foreignReturns;
   }
 }
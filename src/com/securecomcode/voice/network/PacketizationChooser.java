@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.network;
+
+import com.securecomcode.voice.audio.CallAudioFormat;
+
+/**
+ * Chooses how many frames the {@link RtpAudioSender} puts in each packet, from what the
+ * incoming audio says about the network.
+ *
+ * Every packet carries 32 bytes of RTP header and MAC, more than a narrowband Speex frame, so
+ * on a clean, steady link bigger packets save much of the bandwidth.  But a bigger packet adds
+ * its length to the delay and loses more audio when it is dropped, so packets shrink on a lossy
+ * link, or on one whose jitter already uses up the delay budget.
+ *
+ * The media path has no measure of round trip time, so the jitter buffer's target delay stands
+ * in for it.  Packets shrink as soon as conditions call for it but grow one frame at a time,
+ * and only after conditions have allowed it for several samples running.
+ */
+public class PacketizationChooser {
+
+  // one-way delay past which a conversation starts to feel sluggish (ITU-T G.114)
+  private static final int   DELAY_BUDGET_MILLIS = 150;
+  private static final float LOW_LOSS            = 0.01f;
+  private static final float HIGH_LOSS           = 0.05f;
+  private static final int   SAMPLES_TO_GROW     = 3;
+
+  private final int frameMillis;
+
+  private int framesPerPacket;
+  private int samplesAllowingGrowth;
+
+  public PacketizationChooser(CallAudioFormat format) {
+    this.frameMillis     = format.getFrameMillis();
+    this.framesPerPacket = format.getFramesPerPacket();
+  }
+
+  /**
+   * @param lossRate the share of incoming frames that had to be concealed since the last sample.
+   * @param jitterDelayMillis how long the jitter buffer is holding audio back.
+   * @return the number of frames to put in each packet from now on.
+   */
+  public int choose(float lossRate, float jitterDelayMillis) {
+    int target = getTarget(lossRate, jitterDelayMillis, frameMillis);
+
+    if (target < framesPerPacket) {
+      framesPerPacket       = target;
+      samplesAllowingGrowth = 0;
+    } else if (target > framesPerPacket) {
+      if (++samplesAllowingGrowth >= SAMPLES_TO_GROW) {
+        framesPerPacket++;
+        samplesAllowingGrowth = 0;
+      }
+    } else {
+      samplesAllowingGrowth = 0;
+    }
+
+    return framesPerPacket;
+  }
+
+  public int getFramesPerPacket() {
+    return framesPerPacket;
+  }
+
+  static int getTarget(float lossRate, float jitterDelayMillis, int frameMillis) {
+    int byLoss;
+
+    if      (lossRate >= HIGH_LOSS) byLoss = 1;
+    else if (lossRate >= LOW_LOSS)  byLoss = 2;
+    else                            byLoss = RtpAudioSender.MAX_FRAMES_PER_PACKET;
+
+    int byDelay = (int)((DELAY_BUDGET_MILLIS - jitterDelayMillis) / frameMillis);
+
+    return Math.max(1, Math.min(byLoss, byDelay));
+  }
+}
@@ -25,43 +25,73 @@ import com.securecomcode.voice.crypto.SecureRtpSocket;
 import com.securecomcode.voice.profiling.PacketLogger;
 import com.securecomcode.voice.profiling.PeriodicTimer;
 import com.securecomcode.voice.profiling.TimeProfiler;
+import com.securecomcode.voice.util.RingBuffer;
 
 import java.io.IOException;
-import java.util.List;
 /**
  * RtpAudioReader listens to a {@link SecureRtpSocket} and writes the incoming {@link EncodedAudioData} to
  * a queue.
  *
+ * Packets are received, verified and decrypted inside a single reused packet buffer, and their
+ * payloads are copied straight into the preallocated slots of a {@link RingBuffer}, so the
+ * steady-state receive path does not allocate.
+ *
+ * Comfort noise packets are passed on as silent frames holding the far end's noise level.
+ *
+ * Each packet is numbered by the frame it starts at.  Legacy packets hold two frames and start
+ * at twice their sequence number.  With adaptive packetization on, the payload type gives the
+ * frame count and the timestamp the starting sample; see {@link RtpAudioSender}.  Redundant
+ * copies of earlier packets are queued as frames of their own, marked redundant.
+ *
  * @author Stuart O. Anderson
  */
 public class RtpAudioReader {
 
-  private final List<EncodedAudioData> audioQueue;
+  public static final int MAX_PAYLOAD_SIZE = 1024;
+  public static final int MAX_QUEUED_FRAMES = 64;
+  private static final int MAX_PACKET_SIZE = 4096;
+
+  private final RingBuffer<EncodedAudioData> audioQueue;
+  private final SecureRtpPacket inPacket = new SecureRtpPacket(MAX_PACKET_SIZE);
   private final SecureRtpSocket socket;
+  private final int samplesPerFrame;
+  private boolean adaptivePacketization;
   private final PeriodicTimer recvTimer = new PeriodicTimer((long) (1000/60.0));
   private long expectedSequenceNumber = 0;
   private int sequenceAnomalies = 0;
   private PacketLogger packetLogger;
 
-  public RtpAudioReader(List<EncodedAudioData> incomingAudio,
-                        SecureRtpSocket socket, PacketLogger packetLogger) {
+  public RtpAudioReader(RingBuffer<EncodedAudioData> incomingAudio, SecureRtpSocket socket,
+                        int samplesPerFrame, PacketLogger packetLogger) {
     this.socket = socket;
+    this.samplesPerFrame = samplesPerFrame;
     audioQueue = incomingAudio;
     this.packetLogger = packetLogger;
   }
 
   private int consecutiveReads = 0;
   private int totalReads = 0;
-  public void go() throws IOException {
+  /**
+   * Reads at most one packet from the socket.
+   *
+   * @return true if a datagram was consumed, false if none was waiting.
+   * A packet that arrives while the queue is full is dropped and counted as an overflow.
+   */
+  public boolean go() throws IOException {
     //if( !recvTimer.periodically()) return;
 
-    SecureRtpPacket inPacket = socket.receive();
+    int result = socket.receive(inPacket);
 
-    if( inPacket == null ) {
+    if( result == SecureRtpSocket.RECEIVE_NONE ) {
       consecutiveReads=0;
       packetLogger.logPacket( expectedSequenceNumber, PacketLogger.FAILED_READ );
-      return;
+      return false;
     }
+
+    if( result == SecureRtpSocket.RECEIVE_REJECTED ) {
+      return true;
+    }
+
     consecutiveReads++;
     totalReads++;
     if( consecutiveReads > 30 ) {
@@ -77,11 +107,117 @@ public class RtpAudioReader {
     }
     expectedSequenceNumber++;
 
+    if( inPacket.getPayloadLength() > MAX_PAYLOAD_SIZE ) {
+      Log.w("RtpAudioReader", "Dropping oversized payload: " + inPacket.getPayloadLength() );
+      return true;
+    }
+
     TimeProfiler.startBlock("VR:receiveAudio:getPayload" );
-    byte packetData[] = inPacket.getPayload();
+    int payloadType = inPacket.getPayloadType();
+    if( adaptivePacketization && payloadType == RtpAudioSender.REDUNDANT_PAYLOAD_TYPE ) {
+      publishRedundantPayload();
+    } else {
+      EncodedAudioData ead = audioQueue.claim();
+      if( ead != null ) {
+        int payloadLength = inPacket.getPayload(ead.data);
+
+        if( adaptivePacketization ) {
+          ead.set(payloadLength, inPacket.getTimeStamp() / samplesPerFrame, inPacket.getLogicalSequence());
+          ead.frames = getFrameCount(payloadType);
+        } else {
+          ead.set(payloadLength, inPacket.getLogicalSequence() * RtpAudioSender.LEGACY_FRAMES_PER_PACKET,
+                  inPacket.getLogicalSequence());
+          ead.frames = RtpAudioSender.LEGACY_FRAMES_PER_PACKET;
+        }
+
+        if( payloadType == RtpAudioSender.COMFORT_NOISE_PAYLOAD_TYPE ) {
+          ead.frames = 1;
+          ead.setSilent(payloadLength > 0 ? ead.data[0] & 0x7F : 127);
+        }
+        audioQueue.publish();
+      }
+    }
     TimeProfiler.stopBlock("VR:receiveAudio:getPayload" );
 
-    audioQueue.add(new EncodedAudioData(packetData, inPacket.getLogicalSequence(), inPacket.getSequenceNumber() ));
+    return true;
+  }
+
+  /**
+   * Splits an RFC 2198 redundant audio payload into its blocks, read straight out of the packet
+   * buffer, and queues the redundant copies ahead of the primary audio.  Each block is placed in
+   * time by its offset back from the packet's timestamp.
+   */
+  private void publishRedundantPayload() {
+    byte[] packet    = inPacket.getPacket();
+    int    offset    = inPacket.getPayloadOffset();
+    int    end       = offset + inPacket.getPayloadLength();
+    long   timestamp = inPacket.getTimeStamp();
+
+    //a four byte header for each redundant block, then a one byte header for the primary
+    int headerEnd = offset;
+    while( headerEnd < end && (packet[headerEnd] & 0x80) != 0 ) headerEnd += 4;
+    headerEnd++;
+
+    if( headerEnd > end ) {
+      Log.w("RtpAudioReader", "Dropping truncated redundant payload");
+      return;
+    }
+
+    int blockOffset = headerEnd;
+    for( int header = offset; header < headerEnd - 1; header += 4 ) {
+      int timestampOffset = ((packet[header + 1] & 0xFF) << 6) | ((packet[header + 2] & 0xFF) >> 2);
+      int blockLength     = ((packet[header + 2] & 0x03) << 8) | (packet[header + 3] & 0xFF);
+
+      if( blockOffset + blockLength > end ) {
+        Log.w("RtpAudioReader", "Dropping truncated redundant payload");
+        return;
+      }
+
+      publish(packet, blockOffset, blockLength, packet[header] & 0x7F,
+              timestamp - timestampOffset, true);
+      blockOffset += blockLength;
+    }
+
+    publish(packet, blockOffset, end - blockOffset, packet[headerEnd - 1] & 0x7F, timestamp, false);
+  }
+
+  private void publish(byte[] source, int offset, int length, int payloadType, long timestamp,
+                       boolean redundant)
+  {
+    EncodedAudioData ead = audioQueue.claim();
+    if( ead == null ) return;
+
+    System.arraycopy(source, offset, ead.data, 0, length);
+    ead.set(length, timestamp / samplesPerFrame, inPacket.getLogicalSequence());
+    ead.frames    = getFrameCount(payloadType);
+    ead.redundant = redundant;
+    audioQueue.publish();
+  }
+
+  private static int getFrameCount(int payloadType) {
+    if( payloadType > RtpAudioSender.FRAME_COUNT_PAYLOAD_TYPE_BASE &&
+        payloadType <= RtpAudioSender.FRAME_COUNT_PAYLOAD_TYPE_BASE + RtpAudioSender.MAX_FRAMES_PER_PACKET ) {
+      return payloadType - RtpAudioSender.FRAME_COUNT_PAYLOAD_TYPE_BASE;
+    }
+    return 1;
+  }
+
+  /**
+   * Reads every datagram waiting on the socket.
+   *
+   * @return the number of datagrams consumed.
+   */
+  public int drain() throws IOException {
+    int count = 0;
+    while( go() ) count++;
+    return count;
+  }
+
+  /**
+   * Reads frame counts and start times from each packet, for peers that send them.
+   */
+  public void setAdaptivePacketization(boolean enabled) {
+    adaptivePacketization = enabled;
   }
 
   public long sequenceNumber() {
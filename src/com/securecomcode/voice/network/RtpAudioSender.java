@@ -23,39 +23,88 @@ import android.util.Log;
 import com.securecomcode.voice.audio.EncodedAudioData;
 import com.securecomcode.voice.crypto.SecureRtpPacket;
 import com.securecomcode.voice.crypto.SecureRtpSocket;
+import com.securecomcode.voice.monitor.CountMetric;
+import com.securecomcode.voice.monitor.SampledMetrics;
 import com.securecomcode.voice.profiling.PacketLogger;
 import com.securecomcode.voice.profiling.StatisticsWatcher;
+import com.securecomcode.voice.util.RingBuffer;
 
 import java.io.IOException;
-import java.util.LinkedList;
 
 /**
  * RtpAudioSender bundles one or more {@link EncodedAudioData} objects into a
  * {@link SecureRtpPacket} and writes that packet to the provided {@link SecureRtpSocket}
  *
+ * Peers that predate adaptive packetization are always sent {@link #LEGACY_FRAMES_PER_PACKET}
+ * frames per packet, and place each packet in time by its sequence number.  With adaptive
+ * packetization on, each packet holds between one and {@link #MAX_FRAMES_PER_PACKET} frames,
+ * its payload type says how many, and its timestamp holds the sample number its first frame
+ * starts at.
+ *
+ * With discontinuous transmission on, packets whose frames are all silent are not sent.  The
+ * first of a pause, and the first to start {@link #COMFORT_NOISE_INTERVAL_FRAMES} frames (320ms)
+ * or more after the last one, is replaced by a comfort noise packet (RFC 3389) carrying only the
+ * background noise level.  The interval is counted in frames, so it is the same length of time
+ * however many frames each packet holds.  Comfort noise keeps the connection looking alive and
+ * tells the far end to play noise rather than conceal losses.  Sequence numbers still advance
+ * for packets that are not sent, so the far end's idea of time stays intact.
+ *
+ * With forward error correction on, each audio packet also carries a copy of the frames sent in
+ * the packet before it, in the redundant audio format of RFC 2198, so the far end can rebuild a
+ * single lost packet from the next one.  The copy is the same encoding as the original rather
+ * than a lower bitrate one, which would take a second encoder; it doubles the audio payload but
+ * not the per-packet overhead.  Redundancy is only sent with adaptive packetization, whose
+ * timestamps place the copy in time.
+ *
  * @author Stuart O. Anderson
  */
 public class RtpAudioSender {
-  public final static int audioChunksPerPacket = 2;
+  public final static int LEGACY_FRAMES_PER_PACKET = 2;
+  public final static int MAX_FRAMES_PER_PACKET = 4;
+  public final static int AUDIO_PAYLOAD_TYPE = 0;
+  public final static int COMFORT_NOISE_PAYLOAD_TYPE = 13;
+  // dynamic payload types 97 to 100 carry one to four frames
+  public final static int FRAME_COUNT_PAYLOAD_TYPE_BASE = 96;
+  // 320ms, well under the second of silence after which the connection is considered degraded
+  public final static int COMFORT_NOISE_INTERVAL_FRAMES = 16;
+  public final static int REDUNDANT_PAYLOAD_TYPE = 101;
+  // the four byte header of a redundant block, then the one byte header of the primary
+  public final static int REDUNDANT_HEADER_LENGTH = 5;
+  public final static int MAX_REDUNDANT_BLOCK_LENGTH = 0x3FF;
+
   private int packetSequenceNumber = 0;
   private SecureRtpSocket socket;
-  private LinkedList<EncodedAudioData> audioQueue;
+  private RingBuffer<EncodedAudioData> audioQueue;
   private final byte payloadBuffer[] = new byte[1024];
-  private final SecureRtpPacket outPacket = new SecureRtpPacket(1024);
+  private final SecureRtpPacket outPacket = new SecureRtpPacket(2048);
+  private final byte redundantPayloadBuffer[] = new byte[2048];
+  private final byte previousPayload[] = new byte[1024];
+  private int previousLength;
+  private int previousPayloadType;
+  private long previousFirstFrame = -1;
+  private int previousFrames;
+  private final int samplesPerFrame;
 
   private StatisticsWatcher timeWatcher = new StatisticsWatcher();
   private long lastTime;
   private long mSentPackets = 0;
   private int consecutiveSends = 0;
   private int totalSends = 0;
+  private boolean adaptivePacketization;
+  private int framesPerPacket = LEGACY_FRAMES_PER_PACKET;
+  private boolean discontinuousTransmission;
+  private boolean forwardErrorCorrection;
+  private int framesSinceComfortNoise = -1;
+  private final CountMetric packetStats = new CountMetric();
 
   private PacketLogger packetLogger;
 
-  public RtpAudioSender(LinkedList<EncodedAudioData> outgoingAudio,
-                        SecureRtpSocket socket, PacketLogger packetLogger) {
-    this.socket       = socket;
-    this.audioQueue   = outgoingAudio;
-    this.packetLogger = packetLogger;
+  public RtpAudioSender(RingBuffer<EncodedAudioData> outgoingAudio, SecureRtpSocket socket,
+                        int samplesPerFrame, PacketLogger packetLogger) {
+    this.socket          = socket;
+    this.audioQueue      = outgoingAudio;
+    this.samplesPerFrame = samplesPerFrame;
+    this.packetLogger    = packetLogger;
 
     timeWatcher.debugName = "RtpAudioSender";
   }
@@ -63,8 +112,9 @@ public class RtpAudioSender {
 
 
   public void go() throws IOException {
+    int frames = framesPerPacket;
 
-    if( audioQueue.size() < audioChunksPerPacket ) {
+    if( audioQueue.size() < frames ) {
       consecutiveSends = 0;
       return;
     }
@@ -76,25 +126,107 @@ public class RtpAudioSender {
     }
 
     int payloadOffset = 0;
-    for( int packet = 0; packet < audioChunksPerPacket; packet++ ) {
-      if( audioQueue.size() != 0 ) {
-        EncodedAudioData ead = audioQueue.removeFirst();
-        byte chunkData[] = ead.data;
-        System.arraycopy(chunkData, 0, payloadBuffer, payloadOffset, chunkData.length );
+    long firstFrame   = 0;
+    boolean silent    = true;
+    int noiseLevel    = 0;
+    for( int frame = 0; frame < frames; frame++ ) {
+      EncodedAudioData ead = audioQueue.peek();
+      if( ead != null ) {
+        System.arraycopy(ead.data, 0, payloadBuffer, payloadOffset, ead.length );
 
-        if( payloadOffset == 0 ) {
+        if( frame == 0 ) {
           //TODO is the cast-to-int a problem?
           packetLogger.logPacket( ead.sequenceNumber, PacketLogger.PACKET_SENDING );
+          firstFrame = ead.sequenceNumber;
         }
         else {
           packetLogger.logPacket( ead.sequenceNumber, PacketLogger.PACKET_BUNDLED );
         }
 
-        payloadOffset += chunkData.length;
+        payloadOffset += ead.length;
+        silent        &= ead.silent;
+        noiseLevel     = ead.noiseLevel;
+        audioQueue.release();
+      }
+    }
+
+    if( discontinuousTransmission && silent ) {
+      if( framesSinceComfortNoise >= 0 && framesSinceComfortNoise < COMFORT_NOISE_INTERVAL_FRAMES ) {
+        framesSinceComfortNoise += frames;
+        packetStats.increment("suppressed", 1);
+        packetSequenceNumber++;
+        return;
+      }
+
+      framesSinceComfortNoise = frames;
+      payloadBuffer[0] = (byte)noiseLevel;
+      payloadOffset    = 1;
+      outPacket.setPayloadType(COMFORT_NOISE_PAYLOAD_TYPE);
+      packetStats.increment("comfort-noise", 1);
+    } else {
+      framesSinceComfortNoise = -1;
+      int payloadType = adaptivePacketization ? FRAME_COUNT_PAYLOAD_TYPE_BASE + frames
+                                              : AUDIO_PAYLOAD_TYPE;
+      packetStats.increment("audio", 1);
+      packetStats.increment("audio-frames", frames);
+
+      if( forwardErrorCorrection ) {
+        sendWithRedundancy(payloadType, payloadOffset, firstFrame, frames);
+        return;
       }
+
+      outPacket.setPayloadType(payloadType);
+    }
+
+    send(payloadBuffer, payloadOffset, firstFrame);
+  }
+
+  /**
+   * Sends the primary payload waiting in payloadBuffer after a copy of the packet before it, if
+   * that packet held the audio just before this one, and keeps the primary for the next packet.
+   */
+  private void sendWithRedundancy(int payloadType, int payloadLength, long firstFrame, int frames)
+      throws IOException
+  {
+    if( previousFirstFrame + previousFrames == firstFrame ) {
+      int offset = (int)(firstFrame - previousFirstFrame) * samplesPerFrame;
+
+      redundantPayloadBuffer[0] = (byte)(0x80 | previousPayloadType);
+      redundantPayloadBuffer[1] = (byte)(offset >> 6);
+      redundantPayloadBuffer[2] = (byte)((offset << 2) | (previousLength >> 8));
+      redundantPayloadBuffer[3] = (byte)previousLength;
+      redundantPayloadBuffer[4] = (byte)payloadType;
+      System.arraycopy(previousPayload, 0, redundantPayloadBuffer, REDUNDANT_HEADER_LENGTH, previousLength);
+      System.arraycopy(payloadBuffer, 0, redundantPayloadBuffer,
+                       REDUNDANT_HEADER_LENGTH + previousLength, payloadLength);
+
+      outPacket.setPayloadType(REDUNDANT_PAYLOAD_TYPE);
+      packetStats.increment("redundant-frames", previousFrames);
+      send(redundantPayloadBuffer, REDUNDANT_HEADER_LENGTH + previousLength + payloadLength,
+           firstFrame);
+    } else {
+      outPacket.setPayloadType(payloadType);
+      send(payloadBuffer, payloadLength, firstFrame);
+    }
+
+    if( payloadLength <= MAX_REDUNDANT_BLOCK_LENGTH ) {
+      System.arraycopy(payloadBuffer, 0, previousPayload, 0, payloadLength);
+      previousLength      = payloadLength;
+      previousPayloadType = payloadType;
+      previousFirstFrame  = firstFrame;
+      previousFrames      = frames;
+    } else {
+      previousFirstFrame  = -1;
+      previousFrames      = 0;
+    }
+  }
+
+  private void send(byte[] payload, int payloadLength, long firstFrame) throws IOException {
+    if( adaptivePacketization ) {
+      outPacket.setTimeStamp(firstFrame * samplesPerFrame);
     }
 
-    outPacket.setPayload(payloadBuffer, payloadOffset);
+    outPacket.setPayload(payload, payloadLength);
 
     outPacket.setSequenceNumber(packetSequenceNumber);
     socket.send(outPacket);
@@ -114,6 +246,59 @@ public class RtpAudioSender {
     return packetSequenceNumber;
   }
 
+  /**
+   * Stops sending packets that hold only silence.  Only peers that understand comfort noise
+   * packets should be sent them.
+   */
+  public void setDiscontinuousTransmission(boolean enabled) {
+    discontinuousTransmission = enabled;
+  }
+
+  /**
+   * Adds a copy of the previous packet's frames to each audio packet, if adaptive packetization
+   * is on.  Only peers that read redundant audio should be sent it.
+   */
+  public void setForwardErrorCorrection(boolean enabled) {
+    forwardErrorCorrection = enabled && adaptivePacketization;
+  }
+
+  public boolean isForwardErrorCorrection() {
+    return forwardErrorCorrection;
+  }
+
+  /**
+   * Lets {@link #setFramesPerPacket(int)} take effect, and stamps packets with their frame count
+   * and start time.  Only peers that read them should be sent such packets.
+   */
+  public void setAdaptivePacketization(boolean enabled) {
+    adaptivePacketization = enabled;
+    if( !enabled ) {
+      framesPerPacket        = LEGACY_FRAMES_PER_PACKET;
+      forwardErrorCorrection = false;
+    }
+  }
+
+  /**
+   * Sets how many frames go in each packet from now on, if adaptive packetization is on.
+   */
+  public void setFramesPerPacket(int frames) {
+    if( adaptivePacketization ) {
+      framesPerPacket = Math.max(1, Math.min(MAX_FRAMES_PER_PACKET, frames));
+    }
+  }
+
+  public int getFramesPerPacket() {
+    return framesPerPacket;
+  }
+
+  /**
+   * @return counts of audio, comfort noise and suppressed packets, and of frames sent as audio
+   * and as redundant copies.
+   */
+  public SampledMetrics getMetrics() {
+    return packetStats;
+  }
+
   public long sentPackets() {
     return mSentPackets;
   }
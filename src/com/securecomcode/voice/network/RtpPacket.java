@@ -143,6 +143,14 @@ public class RtpPacket {
     return result;
   }
 
+  public int getPayloadOffset() {
+    return HEADER_LENGTH;
+  }
+
+  public int getPayloadLength() {
+    return packetLength - HEADER_LENGTH;
+  }
+
   public byte[] getPacket() {
     return data;
   }
@@ -150,4 +158,11 @@ public class RtpPacket {
   public int getPacketLength() {
     return packetLength;
   }
+
+  /**
+   * Used when a received datagram is written directly into this packet's buffer.
+   */
+  public void setPacketLength(int packetLength) {
+    this.packetLength = packetLength;
+  }
 }
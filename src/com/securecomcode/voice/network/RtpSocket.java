@@ -27,57 +27,252 @@ import com.securecomcode.voice.RedPhoneService;
 import com.securecomcode.voice.call.TrafficMonitor;
 import com.securecomcode.voice.crypto.EncryptedSignalMessage;
 import com.securecomcode.voice.crypto.InvalidEncryptedSignalException;
+import com.securecomcode.voice.monitor.SampledMetrics;
 import com.securecomcode.voice.profiling.PeriodicTimer;
 import com.securecomcode.voice.signaling.NetworkConnector;
 import com.securecomcode.voice.signaling.SessionDescriptor;
 import com.securecomcode.voice.signaling.SessionInitiationFailureException;
 import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
+import com.securecomcode.voice.util.AndroidClock;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
- * RtpSocket wraps a {@link DatagramSocket}, allowing {@link RtpPacket}s to be sent a received.
+ * RtpSocket wraps a non-blocking {@link DatagramChannel}, allowing {@link RtpPacket}s to be
+ * sent a received.
+ *
+ * Reads wait for at most the configured timeout on a private {@link Selector}, so an empty
+ * poll returns false instead of throwing.  The channel can additionally be registered with
+ * a caller's selector, which lets the call audio thread sleep until a packet arrives.
+ *
+ * Datagrams move through a pair of direct buffers that are allocated once, and the number of
+ * reads, empty reads, selects and writes issued on the channel is reported as metrics.
+ *
+ * Once the call is connected, a {@link ConnectionHealth} watches for silence on the channel
+ * and re-opens the relay port when it stalls.  The receive path only timestamps packets for it.
+ *
+ * Failover is make-before-break.  The relay port is opened on a fresh standby channel while
+ * the current channel stays in use, and outgoing packets are duplicated onto the standby to
+ * prime it.  The first datagram that arrives on the standby promotes it to be the channel.
+ * The SRTP contexts belong to the {@link com.securecomcode.voice.crypto.SecureRtpSocket}
+ * wrapping this socket, so sequence numbers and the replay window carry straight across.
  *
  * @author Stuart O. Anderson
  */
-public class RtpSocket {
-    private final byte[] buf = new byte[4096];
-    private DatagramSocket socket;
+public class RtpSocket implements SampledMetrics {
+    private static final int MAX_DATAGRAM_SIZE = 4096;
+    private static final int OPEN_PORT_TIMEOUT_MILLIS = 1000;
+    private static final int STANDBY_PRIME_MILLIS     = 2000;
+
+    private final byte[] buf = new byte[MAX_DATAGRAM_SIZE];
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer sendBuffer    = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private volatile DatagramChannel channel;
+    private volatile DatagramChannel standby;
+    private long standbyOpenedMillis;
+    private long stallStartMillis = -1;
+    private volatile int failovers, abandonedStandbys;
+    private volatile long lastReconnectMillis, maxReconnectMillis;
+    private final Selector readSelector;
+    private Selector callSelector;
+    private volatile int timeoutMillis = 1;
+    private volatile int reads, emptyReads, selects, writes;
     private Context context;
     private static String DELETE_SESSION = "DELETE /session/";
-    private OpenPortSignalTask openPortSignalTimer;
-    private volatile long lastPacketTimeStamp;
+    private static final byte[] SIGNAL_PREFIX = {'s', 'i', 'g', ':'};
+    private final ConnectionHealth health;
     private SessionDescriptor sessionDescriptor;
     private InetSocketAddress remoteAddress;
     private int localPort;
-    private Thread openPortSignalThread;
-    public static boolean isOPSThreadStarted = false;
     private long sessionId = 0;
 
     public RtpSocket(Context context, int localPort, InetSocketAddress remoteAddress, SessionDescriptor sessionDescriptor) throws SocketException {
-        socket = new DatagramSocket(localPort);
-        socket.setSoTimeout(1);
-        socket.connect(new InetSocketAddress(remoteAddress.getAddress().getHostAddress(), remoteAddress.getPort()));
+        try {
+            channel      = openChannel(localPort, remoteAddress);
+            readSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+        } catch (SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            SocketException se = new SocketException(e.getMessage());
+            se.initCause(e);
+            throw se;
+        }
+
         this.context = context;
         this.sessionDescriptor = sessionDescriptor;
         this.remoteAddress = remoteAddress;
         this.localPort = localPort;
-        openPortSignalTimer = new OpenPortSignalTask();
+        this.health = new ConnectionHealth(AndroidClock.INSTANCE, new RelayReconnector(), new HealthNotifier());
         Log.d("RtpSocket", "Connected to: " + remoteAddress.getAddress().getHostAddress());
     }
 
+    private static DatagramChannel openChannel(int localPort, InetSocketAddress remoteAddress) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress(localPort));
+            channel.connect(new InetSocketAddress(remoteAddress.getAddress().getHostAddress(), remoteAddress.getPort()));
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets how long a receive waits for a datagram.  A timeout of zero polls.
+     */
     public void setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Registers this socket's channel for reads with the caller's selector.  The registration
+     * follows the socket if the relay connection is re-established on a new port.
+     */
+    public synchronized void register(Selector selector) throws IOException {
+        this.callSelector = selector;
+        channel.register(selector, SelectionKey.OP_READ);
+
+        if (standby != null) {
+            standby.register(selector, SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Opens the relay port on a new standby channel, unless a standby opened recently is
+     * still being primed.  Runs on the health monitor's thread while the call keeps using
+     * the current channel.
+     */
+    void failover() throws IOException {
+        long now = SystemClock.uptimeMillis();
+
+        synchronized (this) {
+            if (stallStartMillis < 0) {
+                stallStartMillis = now;
+            }
+
+            if (standby != null) {
+                if (now - standbyOpenedMillis < STANDBY_PRIME_MILLIS) {
+                    return;
+                }
+
+                discardStandby();
+                abandonedStandbys++;
+            }
+        }
+
+        DatagramChannel candidate = DatagramChannel.open();
+
         try {
-            socket.setSoTimeout(timeoutMillis);
-        } catch (SocketException e) {
+            candidate.socket().bind(new InetSocketAddress(0));
+            candidate.configureBlocking(false);
+
+            new NetworkConnector(sessionDescriptor.sessionId,
+                                 sessionDescriptor.serverIP,
+                                 sessionDescriptor.relayPort).openPort(candidate, OPEN_PORT_TIMEOUT_MILLIS);
+
+            candidate.connect(new InetSocketAddress(remoteAddress.getAddress().getHostAddress(), remoteAddress.getPort()));
+            addStandby(candidate);
+        } catch (SessionInitiationFailureException e) {
+            candidate.close();
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        } catch (IOException e) {
+            candidate.close();
+            throw e;
+        }
+    }
+
+    private synchronized void addStandby(DatagramChannel candidate) throws IOException {
+        if (stallStartMillis < 0) {
+            // The current channel recovered while the port was being opened.
+            candidate.close();
+            return;
+        }
+
+        readSelector.wakeup();
+        candidate.register(readSelector, SelectionKey.OP_READ);
+
+        if (callSelector != null) {
+            callSelector.wakeup();
+            candidate.register(callSelector, SelectionKey.OP_READ);
+        }
+
+        standbyOpenedMillis = SystemClock.uptimeMillis();
+        standby             = candidate;
+        Log.d("RtpSocket", "Priming standby port " + candidate.socket().getLocalPort());
+    }
+
+    private synchronized void promote(DatagramChannel candidate) {
+        if (standby != candidate) {
+            return;
+        }
+
+        DatagramChannel oldChannel = channel;
+        channel   = candidate;
+        standby   = null;
+        localPort = candidate.socket().getLocalPort();
+
+        try {
+            oldChannel.close();
+        } catch (IOException e) {
             Log.w("RtpSocket", e);
         }
+
+        if (stallStartMillis >= 0) {
+            lastReconnectMillis = SystemClock.uptimeMillis() - stallStartMillis;
+            maxReconnectMillis  = Math.max(maxReconnectMillis, lastReconnectMillis);
+            stallStartMillis    = -1;
+        }
+
+        failovers++;
+        Log.d("RtpSocket", "Failed over to port " + localPort + " after " + lastReconnectMillis + "ms");
+    }
+
+    /**
+     * Called when the current channel carries traffic again, so a standby is not needed.
+     */
+    private synchronized void recovered() {
+        stallStartMillis = -1;
+        discardStandby();
+    }
+
+    private void discardStandby() {
+        DatagramChannel candidate = standby;
+        standby = null;
+
+        if (candidate != null) {
+            try {
+                candidate.close();
+            } catch (IOException e) {
+                Log.w("RtpSocket", e);
+            }
+        }
+    }
+
+    /**
+     * Starts watching the connection for stalls.  Called once the call is connected, since
+     * the relay legitimately goes quiet while the other party is still being rung.
+     */
+    public void startHealthMonitor() {
+        ApplicationPreferencesActivity.setDisplayReconnectingCallPreference(context, false);
+        health.start();
+    }
+
+    public ConnectionHealth getConnectionHealth() {
+        return health;
     }
 
     private long totalSendTime = 0;
@@ -86,7 +281,18 @@ public class RtpSocket {
     public void send(RtpPacket outPacket) throws IOException {
         long start = SystemClock.uptimeMillis();
         try {
-            socket.send(new DatagramPacket(outPacket.getPacket(), outPacket.getPacketLength()));
+            sendBuffer.clear();
+            sendBuffer.put(outPacket.getPacket(), 0, outPacket.getPacketLength());
+            sendBuffer.flip();
+            writes++;
+            channel.write(sendBuffer);
+
+            DatagramChannel candidate = standby;
+            if (candidate != null) {
+                sendBuffer.rewind();
+                writes++;
+                candidate.write(sendBuffer);
+            }
         } catch (IOException e) {
 
         }
@@ -99,55 +305,137 @@ public class RtpSocket {
     }
 
     public RtpPacket receive() throws IOException {
-        try {
-            DatagramPacket dataPack = new DatagramPacket(buf, buf.length);
-            socket.setSoTimeout(1);
-            socket.receive(dataPack);
+        RtpPacket packet = new RtpPacket(buf, buf.length);
 
-            byte[] encrypted = new byte[dataPack.getLength()];
-            System.arraycopy(dataPack.getData(), dataPack.getOffset(), encrypted, 0, encrypted.length);
+        if (!receive(packet)) {
+            return null;
+        }
 
-            String prefix = new String(encrypted, 0, 4);
+        return new RtpPacket(buf, packet.getPacketLength(), true);
+    }
+
+    /**
+     * Receives a datagram directly into the buffer of the supplied packet, which is
+     * reused by the caller from one call to the next.  Nothing is allocated on the
+     * steady-state path.
+     *
+     * @return true if a datagram was written into packet, false on timeout or error.
+     */
+    public boolean receive(RtpPacket packet) throws IOException {
+        try {
+            byte[] packetBuffer = packet.getPacket();
+            int length          = read(packetBuffer);
 
-            //Update UI in case of reconnecting is in progress
-            ApplicationPreferencesActivity.setDisplayReconnectingCallPreference(context, false);
-            Intent _intent = new Intent(context, RedPhoneService.class);
-            _intent.setAction(RedPhoneService.ACTION_CALL_RECONNECTING_TONE_STOP);
-            context.startService(_intent);
+            if (length < 0) {
+                return false;
+            }
 
+            packet.setPacketLength(length);
 
             // check for delete message
-            if (prefix.equals("sig:")) {
+            if (isSignal(packetBuffer, length)) {
+                byte[] encrypted = new byte[length];
+                System.arraycopy(packetBuffer, 0, encrypted, 0, length);
+
                 sessionId = getSessionidFromEncryptedData(context, encrypted);
                 Intent intent = new Intent(context, RedPhoneService.class);
                 intent.setAction(RedPhoneService.ACTION_CALL_DISCONNECTED);
                 intent.putExtra("session_id", sessionId);
                 intent.putExtra("ExitTimeOut", "");
                 context.startService(intent);
-            }else{
-                if(ApplicationPreferencesActivity.getIsInCall(context)) {
-                    if(!isOPSThreadStarted) {
-                        openPortSignalThread = new Thread(openPortSignalTimer);
-                        openPortSignalThread.start();
-                        isOPSThreadStarted = true;
-                    }
-                }
             }
 
-            if (dataPack.getLength() > 0) {
-                lastPacketTimeStamp = System.currentTimeMillis();
+            if (length > 0) {
+                health.onPacketReceived();
                 TrafficMonitor.getInstance(context).updatePacketCount();
             }
 
-            return new RtpPacket(encrypted, encrypted.length);
-        } catch (SocketTimeoutException e) {
-            //Do Nothing.
+            return true;
         } catch (IOException e) {
-            if (!socket.isClosed()) {
+            if (channel.isOpen()) {
                 e.printStackTrace();
             }
         }
-        return null;
+        return false;
+    }
+
+    private int read(byte[] packetBuffer) throws IOException {
+        if (readChannel(this.channel) || readStandby()) {
+            return copyReceived(packetBuffer);
+        }
+
+        if (timeoutMillis > 0) {
+            // A standby being registered wakes the selector early, so wait out the full timeout.
+            long deadline  = SystemClock.uptimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+
+            while (remaining > 0) {
+                selects++;
+                if (readSelector.select(remaining) > 0) {
+                    readSelector.selectedKeys().clear();
+
+                    if (readChannel(this.channel) || readStandby()) {
+                        return copyReceived(packetBuffer);
+                    }
+                }
+
+                remaining = deadline - SystemClock.uptimeMillis();
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean readStandby() throws IOException {
+        DatagramChannel candidate = standby;
+
+        if (candidate == null || !readChannel(candidate)) {
+            return false;
+        }
+
+        promote(candidate);
+        return true;
+    }
+
+    private boolean readChannel(DatagramChannel channel) throws IOException {
+        receiveBuffer.clear();
+        reads++;
+
+        if (channel.read(receiveBuffer) > 0) {
+            return true;
+        }
+
+        emptyReads++;
+        return false;
+    }
+
+    private int copyReceived(byte[] packetBuffer) {
+        receiveBuffer.flip();
+        int length = Math.min(receiveBuffer.remaining(), packetBuffer.length);
+        receiveBuffer.get(packetBuffer, 0, length);
+        return length;
+    }
+
+    @Override
+    public Map<String, Object> sample() {
+        Map<String, Object> result = new HashMap<String, Object>(8);
+        result.put("reads", reads);
+        result.put("empty-reads", emptyReads);
+        result.put("selects", selects);
+        result.put("writes", writes);
+        result.put("failovers", failovers);
+        result.put("abandoned-standbys", abandonedStandbys);
+        result.put("reconnect-ms", lastReconnectMillis);
+        result.put("max-reconnect-ms", maxReconnectMillis);
+        return result;
+    }
+
+    private static boolean isSignal(byte[] packetBuffer, int length) {
+        return length >= SIGNAL_PREFIX.length           &&
+               packetBuffer[0] == SIGNAL_PREFIX[0] &&
+               packetBuffer[1] == SIGNAL_PREFIX[1] &&
+               packetBuffer[2] == SIGNAL_PREFIX[2] &&
+               packetBuffer[3] == SIGNAL_PREFIX[3];
     }
 
     private long getSessionidFromEncryptedData(Context context, byte[] encrypted){
@@ -172,62 +460,62 @@ public class RtpSocket {
     }
 
     public void close() {
-        socket.close();
+        health.stop();
+
+        try {
+            synchronized (this) {
+                discardStandby();
+            }
+
+            channel.close();
+            readSelector.close();
+        } catch (IOException e) {
+            Log.w("RtpSocket", e);
+        }
+    }
+
+    private class RelayReconnector implements ConnectionHealth.Relay {
+        @Override
+        public void reconnect() throws IOException {
+            failover();
+        }
     }
 
-    private class OpenPortSignalTask implements Runnable {
+    private class HealthNotifier implements ConnectionHealth.Listener {
         @Override
-        public void run() {
-            while(ApplicationPreferencesActivity.getIsInCall(context)) {
-                try {
-                   Thread.sleep(1000);
-                   long temp_time_stamp = System.currentTimeMillis() - lastPacketTimeStamp;
-
-                   if (temp_time_stamp >= 1000 && temp_time_stamp <= 60000) {
-
-                       if(!ApplicationPreferencesActivity.getIsInCall(context)) {
-                           return;
-                       }
-
-                        ApplicationPreferencesActivity.setDisplayReconnectingCallPreference(context, true);
-                        Thread.sleep(10);
-                        if(temp_time_stamp >= 2000) {
-                            Intent intent = new Intent(context, RedPhoneService.class);
-                            intent.setAction(RedPhoneService.ACTION_CALL_RECONNECTING_TONE_START);
-                            context.startService(intent);
-                        }
-                        int tempPort = new NetworkConnector(sessionDescriptor.sessionId,
-                                sessionDescriptor.serverIP,
-                                sessionDescriptor.relayPort).makeConnection();
-
-                        DatagramSocket newSocket = new DatagramSocket(tempPort);
-                        newSocket.setSoTimeout(1);
-                        newSocket.connect(new InetSocketAddress(remoteAddress.getAddress().getHostAddress(), remoteAddress.getPort()));
-                        synchronized (this) {
-                            socket.close();
-                            socket = newSocket;
-                        }
-                        localPort = tempPort;
-                    } else if (temp_time_stamp > 60000) {
-                        ApplicationPreferencesActivity.setDisplayReconnectingCallPreference(context, false);
-                        Intent _intent = new Intent(context, RedPhoneService.class);
-                        _intent.setAction(RedPhoneService.ACTION_CALL_RECONNECTING_TONE_STOP);
-                        context.startService(_intent);
-
-                        Intent intent = new Intent(context, RedPhoneService.class);
-                        intent.setAction(RedPhoneService.ACTION_CALL_DISCONNECTED);
-                        intent.putExtra("session_id", 0);
-                        intent.putExtra("ExitTimeOut", "ExitTimeOut");
-                        context.startService(intent);
+        public void onStateChanged(ConnectionHealth.State previous, ConnectionHealth.State current) {
+            switch (current) {
+                case HEALTHY:
+                    recovered();
+                    ApplicationPreferencesActivity.setDisplayReconnectingCallPreference(context, false);
+                    if (previous == ConnectionHealth.State.RECONNECTING) {
+                        sendServiceAction(RedPhoneService.ACTION_CALL_RECONNECTING_TONE_STOP);
                     }
-                } catch (IOException ioe) {
-                    //Do Nothing
-                } catch (InterruptedException ie) {
-                    //Do Nothing
-                } catch (SessionInitiationFailureException e) {
-                    e.printStackTrace();
-                }
+                    break;
+                case DEGRADED:
+                    ApplicationPreferencesActivity.setDisplayReconnectingCallPreference(context, true);
+                    break;
+                case RECONNECTING:
+                    ApplicationPreferencesActivity.setDisplayReconnectingCallPreference(context, true);
+                    sendServiceAction(RedPhoneService.ACTION_CALL_RECONNECTING_TONE_START);
+                    break;
+                case LOST:
+                    ApplicationPreferencesActivity.setDisplayReconnectingCallPreference(context, false);
+                    sendServiceAction(RedPhoneService.ACTION_CALL_RECONNECTING_TONE_STOP);
+
+                    Intent intent = new Intent(context, RedPhoneService.class);
+                    intent.setAction(RedPhoneService.ACTION_CALL_DISCONNECTED);
+                    intent.putExtra("session_id", 0);
+                    intent.putExtra("ExitTimeOut", "ExitTimeOut");
+                    context.startService(intent);
+                    break;
             }
         }
+
+        private void sendServiceAction(String action) {
+            Intent intent = new Intent(context, RedPhoneService.class);
+            intent.setAction(action);
+            context.startService(intent);
+        }
     }
 }
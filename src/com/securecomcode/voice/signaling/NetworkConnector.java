@@ -33,6 +33,10 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Map;
 
 /**
@@ -78,6 +82,65 @@ public class NetworkConnector {
     return result;
   }
 
+  /**
+   * Opens the relay port for a channel the caller has already bound, rather than for a
+   * throwaway socket whose port the caller must then re-bind.  Only one attempt is made,
+   * so a caller that keeps another path open can simply try again later.
+   *
+   * The channel must be unconnected and non-blocking.  It is left that way.
+   */
+  public void openPort(DatagramChannel channel, int timeout)
+      throws SessionInitiationFailureException
+  {
+    Selector selector = null;
+
+    try {
+      InetSocketAddress serverAddress = new InetSocketAddress(server, port);
+      byte[] signalBytes              = new OpenPortSignal(sessionId).serialize().getBytes();
+
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+      channel.send(ByteBuffer.wrap(signalBytes), serverAddress);
+
+      ByteBuffer responseBuffer = ByteBuffer.allocate(2048);
+      long deadline             = System.currentTimeMillis() + timeout;
+      long remaining;
+
+      while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+        if (selector.select(remaining) == 0)
+          continue;
+
+        selector.selectedKeys().clear();
+        responseBuffer.clear();
+
+        if (!serverAddress.equals(channel.receive(responseBuffer)))
+          continue;
+
+        SignalResponse response = parseSignalResponse(responseBuffer.array());
+
+        if (response.getStatusCode() != 200)
+          throw new SessionInitiationFailureException("Bad response from server: " +
+                                                      response.getStatusCode());
+
+        return;
+      }
+
+      throw new SessionInitiationFailureException("Timed out opening port.");
+    } catch (IOException e) {
+      throw new SessionInitiationFailureException(e);
+    } catch (SignalingException e) {
+      throw new SessionInitiationFailureException(e);
+    } finally {
+      if (selector != null) {
+        try {
+          selector.close();
+        } catch (IOException e) {
+          Log.w("NetworkConnector", e);
+        }
+      }
+    }
+  }
+
   private int attemptConnection( int timeout ) {
     try {
       socket = new DatagramSocket();
@@ -118,6 +181,12 @@ public class NetworkConnector {
     DatagramPacket response = new DatagramPacket(responseBuffer, responseBuffer.length);
     socket.receive(response);
 
+    return parseSignalResponse(responseBuffer);
+  }
+
+  private SignalResponse parseSignalResponse(byte[] responseBuffer)
+      throws SignalingException, IOException
+  {
     ByteArrayInputStream bais           = new ByteArrayInputStream(responseBuffer);
     LineReader lineReader               = new LineReader(bais);
     SignalResponseReader responseReader = new SignalResponseReader(lineReader);
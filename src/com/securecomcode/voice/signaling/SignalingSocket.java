@@ -20,6 +20,7 @@ package com.securecomcode.voice.signaling;
 
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -102,6 +103,7 @@ public class SignalingSocket {
     protected final OtpCounterProvider counterProvider;
 
     private boolean connectionAttemptComplete;
+    private long roundTripMillis = -1;
     private static boolean interupted = false;
     private static IncomingCallDetails signaldata;
 
@@ -219,14 +221,25 @@ public class SignalingSocket {
         return closed;
     }
 
+    /**
+     * @return how long the last initiate or ringing request took to be answered, or -1.
+     * A first guess at the round trip the call's own packets will see.
+     */
+    public long getRoundTripMillis() {
+        return roundTripMillis;
+    }
+
     public SessionDescriptor initiateConnection(String remoteNumber)
             throws ServerMessageException, SignalingException,
             NoSuchUserException, LoginFailedException {
+        long start = SystemClock.elapsedRealtime();
+
         sendSignal(new InitiateSignal(localNumber, password,
                 counterProvider.getOtpCounter(context),
                 remoteNumber));
 
         SignalResponse response = readSignalResponse();
+        roundTripMillis = SystemClock.elapsedRealtime() - start;
 
         Gson gson = new Gson();
 
@@ -248,11 +261,14 @@ public class SignalingSocket {
 
     public void setRinging(long sessionId)
             throws SignalingException, SessionStaleException, LoginFailedException {
+        long start = SystemClock.elapsedRealtime();
+
         sendSignal(new RingingSignal(localNumber, password,
                 counterProvider.getOtpCounter(context),
                 sessionId));
 
         SignalResponse response = readSignalResponse();
+        roundTripMillis = SystemClock.elapsedRealtime() - start;
 
         switch (response.getStatusCode()) {
             case 404:
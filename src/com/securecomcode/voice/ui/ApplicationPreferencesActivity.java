@@ -59,6 +59,8 @@ public class ApplicationPreferencesActivity extends SherlockPreferenceActivity {
   public static final String SIMULATE_PACKET_DROPS      	  = "pref_simulate_packet_loss";
   public static final String MINIMIZE_LATENCY           	  = "pref_min_latency";
   public static final String SINGLE_THREAD		        	  = "pref_singlethread";
+  public static final String LEGACY_AUDIO_LOOP          	  = "pref_legacy_audio_loop";
+  public static final String ECHO_CANCELLATION          	  = "pref_echo_cancellation";
   public static final String USE_C2DM_LEGACY            	  = "pref_use_c2dm";
   public static final String SIGNALING_METHOD           	  = "pref_signaling_method";
   public static final String AUDIO_TRACK_DES_LEVEL      	  = "pref_audio_track_des_buffer_level";
@@ -76,6 +78,7 @@ public class ApplicationPreferencesActivity extends SherlockPreferenceActivity {
   public static final String RECONNECTING__IS_IN_CALL_PREF    = "pref_in_call";
   public static final String CALL_END_BUTTON_PRESSED          = "pref_is_terminate_called";
   public static final String CALL_TIMER_COUNT                 = "pref_call_timer_count";
+  public static final String LAST_HANDSHAKE_TIMELINE          = "pref_last_handshake_timeline";
 
   private static final Gson gson = new Gson();
 
@@ -201,6 +204,14 @@ public class ApplicationPreferencesActivity extends SherlockPreferenceActivity {
     return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SINGLE_THREAD, false);
   }
 
+  public static boolean isLegacyAudioLoop(Context context) {
+    return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(LEGACY_AUDIO_LOOP, false);
+  }
+
+  public static boolean isEchoCancellationEnabled(Context context) {
+    return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(ECHO_CANCELLATION, false);
+  }
+
 
   public static void setAskUserToSendDiagnosticData(Context context, boolean enabled) {
     PreferenceManager
@@ -299,4 +310,14 @@ public class ApplicationPreferencesActivity extends SherlockPreferenceActivity {
         return PreferenceManager.getDefaultSharedPreferences(context).getLong(CALL_TIMER_COUNT, 0);
     }
 
+  public static void setLastHandshakeTimeline(Context context, String timeline) {
+    PreferenceManager.getDefaultSharedPreferences(context).edit()
+      .putString(LAST_HANDSHAKE_TIMELINE, timeline)
+      .commit();
+  }
+
+  public static String getLastHandshakeTimeline(Context context) {
+    return PreferenceManager.getDefaultSharedPreferences(context).getString(LAST_HANDSHAKE_TIMELINE, null);
+  }
+
 }
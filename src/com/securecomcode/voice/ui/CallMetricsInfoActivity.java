@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
+import android.widget.TextView;
 import com.actionbarsherlock.app.SherlockActivity;
 import com.securecomcode.voice.R;
 
@@ -26,5 +27,17 @@ public class CallMetricsInfoActivity extends Activity {
         finish();
       }
     });
+
+    initializeHandshakeTimeline();
+  }
+
+  private void initializeHandshakeTimeline() {
+    String timeline = ApplicationPreferencesActivity.getLastHandshakeTimeline(this);
+
+    if (timeline == null) return;
+
+    ((TextView)findViewById(R.id.handshake_timeline)).setText(timeline);
+    findViewById(R.id.handshake_timeline_title).setVisibility(View.VISIBLE);
+    findViewById(R.id.handshake_timeline).setVisibility(View.VISIBLE);
   }
 }
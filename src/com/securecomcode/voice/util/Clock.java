@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.securecomcode.voice.util;
+
+/**
+ * A source of time for code that must also run against a simulated clock, such as the
+ * playout logic when it is replayed against recorded packet traces.
+ */
+public interface Clock {
+  /**
+   * Milliseconds since boot, not counting deep sleep; see android.os.SystemClock.
+   */
+  public long uptimeMillis();
+
+  /**
+   * Milliseconds of wall clock time; see System.currentTimeMillis().
+   */
+  public long currentTimeMillis();
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.securecomcode.voice.util;
+
+import com.securecomcode.voice.monitor.SampledMetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A lock-free single-producer/single-consumer ring of preallocated slots.
+ *
+ * Slots are created once by the supplied {@link Factory} and never leave the ring.  The producer
+ * claims the next free slot, fills it in place and publishes it; the consumer peeks at the oldest
+ * published slot, reads it in place and releases it.  No locks are taken and nothing is
+ * allocated after construction, so frames can be handed between the microphone, codec and
+ * network stages without loading the GC.
+ *
+ * Exactly one thread may call the producer methods and exactly one thread may call the consumer
+ * methods.  Overflow (claim on a full ring) and underflow (a consumer that needs a slot now
+ * finding the ring empty, see {@link #peekRequired()}) are counted and reported as
+ * {@link SampledMetrics}.  An empty {@link #peek()} is just the end of a drain and is not counted.
+ *
+ * @param <T> slot type, typically a holder for a short[] or byte[] frame
+ */
+public class RingBuffer<T> implements SampledMetrics {
+  private final Object[] slots;
+  private final int mask;
+
+  private volatile long head;
+  private volatile long tail;
+
+  private volatile int overflows;
+  private volatile int underflows;
+
+  public RingBuffer( int capacity, Factory<T> factory ) {
+    if( Integer.bitCount(capacity) != 1 ) {
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    }
+
+    slots = new Object[capacity];
+    mask  = capacity - 1;
+
+    for( int i=0; i < capacity; i++ ) {
+      slots[i] = factory.getInstance();
+    }
+  }
+
+  /**
+   * Producer: returns the next free slot to be filled, or null if the ring is full.
+   */
+  @SuppressWarnings("unchecked")
+  public T claim() {
+    long currentHead = head;
+    if( currentHead - tail == slots.length ) {
+      overflows++;
+      return null;
+    }
+    return (T)slots[(int)(currentHead & mask)];
+  }
+
+  /**
+   * Producer: makes the slot returned by the last {@link #claim()} visible to the consumer.
+   */
+  public void publish() {
+    head = head + 1;
+  }
+
+  /**
+   * Consumer: returns the oldest published slot, or null if the ring is empty.
+   */
+  @SuppressWarnings("unchecked")
+  public T peek() {
+    long currentTail = tail;
+    if( currentTail == head ) {
+      return null;
+    }
+    return (T)slots[(int)(currentTail & mask)];
+  }
+
+  /**
+   * Consumer: as {@link #peek()}, for a consumer that needs a slot right now.  Finding the ring
+   * empty here is counted as an underflow.
+   */
+  public T peekRequired() {
+    T slot = peek();
+    if( slot == null ) {
+      underflows++;
+    }
+    return slot;
+  }
+
+  /**
+   * Consumer: returns the slot obtained from the last {@link #peek()} to the producer.
+   */
+  public void release() {
+    tail = tail + 1;
+  }
+
+  /**
+   * Consumer: discards every published slot.
+   */
+  public void clear() {
+    tail = head;
+  }
+
+  public int size() {
+    return (int)(head - tail);
+  }
+
+  public boolean isEmpty() {
+    return head == tail;
+  }
+
+  public int capacity() {
+    return slots.length;
+  }
+
+  public int getOverflowCount() {
+    return overflows;
+  }
+
+  public int getUnderflowCount() {
+    return underflows;
+  }
+
+  @Override
+  public Map<String, Object> sample() {
+    Map<String, Object> result = new HashMap<String, Object>(3);
+    result.put("overflow", overflows);
+    result.put("underflow", underflows);
+    result.put("size", size());
+    return result;
+  }
+}
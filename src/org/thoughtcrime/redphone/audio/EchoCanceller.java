@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Securecom
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.redphone.audio;
+
+/**
+ * Interface to the native Speex echo canceller and preprocessor.  Each frame of microphone
+ * audio is cleaned against the far-end audio that was playing when it was recorded, then
+ * optionally denoised and brought to a steady level.
+ *
+ * Each instance owns its own native state, referenced by a handle.
+ */
+public class EchoCanceller {
+  static {
+    System.loadLibrary( "redspeex" );
+  }
+
+  private final int frameSize;
+  private long handle;
+
+  /**
+   * @param tailMillis the longest echo path the adaptive filter can model.
+   */
+  public EchoCanceller(int frameSize, int sampleRate, int tailMillis, boolean denoise, boolean agc) {
+    this.frameSize = frameSize;
+    this.handle    = open(frameSize, sampleRate * tailMillis / 1000, sampleRate, denoise, agc);
+
+    if (handle == 0) {
+      throw new AssertionError("Echo canceller initialization failed");
+    }
+  }
+
+  public int getFrameSize() {
+    return frameSize;
+  }
+
+  /**
+   * Cancels the echo of one frame.
+   *
+   * @param near the frame from the microphone.
+   * @param far the far-end audio aligned with it.
+   * @param out receives the cleaned frame, and must not be near or far.
+   * @return 1 if the frame holds speech, 0 if not, or -1 on error.
+   */
+  public int process(short[] near, short[] far, short[] out) {
+    return process(handle, near, far, out);
+  }
+
+  /**
+   * Forgets the learned echo path, for when the far-end reference jumps.
+   */
+  public void reset() {
+    reset(handle);
+  }
+
+  public synchronized void terminate() {
+    long closing = handle;
+    handle = 0;
+
+    if (closing != 0) {
+      close(closing);
+    }
+  }
+
+  private static native long open(int frameSize, int filterLength, int sampleRate,
+                                  boolean denoise, boolean agc);
+
+  private static native void close(long handle);
+
+  private static native void reset(long handle);
+
+  private static native int process(long handle, short[] near, short[] far, short[] out);
+}
@@ -30,6 +30,13 @@ public class PacketLossConcealer {
   }
 
   private static native void init();
+
+  /**
+   * Sets the rate of the audio passed to {@link #changeSpeed}.  Starts at 8kHz, and
+   * should be set once per call before any audio is processed.
+   */
+  public static native void setSampleRate( int sampleRate );
+
   public static native void rx( short audio[] );
   public static native void fillIn( short audio[] );
 
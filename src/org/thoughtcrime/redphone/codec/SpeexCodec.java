@@ -19,14 +19,41 @@ package org.thoughtcrime.redphone.codec;
 
 import android.util.Log;
 import com.securecomcode.voice.codec.AudioCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
 /**
  * An audio codec that uses the Speex library to encode packets.
  * Calls through to the native library implementations of encode and decode.
  *
+ * Each instance owns its own native encoder and decoder, referenced by a handle,
+ * so several codecs can be open at once.  Frames cross JNI in direct buffers that
+ * native code reads and writes in place.  Callers that keep their audio in direct
+ * buffers can use them directly; the array methods copy through a pair of
+ * buffers owned by this instance.
+ *
+ * A codec opened in wideband mode works on 16kHz audio, so its frames are twice as long.
+ *
  * @author Stuat O. Anderson
  */
 public class SpeexCodec extends AudioCodec {
   public static final String TAG = SpeexCodec.class.getSimpleName();
+
+  public static final int WIDEBAND_SAMPLE_RATE = 16000;
+
+  private static final int MAX_ENCODED_BYTES = 1024;
+
+  private final boolean wideband;
+
+  private volatile long handle;
+
+  private ShortBuffer encodeInput;
+  private ByteBuffer  encodeOutput = ByteBuffer.allocateDirect(MAX_ENCODED_BYTES);
+  private ByteBuffer  decodeInput  = ByteBuffer.allocateDirect(MAX_ENCODED_BYTES);
+  private ShortBuffer decodeOutput;
+
   public Thread loadThread = new Thread() {
     @Override
     public void run() {
@@ -36,8 +63,8 @@ public class SpeexCodec extends AudioCodec {
         throw new AssertionError(e);
       }
       Log.d(TAG, "loaded redspeex, now opening it");
-      int result = openSpeex();
-      if (result != 0 ) {
+      handle = openSpeex(wideband);
+      if (handle == 0) {
         throw new AssertionError("Speex initialization failed");
       }
     }
@@ -56,21 +83,144 @@ public class SpeexCodec extends AudioCodec {
   }
 
   public SpeexCodec() {
+    this(false);
+  }
+
+  public SpeexCodec(boolean wideband) {
+    this.wideband = wideband;
+    encodeInput   = allocateShorts(getSamplesPerFrame());
+    decodeOutput  = allocateShorts(getSamplesPerFrame());
     loadThread.start();
   }
 
-  public native int openSpeex();
+  public boolean isWideband() {
+    return wideband;
+  }
+
+  @Override
+  public int getSampleRate() {
+    return wideband ? WIDEBAND_SAMPLE_RATE : SAMPLE_RATE;
+  }
+
+  /**
+   * Allocates a direct buffer of native-order samples that can be passed to
+   * {@link #encode(ShortBuffer, int, ByteBuffer)} and {@link #decode(ByteBuffer, int, ShortBuffer)}.
+   */
+  public static ShortBuffer allocateShorts(int samples) {
+    return ByteBuffer.allocateDirect(samples * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+  }
+
+  @Override
+  public synchronized void terminate() {
+    long closing = handle;
+    handle = 0;
 
-  public native void closeSpeex();
+    if (closing != 0) {
+      closeSpeex(closing);
+    }
+  }
+
+  /**
+   * Decodes a packet in place.  Both buffers are read from their start, ignoring position.
+   *
+   * @param encodedData a direct buffer holding encodedBytes of Speex frames, or null to
+   * conceal a lost packet.
+   * @param rawData a direct buffer from {@link #allocateShorts(int)}.
+   * @return the number of samples written to rawData, or -1 on error.
+   */
+  public int decode(ByteBuffer encodedData, int encodedBytes, ShortBuffer rawData) {
+    return decode(handle, encodedData, encodedBytes, rawData);
+  }
+
+  /**
+   * Decodes a packet, or conceals a lost one, and time-scales the result in a single native
+   * call.  Each codec has its own time scaler at its own sample rate, separate from
+   * {@link org.thoughtcrime.redphone.audio.PacketLossConcealer}'s.  At rates close enough to 1
+   * the scaling pass is skipped and the frames are decoded straight into the output, after any
+   * audio the scaler held back.  Both buffers are read from their start, ignoring position.
+   *
+   * @param out a direct buffer from {@link #allocateShorts(int)}, with room for the packet at
+   * the slowest rate.
+   * @return the number of samples written to out, or -1 on error.
+   */
+  @Override
+  public int decodeAndChangeSpeed(ByteBuffer encodedData, int encodedBytes, ShortBuffer out,
+                                  float rate)
+  {
+    return decodeAndChangeSpeed(handle, encodedData, encodedBytes, out, rate);
+  }
 
   @Override
-  public void terminate() {
-    closeSpeex();
+  public boolean canDecodeAndChangeSpeed() {
+    return true;
+  }
+
+  /**
+   * Encodes one frame in place.  Both buffers are read from their start, ignoring position.
+   *
+   * @param rawData a direct buffer from {@link #allocateShorts(int)} holding a frame.
+   * @return the number of bytes written to encodedData, or -1 on error.
+   */
+  public int encode(ShortBuffer rawData, int rawSamples, ByteBuffer encodedData) {
+    return encode(handle, rawData, rawSamples, encodedData);
   }
 
   @Override
-  public native int decode(byte[] encodedData, short[] rawData, int encLen);
+  public int decode(byte[] encodedData, short[] rawData, int encLen) {
+    // Native code fills the whole buffer if it can, so size it to the caller's array.
+    if (rawData.length != decodeOutput.capacity()) {
+      decodeOutput = allocateShorts(rawData.length);
+    }
+
+    ByteBuffer input = null;
+
+    if (encodedData != null) {
+      if (encLen > decodeInput.capacity()) {
+        decodeInput = ByteBuffer.allocateDirect(encLen);
+      }
+
+      decodeInput.clear();
+      decodeInput.put(encodedData, 0, encLen);
+      input = decodeInput;
+    }
+
+    int decoded = decode(handle, input, encLen, decodeOutput);
+
+    if (decoded > 0) {
+      decodeOutput.clear();
+      decodeOutput.get(rawData, 0, decoded);
+    }
+
+    return decoded;
+  }
 
   @Override
-  public native int encode(short[] rawData, byte[] encodedData, int rawLen);
+  public int encode(short[] rawData, byte[] encodedData, int rawLen) {
+    if (rawLen > encodeInput.capacity()) {
+      encodeInput = allocateShorts(rawLen);
+    }
+
+    encodeInput.clear();
+    encodeInput.put(rawData, 0, rawLen);
+
+    int encoded = encode(handle, encodeInput, rawLen, encodeOutput);
+
+    if (encoded > 0) {
+      encodeOutput.clear();
+      encodeOutput.get(encodedData, 0, encoded);
+    }
+
+    return encoded;
+  }
+
+  private static native long openSpeex(boolean wideband);
+
+  private static native void closeSpeex(long handle);
+
+  private static native int decode(long handle, ByteBuffer encodedData, int encLen, ShortBuffer rawData);
+
+  private static native int decodeAndChangeSpeed(long handle, ByteBuffer encodedData, int encLen,
+                                                 ShortBuffer out, float rate);
+
+  private static native int encode(long handle, ShortBuffer rawData, int rawLen, ByteBuffer encodedData);
 }
@@ -0,0 +1,24 @@
+package com.securecomcode.voice;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * A test case that only measures and logs, and can take minutes to do so.  The normal suite
+ * skips these; to run them, turn the Benchmark log tag on first:
+ *
+ *   adb shell setprop log.tag.Benchmark VERBOSE
+ */
+public abstract class BenchmarkTestCase extends AndroidTestCase {
+  private static final String TAG = "Benchmark";
+
+  @Override
+  public void runBare() throws Throwable {
+    if (!Log.isLoggable(TAG, Log.VERBOSE)) {
+      Log.i(TAG, "Skipping " + getClass().getSimpleName() + "." + getName());
+      return;
+    }
+
+    super.runBare();
+  }
+}
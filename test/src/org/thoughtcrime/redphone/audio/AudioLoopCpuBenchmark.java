@@ -0,0 +1,193 @@
+package com.securecomcode.voice.audio;
+
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.securecomcode.voice.ApplicationContext;
+import com.securecomcode.voice.BenchmarkTestCase;
+import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.crypto.SecureRtpPacket;
+import com.securecomcode.voice.crypto.SecureRtpSocket;
+import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.monitor.SystemMetrics;
+import com.securecomcode.voice.network.RtpAudioReader;
+import com.securecomcode.voice.network.RtpSocket;
+import com.securecomcode.voice.ui.ApplicationPreferencesActivity;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Runs a real {@link CallAudioManager} against a peer on loopback, once with the polling
+ * loop and once with the event loop, and compares the process CPU time each spends per
+ * call-minute.  The microphone and speaker are real, so this needs a device.
+ *
+ * The peer sends a Speex packet every 40ms and times the gaps between the packets it gets
+ * back.  A loop that sleeps too long shows up there, as a late or bunched send.  The peer's
+ * own CPU time is left out of the comparison.
+ *
+ * Only the send gap is asserted.  The CPU figures are logged for comparison: on a desktop
+ * JVM with paced stand-ins for the microphone and speaker the two loops came out within
+ * noise of each other, so there is no margin to hold the event loop to.
+ */
+public class AudioLoopCpuBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "AudioLoopCpuBenchmark";
+
+  private static final int CALL_MILLIS            = 30000;
+  private static final int PACKET_INTERVAL_MILLIS = 40;
+
+  private SharedPreferences preferences;
+  private boolean           wasLegacyLoop;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationContext.getInstance().setContext(getContext());
+    preferences   = PreferenceManager.getDefaultSharedPreferences(getContext());
+    wasLegacyLoop = preferences.getBoolean(ApplicationPreferencesActivity.LEGACY_AUDIO_LOOP, false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    preferences.edit().putBoolean(ApplicationPreferencesActivity.LEGACY_AUDIO_LOOP, wasLegacyLoop).commit();
+    super.tearDown();
+  }
+
+  public void testCpuPerCallMinute() throws Exception {
+    runCall(false); // warms up the JIT, which would otherwise be charged to whichever loop runs first
+
+    Call polling = runCall(true);
+    Call event   = runCall(false);
+
+    Log.d(TAG, "Per call-minute: polling " + polling.cpuMillisPerMinute + "ms CPU, " +
+               "p95 send gap " + polling.p95SendGapMillis + "ms; event " +
+               event.cpuMillisPerMinute + "ms CPU, p95 send gap " + event.p95SendGapMillis + "ms");
+
+    assertTrue(event.p95SendGapMillis <= polling.p95SendGapMillis + PACKET_INTERVAL_MILLIS / 2);
+  }
+
+  private Call runCall(boolean legacyLoop) throws Exception {
+    preferences.edit().putBoolean(ApplicationPreferencesActivity.LEGACY_AUDIO_LOOP, legacyLoop).commit();
+
+    int         localPort  = findFreePort();
+    int         remotePort = findFreePort();
+    CallMonitor monitor    = new CallMonitor(getContext());
+
+    SecureRtpSocket local  = new SecureRtpSocket(new RtpSocket(getContext(), localPort,
+                                                               new InetSocketAddress("127.0.0.1", remotePort), null),
+                                                 monitor);
+    SecureRtpSocket remote = new SecureRtpSocket(new RtpSocket(getContext(), remotePort,
+                                                               new InetSocketAddress("127.0.0.1", localPort), null),
+                                                 monitor);
+
+    byte[] cipherKey = new byte[16], macKey = new byte[20], salt = new byte[14];
+    Arrays.fill(cipherKey, (byte)1);
+    Arrays.fill(macKey, (byte)2);
+    Arrays.fill(salt, (byte)3);
+
+    local.setKeys(cipherKey, macKey, salt, new byte[16], new byte[20], new byte[14]);
+    remote.setKeys(new byte[16], new byte[20], new byte[14], cipherKey, macKey, salt);
+
+    final CallAudioManager manager = new CallAudioManager(local, "SPEEX", getContext(), monitor);
+    Thread audioThread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          manager.run();
+        } catch (Exception e) {
+          Log.w(TAG, e);
+        }
+      }
+    };
+
+    SystemMetrics metrics = new SystemMetrics();
+    Call          call    = new Call();
+
+    try {
+      audioThread.start();
+      metrics.sample();
+      long peerStart = Debug.threadCpuTimeNanos();
+      long callStart = SystemClock.elapsedRealtime();
+
+      call.p95SendGapMillis   = runPeer(remote);
+      long peerMillis         = (Debug.threadCpuTimeNanos() - peerStart) / 1000000;
+      long callMillis         = SystemClock.elapsedRealtime() - callStart;
+      call.cpuMillisPerMinute = (Long)metrics.sample().get("process-cpu-msec-per-minute") -
+                                peerMillis * 60000 / callMillis;
+    } finally {
+      manager.terminate();
+      audioThread.join();
+      local.close();
+      remote.close();
+    }
+
+    return call;
+  }
+
+  /**
+   * Sends paced two-frame Speex packets for the length of a call, and receives the packets
+   * the call sends back.
+   *
+   * @return the 95th percentile gap between packets received, in milliseconds.
+   */
+  private long runPeer(SecureRtpSocket remote) throws Exception {
+    AudioCodec codec = AudioCodec.getInstance("SPEEX");
+    codec.waitForInitializationComplete();
+
+    byte[] encoded = new byte[512];
+    int    length  = codec.encode(new short[2 * AudioCodec.SAMPLES_PER_FRAME], encoded,
+                                  2 * AudioCodec.SAMPLES_PER_FRAME);
+    codec.terminate();
+
+    SecureRtpPacket outgoing = new SecureRtpPacket(length);
+    SecureRtpPacket incoming = new SecureRtpPacket(RtpAudioReader.MAX_PAYLOAD_SIZE);
+    long[]          gaps     = new long[CALL_MILLIS / 10];
+    int             gapCount = 0;
+    long            lastReceived = 0;
+
+    remote.setTimeout(1);
+
+    long start = SystemClock.uptimeMillis();
+    long next  = start;
+
+    for (int sequence=0;SystemClock.uptimeMillis() - start < CALL_MILLIS;) {
+      long now = SystemClock.uptimeMillis();
+
+      if (now >= next) {
+        outgoing.setPayload(encoded, length);
+        outgoing.setSequenceNumber(sequence++);
+        remote.send(outgoing);
+        next += PACKET_INTERVAL_MILLIS;
+      }
+
+      int status;
+      while ((status = remote.receive(incoming)) != SecureRtpSocket.RECEIVE_NONE) {
+        if (status != SecureRtpSocket.RECEIVE_OK) continue;
+
+        now = SystemClock.uptimeMillis();
+        if (lastReceived != 0 && gapCount < gaps.length) gaps[gapCount++] = now - lastReceived;
+        lastReceived = now;
+      }
+    }
+
+    assertTrue(gapCount > 0);
+    Arrays.sort(gaps, 0, gapCount);
+    return gaps[gapCount * 95 / 100];
+  }
+
+  private static int findFreePort() throws Exception {
+    DatagramSocket probe = new DatagramSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    return port;
+  }
+
+  private static class Call {
+    long cpuMillisPerMinute;
+    long p95SendGapMillis;
+  }
+}
@@ -0,0 +1,56 @@
+package com.securecomcode.voice.audio;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.codec.G711AudioCodec;
+
+import org.thoughtcrime.redphone.codec.SpeexCodec;
+
+public class CallAudioFormatTest extends AndroidTestCase {
+
+  public void testNarrowbandMatchesCodecConstants() {
+    CallAudioFormat format = CallAudioFormat.NARROWBAND;
+
+    assertEquals(AudioCodec.SAMPLE_RATE, format.getSampleRate());
+    assertEquals(AudioCodec.SAMPLES_PER_FRAME, format.getSamplesPerFrame());
+    assertEquals(AudioCodec.FRAME_RATE, format.getFrameRate());
+    assertEquals(2 * AudioCodec.SAMPLES_PER_FRAME, format.getSamplesPerPacket());
+  }
+
+  public void testForCodec() {
+    CallAudioFormat format = CallAudioFormat.forCodec(new G711AudioCodec());
+
+    assertEquals(8000, format.getSampleRate());
+    assertEquals(20, format.getFrameMillis());
+
+    CallAudioFormat wideband = new CallAudioFormat(SpeexCodec.WIDEBAND_SAMPLE_RATE, 20, 2);
+    assertEquals(320, wideband.getSamplesPerFrame());
+  }
+
+  public void testConversions() {
+    CallAudioFormat wideband = new CallAudioFormat(16000, 20, 2);
+    CallAudioFormat short10  = new CallAudioFormat(8000, 10, 2);
+
+    // the player's buffer steps
+    assertEquals(50, CallAudioFormat.NARROWBAND.millisToSamples(6.25f));
+    assertEquals(100, wideband.millisToSamples(6.25f));
+
+    assertEquals(24f, CallAudioFormat.NARROWBAND.millisToFrames(480), 0);
+    assertEquals(48f, short10.millisToFrames(480), 0);
+    assertEquals(80, short10.getSamplesPerFrame());
+    assertEquals(100, short10.getFrameRate());
+
+    assertEquals(250, wideband.samplesToMillis(4000));
+    assertEquals(1600, wideband.fromSavedSamples(800));
+    assertEquals(800, wideband.toSavedSamples(1600));
+  }
+
+  public void testRejectsFractionalFrames() {
+    try {
+      new CallAudioFormat(11025, 20, 2);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
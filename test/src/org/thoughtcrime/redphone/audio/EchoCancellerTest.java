@@ -0,0 +1,119 @@
+package com.securecomcode.voice.audio;
+
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public class EchoCancellerTest extends AndroidTestCase {
+  private static final String TAG = "EchoCancellerTest";
+
+  public void testFarEndReferenceFollowsPlayout() {
+    FakeSink        sink      = new FakeSink();
+    FarEndReference reference = new FarEndReference(sink, 100);
+    short[]         chunk     = new short[40];
+    short[]         out       = new short[10];
+
+    for (int i=0;i<chunk.length;i++) chunk[i] = (short)i;
+    reference.writeChunk(chunk, chunk.length);
+    reference.writeChunk(chunk, chunk.length);
+
+    sink.remaining = 50;
+    assertEquals(30, reference.getPlayPosition());
+
+    reference.read(out, out.length, 10);
+    for (int i=0;i<out.length;i++) assertEquals(20 + i, out[i]);
+
+    reference.read(out, out.length, 35);
+    for (int i=0;i<5;i++) assertEquals(0, out[i]);
+    for (int i=5;i<out.length;i++) assertEquals(i - 5, out[i]);
+  }
+
+  public void testFarEndReferenceForgetsOldAudio() {
+    FakeSink        sink      = new FakeSink();
+    FarEndReference reference = new FarEndReference(sink, 50);
+    short[]         chunk     = new short[40];
+    short[]         out       = new short[10];
+
+    java.util.Arrays.fill(chunk, (short)7);
+    for (int i=0;i<3;i++) reference.writeChunk(chunk, chunk.length);
+
+    reference.read(out, out.length, 60);
+    for (short sample : out) assertEquals(0, sample);
+
+    reference.read(out, out.length, 40);
+    for (short sample : out) assertEquals(7, sample);
+  }
+
+  public void testCancelsSyntheticEcho() {
+    EchoHarness harness = new EchoHarness(200, false, false);
+
+    EchoHarness.Report narrowband = harness.run(
+        EchoHarness.Pair.synthesize("narrowband", 1, 8000, 10, 30, false), 4);
+    EchoHarness.Report wideband   = harness.run(
+        EchoHarness.Pair.synthesize("wideband", 2, 16000, 10, 30, false), 4);
+
+    Log.d(TAG, narrowband.toString());
+    Log.d(TAG, wideband.toString());
+
+    assertTrue(narrowband.getErle() > 10);
+    assertTrue(wideband.getErle() > 10);
+  }
+
+  public void testFullChainCost() {
+    EchoHarness harness = new EchoHarness(200, true, true);
+
+    Log.d(TAG, harness.run(EchoHarness.Pair.synthesize("double-talk", 3, 8000, 10, 60, true), 4).toString());
+    Log.d(TAG, harness.run(EchoHarness.Pair.synthesize("double-talk-wb", 4, 16000, 10, 60, true), 4).toString());
+  }
+
+  /**
+   * Runs every NAME-near.wav and NAME-far.wav pair dropped into echo-pairs/ on external storage.
+   */
+  public void testRecordedPairs() throws IOException {
+    File   directory = new File(Environment.getExternalStorageDirectory(), "echo-pairs");
+    File[] files     = directory.listFiles();
+
+    if (files == null) return;
+
+    EchoHarness harness = new EchoHarness(200, false, false);
+
+    for (File near : files) {
+      if (!near.getName().endsWith("-near.wav")) continue;
+
+      String name = near.getName().substring(0, near.getName().length() - "-near.wav".length());
+      File   far  = new File(directory, name + "-far.wav");
+      if (!far.exists()) continue;
+
+      FileInputStream nearIn = new FileInputStream(near);
+      FileInputStream farIn  = new FileInputStream(far);
+      try {
+        Log.d(TAG, harness.run(EchoHarness.Pair.read(name, nearIn, farIn), 2).toString());
+      } finally {
+        nearIn.close();
+        farIn.close();
+      }
+    }
+  }
+
+  private static class FakeSink implements AudioSink {
+    int remaining;
+
+    @Override
+    public void update() {}
+
+    @Override
+    public void writeChunk(short[] chunk, int chunkLen) {}
+
+    @Override
+    public int getBufferRemaining() {
+      return remaining;
+    }
+
+    @Override
+    public void terminate() {}
+  }
+}
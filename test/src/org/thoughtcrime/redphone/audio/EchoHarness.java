@@ -0,0 +1,246 @@
+package com.securecomcode.voice.audio;
+
+import org.thoughtcrime.redphone.audio.EchoCanceller;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs the {@link VoiceProcessor} offline over a near-end recording and the far-end audio that
+ * was playing while it was made, and reports how much echo it removed and what it cost.
+ *
+ * Pairs are read from 16 bit mono WAV files whose samples line up, or synthesized: far-end
+ * speech played through a simulated room and added to quieter near-end speech.
+ */
+public class EchoHarness {
+
+  public static class Pair {
+    final String  name;
+    final int     sampleRate;
+    final short[] near;
+    final short[] far;
+
+    public Pair(String name, int sampleRate, short[] near, short[] far) {
+      this.name       = name;
+      this.sampleRate = sampleRate;
+      this.near       = near;
+      this.far        = far;
+    }
+
+    public static Pair read(String name, InputStream near, InputStream far) throws IOException {
+      int[]   nearRate = new int[1];
+      int[]   farRate  = new int[1];
+      short[] nearData = readWav(near, nearRate);
+      short[] farData  = readWav(far, farRate);
+
+      if (nearRate[0] != farRate[0]) {
+        throw new IOException("Sample rates differ: " + nearRate[0] + " and " + farRate[0]);
+      }
+
+      return new Pair(name, nearRate[0], nearData, farData);
+    }
+
+    /**
+     * @param echoDelayMillis how long the far end takes to get from the speaker to the microphone.
+     * @param doubleTalk whether the near end talks over the far end.
+     */
+    public static Pair synthesize(String name, long seed, int sampleRate, int seconds,
+                                  int echoDelayMillis, boolean doubleTalk)
+    {
+      Random  random  = new Random(seed);
+      short[] far     = speech(random, sampleRate, seconds, 8000);
+      short[] talker  = doubleTalk ? speech(random, sampleRate, seconds, 3000) : new short[far.length];
+      float[] room    = roomResponse(random, sampleRate, echoDelayMillis);
+      short[] near    = new short[far.length];
+
+      for (int i=0;i<near.length;i++) {
+        double echo = 0;
+        for (int k=0;k<room.length && k<=i;k++) {
+          if (room[k] != 0) echo += room[k] * far[i - k];
+        }
+        near[i] = clip(echo + talker[i] + random.nextGaussian() * 30);
+      }
+
+      return new Pair(name, sampleRate, near, far);
+    }
+
+    private static float[] roomResponse(Random random, int sampleRate, int delayMillis) {
+      int     delay   = sampleRate * delayMillis / 1000;
+      int     tail    = sampleRate / 20;
+      float[] room    = new float[delay + tail];
+
+      for (int k=0;k<tail;k++) {
+        room[delay + k] = (float)(random.nextGaussian() * 0.25 * Math.exp(-k * 8.0 / tail));
+      }
+      room[delay] = 0.5f;
+
+      return room;
+    }
+
+    private static short[] speech(Random random, int sampleRate, int seconds, int amplitude) {
+      short[] speech  = new short[sampleRate * seconds];
+      int     segment = sampleRate / 4;
+      double  phase   = 0, y1 = 0, y2 = 0;
+
+      for (int start=0;start<speech.length;start+=segment) {
+        int    kind      = random.nextInt(3); // 0 pause, 1 noise, 2 voiced
+        double pitch     = 90 + random.nextInt(150);
+        double formant   = 400 + random.nextInt(1800);
+        double r         = Math.exp(-Math.PI * 150 / sampleRate);
+        double a1        = 2 * r * Math.cos(2 * Math.PI * formant / sampleRate);
+
+        for (int i=start;i<Math.min(start + segment, speech.length);i++) {
+          double excitation = 0;
+
+          if (kind == 1) {
+            excitation = random.nextGaussian() * 0.2;
+          } else if (kind == 2) {
+            phase += pitch / sampleRate;
+            if (phase >= 1) {
+              phase     -= 1;
+              excitation = 1;
+            }
+          }
+
+          double y = (1 - r) * excitation + a1 * y1 - r * r * y2;
+          y2 = y1;
+          y1 = y;
+          speech[i] = clip(y * amplitude * 8);
+        }
+      }
+
+      return speech;
+    }
+  }
+
+  public static class Report {
+    String name;
+    int    frames;
+    double erle;
+    double meanMicros;
+    double maxMicros;
+
+    public double getErle() {
+      return erle;
+    }
+
+    public double getMeanMicros() {
+      return meanMicros;
+    }
+
+    @Override
+    public String toString() {
+      return name + ": frames=" + frames + " erle=" + String.format("%.1f", erle) + "dB" +
+             " mean=" + String.format("%.0f", meanMicros) + "us" +
+             " max=" + String.format("%.0f", maxMicros) + "us";
+    }
+  }
+
+  private final int     tailMillis;
+  private final boolean denoise;
+  private final boolean agc;
+
+  public EchoHarness(int tailMillis, boolean denoise, boolean agc) {
+    this.tailMillis = tailMillis;
+    this.denoise    = denoise;
+    this.agc        = agc;
+  }
+
+  /**
+   * @param skipSeconds how long to let the filter converge before ERLE is counted.
+   */
+  public Report run(Pair pair, int skipSeconds) {
+    int            frameSize = pair.sampleRate / 50;
+    EchoCanceller  canceller = new EchoCanceller(frameSize, pair.sampleRate, tailMillis, denoise, agc);
+    VoiceProcessor processor = new VoiceProcessor(canceller, null, 0);
+    short[]        near      = new short[frameSize];
+    short[]        far       = new short[frameSize];
+    Report         report    = new Report();
+    int            skip      = skipSeconds * 50;
+
+    report.name = pair.name;
+
+    try {
+      for (int offset=0;offset + frameSize<=Math.min(pair.near.length, pair.far.length);offset+=frameSize) {
+        System.arraycopy(pair.near, offset, near, 0, frameSize);
+        System.arraycopy(pair.far, offset, far, 0, frameSize);
+
+        if (report.frames == skip) {
+          processor.sample();
+        }
+
+        processor.process(near, far);
+        report.frames++;
+      }
+
+      report.erle = processor.getErle();
+
+      Map<String, Object> stats = processor.sample();
+      report.meanMicros = ((Number)stats.get("process-us")).doubleValue();
+      report.maxMicros  = ((Number)stats.get("max-process-us")).doubleValue();
+    } finally {
+      processor.terminate();
+    }
+
+    return report;
+  }
+
+  static short clip(double sample) {
+    return (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample)));
+  }
+
+  /**
+   * Reads a RIFF WAV file of 16 bit little-endian mono PCM.
+   */
+  static short[] readWav(InputStream in, int[] sampleRate) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    byte[]          tag  = new byte[4];
+
+    data.readFully(tag);
+    if (!"RIFF".equals(new String(tag, "US-ASCII"))) throw new IOException("Not a RIFF file");
+    readIntLE(data);
+    data.readFully(tag);
+    if (!"WAVE".equals(new String(tag, "US-ASCII"))) throw new IOException("Not a WAVE file");
+
+    while (true) {
+      data.readFully(tag);
+      String chunk  = new String(tag, "US-ASCII");
+      int    length = readIntLE(data);
+
+      if ("fmt ".equals(chunk)) {
+        int format   = readShortLE(data);
+        int channels = readShortLE(data);
+        sampleRate[0] = readIntLE(data);
+        readIntLE(data);
+        readShortLE(data);
+        int bits     = readShortLE(data);
+        data.skipBytes(length - 16);
+
+        if (format != 1 || channels != 1 || bits != 16) {
+          throw new IOException("Only 16 bit mono PCM is supported");
+        }
+      } else if ("data".equals(chunk)) {
+        short[] samples = new short[length / 2];
+        for (int i=0;i<samples.length;i++) samples[i] = (short)readShortLE(data);
+        return samples;
+      } else {
+        data.skipBytes(length + (length & 1));
+      }
+    }
+  }
+
+  private static int readShortLE(DataInputStream in) throws IOException {
+    int low  = in.readUnsignedByte();
+    int high = in.readByte();
+    return (high << 8) | low;
+  }
+
+  private static int readIntLE(DataInputStream in) throws IOException {
+    int low  = readShortLE(in) & 0xffff;
+    int high = readShortLE(in);
+    return (high << 16) | low;
+  }
+}
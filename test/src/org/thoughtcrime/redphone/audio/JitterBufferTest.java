@@ -0,0 +1,279 @@
+package com.securecomcode.voice.audio;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.ApplicationContext;
+import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.network.PacketReservoir;
+import com.securecomcode.voice.network.RtpAudioReader;
+import com.securecomcode.voice.network.RtpAudioSender;
+import com.securecomcode.voice.profiling.PacketLogger;
+import com.securecomcode.voice.util.AndroidClock;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class JitterBufferTest extends AndroidTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationContext.getInstance().setContext(getContext());
+  }
+
+  public void testMatchesTreeMap() {
+    Random random = new Random(1234);
+    JitterBuffer buffer = new JitterBuffer(32);
+    TreeMapJitterBuffer reference = new TreeMapJitterBuffer();
+    long base = 0;
+
+    for (int i=0;i<100000;i++) {
+      long sequenceNumber = base + random.nextInt(24) - 6;
+
+      switch (random.nextInt(4)) {
+      case 0:
+      case 1:
+        if (buffer.isTooOld(sequenceNumber) || buffer.isTooNew(sequenceNumber)) break;
+        EncodedAudioData frame = new EncodedAudioData(1);
+        frame.set(1, sequenceNumber, sequenceNumber);
+        assertSame(reference.put(frame), buffer.put(frame));
+        break;
+      case 2:
+        assertSame(reference.pollFirst(), buffer.pollFirst());
+        base++;
+        break;
+      case 3:
+        assertSame(reference.remove(sequenceNumber), buffer.remove(sequenceNumber));
+        break;
+      }
+
+      assertEquals(reference.size(), buffer.size());
+      assertSame(reference.first(), buffer.first());
+      assertSame(reference.get(sequenceNumber), buffer.get(sequenceNumber));
+      if (reference.size() != 0) {
+        assertEquals(reference.firstSequenceNumber(), buffer.firstSequenceNumber());
+        assertEquals(reference.lastSequenceNumber(), buffer.lastSequenceNumber());
+      }
+    }
+  }
+
+  public void testReplayedTracesPlayOutIdentically() throws IOException {
+    for (int seed=0;seed<8;seed++) {
+      String trace = createTrace(seed, 3000);
+
+      List<String> expected = replay(trace, new TreeMapJitterBuffer());
+      List<String> actual   = replay(trace, new JitterBuffer(128));
+
+      assertFalse(expected.isEmpty());
+      assertEquals("trace " + seed, expected, actual);
+    }
+  }
+
+  /**
+   * Feeds a trace in the {@link PacketLogger} file format through a {@link CallAudioProvider}:
+   * every PLAY_QUEUE_INSERT line delivers that frame and every PLAYHEAD line pulls one frame.
+   * Returns the playout decisions the provider logged along the way.
+   */
+  private List<String> replay(String trace, JitterBuffer jitterBuffer) throws IOException {
+    PacketReservoir reservoir = new PacketReservoir(RtpAudioReader.MAX_PAYLOAD_SIZE, 64);
+    DecisionLogger decisions  = new DecisionLogger();
+    CallAudioProvider provider = createProvider(jitterBuffer, reservoir, decisions);
+
+    BufferedReader reader = new BufferedReader(new StringReader(trace));
+    String line;
+
+    while ((line = reader.readLine()) != null) {
+      String[] fields = line.split(" ");
+      long sequenceNumber = Long.parseLong(fields[1]);
+      int stage           = Integer.parseInt(fields[2]);
+
+      if (stage == PacketLogger.PLAY_QUEUE_INSERT) {
+        EncodedAudioData frame = reservoir.getPacket();
+        frame.set(2, sequenceNumber, sequenceNumber / RtpAudioSender.LEGACY_FRAMES_PER_PACKET);
+        provider.addFrame(frame);
+      } else if (stage == PacketLogger.PLAYHEAD) {
+        provider.getFrame();
+        decisions.add("size " + provider.getFrameSize());
+      }
+    }
+
+    provider.terminate();
+    return decisions.events;
+  }
+
+  public void testComfortNoiseIsNotLoss() {
+    assertEquals(0, lostDuringPause(true), 0.001);
+    assertTrue(lostDuringPause(false) > 0);
+  }
+
+  /**
+   * Plays a call whose far end pauses after five frames and resumes at frame 30, sending a
+   * comfort noise packet at the start of the pause or nothing at all.
+   *
+   * @return the loss rate the delay chooser saw.
+   */
+  private float lostDuringPause(boolean comfortNoise) {
+    PacketReservoir reservoir  = new PacketReservoir(RtpAudioReader.MAX_PAYLOAD_SIZE, 64);
+    CallAudioProvider provider = createProvider(new JitterBuffer(128), reservoir,
+                                                new PacketLogger());
+
+    for (long sequenceNumber=0;sequenceNumber<40;sequenceNumber++) {
+      boolean paused = sequenceNumber >= 5 && sequenceNumber < 30;
+
+      if (!paused || (comfortNoise && sequenceNumber == 5)) {
+        EncodedAudioData frame = reservoir.getPacket();
+        frame.set(2, sequenceNumber, sequenceNumber);
+        if (paused) frame.setSilent(50);
+        provider.addFrame(frame);
+      }
+
+      short[] audio = provider.getFrame();
+
+      //the noise fades in over the first frame of the pause
+      if (paused && comfortNoise && sequenceNumber > 5) {
+        assertTrue(provider.getFrameSize() >= AudioCodec.SAMPLES_PER_FRAME / 2);
+        assertEquals(-50, VoiceActivityDetector.getLevel(audio, provider.getFrameSize()), 3);
+      }
+    }
+
+    provider.terminate();
+    return CallLogger.lostCount;
+  }
+
+  private CallAudioProvider createProvider(JitterBuffer jitterBuffer, PacketReservoir reservoir,
+                                           PacketLogger packetLogger)
+  {
+    DesiredCallAudioDelayChooser delayChooser =
+        new DesiredCallAudioDelayChooser(packetLogger, CallAudioFormat.NARROWBAND,
+                                         AndroidClock.INSTANCE, 2.5f, false);
+    return new CallAudioProvider(new FixedFrameCodec(), CallAudioFormat.NARROWBAND, jitterBuffer,
+                                 delayChooser, reservoir, packetLogger, new CallLogger(),
+                                 new CallMonitor(getContext()));
+  }
+
+  /**
+   * Synthesizes a call in the PacketLogger trace format: two frames per packet every 40ms,
+   * with network jitter, loss, duplication, reordering and the occasional long dropout, played
+   * out at one frame every 20ms.
+   */
+  private String createTrace(long seed, int frames) {
+    Random random     = new Random(seed);
+    List<long[]> events = new ArrayList<long[]>();
+    long dropoutUntil = 0;
+
+    for (int packet=0;packet<frames/RtpAudioSender.LEGACY_FRAMES_PER_PACKET;packet++) {
+      long sent = packet * 20 * RtpAudioSender.LEGACY_FRAMES_PER_PACKET;
+
+      if (random.nextInt(500) == 0) dropoutUntil = sent + 200 + random.nextInt(1500);
+      if (random.nextInt(20) == 0) continue;
+
+      long arrival = Math.max(sent, dropoutUntil) + 30 + random.nextInt(60);
+      int copies   = random.nextInt(50) == 0 ? 2 : 1;
+
+      for (int copy=0;copy<copies;copy++) {
+        for (int frame=0;frame<RtpAudioSender.LEGACY_FRAMES_PER_PACKET;frame++) {
+          events.add(new long[] {arrival + copy * random.nextInt(100),
+                                 packet * RtpAudioSender.LEGACY_FRAMES_PER_PACKET + frame,
+                                 PacketLogger.PLAY_QUEUE_INSERT});
+        }
+      }
+    }
+
+    for (long time=0;time<frames*20;time+=20) {
+      events.add(new long[] {time, -1, PacketLogger.PLAYHEAD});
+    }
+
+    Collections.sort(events, new Comparator<long[]>() {
+      public int compare(long[] lhs, long[] rhs) {
+        return lhs[0] < rhs[0] ? -1 : (lhs[0] > rhs[0] ? 1 : 0);
+      }
+    });
+
+    StringBuilder trace = new StringBuilder();
+    for (long[] event : events) {
+      trace.append(event[0]).append(' ')
+           .append(event[1]).append(' ')
+           .append(event[2]).append(' ')
+           .append(-1).append('\n');
+    }
+    return trace.toString();
+  }
+
+  private static class DecisionLogger extends PacketLogger {
+    final List<String> events = new ArrayList<String>();
+
+    void add(String event) {
+      events.add(event);
+    }
+
+    @Override
+    public void logPacket(long packetNumber, int stage, int extra) {
+      switch (stage) {
+      case PACKET_DECODED:
+      case PLAYHEAD:
+      case PLAYHEAD_JUMP_FORWARD:
+      case PLAYHEAD_JUMP_BACK:
+      case PLAY_BUFFER_EMPTY:
+      case FILLING_GAP:
+        events.add(stage + " " + packetNumber);
+      }
+    }
+  }
+
+  private static class FixedFrameCodec extends AudioCodec {
+    @Override
+    public int decode(byte[] encodedData, short[] rawData, int encodedBytes) {
+      return AudioCodec.SAMPLES_PER_FRAME;
+    }
+
+    @Override
+    public int encode(short[] rawData, byte[] encodedData, int rawSamples) {
+      return 0;
+    }
+  }
+
+  /**
+   * The TreeMap frame store CallAudioProvider used before the jitter buffer, kept as the
+   * reference behaviour.
+   */
+  private static class TreeMapJitterBuffer extends JitterBuffer {
+    private final TreeMap<Long, EncodedAudioData> frames = new TreeMap<Long, EncodedAudioData>();
+
+    TreeMapJitterBuffer() {
+      super(1);
+    }
+
+    @Override public int size() { return frames.size(); }
+    @Override public EncodedAudioData get(long sequenceNumber) { return frames.get(sequenceNumber); }
+    @Override public long firstSequenceNumber() { return frames.firstKey(); }
+    @Override public long lastSequenceNumber() { return frames.lastKey(); }
+    @Override public boolean isTooOld(long sequenceNumber) { return false; }
+    @Override public boolean isTooNew(long sequenceNumber) { return false; }
+    @Override public EncodedAudioData remove(long sequenceNumber) { return frames.remove(sequenceNumber); }
+
+    @Override
+    public EncodedAudioData first() {
+      return frames.isEmpty() ? null : frames.firstEntry().getValue();
+    }
+
+    @Override
+    public EncodedAudioData put(EncodedAudioData frame) {
+      return frames.put(frame.sequenceNumber, frame);
+    }
+
+    @Override
+    public EncodedAudioData pollFirst() {
+      Map.Entry<Long, EncodedAudioData> entry = frames.pollFirstEntry();
+      return entry == null ? null : entry.getValue();
+    }
+  }
+}
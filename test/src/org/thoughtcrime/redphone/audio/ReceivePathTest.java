@@ -0,0 +1,190 @@
+package com.securecomcode.voice.audio;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.ApplicationContext;
+import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.crypto.SecureRtpPacket;
+import com.securecomcode.voice.crypto.SecureRtpSocket;
+import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.network.PacketReservoir;
+import com.securecomcode.voice.network.RtpAudioReader;
+import com.securecomcode.voice.network.RtpSocket;
+import com.securecomcode.voice.profiling.PacketLogger;
+import com.securecomcode.voice.util.AndroidClock;
+import com.securecomcode.voice.util.Factory;
+import com.securecomcode.voice.util.RingBuffer;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+/**
+ * Sends SRTP audio packets over loopback and plays them through the receive path a call
+ * builds: {@link SecureRtpSocket}, {@link RtpAudioReader}, {@link CallAudioStream} and
+ * {@link CallAudioProvider}, returning frames to a {@link PacketReservoir}.  Each cycle waits
+ * for the packet on a selector, then drains the socket and plays, as the call's event loop does.
+ */
+public class ReceivePathTest extends AndroidTestCase {
+
+  private static final int PAYLOAD_SIZE = 20;
+  private static final int WARM_UP      = 200;
+  private static final int PACKETS      = 2000;
+
+  private final byte[] silence = new byte[PAYLOAD_SIZE];
+
+  private SecureRtpSocket sender;
+  private SecureRtpSocket receiver;
+  private Selector        selector;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationContext.getInstance().setContext(getContext());
+
+    int senderPort   = findFreePort();
+    int receiverPort = findFreePort();
+    CallMonitor monitor = new CallMonitor(getContext());
+
+    sender   = new SecureRtpSocket(new RtpSocket(getContext(), senderPort,
+                                                 new InetSocketAddress("127.0.0.1", receiverPort), null),
+                                   monitor);
+    receiver = new SecureRtpSocket(new RtpSocket(getContext(), receiverPort,
+                                                 new InetSocketAddress("127.0.0.1", senderPort), null),
+                                   monitor);
+
+    byte[] cipherKey = new byte[16], macKey = new byte[20], salt = new byte[14];
+    Arrays.fill(cipherKey, (byte)1);
+    Arrays.fill(macKey, (byte)2);
+    Arrays.fill(salt, (byte)3);
+
+    sender.setKeys(new byte[16], new byte[20], new byte[14], cipherKey, macKey, salt);
+    receiver.setKeys(cipherKey, macKey, salt, new byte[16], new byte[20], new byte[14]);
+    selector = Selector.open();
+    receiver.register(selector);
+    receiver.setTimeout(0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    selector.close();
+    sender.close();
+    receiver.close();
+    super.tearDown();
+  }
+
+  public void testSteadyStateReceiveDoesNotAllocate() throws Exception {
+    CallAudioFormat format    = CallAudioFormat.NARROWBAND;
+    PacketLogger    logger    = new PacketLogger();
+    PacketReservoir reservoir = new PacketReservoir(RtpAudioReader.MAX_PAYLOAD_SIZE, 64);
+
+    RingBuffer<EncodedAudioData> incomingAudio =
+        new RingBuffer<EncodedAudioData>(RtpAudioReader.MAX_QUEUED_FRAMES, new Factory<EncodedAudioData>() {
+          public EncodedAudioData getInstance() {
+            return new EncodedAudioData(RtpAudioReader.MAX_PAYLOAD_SIZE);
+          }
+        });
+
+    CallAudioProvider provider =
+        new CallAudioProvider(new SilentCodec(), format, new JitterBuffer(256),
+                              new DesiredCallAudioDelayChooser(logger, format, AndroidClock.INSTANCE,
+                                                               format.millisToFrames(80), false),
+                              reservoir, logger, new CallLogger(), new CallMonitor(getContext()));
+
+    RtpAudioReader  reader = new RtpAudioReader(incomingAudio, receiver, format.getSamplesPerFrame(), logger);
+    CallAudioStream stream = new CallAudioStream(incomingAudio, reservoir, provider,
+                                                 new PacketClockSink(), 0, format, logger);
+    SecureRtpPacket packet = new SecureRtpPacket(PAYLOAD_SIZE);
+
+    for (int i=0;i<WARM_UP;i++) receiveOne(i, packet, reader, stream);
+
+    int  allocatingCycles = 0;
+    long start            = SystemClock.uptimeMillis();
+
+    Debug.startAllocCounting();
+    try {
+      for (int i=WARM_UP;i<PACKETS;i++) {
+        sendOne(i, packet);
+
+        int before = Debug.getThreadAllocCount();
+        assertEquals(1, reader.drain());
+        stream.go();
+        if (Debug.getThreadAllocCount() != before) allocatingCycles++;
+      }
+    } finally {
+      Debug.stopAllocCounting();
+    }
+
+    //the only allocations left are the diagnostics logged every 500 packets and every 5 seconds
+    long elapsed = SystemClock.uptimeMillis() - start;
+    assertTrue(allocatingCycles <= (PACKETS - WARM_UP) / 500 + 1 + elapsed / 5000 + 1);
+    assertEquals(0, reservoir.getForeignReturns());
+  }
+
+  private void receiveOne(int sequence, SecureRtpPacket packet, RtpAudioReader reader,
+                          CallAudioStream stream)
+      throws Exception
+  {
+    sendOne(sequence, packet);
+    assertEquals(1, reader.drain());
+    stream.go();
+  }
+
+  private void sendOne(int sequence, SecureRtpPacket packet) throws Exception {
+    packet.setPayload(silence, PAYLOAD_SIZE);
+    packet.setSequenceNumber(sequence);
+    sender.send(packet);
+
+    assertTrue(selector.select(1000) > 0);
+    selector.selectedKeys().clear();
+  }
+
+  private static int findFreePort() throws Exception {
+    DatagramSocket probe = new DatagramSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    return port;
+  }
+
+  /**
+   * Decodes every packet to the two frames of silence a legacy packet carries.
+   */
+  private static class SilentCodec extends AudioCodec {
+    @Override
+    public int decode(byte[] encodedData, short[] rawData, int encodedBytes) {
+      int samples = encodedData == null ? SAMPLES_PER_FRAME : 2 * SAMPLES_PER_FRAME;
+      Arrays.fill(rawData, 0, samples, (short)0);
+      return samples;
+    }
+
+    @Override
+    public int encode(short[] rawData, byte[] encodedData, int rawSamples) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * A track that plays one packet's worth of audio each cycle, so the player asks for one
+   * packet per packet received.
+   */
+  private static class PacketClockSink implements AudioSink {
+    private int remaining;
+
+    public void update() {
+      remaining = Math.max(0, remaining - 2 * AudioCodec.SAMPLES_PER_FRAME);
+    }
+
+    public void writeChunk(short[] chunk, int chunkLen) {
+      remaining += chunkLen;
+    }
+
+    public int getBufferRemaining() {
+      return remaining;
+    }
+
+    public void terminate() {}
+  }
+}
@@ -0,0 +1,500 @@
+package com.securecomcode.voice.audio;
+
+import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.network.PacketReservoir;
+import com.securecomcode.voice.network.RtpAudioSender;
+import com.securecomcode.voice.profiling.PacketLogger;
+import com.securecomcode.voice.util.Clock;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays a packet arrival trace through the playout pipeline ({@link CallAudioProvider},
+ * {@link DesiredCallAudioDelayChooser}, {@link DropoutTracker} and
+ * {@link LatencyMinimizingAudioPlayer}) on a simulated clock and audio track, and reports how
+ * the call would have sounded.
+ *
+ * Traces are either read from a {@link PacketLogger} packetData.txt file or synthesized from a
+ * simple jitter, loss and dropout model.  Nothing runs in real time, so a long call replays in
+ * a fraction of a second and every run of the same trace gives the same result.
+ *
+ * Each trace has a fixed number of frames per packet, so the cost of larger or smaller packets
+ * can be compared on the same network, and each packet can carry a redundant copy of the one
+ * before it, as with forward error correction.
+ */
+public class TraceReplayHarness {
+
+  private static final int  FRAME_MILLIS  = 1000 / AudioCodec.FRAME_RATE;
+  private static final int  TICK_MILLIS   = 5;
+  //RTP header and MAC, as the chooser counts it
+  private static final int  PACKET_OVERHEAD_BYTES = 32;
+  private static final long MAX_DRAIN_MILLIS = 5000;
+
+  //DropoutTracker stamps events with uptime and counts them against wall time, as on a device
+  private static final long WALL_CLOCK_OFFSET = 1300000000000L;
+
+  private final CallMonitor monitor;
+  private float initialFrameDelay  = 5f;
+  private int   initialBufferLevel = 900;
+  private boolean redundancy;
+
+  public TraceReplayHarness(CallMonitor monitor) {
+    this.monitor = monitor;
+  }
+
+  /**
+   * Sets the saved starting levels a call would load from preferences.
+   */
+  public void setInitialLevels(float frameDelay, int bufferLevel) {
+    this.initialFrameDelay  = frameDelay;
+    this.initialBufferLevel = bufferLevel;
+  }
+
+  /**
+   * Has every packet carry a redundant copy of the packet before it.
+   */
+  public void setRedundancy(boolean redundancy) {
+    this.redundancy = redundancy;
+  }
+
+  public Report run(Trace trace) {
+    ReplayClock    clock    = new ReplayClock(trace.getStartTime());
+    ReplayLogger   logger   = new ReplayLogger();
+    ReplayCodec    codec    = new ReplayCodec();
+    ReplayTrack    track    = new ReplayTrack(clock, logger, trace);
+    Report         report   = new Report(trace.name);
+    PacketReservoir reservoir = new PacketReservoir(1, 64);
+
+    DesiredCallAudioDelayChooser delayChooser =
+        new DesiredCallAudioDelayChooser(logger, CallAudioFormat.NARROWBAND, clock,
+                                         initialFrameDelay, false);
+    CallAudioProvider provider =
+        new CallAudioProvider(codec, CallAudioFormat.NARROWBAND, new JitterBuffer(128),
+                              delayChooser, reservoir, logger, new CallLogger(), monitor);
+    LatencyMinimizingAudioPlayer player =
+        new LatencyMinimizingAudioPlayer(provider, track, initialBufferLevel,
+                                         CallAudioFormat.NARROWBAND, clock);
+
+    Set<Long> arrived = new HashSet<Long>();
+    int framesPerPacket = trace.framesPerPacket;
+    long lastFrame = (trace.getLastSequenceNumber() + 1) * framesPerPacket - 1;
+    long firstSequenceNumber = trace.getFirstSequenceNumber();
+    long end = trace.getEndTime() + MAX_DRAIN_MILLIS;
+    int next = 0;
+
+    //run until the playhead has passed the last packet, so the silence after the call isn't counted
+    while (clock.now <= end && (next < trace.size() || logger.playhead <= lastFrame)) {
+      while (next < trace.size() && trace.arrivalTimes[next] <= clock.now) {
+        long sequenceNumber = trace.sequenceNumbers[next++];
+
+        if (redundancy && sequenceNumber > firstSequenceNumber) {
+          EncodedAudioData copy = reservoir.getPacket();
+          copy.set(framesPerPacket, (sequenceNumber - 1) * framesPerPacket, sequenceNumber - 1);
+          copy.frames    = framesPerPacket;
+          copy.redundant = true;
+          provider.addFrame(copy);
+        }
+
+        EncodedAudioData frame = reservoir.getPacket();
+        //one byte per frame, so the codec can tell how many frames to decode
+        frame.set(framesPerPacket, sequenceNumber * framesPerPacket, sequenceNumber);
+        frame.frames = framesPerPacket;
+        provider.addFrame(frame);
+        arrived.add(sequenceNumber);
+      }
+
+      player.update();
+      clock.now += TICK_MILLIS;
+    }
+
+    arrived.retainAll(logger.decoded);
+
+    report.framesPerPacket  = framesPerPacket;
+    report.packetsSent      = trace.getPacketsSent();
+    report.packetsArrived   = trace.getPacketsArrived();
+    report.packetsPlayed    = arrived.size();
+    report.samplesDecoded   = codec.samplesDecoded;
+    report.samplesConcealed = codec.samplesConcealed;
+    report.samplesPlayed    = track.samplesPlayed;
+    report.delays           = track.delays;
+    return report;
+  }
+
+  /**
+   * Packet arrival times, keyed by the sequence numbers the jitter buffer sees.
+   */
+  public static class Trace {
+    private final String name;
+    private final long[] arrivalTimes;
+    private final long[] sequenceNumbers;
+    private final long   sendOffset;
+    private final int    framesPerPacket;
+    private final int    packetMillis;
+
+    /**
+     * @param sendOffset the time packet 0 was sent, so packet n was sent at
+     *                   sendOffset + n * framesPerPacket * FRAME_MILLIS.
+     */
+    Trace(String name, List<long[]> arrivals, long sendOffset, int framesPerPacket) {
+      Collections.sort(arrivals, new Comparator<long[]>() {
+        public int compare(long[] lhs, long[] rhs) {
+          return lhs[0] < rhs[0] ? -1 : (lhs[0] > rhs[0] ? 1 : 0);
+        }
+      });
+
+      this.name            = name;
+      this.sendOffset      = sendOffset;
+      this.framesPerPacket = framesPerPacket;
+      this.packetMillis    = framesPerPacket * FRAME_MILLIS;
+      this.arrivalTimes    = new long[arrivals.size()];
+      this.sequenceNumbers = new long[arrivals.size()];
+
+      for (int i=0;i<arrivals.size();i++) {
+        arrivalTimes[i]    = arrivals.get(i)[0];
+        sequenceNumbers[i] = arrivals.get(i)[1];
+      }
+    }
+
+    /**
+     * Reads the packets received in a {@link PacketLogger} packetData.txt file.  The sender's
+     * clock isn't in the log, so send times are anchored to the fastest packet: delays are
+     * reported relative to a network with that packet's transit time.  Packets are taken to
+     * hold {@link RtpAudioSender#LEGACY_FRAMES_PER_PACKET} frames.
+     */
+    public static Trace read(String name, Reader in) throws IOException {
+      BufferedReader reader     = new BufferedReader(in);
+      List<long[]>   received   = new ArrayList<long[]>();
+      List<long[]>   queued     = new ArrayList<long[]>();
+      String         line;
+
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.trim().split(" ");
+        if (fields.length < 3) continue;
+
+        int stage = Integer.parseInt(fields[2]);
+        long[] arrival = new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])};
+
+        if      (stage == PacketLogger.PACKET_RECEIVED)   received.add(arrival);
+        else if (stage == PacketLogger.PLAY_QUEUE_INSERT) queued.add(arrival);
+      }
+
+      List<long[]> arrivals = received.isEmpty() ? queued : received;
+      int  framesPerPacket = RtpAudioSender.LEGACY_FRAMES_PER_PACKET;
+      long sendOffset = Long.MAX_VALUE;
+
+      for (long[] arrival : arrivals) {
+        sendOffset = Math.min(sendOffset, arrival[0] - arrival[1] * framesPerPacket * FRAME_MILLIS);
+      }
+
+      return new Trace(name, arrivals, arrivals.isEmpty() ? 0 : sendOffset, framesPerPacket);
+    }
+
+    /**
+     * Synthesizes a call over a network with uniform jitter, independent loss and occasional
+     * dropouts during which nothing is delivered.
+     */
+    public static Trace synthesize(String name, long seed, int packets, int baseDelay,
+                                   int jitter, double lossRate, double dropoutRate,
+                                   int maxDropoutMillis)
+    {
+      return synthesize(name, seed, RtpAudioSender.LEGACY_FRAMES_PER_PACKET,
+                        packets * RtpAudioSender.LEGACY_FRAMES_PER_PACKET, baseDelay, jitter,
+                        lossRate, dropoutRate, maxDropoutMillis);
+    }
+
+    /**
+     * As above, for a call of the given number of frames sent framesPerPacket at a time.  The
+     * network treats every packet alike whatever its size, so runs with the same seed see the
+     * same conditions at different packet rates.
+     */
+    public static Trace synthesize(String name, long seed, int framesPerPacket, int frames,
+                                   int baseDelay, int jitter, double lossRate,
+                                   double dropoutRate, int maxDropoutMillis)
+    {
+      Random       random       = new Random(seed);
+      List<long[]> arrivals     = new ArrayList<long[]>();
+      long         dropoutUntil = 0;
+      int          packetMillis = framesPerPacket * FRAME_MILLIS;
+
+      for (int packet=0;packet<frames/framesPerPacket;packet++) {
+        long sent = packet * packetMillis;
+
+        if (random.nextDouble() < dropoutRate) {
+          dropoutUntil = sent + random.nextInt(maxDropoutMillis + 1);
+        }
+
+        if (random.nextDouble() < lossRate) continue;
+
+        long arrival = Math.max(sent, dropoutUntil) + baseDelay + random.nextInt(jitter + 1);
+        arrivals.add(new long[] {arrival, packet});
+      }
+
+      return new Trace(name, arrivals, 0, framesPerPacket);
+    }
+
+    /**
+     * Synthesizes a call over a network that loses packets in bursts, with a two state
+     * Gilbert-Elliott model: every packet sent in the bad state is lost, and bursts last
+     * meanBurstLength packets on average.
+     */
+    public static Trace synthesizeBursty(String name, long seed, int framesPerPacket, int frames,
+                                         int baseDelay, int jitter, double lossRate,
+                                         double meanBurstLength)
+    {
+      Random       random       = new Random(seed);
+      List<long[]> arrivals     = new ArrayList<long[]>();
+      int          packetMillis = framesPerPacket * FRAME_MILLIS;
+      double       recover      = 1 / meanBurstLength;
+      double       degrade      = lossRate * recover / (1 - lossRate);
+      boolean      bad          = false;
+
+      for (int packet=0;packet<frames/framesPerPacket;packet++) {
+        bad = bad ? random.nextDouble() >= recover : random.nextDouble() < degrade;
+        if (bad) continue;
+
+        long arrival = packet * packetMillis + baseDelay + random.nextInt(jitter + 1);
+        arrivals.add(new long[] {arrival, packet});
+      }
+
+      return new Trace(name, arrivals, 0, framesPerPacket);
+    }
+
+    int size() {
+      return arrivalTimes.length;
+    }
+
+    long getStartTime() {
+      return size() == 0 ? 0 : arrivalTimes[0];
+    }
+
+    long getEndTime() {
+      return size() == 0 ? 0 : arrivalTimes[size() - 1];
+    }
+
+    long getMouthTime(long sequenceNumber) {
+      return sendOffset + sequenceNumber * packetMillis - packetMillis;
+    }
+
+    long getFirstSequenceNumber() {
+      long first = Long.MAX_VALUE;
+      for (long sequenceNumber : sequenceNumbers) first = Math.min(first, sequenceNumber);
+      return first;
+    }
+
+    long getLastSequenceNumber() {
+      long last = Long.MIN_VALUE;
+      for (long sequenceNumber : sequenceNumbers) last = Math.max(last, sequenceNumber);
+      return last;
+    }
+
+    int getPacketsSent() {
+      if (size() == 0) return 0;
+      return (int)(getLastSequenceNumber() - getFirstSequenceNumber() + 1);
+    }
+
+    int getPacketsArrived() {
+      Set<Long> unique = new HashSet<Long>();
+      for (long sequenceNumber : sequenceNumbers) unique.add(sequenceNumber);
+      return unique.size();
+    }
+  }
+
+  public static class Report {
+    private final String trace;
+    private int framesPerPacket, packetsSent, packetsArrived, packetsPlayed;
+    private long samplesDecoded, samplesConcealed, samplesPlayed;
+    private List<Integer> delays;
+
+    Report(String trace) {
+      this.trace = trace;
+    }
+
+    /**
+     * Milliseconds from capture of a packet's first sample to it leaving the speaker,
+     * excluding device buffering on either side.
+     */
+    public int getMouthToEarPercentile(int percentile) {
+      if (delays.isEmpty()) return -1;
+
+      Integer[] sorted = delays.toArray(new Integer[delays.size()]);
+      Arrays.sort(sorted);
+      return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    public float getMeanMouthToEar() {
+      if (delays.isEmpty()) return -1;
+
+      long total = 0;
+      for (int delay : delays) total += delay;
+      return total / (float)delays.size();
+    }
+
+    /**
+     * Fraction of the decoded audio that had to be synthesized.
+     */
+    public float getConcealmentRate() {
+      return samplesDecoded == 0 ? 0 : samplesConcealed / (float)samplesDecoded;
+    }
+
+    /**
+     * Samples played per sample decoded: above 1 the call was stretched, below 1 shrunk.
+     */
+    public float getTimeStretchRatio() {
+      return samplesDecoded == 0 ? 1 : samplesPlayed / (float)samplesDecoded;
+    }
+
+    /**
+     * Fraction of sent packets that arrived but were discarded as too late to play.
+     */
+    public float getLateLossRate() {
+      return packetsSent == 0 ? 0 : (packetsArrived - packetsPlayed) / (float)packetsSent;
+    }
+
+    public float getNetworkLossRate() {
+      return packetsSent == 0 ? 0 : (packetsSent - packetsArrived) / (float)packetsSent;
+    }
+
+    /**
+     * Bits per second spent on packet headers and MACs rather than audio.
+     */
+    public int getOverheadBitrate() {
+      return PACKET_OVERHEAD_BYTES * 8 * 1000 / (framesPerPacket * FRAME_MILLIS);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "%s: frames/packet=%d overhead=%dbps mouth-to-ear mean=%.1fms p50=%dms p95=%dms " +
+          "concealment=%.3f stretch=%.4f late-loss=%.4f network-loss=%.4f",
+          trace, framesPerPacket, getOverheadBitrate(), getMeanMouthToEar(), getMouthToEarPercentile(50), getMouthToEarPercentile(95),
+          getConcealmentRate(), getTimeStretchRatio(), getLateLossRate(), getNetworkLossRate());
+    }
+  }
+
+  private static class ReplayClock implements Clock {
+    private long now;
+
+    ReplayClock(long start) {
+      this.now = start;
+    }
+
+    public long uptimeMillis() {
+      return now;
+    }
+
+    public long currentTimeMillis() {
+      return WALL_CLOCK_OFFSET + now;
+    }
+  }
+
+  private static class ReplayLogger extends PacketLogger {
+    private final Set<Long> decoded = new HashSet<Long>();
+    private long lastDecoded = -1;
+    private long playhead    = Long.MIN_VALUE;
+
+    @Override
+    public void logPacket(long packetNumber, int stage, int extra) {
+      switch (stage) {
+      case PACKET_DECODED:
+        decoded.add(packetNumber);
+        lastDecoded = packetNumber;
+        break;
+      case PLAYHEAD:
+        playhead = packetNumber;
+        break;
+      }
+    }
+  }
+
+  /**
+   * Stands in for the codec: each byte of a packet decodes to a frame of samples, and a
+   * concealed frame to a single frame, as with Speex.
+   */
+  private static class ReplayCodec extends AudioCodec {
+    private long samplesDecoded, samplesConcealed;
+
+    @Override
+    public int decode(byte[] encodedData, short[] rawData, int encodedBytes) {
+      if (encodedData == null) {
+        samplesDecoded   += AudioCodec.SAMPLES_PER_FRAME;
+        samplesConcealed += AudioCodec.SAMPLES_PER_FRAME;
+        return AudioCodec.SAMPLES_PER_FRAME;
+      }
+
+      samplesDecoded += AudioCodec.SAMPLES_PER_FRAME * encodedBytes;
+      return AudioCodec.SAMPLES_PER_FRAME * encodedBytes;
+    }
+
+    @Override
+    public int encode(short[] rawData, byte[] encodedData, int rawSamples) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * An audio track that plays SAMPLE_RATE samples per second of replay clock, stalling when it
+   * runs dry, and notes when each decoded packet reaches the speaker.
+   */
+  private static class ReplayTrack implements AudioSink {
+    private static final int PRIMING_SAMPLES = 2048;
+
+    private final ReplayClock   clock;
+    private final ReplayLogger  logger;
+    private final Trace         trace;
+    private final List<Integer> delays = new ArrayList<Integer>();
+
+    private boolean playing;
+    private long    lastUpdate;
+    private long    written, position;
+    private long    samplesPlayed;
+
+    ReplayTrack(ReplayClock clock, ReplayLogger logger, Trace trace) {
+      this.clock  = clock;
+      this.logger = logger;
+      this.trace  = trace;
+    }
+
+    public void update() {
+      if (!playing) {
+        playing    = true;
+        lastUpdate = clock.now;
+        written   += PRIMING_SAMPLES;
+      }
+    }
+
+    public void writeChunk(short[] chunk, int chunkLen) {
+      int remaining = getBufferRemaining();
+
+      if (logger.lastDecoded != -1) {
+        long earTime = clock.now + remaining * 1000L / AudioCodec.SAMPLE_RATE;
+        delays.add((int)(earTime - trace.getMouthTime(logger.lastDecoded)));
+        logger.lastDecoded = -1;
+      }
+
+      written       += chunkLen;
+      samplesPlayed += chunkLen;
+    }
+
+    public int getBufferRemaining() {
+      if (playing) {
+        position   = Math.min(written, position + (clock.now - lastUpdate) * AudioCodec.SAMPLE_RATE / 1000);
+        lastUpdate = clock.now;
+      }
+      return (int)(written - position);
+    }
+
+    public void terminate() {}
+  }
+}
@@ -0,0 +1,136 @@
+package com.securecomcode.voice.audio;
+
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.securecomcode.voice.ApplicationContext;
+import com.securecomcode.voice.monitor.CallMonitor;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+public class TraceReplayTest extends AndroidTestCase {
+  private static final String TAG = "TraceReplayTest";
+
+  private TraceReplayHarness harness;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationContext.getInstance().setContext(getContext());
+    harness = new TraceReplayHarness(new CallMonitor(getContext()));
+  }
+
+  public void testCleanNetwork() {
+    TraceReplayHarness.Report report = harness.run(
+        TraceReplayHarness.Trace.synthesize("clean", 1, 3000, 40, 0, 0, 0, 0));
+    Log.d(TAG, report.toString());
+
+    assertEquals(0f, report.getNetworkLossRate());
+    assertEquals(0f, report.getLateLossRate());
+    assertTrue(report.getConcealmentRate() < 0.01f);
+    assertTrue(report.getMouthToEarPercentile(50) > 40);
+  }
+
+  public void testLossIsConcealed() {
+    TraceReplayHarness.Report report = harness.run(
+        TraceReplayHarness.Trace.synthesize("lossy", 2, 3000, 40, 20, 0.05, 0, 0));
+    Log.d(TAG, report.toString());
+
+    assertTrue(report.getNetworkLossRate() > 0.03f);
+    assertTrue(report.getConcealmentRate() > 0.02f);
+  }
+
+  public void testReplayIsDeterministic() {
+    TraceReplayHarness.Trace trace =
+        TraceReplayHarness.Trace.synthesize("dropouts", 3, 3000, 60, 80, 0.01, 0.005, 1500);
+
+    assertEquals(harness.run(trace).toString(), harness.run(trace).toString());
+  }
+
+  public void testNetworkConditions() {
+    TraceReplayHarness.Trace[] traces = {
+      TraceReplayHarness.Trace.synthesize("wifi",       4, 3000, 20,  15, 0.005, 0,     0),
+      TraceReplayHarness.Trace.synthesize("3g",         5, 3000, 120, 80, 0.02,  0.002, 800),
+      TraceReplayHarness.Trace.synthesize("congested",  6, 3000, 80, 200, 0.05,  0.005, 1500),
+      TraceReplayHarness.Trace.synthesize("handovers",  7, 3000, 60,  40, 0.01,  0.01,  3000),
+    };
+
+    for (TraceReplayHarness.Trace trace : traces) {
+      Log.d(TAG, harness.run(trace).toString());
+    }
+  }
+
+  /**
+   * The same networks with one, two and four frames in each packet: larger packets save
+   * header bandwidth but add their length to the delay.
+   */
+  public void testFramesPerPacket() {
+    for (int framesPerPacket : new int[] {1, 2, 4}) {
+      TraceReplayHarness.Report clean = harness.run(TraceReplayHarness.Trace.synthesize(
+          "clean", 8, framesPerPacket, 6000, 40, 0, 0, 0, 0));
+      TraceReplayHarness.Report wifi  = harness.run(TraceReplayHarness.Trace.synthesize(
+          "wifi", 9, framesPerPacket, 6000, 20, 15, 0.005, 0, 0));
+      TraceReplayHarness.Report lossy = harness.run(TraceReplayHarness.Trace.synthesize(
+          "lossy", 10, framesPerPacket, 6000, 40, 20, 0.05, 0, 0));
+
+      Log.d(TAG, clean.toString());
+      Log.d(TAG, wifi.toString());
+      Log.d(TAG, lossy.toString());
+
+      assertEquals(12800 / framesPerPacket, clean.getOverheadBitrate());
+      assertTrue(clean.getConcealmentRate() < 0.01f);
+    }
+  }
+
+  /**
+   * Concealment with and without a redundant copy of the previous packet in each one, at 5, 10
+   * and 20% loss, spread at random and in bursts of three packets on average.
+   */
+  public void testForwardErrorCorrection() {
+    for (double lossRate : new double[] {0.05, 0.10, 0.20}) {
+      int percent = (int)Math.round(lossRate * 100);
+      TraceReplayHarness.Trace random = TraceReplayHarness.Trace.synthesize(
+          "random-" + percent + "%", 11, 2, 6000, 40, 20, lossRate, 0, 0);
+      TraceReplayHarness.Trace bursty = TraceReplayHarness.Trace.synthesizeBursty(
+          "bursty-" + percent + "%", 12, 2, 6000, 40, 20, lossRate, 3);
+
+      for (TraceReplayHarness.Trace trace : new TraceReplayHarness.Trace[] {random, bursty}) {
+        harness.setRedundancy(false);
+        TraceReplayHarness.Report plain = harness.run(trace);
+        harness.setRedundancy(true);
+        TraceReplayHarness.Report fec   = harness.run(trace);
+
+        Log.d(TAG, "without fec " + plain);
+        Log.d(TAG, "with fec    " + fec);
+
+        assertTrue(fec.getConcealmentRate() < plain.getConcealmentRate());
+      }
+
+      //a single copy rebuilds nearly every isolated loss
+      harness.setRedundancy(true);
+      assertTrue(harness.run(random).getConcealmentRate() < lossRate * lossRate * 2);
+    }
+  }
+
+  /**
+   * Replays every packetData.txt style log dropped into packet-traces/ on external storage.
+   */
+  public void testRecordedTraces() throws IOException {
+    File directory = new File(Environment.getExternalStorageDirectory(), "packet-traces");
+    File[] files   = directory.listFiles();
+
+    if (files == null) return;
+
+    for (File file : files) {
+      FileReader reader = new FileReader(file);
+      try {
+        Log.d(TAG, harness.run(TraceReplayHarness.Trace.read(file.getName(), reader)).toString());
+      } finally {
+        reader.close();
+      }
+    }
+  }
+}
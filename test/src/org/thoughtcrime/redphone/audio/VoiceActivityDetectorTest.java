@@ -0,0 +1,272 @@
+package com.securecomcode.voice.audio;
+
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.network.RtpAudioSender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class VoiceActivityDetectorTest extends AndroidTestCase {
+  private static final String TAG = "VoiceActivityDetectorTest";
+
+  private static final int SAMPLE_RATE = AudioCodec.SAMPLE_RATE;
+  private static final int FRAME       = AudioCodec.SAMPLES_PER_FRAME;
+
+  public void testBackgroundNoiseIsSilent() {
+    VoiceActivityDetector detector = new VoiceActivityDetector();
+    short[]               frame    = new short[FRAME];
+    Random                random   = new Random(1);
+    int                   speech   = 0;
+
+    for (int i=0;i<500;i++) {
+      for (int j=0;j<FRAME;j++) frame[j] = (short)(random.nextGaussian() * 300);
+      if (detector.isSpeech(frame, FRAME) && i >= 100) speech++;
+    }
+
+    assertEquals(0, speech);
+    assertEquals(41, detector.getNoiseLevel(), 2);
+  }
+
+  public void testHangoverKeepsWordEndings() {
+    VoiceActivityDetector detector = new VoiceActivityDetector();
+    short[]               silence  = new short[FRAME];
+    short[]               loud     = new short[FRAME];
+
+    for (int j=0;j<FRAME;j++) loud[j] = (short)(Math.sin(j * 0.3) * 8000);
+
+    for (int i=0;i<100;i++) assertFalse(detector.isSpeech(silence, FRAME));
+    assertTrue(detector.isSpeech(loud, FRAME));
+
+    for (int i=0;i<10;i++) assertTrue(detector.isSpeech(silence, FRAME));
+    assertFalse(detector.isSpeech(silence, FRAME));
+  }
+
+  public void testComfortNoiseMatchesLevel() {
+    ComfortNoiseGenerator generator = new ComfortNoiseGenerator();
+    short[]               frame     = new short[FRAME];
+
+    for (int level : new int[] {30, 45, 60}) {
+      generator.setNoiseLevel(level);
+      for (int i=0;i<100;i++) generator.generate(frame, FRAME);
+
+      double measured = 0;
+      for (int i=0;i<50;i++) {
+        generator.generate(frame, FRAME);
+        measured += VoiceActivityDetector.getLevel(frame, FRAME) / 50;
+      }
+
+      assertEquals(-level, measured, 1.5);
+    }
+  }
+
+  /**
+   * Synthetic two-way conversations with background noise from quiet to loud.  Reports the
+   * share of packets discontinuous transmission saves and the share of audible speech frames
+   * lost because they were judged silent.
+   */
+  public void testConversationSavings() {
+    for (int noiseLevel : new int[] {65, 55, 45}) {
+      Conversation conversation = Conversation.synthesize(noiseLevel, 120, noiseLevel);
+      Report       report       = run("synthetic-" + noiseLevel + "dBov", conversation.audio,
+                                      conversation.audible);
+
+      Log.d(TAG, report.toString());
+
+      assertTrue(report.toString(), report.getSavings() > 0.35);
+      assertTrue(report.toString(), report.getFalseClipRate() < 0.01);
+    }
+  }
+
+  /**
+   * Runs every 8kHz mono WAV recording dropped into conversations/ on external storage.
+   * Recordings have no speech labels, so only the savings are reported.
+   */
+  public void testRecordedConversations() throws IOException {
+    File   directory = new File(Environment.getExternalStorageDirectory(), "conversations");
+    File[] files     = directory.listFiles();
+
+    if (files == null) return;
+
+    for (File file : files) {
+      if (!file.getName().endsWith(".wav")) continue;
+
+      FileInputStream in = new FileInputStream(file);
+      try {
+        int[]   sampleRate = new int[1];
+        short[] audio      = EchoHarness.readWav(in, sampleRate);
+
+        if (sampleRate[0] != SAMPLE_RATE) continue;
+
+        Log.d(TAG, run(file.getName(), audio, null).toString());
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Packs frames into packets the way {@link RtpAudioSender} does with discontinuous
+   * transmission on: a packet goes out if any of its frames is speech, and otherwise only the
+   * first to start {@link RtpAudioSender#COMFORT_NOISE_INTERVAL_FRAMES} silent frames after the
+   * last one goes out, as comfort noise.
+   */
+  private Report run(String name, short[] audio, boolean[] audible) {
+    VoiceActivityDetector detector = new VoiceActivityDetector();
+    short[]               frame    = new short[FRAME];
+    int                   perPacket = RtpAudioSender.LEGACY_FRAMES_PER_PACKET;
+    int                   frames   = audio.length / FRAME / perPacket * perPacket;
+    boolean[]             speech   = new boolean[perPacket];
+    Report                report   = new Report(name);
+    int                   framesSinceComfortNoise = -1;
+
+    for (int start=0;start<frames;start+=perPacket) {
+      boolean silent = true;
+
+      for (int i=0;i<perPacket;i++) {
+        System.arraycopy(audio, (start + i) * FRAME, frame, 0, FRAME);
+        speech[i] = detector.isSpeech(frame, FRAME);
+        silent   &= !speech[i];
+      }
+
+      report.packets++;
+
+      if (silent) {
+        if (framesSinceComfortNoise >= 0 &&
+            framesSinceComfortNoise < RtpAudioSender.COMFORT_NOISE_INTERVAL_FRAMES)
+        {
+          framesSinceComfortNoise += perPacket;
+        } else {
+          framesSinceComfortNoise = perPacket;
+          report.comfortNoise++;
+        }
+      } else {
+        framesSinceComfortNoise = -1;
+        report.audio++;
+      }
+
+      if (audible != null) {
+        for (int i=0;i<perPacket;i++) {
+          if (!audible[start + i]) continue;
+          report.audibleFrames++;
+          if (silent) report.clippedFrames++;
+        }
+      }
+    }
+
+    return report;
+  }
+
+  private static class Report {
+    final String name;
+    int packets, audio, comfortNoise;
+    int audibleFrames, clippedFrames;
+
+    Report(String name) {
+      this.name = name;
+    }
+
+    double getSavings() {
+      return 1 - (audio + comfortNoise) / (double)packets;
+    }
+
+    double getFalseClipRate() {
+      return audibleFrames == 0 ? 0 : clippedFrames / (double)audibleFrames;
+    }
+
+    @Override
+    public String toString() {
+      return name + ": packets=" + packets + " audio=" + audio + " comfort-noise=" + comfortNoise +
+             " savings=" + String.format("%.1f", getSavings() * 100) + "%" +
+             (audibleFrames == 0 ? "" :
+              " false-clips=" + clippedFrames + "/" + audibleFrames +
+              " (" + String.format("%.2f", getFalseClipRate() * 100) + "%)");
+    }
+  }
+
+  /**
+   * One side of a conversation: talk spurts of a second or two made of syllables with soft
+   * attacks and decays, separated by pauses while the other side talks, over background noise.
+   * A frame is audible when its speech is louder than the noise under it.
+   */
+  private static class Conversation {
+    final short[]   audio;
+    final boolean[] audible;
+
+    Conversation(short[] audio, boolean[] audible) {
+      this.audio   = audio;
+      this.audible = audible;
+    }
+
+    static Conversation synthesize(long seed, int seconds, int noiseLevel) {
+      Random   random = new Random(seed);
+      double[] speech = new double[SAMPLE_RATE * seconds];
+      double   noiseRms = 32768 * Math.pow(10, -noiseLevel / 20.0);
+      int      position = 0;
+
+      while (position < speech.length) {
+        position += (int)(SAMPLE_RATE * (0.4 + random.nextDouble() * 2.5));
+
+        int spurtEnd = position + (int)(SAMPLE_RATE * (0.5 + random.nextDouble() * 2));
+        while (position < Math.min(spurtEnd, speech.length)) {
+          position  = syllable(random, speech, position);
+          position += (int)(SAMPLE_RATE * random.nextDouble() * 0.12);
+        }
+      }
+
+      short[]   audio   = new short[speech.length];
+      boolean[] audible = new boolean[speech.length / FRAME];
+      double    noise   = 0;
+
+      for (int i=0;i<audio.length;i++) {
+        noise    = 0.7 * noise + 0.3 * random.nextGaussian();
+        audio[i] = EchoHarness.clip(speech[i] + noise * noiseRms * 2.4);
+      }
+
+      for (int f=0;f<audible.length;f++) {
+        double sum = 0;
+        for (int i=f*FRAME;i<(f+1)*FRAME;i++) sum += speech[i] * speech[i];
+        audible[f] = Math.sqrt(sum / FRAME) > noiseRms;
+      }
+
+      return new Conversation(audio, audible);
+    }
+
+    private static int syllable(Random random, double[] speech, int start) {
+      int    length    = (int)(SAMPLE_RATE * (0.12 + random.nextDouble() * 0.2));
+      boolean voiced   = random.nextInt(4) != 0;
+      double amplitude = 1500 + random.nextInt(6000);
+      double pitch     = 90 + random.nextInt(150);
+      double formant   = 400 + random.nextInt(1800);
+      double r         = Math.exp(-Math.PI * 150 / SAMPLE_RATE);
+      double a1        = 2 * r * Math.cos(2 * Math.PI * formant / SAMPLE_RATE);
+      double phase     = 0, y1 = 0, y2 = 0;
+
+      for (int i=0;i<length && start + i<speech.length;i++) {
+        double excitation;
+
+        if (voiced) {
+          phase     += pitch / SAMPLE_RATE;
+          excitation = phase >= 1 ? 1 : 0;
+          if (phase >= 1) phase -= 1;
+        } else {
+          excitation = random.nextGaussian() * 0.2;
+        }
+
+        double y = (1 - r) * excitation + a1 * y1 - r * r * y2;
+        y2 = y1;
+        y1 = y;
+
+        double envelope = Math.sin(Math.PI * i / length);
+        speech[start + i] += y * amplitude * 8 * envelope;
+      }
+
+      return start + length;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.securecomcode.voice.codec;
+
+import android.test.AndroidTestCase;
+
+import org.thoughtcrime.redphone.codec.SpeexCodec;
+
+public class CodecPreloaderTest extends AndroidTestCase {
+
+  public void testTakesThePreloadedCodec() {
+    CodecPreloader preloader = new CodecPreloader();
+
+    AudioCodec wideband = preloader.take(CodecRegistry.SPEEX_WB);
+    preloader.release();
+
+    assertTrue(((SpeexCodec)wideband).isWideband());
+
+    wideband.waitForInitializationComplete();
+    short[] raw     = new short[wideband.getSamplesPerFrame()];
+    byte[]  encoded = new byte[512];
+    assertTrue(wideband.encode(raw, encoded, raw.length) > 0);
+    wideband.terminate();
+  }
+
+  public void testCreatesCodecsItDidNotPreload() {
+    CodecPreloader preloader = new CodecPreloader();
+
+    assertTrue(preloader.take(CodecRegistry.G711) instanceof G711AudioCodec);
+    preloader.release();
+  }
+
+  public void testEachCodecIsTakenOnce() {
+    CodecPreloader preloader = new CodecPreloader();
+
+    AudioCodec first  = preloader.take(CodecRegistry.SPEEX);
+    AudioCodec second = preloader.take(CodecRegistry.SPEEX);
+    preloader.release();
+
+    assertNotSame(first, second);
+
+    first.waitForInitializationComplete();
+    second.waitForInitializationComplete();
+    first.terminate();
+    second.terminate();
+  }
+
+  public void testReleaseCanBeCalledAgain() {
+    CodecPreloader preloader = new CodecPreloader();
+
+    preloader.release();
+    preloader.release();
+
+    AudioCodec codec = preloader.take(CodecRegistry.SPEEX);
+    codec.waitForInitializationComplete();
+    codec.terminate();
+  }
+}
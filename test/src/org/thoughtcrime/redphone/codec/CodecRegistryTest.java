@@ -0,0 +1,77 @@
+package com.securecomcode.voice.codec;
+
+import android.test.AndroidTestCase;
+
+import java.util.Map;
+
+public class CodecRegistryTest extends AndroidTestCase {
+
+  public void testNegotiationPrefersRegistryOrder() {
+    int local = CodecRegistry.getLocalCapabilities();
+
+    assertEquals(CodecRegistry.SPEEX_WB, CodecRegistry.negotiate(local, local));
+    assertEquals(CodecRegistry.SPEEX,    CodecRegistry.negotiate(local, 0x001));
+    assertEquals(CodecRegistry.SPEEX,    CodecRegistry.negotiate(local, 0x00D));
+  }
+
+  public void testOnlySelectableCodecsAreAdvertised() {
+    int local = CodecRegistry.getLocalCapabilities();
+
+    assertEquals(0x003, local);
+
+    for (CodecRegistry.Entry entry : CodecRegistry.getEntries()) {
+      if (entry.isAdvertised()) {
+        assertEquals(entry.getName(), CodecRegistry.negotiate(local, entry.getBit()));
+      }
+    }
+  }
+
+  public void testNegotiationIsSymmetric() {
+    for (int a=0;a<16;a++) {
+      for (int b=0;b<16;b++) {
+        assertEquals(CodecRegistry.negotiate(a, b), CodecRegistry.negotiate(b, a));
+      }
+    }
+  }
+
+  public void testNegotiationFallsBackToSpeex() {
+    assertEquals(CodecRegistry.SPEEX, CodecRegistry.negotiate(0x004, 0x008));
+    assertEquals(CodecRegistry.SPEEX, CodecRegistry.negotiate(CodecRegistry.getLocalCapabilities(), 0x080));
+  }
+
+  public void testFallbackCapabilities() {
+    assertEquals(0x001, CodecRegistry.getFallbackCapabilities());
+    assertEquals(CodecRegistry.FALLBACK,
+                 CodecRegistry.negotiate(CodecRegistry.getLocalCapabilities(),
+                                         CodecRegistry.getFallbackCapabilities()));
+  }
+
+  public void testBitsAreDistinct() {
+    int seen = 0, advertised = 0;
+
+    for (CodecRegistry.Entry entry : CodecRegistry.getEntries()) {
+      assertEquals(0, seen & entry.getBit());
+      seen |= entry.getBit();
+      if (entry.isAdvertised()) advertised |= entry.getBit();
+    }
+
+    assertEquals(CodecRegistry.getLocalCapabilities(), advertised);
+  }
+
+  public void testMeteredCodecReportsBitrate() {
+    MeteredAudioCodec codec = new MeteredAudioCodec(new G711AudioCodec(), CodecRegistry.G711);
+    short[]           raw   = new short[AudioCodec.SAMPLES_PER_FRAME * 2];
+    byte[]            data  = new byte[raw.length];
+
+    for (int i=0;i<50;i++) {
+      int length = codec.encode(raw, data, raw.length);
+      codec.decode(data, raw, length);
+    }
+
+    Map<String, Object> sample = codec.sample();
+    assertEquals(100L,   sample.get("encode-frames"));
+    assertEquals(64000L, sample.get("encode-bps"));
+    assertEquals(64000L, sample.get("decode-bps"));
+    assertEquals(0L,     codec.sample().get("encode-frames"));
+  }
+}
@@ -0,0 +1,65 @@
+package org.thoughtcrime.redphone.codec;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+import com.securecomcode.voice.codec.AudioCodec;
+
+import org.thoughtcrime.redphone.audio.PacketLossConcealer;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Times decoding a packet and then time scaling it, two JNI calls on Java arrays, against the
+ * single call on direct buffers the playout path makes for Speex.
+ */
+public class DecodeAndChangeSpeedBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "DecodeAndChangeSpeedBenchmark";
+
+  private static final int FRAME = AudioCodec.SAMPLES_PER_FRAME;
+
+  /**
+   * Reports the per-frame cost of each path at the rates the playout path uses.
+   */
+  public void testPerFrameCost() {
+    final int  iterations = 4000;
+    byte[][]   encoded    = DecodeAndChangeSpeedTest.encodeTone();
+    SpeexCodec codec      = DecodeAndChangeSpeedTest.open();
+
+    short[]     decoded = new short[FRAME];
+    short[]     scaled  = new short[4 * FRAME];
+    ByteBuffer  input   = ByteBuffer.allocateDirect(512);
+    ShortBuffer output  = SpeexCodec.allocateShorts(4 * FRAME);
+
+    try {
+      PacketLossConcealer.setSampleRate(AudioCodec.SAMPLE_RATE);
+
+      for (float rate : DecodeAndChangeSpeedTest.RATES) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i=0;i<iterations;i++) {
+          byte[] packet = encoded[i % DecodeAndChangeSpeedTest.FRAMES];
+          int    length = codec.decode(packet, decoded, packet.length);
+          PacketLossConcealer.changeSpeed(scaled, decoded, length, rate);
+        }
+        long separateMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i=0;i<iterations;i++) {
+          byte[] packet = encoded[i % DecodeAndChangeSpeedTest.FRAMES];
+          input.clear();
+          input.put(packet);
+          codec.decodeAndChangeSpeed(input, packet.length, output, rate);
+        }
+        long fusedMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.d(TAG, "rate " + rate + " per frame (us): separate=" +
+                   (separateMillis * 1000.0 / iterations) +
+                   " fused=" + (fusedMillis * 1000.0 / iterations));
+      }
+    } finally {
+      codec.terminate();
+    }
+  }
+}
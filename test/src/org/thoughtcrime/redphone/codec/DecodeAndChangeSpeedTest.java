@@ -0,0 +1,139 @@
+package org.thoughtcrime.redphone.codec;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.codec.AudioCodec;
+
+import org.thoughtcrime.redphone.audio.PacketLossConcealer;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Compares decoding a packet and then time scaling it, two JNI calls on Java arrays, with the
+ * single call on direct buffers the playout path makes for Speex.
+ */
+public class DecodeAndChangeSpeedTest extends AndroidTestCase {
+  private static final int FRAME = AudioCodec.SAMPLES_PER_FRAME;
+
+  static final int     FRAMES = 250;
+  static final float[] RATES  = {0.5f, 0.95f, 1.0f, 1.05f};
+
+  static SpeexCodec open() {
+    SpeexCodec codec = new SpeexCodec();
+    codec.waitForInitializationComplete();
+    return codec;
+  }
+
+  static byte[][] encodeTone() {
+    SpeexCodec codec   = open();
+    byte[][]   encoded = new byte[FRAMES][];
+    byte[]     buffer  = new byte[512];
+    short[]    frame   = new short[FRAME];
+
+    try {
+      for (int i=0;i<FRAMES;i++) {
+        for (int j=0;j<FRAME;j++) {
+          frame[j] = (short)(8000 * Math.sin(2 * Math.PI * 440 * (i * FRAME + j) / AudioCodec.SAMPLE_RATE));
+        }
+        encoded[i] = Arrays.copyOf(buffer, codec.encode(frame, buffer, FRAME));
+      }
+    } finally {
+      codec.terminate();
+    }
+
+    return encoded;
+  }
+
+  private static boolean isLost(int frame) {
+    return frame % 10 == 9;
+  }
+
+  private static float rateAt(int frame) {
+    return RATES[(frame / 25) % RATES.length];
+  }
+
+  public void testInstancesScaleIndependently() {
+    byte[][]    encoded   = encodeTone();
+    SpeexCodec  alone     = open();
+    SpeexCodec  shared    = open();
+    SpeexCodec  wideband  = new SpeexCodec(true);
+    ByteBuffer  input     = ByteBuffer.allocateDirect(512);
+    ShortBuffer output    = SpeexCodec.allocateShorts(4 * FRAME);
+    ShortBuffer widebandOutput = SpeexCodec.allocateShorts(8 * FRAME);
+    short[][]   expected  = new short[FRAMES][];
+
+    wideband.waitForInitializationComplete();
+
+    try {
+      for (int i=0;i<FRAMES;i++) {
+        input.clear();
+        input.put(encoded[i]);
+
+        int out = alone.decodeAndChangeSpeed(isLost(i) ? null : input, encoded[i].length,
+                                             output, rateAt(i));
+        expected[i] = new short[out];
+        output.clear();
+        output.get(expected[i]);
+      }
+
+      for (int i=0;i<FRAMES;i++) {
+        //another codec at another rate and sample rate, and the Java scaler, in between
+        wideband.decodeAndChangeSpeed(null, 0, widebandOutput, rateAt(i + 50));
+        PacketLossConcealer.setSampleRate(SpeexCodec.WIDEBAND_SAMPLE_RATE);
+
+        input.clear();
+        input.put(encoded[i]);
+
+        int out = shared.decodeAndChangeSpeed(isLost(i) ? null : input, encoded[i].length,
+                                              output, rateAt(i));
+
+        assertEquals("frame " + i, expected[i].length, out);
+        for (int j=0;j<out;j++) assertEquals("frame " + i, expected[i][j], output.get(j));
+      }
+    } finally {
+      alone.terminate();
+      shared.terminate();
+      wideband.terminate();
+    }
+  }
+
+  public void testMatchesSeparateCalls() {
+    byte[][]    encoded  = encodeTone();
+    SpeexCodec  separate = open();
+    SpeexCodec  fused    = open();
+    short[]     decoded  = new short[FRAME];
+    short[]     scaled   = new short[4 * FRAME];
+    short[][]   expected = new short[FRAMES][];
+    ByteBuffer  input    = ByteBuffer.allocateDirect(512);
+    ShortBuffer output   = SpeexCodec.allocateShorts(4 * FRAME);
+
+    try {
+      PacketLossConcealer.setSampleRate(AudioCodec.SAMPLE_RATE);
+
+      for (int i=0;i<FRAMES;i++) {
+        int length = isLost(i) ? separate.decode(null, decoded, 0)
+                               : separate.decode(encoded[i], decoded, encoded[i].length);
+        int out    = PacketLossConcealer.changeSpeed(scaled, decoded, length, rateAt(i));
+        expected[i] = Arrays.copyOf(scaled, out);
+      }
+
+      PacketLossConcealer.setSampleRate(AudioCodec.SAMPLE_RATE);
+
+      for (int i=0;i<FRAMES;i++) {
+        input.clear();
+        input.put(encoded[i]);
+
+        int out = fused.decodeAndChangeSpeed(isLost(i) ? null : input, encoded[i].length,
+                                             output, rateAt(i));
+
+        assertEquals("frame " + i, expected[i].length, out);
+        for (int j=0;j<out;j++) assertEquals("frame " + i, expected[i][j], output.get(j));
+      }
+    } finally {
+      separate.terminate();
+      fused.terminate();
+    }
+  }
+}
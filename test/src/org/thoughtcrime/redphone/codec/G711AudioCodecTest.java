@@ -0,0 +1,135 @@
+package com.securecomcode.voice.codec;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the table-driven G.711 codec against the ITU-T G.191 reference implementation
+ * (ulaw_compress, ulaw_expand, alaw_compress and alaw_expand in g711.c) for every input.
+ */
+public class G711AudioCodecTest extends AndroidTestCase {
+
+  public void testUlawMatchesReference() {
+    assertMatchesReference(new G711AudioCodec(false), false);
+  }
+
+  public void testAlawMatchesReference() {
+    assertMatchesReference(new G711AudioCodec(true), true);
+  }
+
+  public void testAnyFrameLength() {
+    G711AudioCodec codec   = new G711AudioCodec();
+    short[]        raw     = new short[480];
+    byte[]         encoded = new byte[480];
+    short[]        decoded = new short[480];
+
+    for (int i=0;i<raw.length;i++) raw[i] = (short)(Math.sin(i * 0.05) * 20000);
+
+    for (int length : new int[] {1, 80, 160, 240, 480}) {
+      assertEquals(length, codec.encode(raw, encoded, length));
+      assertEquals(length, codec.decode(encoded, decoded, length));
+
+      for (int i=0;i<length;i++) {
+        assertEquals(raw[i], decoded[i], Math.max(8, Math.abs(raw[i]) / 16));
+      }
+    }
+  }
+
+  public void testMissingFrameIsSilence() {
+    G711AudioCodec codec   = new G711AudioCodec();
+    short[]        decoded = new short[AudioCodec.SAMPLES_PER_FRAME];
+
+    java.util.Arrays.fill(decoded, (short)1000);
+
+    assertEquals(AudioCodec.SAMPLES_PER_FRAME, codec.decode(null, decoded, 0));
+    for (short sample : decoded) assertEquals(0, sample);
+  }
+
+  public void testFactory() {
+    assertTrue(AudioCodec.getInstance("G711") instanceof G711AudioCodec);
+    assertTrue(AudioCodec.getInstance("G711_ALAW") instanceof G711AudioCodec);
+  }
+
+  private static void assertMatchesReference(G711AudioCodec codec, boolean aLaw) {
+    short[] raw     = new short[65536];
+    byte[]  encoded = new byte[65536];
+    short[] decoded = new short[256];
+    byte[]  codes   = new byte[256];
+
+    for (int i=0;i<raw.length;i++) raw[i] = (short)(i - 32768);
+    codec.encode(raw, encoded, raw.length);
+
+    for (int i=0;i<raw.length;i++) {
+      int expected = aLaw ? alawCompress(raw[i]) : ulawCompress(raw[i]);
+      assertEquals("sample " + raw[i], expected, encoded[i] & 0xFF);
+    }
+
+    for (int i=0;i<codes.length;i++) codes[i] = (byte)i;
+    codec.decode(codes, decoded, codes.length);
+
+    for (int i=0;i<codes.length;i++) {
+      int expected = aLaw ? alawExpand(i) : ulawExpand(i);
+      assertEquals("code " + i, expected, decoded[i]);
+    }
+  }
+
+  // The G.191 reference routines, one sample at a time.
+
+  private static int ulawCompress(short lin) {
+    int absno = lin < 0 ? ((~lin) >> 2) + 33 : (lin >> 2) + 33;
+    if (absno > 0x1FFF) absno = 0x1FFF;
+
+    int i     = absno >> 6;
+    int segno = 1;
+    while (i != 0) {
+      segno++;
+      i >>= 1;
+    }
+
+    int highNibble = 0x0008 - segno;
+    int lowNibble  = 0x000F - ((absno >> segno) & 0x000F);
+    int log        = (highNibble << 4) | lowNibble;
+
+    if (lin >= 0) log |= 0x0080;
+    return log;
+  }
+
+  private static int ulawExpand(int log) {
+    int sign     = log < 0x0080 ? -1 : 1;
+    int mantissa = ~log;
+    int exponent = (mantissa >> 4) & 0x0007;
+    int segment  = exponent + 1;
+    mantissa     = mantissa & 0x000F;
+    int step     = 4 << segment;
+
+    return sign * ((0x0080 << exponent) + step * mantissa + step / 2 - 4 * 33);
+  }
+
+  private static int alawCompress(short lin) {
+    int ix = lin < 0 ? (~lin) >> 4 : lin >> 4;
+
+    if (ix > 15) {
+      int iexp = 1;
+      while (ix > 16 + 15) {
+        ix >>= 1;
+        iexp++;
+      }
+      ix -= 16;
+      ix += iexp << 4;
+    }
+
+    if (lin >= 0) ix |= 0x0080;
+    return ix ^ 0x0055;
+  }
+
+  private static int alawExpand(int log) {
+    int ix   = (log ^ 0x0055) & 0x007F;
+    int iexp = ix >> 4;
+    int mant = ix & 0x000F;
+
+    if (iexp > 0) mant = mant + 16;
+    mant = (mant << 4) + 0x0008;
+    if (iexp > 1) mant = mant << (iexp - 1);
+
+    return log > 127 ? mant : -mant;
+  }
+}
@@ -0,0 +1,67 @@
+package org.thoughtcrime.redphone.codec;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+import com.securecomcode.voice.codec.AudioCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+public class SpeexCodecBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "SpeexCodecBenchmark";
+
+  private static final int FRAME = AudioCodec.SAMPLES_PER_FRAME;
+
+  private static SpeexCodec open() {
+    SpeexCodec codec = new SpeexCodec();
+    codec.waitForInitializationComplete();
+    return codec;
+  }
+
+  /**
+   * Reports the cost of an encode and a decode call through the array methods, which copy
+   * through the codec's own direct buffers, and through direct buffers held by the caller.
+   */
+  public void testJniOverhead() {
+    final int iterations = 2000;
+    SpeexCodec codec = open();
+
+    short[]     frame        = SpeexCodecTest.tone(0, 440);
+    byte[]      arrayEncoded = new byte[512];
+    short[]     arrayDecoded = new short[1024];
+    ShortBuffer raw          = SpeexCodec.allocateShorts(FRAME);
+    ByteBuffer  encoded      = ByteBuffer.allocateDirect(512);
+    ShortBuffer decoded      = SpeexCodec.allocateShorts(1024);
+    raw.put(frame);
+
+    try {
+      int encodedLength = codec.encode(frame, arrayEncoded, FRAME);
+      codec.encode(raw, FRAME, encoded);
+
+      long start = SystemClock.elapsedRealtime();
+      for (int i=0;i<iterations;i++) codec.encode(frame, arrayEncoded, FRAME);
+      long arrayEncode = SystemClock.elapsedRealtime() - start;
+
+      start = SystemClock.elapsedRealtime();
+      for (int i=0;i<iterations;i++) codec.encode(raw, FRAME, encoded);
+      long directEncode = SystemClock.elapsedRealtime() - start;
+
+      start = SystemClock.elapsedRealtime();
+      for (int i=0;i<iterations;i++) codec.decode(arrayEncoded, arrayDecoded, encodedLength);
+      long arrayDecode = SystemClock.elapsedRealtime() - start;
+
+      start = SystemClock.elapsedRealtime();
+      for (int i=0;i<iterations;i++) codec.decode(encoded, encodedLength, decoded);
+      long directDecode = SystemClock.elapsedRealtime() - start;
+
+      Log.d(TAG, "Per call (us): encode array=" + (arrayEncode * 1000.0 / iterations) +
+                 " direct=" + (directEncode * 1000.0 / iterations) +
+                 ", decode array=" + (arrayDecode * 1000.0 / iterations) +
+                 " direct=" + (directDecode * 1000.0 / iterations));
+    } finally {
+      codec.terminate();
+    }
+  }
+}
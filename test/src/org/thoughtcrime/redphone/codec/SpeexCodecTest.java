@@ -0,0 +1,139 @@
+package org.thoughtcrime.redphone.codec;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.codec.AudioCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+public class SpeexCodecTest extends AndroidTestCase {
+  private static final int FRAME  = AudioCodec.SAMPLES_PER_FRAME;
+  private static final int FRAMES = 250;
+
+  static short[] tone(int frame, double frequency) {
+    short[] samples = new short[FRAME];
+    for (int i=0;i<FRAME;i++) {
+      double t = (frame * FRAME + i) / (double)AudioCodec.SAMPLE_RATE;
+      samples[i] = (short)(8000 * Math.sin(2 * Math.PI * frequency * t));
+    }
+    return samples;
+  }
+
+  private static SpeexCodec open() {
+    SpeexCodec codec = new SpeexCodec();
+    codec.waitForInitializationComplete();
+    return codec;
+  }
+
+  private static byte[][] encodeAll(SpeexCodec codec, double frequency) {
+    byte[][] encoded = new byte[FRAMES][];
+    byte[]   buffer  = new byte[512];
+
+    for (int i=0;i<FRAMES;i++) {
+      int length = codec.encode(tone(i, frequency), buffer, FRAME);
+      assertTrue(length > 0);
+      encoded[i] = Arrays.copyOf(buffer, length);
+    }
+
+    return encoded;
+  }
+
+  public void testInstancesKeepSeparateState() {
+    SpeexCodec first  = open();
+    SpeexCodec second = open();
+    SpeexCodec other  = open();
+    byte[]     a      = new byte[512];
+    byte[]     b      = new byte[512];
+    byte[]     c      = new byte[512];
+
+    try {
+      for (int i=0;i<FRAMES;i++) {
+        int lengthA = first.encode(tone(i, 440), a, FRAME);
+        other.encode(tone(i, 1000), c, FRAME);
+        int lengthB = second.encode(tone(i, 440), b, FRAME);
+
+        assertEquals(lengthA, lengthB);
+        assertTrue(Arrays.equals(Arrays.copyOf(a, lengthA), Arrays.copyOf(b, lengthB)));
+      }
+    } finally {
+      first.terminate();
+      second.terminate();
+      other.terminate();
+    }
+  }
+
+  public void testDirectAndArrayCallsAgree() {
+    SpeexCodec arrays = open();
+    SpeexCodec direct = open();
+
+    ShortBuffer raw     = SpeexCodec.allocateShorts(FRAME);
+    ByteBuffer  encoded = ByteBuffer.allocateDirect(512);
+    ShortBuffer decoded = SpeexCodec.allocateShorts(1024);
+    byte[]      arrayEncoded = new byte[512];
+    short[]     arrayDecoded = new short[1024];
+
+    try {
+      for (int i=0;i<FRAMES;i++) {
+        short[] frame = tone(i, 440);
+        raw.clear();
+        raw.put(frame);
+
+        int encodedLength = direct.encode(raw, FRAME, encoded);
+        assertEquals(arrays.encode(frame, arrayEncoded, FRAME), encodedLength);
+
+        for (int j=0;j<encodedLength;j++) {
+          assertEquals(arrayEncoded[j], encoded.get(j));
+        }
+
+        boolean lost = i % 10 == 9;
+        int decodedLength      = lost ? direct.decode(null, 0, decoded)
+                                      : direct.decode(encoded, encodedLength, decoded);
+        int arrayDecodedLength = lost ? arrays.decode(null, arrayDecoded, 0)
+                                      : arrays.decode(arrayEncoded, arrayDecoded, encodedLength);
+
+        assertEquals(FRAME, decodedLength);
+        assertEquals(arrayDecodedLength, decodedLength);
+
+        for (int j=0;j<decodedLength;j++) {
+          assertEquals(arrayDecoded[j], decoded.get(j));
+        }
+      }
+    } finally {
+      arrays.terminate();
+      direct.terminate();
+    }
+  }
+
+  public void testConcurrentInstances() throws Exception {
+    SpeexCodec reference = open();
+    final byte[][] expected = encodeAll(reference, 440);
+    reference.terminate();
+
+    final boolean[] matched = new boolean[4];
+    Thread[]        threads = new Thread[matched.length];
+
+    for (int t=0;t<threads.length;t++) {
+      final int index = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          SpeexCodec codec = open();
+          try {
+            byte[][] encoded = encodeAll(codec, 440);
+            boolean  same    = true;
+            for (int i=0;i<FRAMES;i++) same &= Arrays.equals(expected[i], encoded[i]);
+            matched[index] = same;
+          } finally {
+            codec.terminate();
+          }
+        }
+      };
+      threads[t].start();
+    }
+
+    for (Thread thread : threads) thread.join();
+    for (boolean same : matched) assertTrue(same);
+  }
+}
@@ -0,0 +1,279 @@
+package org.thoughtcrime.redphone.codec;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+
+import java.util.Random;
+
+/**
+ * Runs the same speech through narrowband and wideband Speex and compares what each costs
+ * and how close the result is to the original.
+ *
+ * The reference is synthesized 16kHz speech: voiced segments from a pitch-varying pulse train
+ * through moving formant resonators, fricatives from high-passed noise, and pauses.  The
+ * narrowband path is downsampled before encoding and upsampled after decoding, so losing the
+ * band above 4kHz shows up in its score.  Quality is the log-spectral distance, in dB, over
+ * frames that carry speech.
+ */
+public class WidebandBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "WidebandBenchmark";
+
+  private static final int RATE    = SpeexCodec.WIDEBAND_SAMPLE_RATE;
+  private static final int FRAME   = RATE / 50;
+  private static final int SECONDS = 6;
+
+  private static final float[] HALF_BAND = halfBandFilter(31);
+
+  private static short[] referenceSpeech(long seed) {
+    Random  random  = new Random(seed);
+    short[] speech  = new short[RATE * SECONDS];
+    int     segment = RATE / 5;
+
+    double phase = 0;
+    double[] state = new double[6];
+
+    for (int start=0;start<speech.length;start+=segment) {
+      int    kind   = random.nextInt(4); // 0 pause, 1 fricative, 2-3 voiced
+      double pitch  = 100 + random.nextInt(120);
+      double f1     = 300 + random.nextInt(500);
+      double f2     = 900 + random.nextInt(1500);
+      double f3     = 2400 + random.nextInt(1000);
+
+      for (int i=start;i<Math.min(start + segment, speech.length);i++) {
+        double excitation;
+
+        if (kind == 0) {
+          excitation = random.nextGaussian() * 20;
+        } else if (kind == 1) {
+          excitation = random.nextGaussian() * 1500;
+        } else {
+          phase     += (pitch + 20 * Math.sin(i * 2 * Math.PI / RATE)) / RATE;
+          excitation = phase >= 1 ? 6000 : 0;
+          if (phase >= 1) phase -= 1;
+        }
+
+        double sample;
+        if (kind == 1) {
+          sample = excitation - state[0];
+          state[0] = excitation;
+        } else {
+          sample = resonate(state, 0, excitation, f1, 80) + resonate(state, 2, excitation, f2, 120) * 0.5 +
+                   resonate(state, 4, excitation, f3, 200) * 0.25;
+        }
+
+        speech[i] = clip(sample);
+      }
+    }
+
+    return speech;
+  }
+
+  private static double resonate(double[] state, int offset, double in, double frequency, double bandwidth) {
+    double r   = Math.exp(-Math.PI * bandwidth / RATE);
+    double a1  = 2 * r * Math.cos(2 * Math.PI * frequency / RATE);
+    double a2  = -r * r;
+    double out = (1 - r) * in + a1 * state[offset] + a2 * state[offset + 1];
+
+    state[offset + 1] = state[offset];
+    state[offset]     = out;
+    return out;
+  }
+
+  private static short clip(double sample) {
+    return (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample)));
+  }
+
+  private static float[] halfBandFilter(int taps) {
+    float[] filter = new float[taps];
+    int     middle = taps / 2;
+
+    for (int i=0;i<taps;i++) {
+      int    n      = i - middle;
+      double sinc   = n == 0 ? 0.5 : Math.sin(Math.PI * n / 2) / (Math.PI * n);
+      double window = 0.54 - 0.46 * Math.cos(2 * Math.PI * i / (taps - 1));
+      filter[i] = (float)(sinc * window);
+    }
+
+    return filter;
+  }
+
+  private static double filterAt(short[] input, int index, int step) {
+    double sum    = 0;
+    int    middle = HALF_BAND.length / 2;
+
+    for (int k=0;k<HALF_BAND.length;k++) {
+      int j = index + (k - middle) * step;
+      if (j >= 0 && j < input.length) sum += HALF_BAND[k] * input[j];
+    }
+
+    return sum;
+  }
+
+  private static short[] downsample(short[] input) {
+    short[] output = new short[input.length / 2];
+    for (int i=0;i<output.length;i++) output[i] = clip(filterAt(input, i * 2, 1));
+    return output;
+  }
+
+  private static short[] upsample(short[] input) {
+    short[] stuffed = new short[input.length * 2];
+    for (int i=0;i<input.length;i++) stuffed[i * 2] = input[i];
+
+    short[] output = new short[stuffed.length];
+    for (int i=0;i<output.length;i++) output[i] = clip(2 * filterAt(stuffed, i, 1));
+    return output;
+  }
+
+  private static class Result {
+    short[] decoded;
+    long    encodeMillis;
+    long    decodeMillis;
+    int     encodedBytes;
+  }
+
+  private static Result roundTrip(SpeexCodec codec, short[] input) {
+    int     frame   = codec.getSamplesPerFrame();
+    short[] raw     = new short[frame];
+    short[] decoded = new short[1024];
+    byte[]  encoded = new byte[512];
+    Result  result  = new Result();
+
+    result.decoded = new short[input.length];
+
+    for (int offset=0;offset + frame<=input.length;offset+=frame) {
+      System.arraycopy(input, offset, raw, 0, frame);
+
+      long start  = SystemClock.elapsedRealtime();
+      int  length = codec.encode(raw, encoded, frame);
+      long middle = SystemClock.elapsedRealtime();
+      int  count  = codec.decode(encoded, decoded, length);
+      long end    = SystemClock.elapsedRealtime();
+
+      assertEquals(frame, count);
+      System.arraycopy(decoded, 0, result.decoded, offset, count);
+
+      result.encodeMillis += middle - start;
+      result.decodeMillis += end - middle;
+      result.encodedBytes += length;
+    }
+
+    return result;
+  }
+
+  private static double[] spectrum(short[] signal, int offset) {
+    int      bins   = FRAME / 2;
+    double[] result = new double[bins];
+
+    for (int k=0;k<bins;k++) {
+      double re = 0, im = 0;
+      for (int n=0;n<FRAME;n++) {
+        double window = 0.5 - 0.5 * Math.cos(2 * Math.PI * n / FRAME);
+        double value  = offset + n < signal.length ? signal[offset + n] * window : 0;
+        double angle  = 2 * Math.PI * k * n / FRAME;
+        re += value * Math.cos(angle);
+        im -= value * Math.sin(angle);
+      }
+      result[k] = 10 * Math.log10(re * re + im * im + 1);
+    }
+
+    return result;
+  }
+
+  private static long energy(short[] signal, int offset) {
+    long sum = 0;
+    for (int i=offset;i<offset + FRAME && i<signal.length;i++) sum += signal[i] * signal[i];
+    return sum;
+  }
+
+  /**
+   * Finds the codec's delay as the lag with the strongest correlation to the reference.
+   */
+  private static int delay(short[] reference, short[] decoded) {
+    int    best      = 0;
+    double bestScore = Double.NEGATIVE_INFINITY;
+
+    for (int lag=0;lag<FRAME * 3;lag++) {
+      double score = 0;
+      for (int i=0;i + lag<decoded.length;i+=4) score += (double)reference[i] * decoded[i + lag];
+      if (score > bestScore) {
+        bestScore = score;
+        best      = lag;
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * @return the mean log-spectral distance over speech frames, up to maxHz.
+   */
+  private static double spectralDistance(short[] reference, short[] decoded, int maxHz) {
+    int    lag    = delay(reference, decoded);
+    int    bins   = maxHz * FRAME / RATE;
+    long   floor  = (long)FRAME * 300 * 300;
+    double total  = 0;
+    int    frames = 0;
+
+    short[] aligned = new short[reference.length];
+    System.arraycopy(decoded, lag, aligned, 0, decoded.length - lag);
+
+    for (int offset=FRAME * 5;offset + FRAME<=reference.length - FRAME * 3;offset+=FRAME) {
+      if (energy(reference, offset) < floor) continue;
+
+      double[] expected = spectrum(reference, offset);
+      double[] actual   = spectrum(aligned, offset);
+      double   sum      = 0;
+
+      for (int k=1;k<bins;k++) {
+        double difference = expected[k] - actual[k];
+        sum += difference * difference;
+      }
+
+      total += Math.sqrt(sum / (bins - 1));
+      frames++;
+    }
+
+    return total / frames;
+  }
+
+  public void testWidebandQualityVersusCpu() {
+    short[] reference = referenceSpeech(7);
+
+    SpeexCodec narrowband = new SpeexCodec(false);
+    SpeexCodec wideband   = new SpeexCodec(true);
+    narrowband.waitForInitializationComplete();
+    wideband.waitForInitializationComplete();
+
+    try {
+      assertEquals(160, narrowband.getSamplesPerFrame());
+      assertEquals(320, wideband.getSamplesPerFrame());
+
+      Result nb = roundTrip(narrowband, downsample(reference));
+      Result wb = roundTrip(wideband, reference);
+
+      short[] nbDecoded = upsample(nb.decoded);
+
+      double nbFull = spectralDistance(reference, nbDecoded, 7000);
+      double wbFull = spectralDistance(reference, wb.decoded, 7000);
+      double nbLow  = spectralDistance(reference, nbDecoded, 3400);
+      double wbLow  = spectralDistance(reference, wb.decoded, 3400);
+
+      double frames = SECONDS * 50.0;
+      Log.d(TAG, "narrowband: " + (nb.encodedBytes * 8 / SECONDS) + " bps" +
+                 ", encode " + (nb.encodeMillis * 1000 / frames) + "us/frame" +
+                 ", decode " + (nb.decodeMillis * 1000 / frames) + "us/frame" +
+                 ", LSD 0-7kHz " + nbFull + "dB, 0-3.4kHz " + nbLow + "dB");
+      Log.d(TAG, "wideband:   " + (wb.encodedBytes * 8 / SECONDS) + " bps" +
+                 ", encode " + (wb.encodeMillis * 1000 / frames) + "us/frame" +
+                 ", decode " + (wb.decodeMillis * 1000 / frames) + "us/frame" +
+                 ", LSD 0-7kHz " + wbFull + "dB, 0-3.4kHz " + wbLow + "dB");
+
+      assertTrue(wbFull < nbFull);
+    } finally {
+      narrowband.terminate();
+      wideband.terminate();
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.securecomcode.voice.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The original per-packet Cipher.init() construction, kept as a reference.
+ */
+class LegacyStream {
+  private final Cipher cipher;
+  private final Mac mac;
+  private final SecretKeySpec key;
+  private final byte[] salt;
+
+  public LegacyStream(byte[] cipherKey, byte[] macKey, byte[] salt) throws Exception {
+    this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    this.key    = new SecretKeySpec(cipherKey, "AES");
+    this.mac    = Mac.getInstance("HmacSHA1");
+    this.mac.init(new SecretKeySpec(macKey, "HmacSHA1"));
+    this.salt   = salt;
+  }
+
+  public void encryptAndMac(SecureRtpPacket packet) throws Exception {
+    long logicalSequence = packet.getLogicalSequence();
+    long ssrc            = packet.getSSRC();
+    byte[] iv            = new byte[16];
+
+    System.arraycopy(salt, 0, iv, 0, salt.length);
+
+    iv[6]   ^= (byte)(ssrc >> 8);
+    iv[7]   ^= (byte)(ssrc);
+    iv[8]   ^= (byte)(logicalSequence >> 40);
+    iv[9]   ^= (byte)(logicalSequence >> 32);
+    iv[10]  ^= (byte)(logicalSequence >> 24);
+    iv[11]  ^= (byte)(logicalSequence >> 16);
+    iv[12]  ^= (byte)(logicalSequence >> 8);
+    iv[13]  ^= (byte)(logicalSequence);
+
+    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+    packet.setPayload(cipher.doFinal(packet.getPayload()));
+
+    mac.update(packet.getDataToMac(), 0, packet.getDataToMacLength());
+    packet.setMac(mac.doFinal());
+  }
+}
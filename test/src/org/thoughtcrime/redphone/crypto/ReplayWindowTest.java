@@ -0,0 +1,71 @@
+package com.securecomcode.voice.crypto;
+
+import android.test.AndroidTestCase;
+
+public class ReplayWindowTest extends AndroidTestCase {
+
+  private static boolean receive(ReplayWindow window, long sequence) {
+    if (!window.check(sequence)) return false;
+    window.update(sequence);
+    return true;
+  }
+
+  public void testRejectsDuplicates() {
+    ReplayWindow window = new ReplayWindow();
+    assertTrue(receive(window, 10));
+    assertTrue(receive(window, 12));
+    assertTrue(receive(window, 11));
+
+    assertFalse(receive(window, 10));
+    assertFalse(receive(window, 11));
+    assertFalse(receive(window, 12));
+    assertEquals(3, window.getDuplicateCount());
+  }
+
+  public void testRejectsPacketsOutsideWindow() {
+    ReplayWindow window = new ReplayWindow();
+    assertTrue(receive(window, 1000));
+    assertTrue(receive(window, 1000 - ReplayWindow.WINDOW_SIZE + 1));
+    assertFalse(receive(window, 1000 - ReplayWindow.WINDOW_SIZE));
+    assertEquals(1, window.getTooOldCount());
+  }
+
+  public void testLargeJumpClearsHistory() {
+    ReplayWindow window = new ReplayWindow();
+    for (long i=0;i<ReplayWindow.WINDOW_SIZE;i++) assertTrue(receive(window, i));
+
+    assertTrue(receive(window, 500));
+    assertTrue(receive(window, 499));
+    assertFalse(receive(window, 499));
+    assertTrue(receive(window, 500 - ReplayWindow.WINDOW_SIZE + 1));
+  }
+
+  public void testCheckDoesNotUpdate() {
+    ReplayWindow window = new ReplayWindow();
+    assertTrue(window.check(5));
+    assertTrue(window.check(5));
+    assertTrue(receive(window, 5));
+    assertFalse(window.check(5));
+
+    window.reset();
+    assertTrue(receive(window, 5));
+  }
+
+  public void testReorderedStream() {
+    java.util.Random random = new java.util.Random(42);
+    ReplayWindow window = new ReplayWindow();
+
+    for (long base=0;base<10000;base+=8) {
+      long[] burst = new long[8];
+      for (int i=0;i<8;i++) burst[i] = base + i;
+      for (int i=7;i>0;i--) {
+        int j = random.nextInt(i + 1);
+        long tmp = burst[i]; burst[i] = burst[j]; burst[j] = tmp;
+      }
+      for (long sequence : burst) {
+        assertTrue(receive(window, sequence));
+        assertFalse(receive(window, sequence));
+      }
+    }
+  }
+}
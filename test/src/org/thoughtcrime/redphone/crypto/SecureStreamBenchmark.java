@@ -0,0 +1,65 @@
+package com.securecomcode.voice.crypto;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+
+import java.util.Random;
+
+public class SecureStreamBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "SecureStreamBenchmark";
+
+  private final Random random = new Random(1234);
+
+  private final byte[] cipherKey = randomBytes(16);
+  private final byte[] macKey    = randomBytes(20);
+  private final byte[] salt      = randomBytes(14);
+
+  public void testPerPacketCost() throws Exception {
+    final int iterations = 5000;
+    SecureStream stream = new SecureStream(cipherKey, macKey, salt);
+    LegacyStream legacy = new LegacyStream(cipherKey, macKey, salt);
+    SecureRtpPacket packet = buildPacket(randomBytes(40), 0);
+
+    for (int i=0;i<500;i++) {
+      packet.setLogicalSequence(i);
+      stream.encrypt(packet);
+      stream.mac(packet);
+      legacy.encryptAndMac(packet);
+    }
+
+    long start = SystemClock.elapsedRealtime();
+    for (int i=0;i<iterations;i++) {
+      packet.setLogicalSequence(i);
+      legacy.encryptAndMac(packet);
+    }
+    long legacyTime = SystemClock.elapsedRealtime() - start;
+
+    start = SystemClock.elapsedRealtime();
+    for (int i=0;i<iterations;i++) {
+      packet.setLogicalSequence(i);
+      stream.encrypt(packet);
+      stream.mac(packet);
+    }
+    long streamTime = SystemClock.elapsedRealtime() - start;
+
+    Log.d(TAG, "Per packet: Cipher.init=" + (legacyTime * 1000.0 / iterations) +
+                              "us, in place=" + (streamTime * 1000.0 / iterations) + "us");
+  }
+
+  private SecureRtpPacket buildPacket(byte[] payload, int sequence) {
+    SecureRtpPacket packet = new SecureRtpPacket(payload.length);
+    packet.setTimeStamp(0);
+    packet.setSSRC(0x1234);
+    packet.setPayload(payload, payload.length);
+    packet.setSequenceNumber(sequence);
+    return packet;
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
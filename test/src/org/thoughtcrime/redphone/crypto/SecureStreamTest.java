@@ -0,0 +1,100 @@
+package com.securecomcode.voice.crypto;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class SecureStreamTest extends AndroidTestCase {
+
+  private final Random random = new Random(1234);
+
+  private final byte[] cipherKey = randomBytes(16);
+  private final byte[] macKey    = randomBytes(20);
+  private final byte[] salt      = randomBytes(14);
+
+  public void testMatchesPerPacketCipherInit() throws Exception {
+    SecureStream stream   = new SecureStream(cipherKey, macKey, salt);
+    SecureStream incoming = new SecureStream(cipherKey, macKey, salt);
+    LegacyStream legacy   = new LegacyStream(cipherKey, macKey, salt);
+
+    for (int sequence = 0; sequence < 70000; sequence += 97) {
+      byte[] payload = randomBytes(1 + random.nextInt(300));
+
+      SecureRtpPacket packet = buildPacket(payload, sequence);
+      stream.updateSequence(packet);
+      stream.encrypt(packet);
+      stream.mac(packet);
+
+      SecureRtpPacket expected = buildPacket(payload, sequence);
+      expected.setLogicalSequence(packet.getLogicalSequence());
+      legacy.encryptAndMac(expected);
+
+      assertEquals(expected.getPacketLength(), packet.getPacketLength());
+      assertTrue(Arrays.equals(Arrays.copyOf(expected.getPacket(), expected.getPacketLength()),
+                               Arrays.copyOf(packet.getPacket(), packet.getPacketLength())));
+
+      incoming.updateSequence(packet);
+      assertTrue(incoming.verifyMac(packet));
+      incoming.decrypt(packet);
+      assertTrue(Arrays.equals(payload, packet.getPayload()));
+    }
+  }
+
+  public void testRejectsTamperedPacket() {
+    SecureStream stream = new SecureStream(cipherKey, macKey, salt);
+    SecureRtpPacket packet = buildPacket(randomBytes(40), 7);
+    stream.updateSequence(packet);
+    stream.encrypt(packet);
+    stream.mac(packet);
+
+    packet.getPacket()[20] ^= 0x01;
+    assertFalse(new SecureStream(cipherKey, macKey, salt).verifyMac(packet));
+  }
+
+  public void testSteadyStateDoesNotAllocate() {
+    SecureStream outgoing = new SecureStream(cipherKey, macKey, salt);
+    SecureStream incoming = new SecureStream(cipherKey, macKey, salt);
+    SecureRtpPacket packet = buildPacket(randomBytes(40), 0);
+
+    for (int i=0;i<100;i++) roundTrip(outgoing, incoming, packet, i);
+
+    Debug.startAllocCounting();
+    try {
+      int before = Debug.getThreadAllocCount();
+      for (int i=100;i<2000;i++) roundTrip(outgoing, incoming, packet, i);
+      assertEquals(0, Debug.getThreadAllocCount() - before);
+    } finally {
+      Debug.stopAllocCounting();
+    }
+  }
+
+  private void roundTrip(SecureStream outgoing, SecureStream incoming,
+                         SecureRtpPacket packet, int sequence)
+  {
+    packet.setSequenceNumber(sequence);
+    outgoing.updateSequence(packet);
+    outgoing.encrypt(packet);
+    outgoing.mac(packet);
+
+    assertTrue(incoming.verifyMac(packet));
+    incoming.updateSequence(packet);
+    incoming.decrypt(packet);
+  }
+
+  private SecureRtpPacket buildPacket(byte[] payload, int sequence) {
+    SecureRtpPacket packet = new SecureRtpPacket(payload.length);
+    packet.setTimeStamp(0);
+    packet.setSSRC(0x1234);
+    packet.setPayload(payload, payload.length);
+    packet.setSequenceNumber(sequence);
+    return packet;
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,104 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+import com.securecomcode.voice.crypto.SecureRtpSocket;
+import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.network.RtpSocket;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+public class EphemeralKeyPoolBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "EphemeralKeyPoolBenchmark";
+
+  private static final int EC25 = ZRTPSocket.KA_TYPE_EC25;
+
+  /**
+   * Times the responder from setup to its first Hello arriving at the other end, first with
+   * both key pairs generated up front as ZRTPSocket used to, then with the shared pool.
+   */
+  public void testTimeToFirstHello() throws Exception {
+    final int iterations = 5;
+
+    EphemeralKeyPool.getInstance().prime();
+
+    long eager = 0, pooled = 0;
+
+    for (int i=0;i<iterations;i++) {
+      eager  += timeToFirstHello(true);
+      pooled += timeToFirstHello(false);
+    }
+
+    Log.d(TAG, "Time to first Hello (ms): eager=" + (eager / iterations) +
+               " pooled=" + (pooled / iterations));
+
+    long start = System.nanoTime();
+    EphemeralKeyPool.getInstance().take(EC25);
+    Log.d(TAG, "Pooled EC25 take (us): " + (System.nanoTime() - start) / 1000);
+  }
+
+  private long timeToFirstHello(boolean eagerKeys) throws Exception {
+    int localPort  = findFreePort();
+    int remotePort = findFreePort();
+
+    RtpSocket local  = new RtpSocket(getContext(), localPort,
+                                     new InetSocketAddress("127.0.0.1", remotePort), null);
+    RtpSocket remote = new RtpSocket(getContext(), remotePort,
+                                     new InetSocketAddress("127.0.0.1", localPort), null);
+
+    remote.setTimeout(5000);
+
+    CallMonitor           monitor      = new CallMonitor(getContext());
+    SecureRtpSocket       remoteSocket = new SecureRtpSocket(remote, monitor);
+    final SecureRtpSocket secureSocket = new SecureRtpSocket(local, monitor);
+    final ZRTPSocket[]    zrtpSocket   = new ZRTPSocket[1];
+    long                  start        = System.currentTimeMillis();
+
+    if (eagerKeys) {
+      EphemeralKeyPool.generateDH3kKeyPair();
+      EphemeralKeyPool.generateEC25KeyPair();
+    }
+
+    zrtpSocket[0] = new ZRTPResponderSocket(getContext(), secureSocket, new byte[12],
+                                            "+15555555555", false);
+
+    Thread responder = new Thread() {
+      @Override
+      public void run() {
+        try {
+          zrtpSocket[0].negotiateStart();
+        } catch (NegotiationFailedException e) {
+          Log.w(TAG, e);
+        }
+      }
+    };
+
+    try {
+      responder.start();
+
+      HandshakePacket packet = remoteSocket.receiveHandshakePacket(true);
+      long            millis = System.currentTimeMillis() - start;
+
+      assertNotNull(packet);
+      assertEquals(HelloPacket.TYPE, packet.getType());
+
+      HandshakeCrypto crypto = new HandshakeCrypto();
+      remoteSocket.send(new HelloPacket(crypto, new HashChain(crypto), new byte[12], false));
+      responder.join();
+
+      return millis;
+    } finally {
+      zrtpSocket[0].close();
+      remoteSocket.close();
+    }
+  }
+
+  private static int findFreePort() throws Exception {
+    DatagramSocket probe = new DatagramSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    return port;
+  }
+}
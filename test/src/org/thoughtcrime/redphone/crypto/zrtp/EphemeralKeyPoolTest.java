@@ -0,0 +1,186 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.util.Clock;
+import com.securecomcode.voice.util.Factory;
+
+import java.security.KeyPair;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class EphemeralKeyPoolTest extends AndroidTestCase {
+  private static final int EC25 = ZRTPSocket.KA_TYPE_EC25;
+  private static final int DH3K = ZRTPSocket.KA_TYPE_DH3K;
+
+  private final LinkedList<Runnable> background = new LinkedList<Runnable>();
+  private final LinkedList<Runnable> scheduled  = new LinkedList<Runnable>();
+  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1) {
+    @Override
+    public void execute(Runnable runnable) {
+      background.add(runnable);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable runnable, long delay, TimeUnit unit) {
+      assertEquals(EphemeralKeyPool.MAX_AGE_MILLIS, unit.toMillis(delay));
+      scheduled.add(runnable);
+      return null;
+    }
+  };
+
+  private long now = 1000;
+  private final Clock clock = new Clock() {
+    @Override
+    public long uptimeMillis() {
+      return now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return now;
+    }
+  };
+
+  private CountingGenerator ec25Generator, dh3kGenerator;
+  private EphemeralKeyPool  pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ec25Generator = new CountingGenerator();
+    dh3kGenerator = new CountingGenerator();
+    pool          = new EphemeralKeyPool(executor, clock, ec25Generator, dh3kGenerator);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  private void runBackground() {
+    while (!background.isEmpty()) background.poll().run();
+  }
+
+  public void testPrimeFillsOnlyEc25() {
+    pool.prime();
+    runBackground();
+
+    assertEquals(2, pool.getReadyCount(EC25));
+    assertEquals(0, pool.getReadyCount(DH3K));
+    assertEquals(0, dh3kGenerator.count);
+  }
+
+  public void testEachPairIsHandedOutOnce() {
+    pool.prime();
+    runBackground();
+
+    KeyPair first  = pool.take(EC25);
+    KeyPair second = pool.take(EC25);
+
+    assertNotSame(first, second);
+    assertEquals(2, ec25Generator.count);
+
+    runBackground();
+    assertEquals(2, pool.getReadyCount(EC25));
+    assertEquals(4, ec25Generator.count);
+  }
+
+  public void testTakeFromEmptyPoolGeneratesInline() {
+    KeyPair keyPair = pool.take(EC25);
+
+    assertNotNull(keyPair);
+    assertEquals(1, ec25Generator.count);
+    assertEquals(0, pool.getReadyCount(EC25));
+  }
+
+  public void testDh3kIsKeptOnceNeeded() {
+    pool.prime();
+    runBackground();
+
+    pool.take(DH3K);
+    assertEquals(1, dh3kGenerator.count);
+
+    runBackground();
+    assertEquals(1, pool.getReadyCount(DH3K));
+
+    pool.take(DH3K);
+    assertEquals(2, dh3kGenerator.count);
+  }
+
+  public void testExpiredPairsAreNeverUsed() {
+    pool.prime();
+    runBackground();
+
+    KeyPair stale = pool.take(EC25);
+    runBackground();
+
+    now += EphemeralKeyPool.MAX_AGE_MILLIS;
+
+    KeyPair fresh = pool.take(EC25);
+    assertEquals(0, pool.getReadyCount(EC25));
+    assertNotSame(stale, fresh);
+    assertEquals(ec25Generator.last, fresh);
+
+    pool.prime();
+    runBackground();
+    assertEquals(2, pool.getReadyCount(EC25));
+  }
+
+  public void testExpiredPairsAreEvictedWithoutACall() {
+    pool.prime();
+    runBackground();
+
+    assertEquals(2, scheduled.size());
+
+    now += EphemeralKeyPool.MAX_AGE_MILLIS;
+    while (!scheduled.isEmpty()) scheduled.poll().run();
+
+    assertEquals(0, pool.getReadyCount(EC25));
+    assertTrue(background.isEmpty());
+  }
+
+  public void testFailedRefillCanBeRetried() {
+    ec25Generator.failures = 1;
+    pool.prime();
+
+    try {
+      runBackground();
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    pool.prime();
+    runBackground();
+    assertEquals(2, pool.getReadyCount(EC25));
+  }
+
+  public void testRefillIsNotQueuedTwice() {
+    pool.prime();
+    pool.prime();
+
+    assertEquals(1, background.size());
+  }
+
+  private static class CountingGenerator implements Factory<KeyPair> {
+    int     count;
+    int     failures;
+    KeyPair last;
+
+    @Override
+    public KeyPair getInstance() {
+      if (failures > 0) {
+        failures--;
+        throw new IllegalStateException();
+      }
+
+      count++;
+      last = new KeyPair(null, null);
+      return last;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+
+import org.spongycastle.jce.ECNamedCurveTable;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class HandshakeCryptoBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "HandshakeCryptoBenchmark";
+
+  private static final byte[] KEY     = new byte[32];
+  private static final byte[] MESSAGE = "ZRTP handshake message".getBytes();
+
+  static {
+    Arrays.fill(KEY, (byte)0x11);
+  }
+
+  private static byte[] hmac(byte[] key, byte[] message) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    return mac.doFinal(message);
+  }
+
+  /**
+   * What fetching an engine costs each time against reusing it, for the lookups a
+   * handshake used to repeat.  The first round only warms up.
+   */
+  public void testLookup() throws Exception {
+    int             iterations = 2000;
+    HandshakeCrypto crypto     = new HandshakeCrypto();
+
+    for (int round=0;round<2;round++) {
+      long start = System.nanoTime();
+      for (int i=0;i<iterations;i++) hmac(KEY, MESSAGE);
+      long freshMac = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i=0;i<iterations;i++) crypto.getMac(KEY).doFinal(MESSAGE);
+      long reusedMac = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i=0;i<iterations;i++) ECNamedCurveTable.getParameterSpec("secp256r1");
+      long freshCurve = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i=0;i<iterations;i++) HandshakeCrypto.getEC25Parameters();
+      long reusedCurve = System.nanoTime() - start;
+
+      if (round == 0) continue;
+
+      Log.d(TAG, "HMAC: fresh=" + (freshMac / iterations) + "ns reused=" + (reusedMac / iterations) + "ns");
+      Log.d(TAG, "secp256r1: fresh=" + (freshCurve / iterations) + "ns reused=" + (reusedCurve / iterations) + "ns");
+    }
+  }
+}
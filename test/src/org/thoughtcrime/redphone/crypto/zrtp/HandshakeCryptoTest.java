@@ -0,0 +1,70 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.test.AndroidTestCase;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class HandshakeCryptoTest extends AndroidTestCase {
+  private static final byte[] KEY_ONE = new byte[32];
+  private static final byte[] KEY_TWO = new byte[20];
+  private static final byte[] MESSAGE = "ZRTP handshake message".getBytes();
+
+  static {
+    Arrays.fill(KEY_ONE, (byte)0x11);
+    Arrays.fill(KEY_TWO, (byte)0x22);
+  }
+
+  private static byte[] hmac(byte[] key, byte[] message) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    return mac.doFinal(message);
+  }
+
+  public void testReusedMacTakesEachNewKey() throws Exception {
+    HandshakeCrypto crypto = new HandshakeCrypto();
+
+    assertTrue(Arrays.equals(hmac(KEY_ONE, MESSAGE), crypto.getMac(KEY_ONE).doFinal(MESSAGE)));
+    assertTrue(Arrays.equals(hmac(KEY_TWO, MESSAGE), crypto.getMac(KEY_TWO).doFinal(MESSAGE)));
+
+    crypto.getMac(KEY_ONE).update(MESSAGE);
+    assertTrue(Arrays.equals(hmac(KEY_TWO, MESSAGE), crypto.getMac(KEY_TWO).doFinal(MESSAGE)));
+  }
+
+  public void testReusedDigestStartsEmpty() throws Exception {
+    HandshakeCrypto crypto   = new HandshakeCrypto();
+    byte[]          expected = MessageDigest.getInstance("SHA-256").digest(MESSAGE);
+
+    crypto.getDigest().update(KEY_ONE);
+    assertTrue(Arrays.equals(expected, crypto.getDigest().digest(MESSAGE)));
+  }
+
+  public void testConfirmCipherRoundTrip() throws Exception {
+    HandshakeCrypto crypto    = new HandshakeCrypto();
+    byte[]          cipherKey = new byte[16];
+    byte[]          iv        = new byte[16];
+
+    byte[] encrypted = crypto.getConfirmCipher(Cipher.ENCRYPT_MODE, cipherKey, iv).doFinal(MESSAGE);
+    byte[] decrypted = crypto.getConfirmCipher(Cipher.DECRYPT_MODE, cipherKey, iv).doFinal(encrypted);
+
+    assertFalse(Arrays.equals(MESSAGE, encrypted));
+    assertTrue(Arrays.equals(MESSAGE, decrypted));
+  }
+
+  public void testIsEqual() {
+    byte[] mac   = {1, 2, 3, 4, 5, 6, 7, 8};
+    byte[] early = {0, 2, 3, 4, 5, 6, 7, 8};
+    byte[] late  = {1, 2, 3, 4, 5, 6, 7, 9};
+
+    assertTrue(HandshakeCrypto.isEqual(mac, mac.clone()));
+    assertFalse(HandshakeCrypto.isEqual(mac, early));
+    assertFalse(HandshakeCrypto.isEqual(mac, late));
+    assertFalse(HandshakeCrypto.isEqual(mac, Arrays.copyOf(mac, 7)));
+    assertFalse(HandshakeCrypto.isEqual(mac, null));
+    assertTrue(HandshakeCrypto.isEqual(new byte[0], new byte[0]));
+  }
+}
@@ -0,0 +1,306 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.os.Debug;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a ZRTPInitiatorSocket and a ZRTPResponderSocket against each other over a
+ * LoopbackNetwork, each on its own thread as CallManager would run it, and reports how the
+ * handshake went and how much CPU both threads spent on it.
+ *
+ * A Peer can stand in for an older client by sending that client's Hello and, if the version
+ * predates the Confirm IV fix, computing its Confirm IVs the old way, as such a client would
+ * regardless of whom it was talking to.
+ *
+ * Both sides can be given the round trip signaling measured, or the fixed retransmit timer
+ * clients used before the timer adapted, to compare how each copes with a network.
+ */
+public class HandshakeHarness {
+
+  private static final long TIMEOUT_MILLIS = 30000;
+
+  private final LoopbackNetwork network;
+
+  private boolean fixedRetransmitTimer;
+  private long    roundTripEstimate;
+
+  public HandshakeHarness(LoopbackNetwork network) {
+    this.network = network;
+  }
+
+  /**
+   * Retransmits every 150ms, doubling, on both sides, whatever round trips they measure.
+   */
+  public HandshakeHarness withFixedRetransmitTimer() {
+    this.fixedRetransmitTimer = true;
+    return this;
+  }
+
+  /**
+   * Seeds both sides' retransmit timers, as CallManager does with the signaling round trip.
+   */
+  public HandshakeHarness withRoundTripEstimate(long millis) {
+    this.roundTripEstimate = millis;
+    return this;
+  }
+
+  public Result run(Peer initiator, Peer responder) throws InterruptedException {
+    final ZRTPInitiatorSocket initiatorSocket = createInitiator(initiator, responder);
+    final ZRTPResponderSocket responderSocket = createResponder(responder, initiator);
+
+    configure(initiatorSocket);
+    configure(responderSocket);
+
+    Side initiatorSide = new Side(initiatorSocket);
+    Side responderSide = new Side(responderSocket);
+    long start         = System.currentTimeMillis();
+
+    initiatorSide.start();
+    responderSide.start();
+
+    initiatorSide.join(TIMEOUT_MILLIS);
+    responderSide.join(TIMEOUT_MILLIS);
+
+    long elapsed = System.currentTimeMillis() - start;
+
+    initiatorSocket.close();
+    responderSocket.close();
+    initiatorSide.join();
+    responderSide.join();
+
+    return new Result(initiatorSocket, responderSocket, initiatorSide, responderSide, elapsed);
+  }
+
+  private void configure(ZRTPSocket socket) {
+    if (fixedRetransmitTimer)  socket.setRetransmitTimer(new FixedRetransmitTimer());
+    if (roundTripEstimate > 0) socket.setRoundTripEstimate(roundTripEstimate);
+  }
+
+  private ZRTPInitiatorSocket createInitiator(final Peer self, Peer other) {
+    LoopbackNetwork.Endpoint endpoint = network.getEndpoint(0);
+
+    if (self.clientId == null) {
+      return new ZRTPInitiatorSocket(self.store, endpoint, self.zid, other.number);
+    }
+
+    return new ZRTPInitiatorSocket(self.store, endpoint, self.zid, other.number) {
+      @Override
+      protected HelloPacket createLocalHello(boolean includeLegacyHeaderBug) {
+        return self.createHello(crypto, hashChain, includeLegacyHeaderBug);
+      }
+
+      @Override
+      protected boolean isLegacyConfirmConnection() {
+        return self.isLegacyConfirm() || super.isLegacyConfirmConnection();
+      }
+    };
+  }
+
+  private ZRTPResponderSocket createResponder(final Peer self, Peer other) {
+    LoopbackNetwork.Endpoint endpoint = network.getEndpoint(1);
+
+    if (self.clientId == null) {
+      return new ZRTPResponderSocket(self.store, endpoint, self.zid, other.number,
+                                     self.legacyHeaderBug);
+    }
+
+    return new ZRTPResponderSocket(self.store, endpoint, self.zid, other.number,
+                                   self.legacyHeaderBug)
+    {
+      @Override
+      protected HelloPacket createLocalHello(boolean includeLegacyHeaderBug) {
+        return self.createHello(crypto, hashChain, includeLegacyHeaderBug);
+      }
+
+      @Override
+      protected boolean isLegacyConfirmConnection() {
+        return self.isLegacyConfirm() || super.isLegacyConfirmConnection();
+      }
+    };
+  }
+
+  /**
+   * One end of the call: its number, ZID and retained secrets, which persist across runs.
+   */
+  public static class Peer {
+    private final InMemoryRetainedSecretsStore store = new InMemoryRetainedSecretsStore();
+    private final String                       number;
+    private final byte[]                       zid;
+
+    private String       clientId;
+    private List<byte[]> keyAgreements;
+    private boolean      legacyHeaderBug;
+
+    public Peer(String number, int zidSeed) {
+      this.number = number;
+      this.zid    = new byte[12];
+
+      for (int i=0;i<zid.length;i++) zid[i] = (byte)(zidSeed + i);
+    }
+
+    /**
+     * Sends this client id in its Hello, and advertises EC25 only if asked to.
+     */
+    public Peer asClient(String clientId, boolean advertiseEc25) {
+      this.clientId      = clientId;
+      this.keyAgreements = new ArrayList<byte[]>(1);
+
+      if (advertiseEc25) keyAgreements.add(new byte[] {'E', 'C', '2', '5'});
+
+      return this;
+    }
+
+    /**
+     * As a responder, sends the stray RTP header in front of each handshake packet that
+     * clients before the fix did.
+     */
+    public Peer withLegacyHeaderBug() {
+      this.legacyHeaderBug = true;
+      return this;
+    }
+
+    public InMemoryRetainedSecretsStore getStore() {
+      return store;
+    }
+
+    public byte[] getZid() {
+      return zid;
+    }
+
+    private boolean isLegacyConfirm() {
+      return new RedPhoneClientId(clientId).isLegacyConfirmConnectionVersion();
+    }
+
+    private HelloPacket createHello(HandshakeCrypto crypto, HashChain hashChain,
+                                    boolean includeLegacyHeaderBug)
+    {
+      return new HelloPacket(crypto, hashChain, zid, includeLegacyHeaderBug, clientId, keyAgreements);
+    }
+  }
+
+  /**
+   * The timer clients used before it adapted: 150ms, doubling with each retransmit of a
+   * packet up to 1.5s, and never learning anything.
+   */
+  private static class FixedRetransmitTimer extends RetransmitTimer {
+    private int backoffs;
+
+    @Override
+    public void seed(long roundTripMillis) {}
+
+    @Override
+    public void addSample(long roundTripMillis) {
+      backoffs = 0;
+    }
+
+    @Override
+    public void resetBackoff() {
+      backoffs = 0;
+    }
+
+    @Override
+    public void backOff() {
+      if (getTimeout() < MAX_TIMEOUT_MILLIS) backoffs++;
+    }
+
+    @Override
+    public int getTimeout() {
+      return Math.min(MAX_TIMEOUT_MILLIS, INITIAL_TIMEOUT_MILLIS << backoffs);
+    }
+  }
+
+  private static class Side extends Thread {
+    private final ZRTPSocket socket;
+    private long             cpuNanos;
+    private Exception        exception;
+
+    Side(ZRTPSocket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      long start = Debug.threadCpuTimeNanos();
+
+      try {
+        socket.negotiateStart();
+        socket.negotiateFinish();
+      } catch (NegotiationFailedException e) {
+        exception = e;
+      } finally {
+        cpuNanos = Debug.threadCpuTimeNanos() - start;
+      }
+    }
+  }
+
+  public static class Result {
+    private final ZRTPInitiatorSocket initiator;
+    private final ZRTPResponderSocket responder;
+    private final Exception           initiatorException;
+    private final Exception           responderException;
+    private final long                cpuNanos;
+    private final long                elapsedMillis;
+
+    Result(ZRTPInitiatorSocket initiator, ZRTPResponderSocket responder,
+           Side initiatorSide, Side responderSide, long elapsedMillis)
+    {
+      this.initiator          = initiator;
+      this.responder          = responder;
+      this.initiatorException = initiatorSide.exception;
+      this.responderException = responderSide.exception;
+      this.cpuNanos           = initiatorSide.cpuNanos + responderSide.cpuNanos;
+      this.elapsedMillis      = elapsedMillis;
+    }
+
+    public boolean isComplete() {
+      return initiator.getTimeline().isComplete() && responder.getTimeline().isComplete();
+    }
+
+    public ZRTPInitiatorSocket getInitiator() {
+      return initiator;
+    }
+
+    public ZRTPResponderSocket getResponder() {
+      return responder;
+    }
+
+    /**
+     * @return the key agreement both sides used, or -1 if they got no further than Hello.
+     */
+    public int getKeyAgreementType() {
+      try {
+        return responder.getKeyAgreementType();
+      } catch (AssertionError e) {
+        return -1;
+      }
+    }
+
+    /**
+     * @return CPU time both handshake threads spent.  Key pairs EphemeralKeyPool had ready
+     * are not counted, since it generates them on its own thread.
+     */
+    public long getCpuNanos() {
+      return cpuNanos;
+    }
+
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+
+    /**
+     * @return packets both sides resent.
+     */
+    public int getRetransmits() {
+      return initiator.getTimeline().getRetransmits() + responder.getTimeline().getRetransmits();
+    }
+
+    @Override
+    public String toString() {
+      return (isComplete() ? "complete" : "incomplete") + " in " + elapsedMillis + "ms" +
+             (initiatorException != null ? ", initiator: " + initiatorException.getMessage() : "") +
+             (responderException != null ? ", responder: " + responderException.getMessage() : "");
+    }
+  }
+}
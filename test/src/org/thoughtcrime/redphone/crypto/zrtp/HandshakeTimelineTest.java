@@ -0,0 +1,110 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.util.Clock;
+
+import java.util.List;
+import java.util.Map;
+
+public class HandshakeTimelineTest extends AndroidTestCase {
+
+  private long now = 5000;
+  private final Clock clock = new Clock() {
+    @Override
+    public long uptimeMillis() {
+      return now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return now;
+    }
+  };
+
+  public void testStatesAreTimedFromEnterToExit() {
+    HandshakeTimeline timeline = new HandshakeTimeline(clock);
+
+    timeline.enterState("EXPECTING_HELLO");
+    now += 40;
+    timeline.enterState("EXPECTING_COMMIT");
+    now += 25;
+    timeline.finish();
+
+    List<Map<String, Object>> states = getList(timeline.toMap(), "states");
+
+    assertEquals(2, states.size());
+    assertEquals("EXPECTING_HELLO", states.get(0).get("state"));
+    assertEquals(0L, states.get(0).get("enter-ms"));
+    assertEquals(40L, states.get(0).get("ms"));
+    assertEquals(40L, states.get(1).get("enter-ms"));
+    assertEquals(25L, states.get(1).get("ms"));
+    assertEquals(65L, timeline.toMap().get("total-ms"));
+    assertFalse(timeline.isComplete());
+  }
+
+  public void testRoundTripIncludesRetransmits() {
+    HandshakeTimeline timeline = new HandshakeTimeline(clock);
+
+    timeline.enterState("EXPECTING_HELLO");
+    now += 10;
+    timeline.packetSent(HelloPacket.TYPE, false);
+    now += 150;
+    timeline.packetSent(HelloPacket.TYPE, true);
+    now += 30;
+    timeline.packetReceived(HelloPacket.TYPE);
+    timeline.enterState("EXPECTING_COMMIT");
+    timeline.packetSent(HelloAckPacket.TYPE, false);
+    now += 60;
+    timeline.packetReceived(CommitPacket.TYPE);
+    timeline.enterState(ZRTPSocket.getStateName(ZRTPSocket.HANDSHAKE_COMPLETE));
+    timeline.finish();
+
+    Map<String, Object>       map     = timeline.toMap();
+    List<Map<String, Object>> packets = getList(map, "packets");
+
+    assertEquals(10L, timeline.getMillisToFirstHello());
+    assertEquals(1, timeline.getRetransmits());
+    assertTrue(timeline.isComplete());
+
+    assertEquals(2, packets.size());
+    assertEquals("Hello", packets.get(0).get("sent"));
+    assertEquals("Hello", packets.get(0).get("answer"));
+    assertEquals(180L, packets.get(0).get("rtt-ms"));
+    assertEquals(1, packets.get(0).get("retransmits"));
+    assertEquals("HelloAck", packets.get(1).get("sent"));
+    assertEquals("Commit", packets.get(1).get("answer"));
+    assertEquals(60L, packets.get(1).get("rtt-ms"));
+    assertEquals(0, packets.get(1).get("retransmits"));
+  }
+
+  public void testStateChangeWithNothingOutstandingIsNotARoundTrip() {
+    HandshakeTimeline timeline = new HandshakeTimeline(clock);
+
+    timeline.enterState("EXPECTING_HELLO");
+    timeline.packetReceived(HelloPacket.TYPE);
+    timeline.enterState("EXPECTING_HELLO_ACK");
+
+    assertEquals(0, getList(timeline.toMap(), "packets").size());
+    assertEquals(-1L, timeline.getMillisToFirstHello());
+  }
+
+  public void testCryptoTimesAccumulate() {
+    HandshakeTimeline timeline = new HandshakeTimeline(clock);
+
+    timeline.addKeyAgreementTime(1500000);
+    timeline.addHashTime(200000);
+    timeline.addHashTime(100000);
+    timeline.addKeyPairTime(50000);
+
+    Map<String, Object> map = timeline.toMap();
+    assertEquals(1500L, map.get("key-agreement-us"));
+    assertEquals(300L, map.get("hash-us"));
+    assertEquals(50L, map.get("key-pair-us"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<String, Object>> getList(Map<String, Object> map, String key) {
+    return (List<Map<String, Object>>)map.get(key);
+  }
+}
@@ -0,0 +1,71 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecrets;
+import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecretsStore;
+import com.securecomcode.voice.util.Base64;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps retained secrets the way RetainedSecretsDatabase does, in a map, so a handshake can
+ * run without a Context.  Numbers are used as given rather than formatted.
+ */
+public class InMemoryRetainedSecretsStore implements RetainedSecretsStore {
+
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  @Override
+  public synchronized RetainedSecrets getRetainedSecrets(String number, byte[] zid) {
+    Entry entry = entries.get(getKey(number, zid));
+
+    if (entry == null || System.currentTimeMillis() > entry.expiration)
+      return new RetainedSecrets(null, null);
+
+    return new RetainedSecrets(entry.rs1, entry.rs2);
+  }
+
+  @Override
+  public synchronized void setRetainedSecret(String number, byte[] zid, byte[] rs1,
+                                             long expiration, boolean continuity)
+  {
+    if (System.currentTimeMillis() >= expiration)
+      return;
+
+    Entry entry = entries.get(getKey(number, zid));
+
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(getKey(number, zid), entry);
+    } else if (!continuity) {
+      entry.verified = false;
+    }
+
+    entry.rs2        = entry.rs1;
+    entry.rs1        = rs1;
+    entry.expiration = expiration;
+  }
+
+  @Override
+  public synchronized boolean isVerified(String number, byte[] zid) {
+    Entry entry = entries.get(getKey(number, zid));
+    return entry != null && entry.verified;
+  }
+
+  @Override
+  public synchronized void setVerified(String number, byte[] zid) {
+    Entry entry = entries.get(getKey(number, zid));
+    if (entry != null) entry.verified = true;
+  }
+
+  private static String getKey(String number, byte[] zid) {
+    return number + "/" + Base64.encodeBytes(zid);
+  }
+
+  private static class Entry {
+    byte[]  rs1;
+    byte[]  rs2;
+    long    expiration;
+    boolean verified;
+  }
+}
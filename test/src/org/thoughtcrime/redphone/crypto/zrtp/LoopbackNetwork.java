@@ -0,0 +1,202 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import com.securecomcode.voice.network.RtpPacket;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Two HandshakeTransport endpoints joined in memory, with the delay, jitter, loss, reordering
+ * and duplication of a real path, so a ZRTPInitiatorSocket and a ZRTPResponderSocket can
+ * handshake with each other in one process.
+ *
+ * Every packet is copied as it is sent, CRC and all, so the sockets share nothing but bytes.
+ * Delays run on the real clock since ZRTPSocket times its retransmits with it.
+ */
+public class LoopbackNetwork {
+
+  private final Endpoint[] endpoints = {new Endpoint(), new Endpoint()};
+  private final Set<String> spared   = new HashSet<String>();
+  private final Random      random;
+
+  private long   delayMillis;
+  private long   jitterMillis;
+  private double loss;
+  private double reorder;
+  private long   reorderMillis;
+  private double duplication;
+
+  private int sent, lost, reordered, duplicated;
+  private int order;
+
+  public LoopbackNetwork(long seed) {
+    this.random = new Random(seed);
+  }
+
+  public Endpoint getEndpoint(int index) {
+    return endpoints[index];
+  }
+
+  public synchronized void setDelay(long delayMillis, long jitterMillis) {
+    this.delayMillis  = delayMillis;
+    this.jitterMillis = jitterMillis;
+  }
+
+  public synchronized void setLoss(double loss) {
+    this.loss = loss;
+  }
+
+  /**
+   * Holds back this fraction of packets by an extra delay, so later packets overtake them.
+   */
+  public synchronized void setReorder(double reorder, long extraMillis) {
+    this.reorder       = reorder;
+    this.reorderMillis = extraMillis;
+  }
+
+  public synchronized void setDuplication(double duplication) {
+    this.duplication = duplication;
+  }
+
+  /**
+   * Never drops packets of this type.  The responder stops listening once it has sent
+   * Conf2Ack, so losing that packet leaves the initiator resending Confirm2 until it gives
+   * up, which is a minute of retransmits rather than anything a test needs to wait for.
+   */
+  public synchronized void spare(String type) {
+    spared.add(type);
+  }
+
+  public synchronized int getSent() {
+    return sent;
+  }
+
+  public synchronized int getLost() {
+    return lost;
+  }
+
+  public synchronized int getReordered() {
+    return reordered;
+  }
+
+  public synchronized int getDuplicated() {
+    return duplicated;
+  }
+
+  private synchronized void transmit(Endpoint from, HandshakePacket packet) {
+    Endpoint to     = (from == endpoints[0]) ? endpoints[1] : endpoints[0];
+    byte[]   bytes  = new byte[packet.getPacketLength()];
+    int      copies = 1;
+
+    System.arraycopy(packet.getPacket(), 0, bytes, 0, bytes.length);
+    sent++;
+
+    if (!spared.contains(packet.getType()) && random.nextDouble() < loss) {
+      lost++;
+      return;
+    }
+
+    if (random.nextDouble() < duplication) {
+      duplicated++;
+      copies++;
+    }
+
+    for (int i=0;i<copies;i++) {
+      long delay = delayMillis + (long)(random.nextDouble() * jitterMillis);
+
+      if (random.nextDouble() < reorder) {
+        reordered++;
+        delay += reorderMillis;
+      }
+
+      to.enqueue(new Datagram(System.currentTimeMillis() + delay, order++, bytes));
+    }
+  }
+
+  private static class Datagram implements Comparable<Datagram> {
+    final long   due;
+    final int    order;
+    final byte[] bytes;
+
+    Datagram(long due, int order, byte[] bytes) {
+      this.due   = due;
+      this.order = order;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int compareTo(Datagram other) {
+      if (due != other.due) return due < other.due ? -1 : 1;
+      return order - other.order;
+    }
+  }
+
+  public class Endpoint implements HandshakeTransport {
+    private final PriorityQueue<Datagram> queue = new PriorityQueue<Datagram>();
+
+    private int     timeoutMillis = 1;
+    private boolean closed;
+
+    @Override
+    public void send(HandshakePacket packet) throws IOException {
+      synchronized (this) {
+        if (closed) throw new IOException("Endpoint closed");
+      }
+
+      packet.setCRC();
+      transmit(this, packet);
+    }
+
+    @Override
+    public synchronized HandshakePacket receiveHandshakePacket(boolean verifyCRC)
+        throws IOException
+    {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+
+      while (true) {
+        if (closed) throw new IOException("Endpoint closed");
+
+        long     now  = System.currentTimeMillis();
+        Datagram head = queue.peek();
+
+        if (head != null && head.due <= now) {
+          queue.poll();
+
+          HandshakePacket packet = new HandshakePacket(new RtpPacket(head.bytes, head.bytes.length));
+
+          if (!verifyCRC || packet.verifyCRC()) return packet;
+          else                                  return null;
+        }
+
+        if (now >= deadline) return null;
+
+        long wake = (head == null) ? deadline : Math.min(deadline, head.due);
+
+        try {
+          wait(Math.max(1, wake - now));
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted");
+        }
+      }
+    }
+
+    @Override
+    public synchronized void setTimeout(int timeoutMillis) {
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+
+    private synchronized void enqueue(Datagram datagram) {
+      queue.add(datagram);
+      notifyAll();
+    }
+  }
+}
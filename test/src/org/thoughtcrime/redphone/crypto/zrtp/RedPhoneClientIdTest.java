@@ -0,0 +1,63 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.codec.CodecRegistry;
+
+public class RedPhoneClientIdTest extends AndroidTestCase {
+
+  public void testClientsWithoutAMaskPlaySpeexWithNoFeatures() {
+    String[] clientIds = {"RedPhone 024    ", "RedPhone 019    ", "RedPhone 024 703",
+                          "RedPhone 029 ZZZ", "SomethingElse   "};
+
+    for (String id : clientIds) {
+      RedPhoneClientId clientId = new RedPhoneClientId(id);
+
+      assertEquals(id, CodecRegistry.getFallbackCapabilities(), clientId.getCodecCapabilities());
+      assertFalse(id, clientId.supportsDiscontinuousTransmission());
+      assertFalse(id, clientId.supportsAdaptivePacketization());
+      assertFalse(id, clientId.supportsForwardErrorCorrection());
+    }
+
+    assertEquals(CodecRegistry.SPEEX,
+                 CodecRegistry.negotiate(CodecRegistry.getLocalCapabilities(),
+                                         new RedPhoneClientId("RedPhone 024    ").getCodecCapabilities()));
+  }
+
+  public void testFeaturesFollowTheAdvertisedMask() {
+    RedPhoneClientId codecsOnly = new RedPhoneClientId("RedPhone 029 003");
+
+    assertFalse(codecsOnly.supportsDiscontinuousTransmission());
+    assertFalse(codecsOnly.supportsAdaptivePacketization());
+    assertFalse(codecsOnly.supportsForwardErrorCorrection());
+
+    RedPhoneClientId dtxOnly = new RedPhoneClientId("RedPhone 029 101");
+
+    assertTrue(dtxOnly.supportsDiscontinuousTransmission());
+    assertFalse(dtxOnly.supportsAdaptivePacketization());
+    assertFalse(dtxOnly.supportsForwardErrorCorrection());
+
+    RedPhoneClientId local = new RedPhoneClientId(String.format("RedPhone 029 %03X",
+                                                                RedPhoneClientId.getLocalCapabilities()));
+
+    assertTrue(local.supportsDiscontinuousTransmission());
+    assertTrue(local.supportsAdaptivePacketization());
+    assertTrue(local.supportsForwardErrorCorrection());
+    assertEquals(CodecRegistry.getLocalCapabilities(), local.getCodecCapabilities());
+  }
+
+  public void testCodecCapabilities() {
+    RedPhoneClientId advertised = new RedPhoneClientId("RedPhone 029 70C");
+
+    assertTrue(advertised.supportsForwardErrorCorrection());
+    assertEquals(0x00C, advertised.getCodecCapabilities());
+    assertEquals(0x00F, new RedPhoneClientId("RedPhone 029 00F").getCodecCapabilities());
+  }
+
+  public void testMaskVersionKeepsHandshakeBehaviour() {
+    RedPhoneClientId clientId = new RedPhoneClientId("RedPhone 029 703");
+
+    assertFalse(clientId.isImplicitDh3kVersion());
+    assertFalse(clientId.isLegacyConfirmConnectionVersion());
+  }
+}
@@ -0,0 +1,149 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Median and 95th percentile handshake times with the old fixed retransmit timer, the
+ * adaptive one, and the adaptive one seeded with the signaling round trip, over networks
+ * from a LAN to a slow relay.  The handshakes run through real sockets on a LoopbackNetwork,
+ * several at once to keep the run to a few minutes.
+ */
+public class RetransmitTimerBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "RetransmitTimerBenchmark";
+
+  private static final int HANDSHAKES = 400;
+  private static final int BATCH      = 20;
+
+  private static final int FIXED    = 0;
+  private static final int ADAPTIVE = 1;
+  private static final int SEEDED   = 2;
+
+  private static final String[] POLICIES = {"fixed", "adaptive", "seeded"};
+
+  public void testLan() throws Exception {
+    Report[] reports = compare(2, 2, 0.05, 30);
+    assertTrue(reports[FIXED] + " vs " + reports[ADAPTIVE], reports[ADAPTIVE].p95 < reports[FIXED].p95);
+  }
+
+  public void testMobile() throws Exception {
+    compare(40, 20, 0.02, 110);
+  }
+
+  public void testLossyMobile() throws Exception {
+    compare(80, 40, 0.15, 190);
+  }
+
+  public void testSlowRelay() throws Exception {
+    Report[] reports = compare(300, 50, 0.01, 650);
+
+    assertTrue(reports[FIXED] + " vs " + reports[SEEDED], reports[SEEDED].p95 <= reports[FIXED].p95);
+    assertTrue(reports[FIXED] + " vs " + reports[SEEDED],
+               reports[SEEDED].retransmits < reports[FIXED].retransmits);
+  }
+
+  /**
+   * Runs the same networks under each policy.
+   *
+   * @param signalingRoundTrip the round trip seeded timers start from, in milliseconds.
+   */
+  private Report[] compare(long delay, long jitter, double loss, long signalingRoundTrip)
+      throws Exception
+  {
+    Report[] reports = new Report[POLICIES.length];
+
+    for (int policy=0;policy<POLICIES.length;policy++) {
+      reports[policy] = run(policy, delay, jitter, loss, signalingRoundTrip);
+    }
+
+    Log.d(TAG, "delay=" + delay + "ms jitter=" + jitter + "ms loss=" + (int)(loss * 100) + "%");
+    for (Report report : reports) Log.d(TAG, "  " + report);
+
+    return reports;
+  }
+
+  private Report run(int policy, long delay, long jitter, double loss, long signalingRoundTrip)
+      throws Exception
+  {
+    long[] elapsed     = new long[HANDSHAKES];
+    int    retransmits = 0;
+
+    for (int first=0;first<HANDSHAKES;first+=BATCH) {
+      Handshake[] batch = new Handshake[Math.min(BATCH, HANDSHAKES - first)];
+
+      for (int i=0;i<batch.length;i++) {
+        LoopbackNetwork network = new LoopbackNetwork(first + i);
+        network.setDelay(delay, jitter);
+        network.setLoss(loss);
+        network.spare(ConfAckPacket.TYPE);
+
+        HandshakeHarness harness = new HandshakeHarness(network);
+
+        if      (policy == FIXED)  harness.withFixedRetransmitTimer();
+        else if (policy == SEEDED) harness.withRoundTripEstimate(signalingRoundTrip);
+
+        batch[i] = new Handshake(harness, first + i);
+        batch[i].start();
+      }
+
+      for (int i=0;i<batch.length;i++) {
+        batch[i].join();
+
+        HandshakeHarness.Result result = batch[i].result;
+        assertTrue(POLICIES[policy] + ": " + result, result.isComplete());
+
+        elapsed[first + i] = result.getElapsedMillis();
+        retransmits       += result.getRetransmits();
+      }
+    }
+
+    Arrays.sort(elapsed);
+    return new Report(POLICIES[policy], elapsed[HANDSHAKES / 2], elapsed[HANDSHAKES * 95 / 100],
+                      (double)retransmits / HANDSHAKES);
+  }
+
+  private static class Handshake extends Thread {
+    private final HandshakeHarness        harness;
+    private final HandshakeHarness.Peer   initiator;
+    private final HandshakeHarness.Peer   responder;
+    private volatile HandshakeHarness.Result result;
+
+    Handshake(HandshakeHarness harness, int index) {
+      this.harness   = harness;
+      this.initiator = new HandshakeHarness.Peer("+15555550100", index);
+      this.responder = new HandshakeHarness.Peer("+15555550199", index + 101);
+    }
+
+    @Override
+    public void run() {
+      try {
+        result = harness.run(initiator, responder);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private static class Report {
+    final String name;
+    final long   median;
+    final long   p95;
+    final double retransmits;
+
+    Report(String name, long median, long p95, double retransmits) {
+      this.name        = name;
+      this.median      = median;
+      this.p95         = p95;
+      this.retransmits = retransmits;
+    }
+
+    @Override
+    public String toString() {
+      return name + ": median=" + median + "ms p95=" + p95 + "ms retransmits=" +
+             String.format("%.1f", retransmits);
+    }
+  }
+}
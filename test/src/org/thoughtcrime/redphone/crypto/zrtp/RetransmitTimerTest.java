@@ -0,0 +1,91 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.test.AndroidTestCase;
+
+public class RetransmitTimerTest extends AndroidTestCase {
+  public void testStartsAtTheOldFixedTimeout() {
+    RetransmitTimer timer = new RetransmitTimer();
+
+    assertEquals(150, timer.getTimeout());
+    assertEquals(-1, timer.getSmoothedRoundTrip());
+  }
+
+  public void testFirstSampleSetsTheEstimate() {
+    RetransmitTimer timer = new RetransmitTimer();
+    timer.addSample(100);
+
+    assertEquals(100, timer.getSmoothedRoundTrip());
+    assertEquals(200, timer.getRoundTripTimeout());
+
+    timer.addSample(100);
+    assertEquals(100, timer.getSmoothedRoundTrip());
+    assertEquals(175, timer.getRoundTripTimeout());
+  }
+
+  public void testTimeoutIsClamped() {
+    RetransmitTimer timer = new RetransmitTimer();
+
+    timer.addSample(2);
+    assertEquals(RetransmitTimer.MIN_TIMEOUT_MILLIS, timer.getTimeout());
+
+    timer = new RetransmitTimer();
+    timer.addSample(2000);
+    assertEquals(RetransmitTimer.MAX_TIMEOUT_MILLIS, timer.getRoundTripTimeout());
+  }
+
+  public void testFirstMeasuredSampleReplacesSeed() {
+    RetransmitTimer timer = new RetransmitTimer();
+
+    timer.seed(400);
+    assertEquals(800, timer.getRoundTripTimeout());
+
+    timer.addSample(40);
+    assertEquals(40, timer.getSmoothedRoundTrip());
+    assertEquals(80, timer.getRoundTripTimeout());
+
+    timer.seed(400);
+    assertEquals(40, timer.getSmoothedRoundTrip());
+  }
+
+  public void testBackoffLastsUntilTheNextPacket() {
+    RetransmitTimer timer = new RetransmitTimer();
+    timer.addSample(40);
+
+    int timeout = timer.getTimeout();
+
+    timer.backOff();
+    assertEquals(timeout * 2, timer.getTimeout());
+    timer.backOff();
+    assertEquals(timeout * 4, timer.getTimeout());
+
+    for (int i=0;i<20;i++) timer.backOff();
+    assertEquals(RetransmitTimer.MAX_TIMEOUT_MILLIS, timer.getTimeout());
+
+    timer.resetBackoff();
+    assertEquals(timeout, timer.getTimeout());
+  }
+
+  public void testUnmeasuredTimerIsTheOldFixedSchedule() {
+    RetransmitTimer timer = new RetransmitTimer();
+    int[]           waits = {150, 300, 600, 1200, 1500, 1500};
+
+    for (int wait : waits) {
+      assertEquals(wait, timer.getTimeout());
+      timer.backOff();
+    }
+  }
+
+  public void testSeededTimerStillRetransmitsEarlyOnce() {
+    RetransmitTimer timer = new RetransmitTimer();
+    timer.seed(650);
+
+    assertEquals(RetransmitTimer.INITIAL_TIMEOUT_MILLIS, timer.getTimeout());
+    timer.backOff();
+    assertEquals(1300, timer.getTimeout());
+    timer.backOff();
+    assertEquals(RetransmitTimer.MAX_TIMEOUT_MILLIS, timer.getTimeout());
+
+    timer.resetBackoff();
+    assertEquals(RetransmitTimer.INITIAL_TIMEOUT_MILLIS, timer.getTimeout());
+  }
+}
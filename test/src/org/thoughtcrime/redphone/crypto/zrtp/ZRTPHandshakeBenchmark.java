@@ -0,0 +1,51 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+
+public class ZRTPHandshakeBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "ZRTPHandshakeBenchmark";
+
+  private HandshakeHarness.Peer initiator;
+  private HandshakeHarness.Peer responder;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    initiator = new HandshakeHarness.Peer("+15555550100", 1);
+    responder = new HandshakeHarness.Peer("+15555550199", 101);
+  }
+
+  private HandshakeHarness.Result run(LoopbackNetwork network) throws Exception {
+    HandshakeHarness.Result result = new HandshakeHarness(network).run(initiator, responder);
+    assertTrue(result.toString(), result.isComplete());
+    return result;
+  }
+
+  /**
+   * CPU time per handshake for each key agreement, both sides together, over an
+   * unimpaired network.
+   */
+  public void testCpuPerHandshake() throws Exception {
+    benchmark("EC25", 2000);
+
+    responder.asClient("RedPhone 023", false);
+    benchmark("DH3K", 200);
+  }
+
+  private void benchmark(String name, int handshakes) throws Exception {
+    long cpuNanos = 0, elapsedMillis = 0;
+
+    run(new LoopbackNetwork(0));
+
+    for (int i=0;i<handshakes;i++) {
+      HandshakeHarness.Result result = run(new LoopbackNetwork(i));
+      cpuNanos      += result.getCpuNanos();
+      elapsedMillis += result.getElapsedMillis();
+    }
+
+    Log.d(TAG, name + " handshake: cpu=" + (cpuNanos / handshakes / 1000) + "us" +
+               " wall=" + (elapsedMillis * 1000 / handshakes) + "us over " + handshakes);
+  }
+}
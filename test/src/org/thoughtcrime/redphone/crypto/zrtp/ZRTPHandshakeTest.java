@@ -0,0 +1,127 @@
+package com.securecomcode.voice.crypto.zrtp;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.securecomcode.voice.crypto.zrtp.retained.RetainedSecrets;
+
+import java.util.Arrays;
+
+public class ZRTPHandshakeTest extends AndroidTestCase {
+  private static final String TAG = "ZRTPHandshakeTest";
+
+  private HandshakeHarness.Peer initiator;
+  private HandshakeHarness.Peer responder;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    initiator = new HandshakeHarness.Peer("+15555550100", 1);
+    responder = new HandshakeHarness.Peer("+15555550199", 101);
+  }
+
+  private HandshakeHarness.Result run(LoopbackNetwork network) throws Exception {
+    HandshakeHarness.Result result = new HandshakeHarness(network).run(initiator, responder);
+    assertTrue(result.toString(), result.isComplete());
+    return result;
+  }
+
+  private void assertSameKeys(HandshakeHarness.Result result) {
+    MasterSecret initiatorSecret = result.getInitiator().getMasterSecret();
+    MasterSecret responderSecret = result.getResponder().getMasterSecret();
+
+    assertTrue(Arrays.equals(initiatorSecret.getSAS(), responderSecret.getSAS()));
+    assertTrue(Arrays.equals(initiatorSecret.getInitiatorSrtpKey(), responderSecret.getInitiatorSrtpKey()));
+    assertTrue(Arrays.equals(initiatorSecret.getResponderSrtpKey(), responderSecret.getResponderSrtpKey()));
+  }
+
+  public void testHandshakeAgreesOnKeys() throws Exception {
+    HandshakeHarness.Result result = run(new LoopbackNetwork(1));
+
+    assertEquals(ZRTPSocket.KA_TYPE_EC25, result.getKeyAgreementType());
+    assertSameKeys(result);
+    assertEquals(result.getInitiator().getSasInfo().getSasText(),
+                 result.getResponder().getSasInfo().getSasText());
+  }
+
+  public void testRetainedSecretsCarryVerificationToTheNextCall() throws Exception {
+    HandshakeHarness.Result first = run(new LoopbackNetwork(2));
+    first.getInitiator().setSasVerified();
+
+    assertFalse(first.getResponder().getSasInfo().isVerified());
+    assertTrue(first.getInitiator().getSasInfo().isVerified());
+
+    HandshakeHarness.Result second = run(new LoopbackNetwork(3));
+    assertSameKeys(second);
+    assertTrue(second.getInitiator().getSasInfo().isVerified());
+
+    RetainedSecrets secrets = initiator.getStore().getRetainedSecrets("+15555550199",
+                                                                      responder.getZid());
+    assertNotNull(secrets.getRetainedSecretOne());
+    assertNotNull(secrets.getRetainedSecretTwo());
+  }
+
+  public void testLostRetainedSecretBreaksVerification() throws Exception {
+    run(new LoopbackNetwork(4)).getInitiator().setSasVerified();
+
+    responder = new HandshakeHarness.Peer("+15555550199", 101);
+
+    HandshakeHarness.Result second = run(new LoopbackNetwork(5));
+    assertSameKeys(second);
+    assertFalse(second.getInitiator().getSasInfo().isVerified());
+  }
+
+  public void testLegacyHeaderBugResponder() throws Exception {
+    responder.withLegacyHeaderBug();
+
+    HandshakeHarness.Result result = run(new LoopbackNetwork(6));
+    assertTrue(result.getInitiator().getForeignHello().isLegacyHeaderBugPresent());
+    assertTrue(result.getResponder().getForeignHello().isLegacyHeaderBugPresent());
+    assertSameKeys(result);
+  }
+
+  public void testLegacyConfirmResponder() throws Exception {
+    responder.asClient("RedPhone 019", false);
+
+    HandshakeHarness.Result result = run(new LoopbackNetwork(7));
+    assertEquals(ZRTPSocket.KA_TYPE_EC25, result.getKeyAgreementType());
+    assertTrue(result.getInitiator().isLegacyConfirmConnection());
+    assertSameKeys(result);
+  }
+
+  public void testLegacyConfirmInitiator() throws Exception {
+    initiator.asClient("RedPhone 021", true);
+
+    HandshakeHarness.Result result = run(new LoopbackNetwork(8));
+    assertTrue(result.getResponder().isLegacyConfirmConnection());
+    assertSameKeys(result);
+  }
+
+  public void testDh3kWithLegacyHeaderBugResponder() throws Exception {
+    responder.asClient("RedPhone 018", false).withLegacyHeaderBug();
+
+    HandshakeHarness.Result result = run(new LoopbackNetwork(9));
+    assertEquals(ZRTPSocket.KA_TYPE_DH3K, result.getKeyAgreementType());
+    assertTrue(result.getInitiator().isLegacyConfirmConnection());
+    assertTrue(result.getResponder().getForeignHello().isLegacyHeaderBugPresent());
+    assertSameKeys(result);
+  }
+
+  public void testImpairedNetwork() throws Exception {
+    for (int i=0;i<5;i++) {
+      LoopbackNetwork network = new LoopbackNetwork(10 + i);
+      network.setDelay(20, 20);
+      network.setLoss(0.15);
+      network.setReorder(0.1, 60);
+      network.setDuplication(0.1);
+      network.spare(ConfAckPacket.TYPE);
+
+      HandshakeHarness.Result result = run(network);
+      assertSameKeys(result);
+
+      Log.d(TAG, "Impaired handshake " + result + ", sent=" + network.getSent() +
+                 " lost=" + network.getLost() + " reordered=" + network.getReordered() +
+                 " duplicated=" + network.getDuplicated());
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package com.securecomcode.voice.network;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.util.Clock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConnectionHealthTest extends AndroidTestCase {
+
+  private static class FakeClock implements Clock {
+    long now = 1000000;
+
+    public long uptimeMillis()      { return now; }
+    public long currentTimeMillis() { return now; }
+  }
+
+  private static class FakeRelay implements ConnectionHealth.Relay {
+    int     reconnects;
+    boolean failing;
+
+    public void reconnect() throws IOException {
+      reconnects++;
+      if (failing) throw new IOException("relay unreachable");
+    }
+  }
+
+  private static class RecordingListener implements ConnectionHealth.Listener {
+    final List<String> transitions = new ArrayList<String>();
+
+    public void onStateChanged(ConnectionHealth.State previous, ConnectionHealth.State current) {
+      transitions.add(previous + "->" + current);
+    }
+  }
+
+  private FakeClock         clock;
+  private FakeRelay         relay;
+  private RecordingListener listener;
+  private ConnectionHealth  health;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    clock    = new FakeClock();
+    relay    = new FakeRelay();
+    listener = new RecordingListener();
+    health   = new ConnectionHealth(clock, relay, listener);
+    health.onPacketReceived();
+  }
+
+  private void advance(long millis) {
+    clock.now += millis;
+  }
+
+  public void testSteadyTrafficNeverNotifies() {
+    for (int i=0;i<500;i++) {
+      advance(20);
+      health.onPacketReceived();
+
+      if (i % 50 == 0) assertTrue(health.tick());
+    }
+
+    assertEquals(ConnectionHealth.State.HEALTHY, health.getState());
+    assertEquals(0, relay.reconnects);
+    assertTrue(listener.transitions.isEmpty());
+  }
+
+  public void testStallEscalatesOnceThroughEachState() {
+    advance(1000);
+    assertTrue(health.tick());
+    assertEquals(ConnectionHealth.State.DEGRADED, health.getState());
+
+    for (int i=0;i<5;i++) {
+      advance(1000);
+      assertTrue(health.tick());
+    }
+
+    assertEquals(ConnectionHealth.State.RECONNECTING, health.getState());
+    assertEquals(6, relay.reconnects);
+    assertEquals(2, listener.transitions.size());
+    assertEquals("HEALTHY->DEGRADED", listener.transitions.get(0));
+    assertEquals("DEGRADED->RECONNECTING", listener.transitions.get(1));
+  }
+
+  public void testPacketRecoversImmediately() {
+    advance(2500);
+    health.tick();
+    assertEquals(ConnectionHealth.State.RECONNECTING, health.getState());
+
+    advance(10);
+    health.onPacketReceived();
+    assertEquals(ConnectionHealth.State.HEALTHY, health.getState());
+    assertEquals("RECONNECTING->HEALTHY", listener.transitions.get(listener.transitions.size() - 1));
+
+    int reconnects = relay.reconnects;
+    advance(500);
+    assertTrue(health.tick());
+    assertEquals(reconnects, relay.reconnects);
+  }
+
+  public void testFailedReconnectsKeepTrying() {
+    relay.failing = true;
+
+    for (int i=0;i<10;i++) {
+      advance(1000);
+      assertTrue(health.tick());
+    }
+
+    assertEquals(10, relay.reconnects);
+    assertEquals(ConnectionHealth.State.RECONNECTING, health.getState());
+  }
+
+  public void testLongSilenceIsLost() {
+    for (int i=0;i<60;i++) {
+      advance(1000);
+      assertTrue(health.tick());
+    }
+
+    advance(1000);
+    assertFalse(health.tick());
+    assertEquals(ConnectionHealth.State.LOST, health.getState());
+    assertEquals("RECONNECTING->LOST", listener.transitions.get(listener.transitions.size() - 1));
+
+    int notified = listener.transitions.size();
+    health.onPacketReceived();
+    advance(1000);
+    assertFalse(health.tick());
+    assertEquals(ConnectionHealth.State.LOST, health.getState());
+    assertEquals(notified, listener.transitions.size());
+  }
+}
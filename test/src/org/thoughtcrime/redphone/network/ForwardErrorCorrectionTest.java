@@ -0,0 +1,160 @@
+package com.securecomcode.voice.network;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.audio.EncodedAudioData;
+import com.securecomcode.voice.codec.AudioCodec;
+import com.securecomcode.voice.crypto.SecureRtpSocket;
+import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.profiling.PacketLogger;
+import com.securecomcode.voice.util.Factory;
+import com.securecomcode.voice.util.RingBuffer;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ForwardErrorCorrectionTest extends AndroidTestCase {
+
+  private static final int FRAME_LENGTH = 20;
+
+  private RtpSocket senderSocket, readerSocket;
+  private RingBuffer<EncodedAudioData> outgoing, incoming;
+  private RtpAudioSender sender;
+  private RtpAudioReader reader;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    int senderPort = findFreePort();
+    int readerPort = findFreePort();
+
+    senderSocket = new RtpSocket(getContext(), senderPort,
+                                 new InetSocketAddress("127.0.0.1", readerPort), null);
+    readerSocket = new RtpSocket(getContext(), readerPort,
+                                 new InetSocketAddress("127.0.0.1", senderPort), null);
+    readerSocket.setTimeout(0);
+
+    CallMonitor monitor = new CallMonitor(getContext());
+    outgoing = createQueue();
+    incoming = createQueue();
+    sender   = new RtpAudioSender(outgoing, new SecureRtpSocket(senderSocket, monitor),
+                                  AudioCodec.SAMPLES_PER_FRAME, new PacketLogger());
+    reader   = new RtpAudioReader(incoming, new SecureRtpSocket(readerSocket, monitor),
+                                  AudioCodec.SAMPLES_PER_FRAME, new PacketLogger());
+
+    sender.setAdaptivePacketization(true);
+    reader.setAdaptivePacketization(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    senderSocket.close();
+    readerSocket.close();
+    super.tearDown();
+  }
+
+  public void testEachPacketCarriesThePreviousOne() throws Exception {
+    sender.setForwardErrorCorrection(true);
+    sender.setFramesPerPacket(2);
+
+    List<EncodedAudioData> received = sendFrames(0, 6);
+
+    //the first packet has nothing to repeat
+    assertEquals(5, received.size());
+    assertFrames(received.get(0), 0, 2, false);
+    assertFrames(received.get(1), 0, 2, true);
+    assertFrames(received.get(2), 2, 2, false);
+    assertFrames(received.get(3), 2, 2, true);
+    assertFrames(received.get(4), 4, 2, false);
+  }
+
+  public void testRedundancyFollowsPacketSize() throws Exception {
+    sender.setForwardErrorCorrection(true);
+    sender.setFramesPerPacket(3);
+    List<EncodedAudioData> received = sendFrames(0, 3);
+
+    sender.setFramesPerPacket(1);
+    received.addAll(sendFrames(3, 1));
+
+    assertEquals(3, received.size());
+    assertFrames(received.get(0), 0, 3, false);
+    assertFrames(received.get(1), 0, 3, true);
+    assertFrames(received.get(2), 3, 1, false);
+  }
+
+  public void testNoRedundancyAcrossGaps() throws Exception {
+    sender.setForwardErrorCorrection(true);
+    sender.setFramesPerPacket(1);
+
+    List<EncodedAudioData> received = sendFrames(0, 1);
+    received.addAll(sendFrames(5, 1));
+
+    assertEquals(2, received.size());
+    assertFrames(received.get(0), 0, 1, false);
+    assertFrames(received.get(1), 5, 1, false);
+  }
+
+  public void testOffWithoutAdaptivePacketization() throws Exception {
+    sender.setAdaptivePacketization(false);
+    sender.setForwardErrorCorrection(true);
+
+    assertFalse(sender.isForwardErrorCorrection());
+  }
+
+  /**
+   * Queues frames numbered from first, each filled with its own number, sends them and returns
+   * what the reader makes of the packets.
+   */
+  private List<EncodedAudioData> sendFrames(long first, int count) throws Exception {
+    for (int i=0;i<count;i++) {
+      EncodedAudioData frame = outgoing.claim();
+      frame.set(FRAME_LENGTH, first + i, first + i);
+      for (int j=0;j<FRAME_LENGTH;j++) frame.data[j] = (byte)(first + i);
+      outgoing.publish();
+      sender.go();
+    }
+
+    SystemClock.sleep(50);
+    reader.drain();
+
+    List<EncodedAudioData> received = new ArrayList<EncodedAudioData>();
+    EncodedAudioData queued;
+    while ((queued = incoming.peek()) != null) {
+      EncodedAudioData copy = new EncodedAudioData(RtpAudioReader.MAX_PAYLOAD_SIZE);
+      copy.copyFrom(queued);
+      received.add(copy);
+      incoming.release();
+    }
+
+    return received;
+  }
+
+  private static void assertFrames(EncodedAudioData ead, long first, int frames,
+                                   boolean redundant)
+  {
+    assertEquals(first, ead.sequenceNumber);
+    assertEquals(frames, ead.frames);
+    assertEquals(redundant, ead.redundant);
+    assertEquals(frames * FRAME_LENGTH, ead.length);
+
+    for (int i=0;i<ead.length;i++) assertEquals((byte)(first + i / FRAME_LENGTH), ead.data[i]);
+  }
+
+  private static RingBuffer<EncodedAudioData> createQueue() {
+    return new RingBuffer<EncodedAudioData>(16, new Factory<EncodedAudioData>() {
+      public EncodedAudioData getInstance() {
+        return new EncodedAudioData(RtpAudioReader.MAX_PAYLOAD_SIZE);
+      }
+    });
+  }
+
+  private static int findFreePort() throws Exception {
+    DatagramSocket probe = new DatagramSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    return port;
+  }
+}
@@ -0,0 +1,27 @@
+package com.securecomcode.voice.network;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.audio.EncodedAudioData;
+
+public class PacketReservoirTest extends AndroidTestCase {
+
+  public void testRecycles() {
+    PacketReservoir reservoir = new PacketReservoir(64, 2);
+    EncodedAudioData first = reservoir.getPacket();
+    EncodedAudioData second = reservoir.getPacket();
+    assertEquals(0, reservoir.getAvailable());
+
+    reservoir.returnPacket(first);
+    assertSame(first, reservoir.getPacket());
+
+    reservoir.returnPacket(new EncodedAudioData(new byte[10], 0, 0));
+    assertEquals(0, reservoir.getAvailable());
+    assertEquals(1, reservoir.getForeignReturns());
+
+    reservoir.returnPacket(first);
+    reservoir.returnPacket(second);
+    reservoir.returnPacket(new EncodedAudioData(64));
+    assertEquals(2, reservoir.getAvailable());
+  }
+}
@@ -0,0 +1,51 @@
+package com.securecomcode.voice.network;
+
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.audio.CallAudioFormat;
+
+public class PacketizationChooserTest extends AndroidTestCase {
+
+  public void testStartsAtLegacySize() {
+    assertEquals(RtpAudioSender.LEGACY_FRAMES_PER_PACKET,
+                 new PacketizationChooser(CallAudioFormat.NARROWBAND).getFramesPerPacket());
+  }
+
+  public void testTargetFollowsLossAndDelay() {
+    assertEquals(4, PacketizationChooser.getTarget(0, 40, 20));
+    assertEquals(2, PacketizationChooser.getTarget(0.02f, 40, 20));
+    assertEquals(1, PacketizationChooser.getTarget(0.10f, 40, 20));
+
+    assertEquals(3, PacketizationChooser.getTarget(0, 80, 20));
+    assertEquals(1, PacketizationChooser.getTarget(0, 140, 20));
+    assertEquals(1, PacketizationChooser.getTarget(0, 400, 20));
+
+    assertEquals(4, PacketizationChooser.getTarget(0, 80, 10));
+    assertEquals(2, PacketizationChooser.getTarget(0, 130, 10));
+  }
+
+  public void testShrinksAtOnceAndGrowsSlowly() {
+    PacketizationChooser chooser = new PacketizationChooser(CallAudioFormat.NARROWBAND);
+
+    assertEquals(1, chooser.choose(0.10f, 40));
+
+    assertEquals(1, chooser.choose(0, 40));
+    assertEquals(1, chooser.choose(0, 40));
+    assertEquals(2, chooser.choose(0, 40));
+
+    assertEquals(2, chooser.choose(0, 40));
+    assertEquals(1, chooser.choose(0.10f, 40));
+  }
+
+  public void testGrowthNeedsConsecutiveSamples() {
+    PacketizationChooser chooser = new PacketizationChooser(CallAudioFormat.NARROWBAND);
+
+    chooser.choose(0, 40);
+    chooser.choose(0, 40);
+    assertEquals(2, chooser.choose(0.02f, 40));
+    chooser.choose(0, 40);
+    chooser.choose(0, 40);
+    assertEquals(2, chooser.getFramesPerPacket());
+    assertEquals(3, chooser.choose(0, 40));
+  }
+}
@@ -0,0 +1,221 @@
+package com.securecomcode.voice.network;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.securecomcode.voice.crypto.SecureRtpPacket;
+import com.securecomcode.voice.crypto.SecureRtpSocket;
+import com.securecomcode.voice.monitor.CallMonitor;
+import com.securecomcode.voice.signaling.SessionDescriptor;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Fails an RtpSocket over between ports of a local relay stand-in, which answers
+ * open-port signals and echoes everything else back to the port it came from.
+ */
+public class RelayFailoverTest extends AndroidTestCase {
+
+  private static class RelayStandIn implements Runnable {
+    private static final byte[] OPEN_PREFIX = "GET /open/".getBytes();
+    private static final byte[] RESPONSE    = "HTTP/1.0 200 OK\r\n\r\n".getBytes();
+
+    private final DatagramSocket socket;
+    private final Set<Integer>   blackholed = Collections.synchronizedSet(new HashSet<Integer>());
+    private final Thread         thread;
+
+    private volatile boolean running = true;
+    private volatile boolean refusingOpens;
+    private volatile int     opens;
+
+    public RelayStandIn() throws IOException {
+      socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+      socket.setSoTimeout(50);
+      thread = new Thread(this);
+      thread.start();
+    }
+
+    public int getPort() {
+      return socket.getLocalPort();
+    }
+
+    public void blackhole(int port) {
+      blackholed.add(port);
+    }
+
+    public void close() throws InterruptedException {
+      running = false;
+      thread.join();
+      socket.close();
+    }
+
+    @Override
+    public void run() {
+      byte[] buffer = new byte[4096];
+
+      while (running) {
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+
+        try {
+          socket.receive(datagram);
+
+          if (blackholed.contains(datagram.getPort())) {
+            continue;
+          }
+
+          if (isOpenPort(datagram)) {
+            if (refusingOpens) continue;
+
+            opens++;
+            socket.send(new DatagramPacket(RESPONSE, RESPONSE.length, datagram.getSocketAddress()));
+          } else {
+            socket.send(datagram);
+          }
+        } catch (SocketTimeoutException e) {
+          // Check running.
+        } catch (IOException e) {
+          return;
+        }
+      }
+    }
+
+    private static boolean isOpenPort(DatagramPacket datagram) {
+      if (datagram.getLength() < OPEN_PREFIX.length) return false;
+
+      for (int i=0;i<OPEN_PREFIX.length;i++) {
+        if (datagram.getData()[i] != OPEN_PREFIX[i]) return false;
+      }
+
+      return true;
+    }
+  }
+
+  private RelayStandIn    relay;
+  private RtpSocket       rtpSocket;
+  private SecureRtpSocket socket;
+  private int             localPort;
+
+  private final SecureRtpPacket outPacket = new SecureRtpPacket(64);
+  private final SecureRtpPacket inPacket  = new SecureRtpPacket(4096);
+  private final byte[]          payload   = new byte[64];
+  private int                   sequence;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    relay     = new RelayStandIn();
+    localPort = findFreePort();
+
+    SessionDescriptor descriptor = new SessionDescriptor("localhost", "127.0.0.1",
+                                                         relay.getPort(), 1234, 0);
+
+    rtpSocket = new RtpSocket(getContext(), localPort,
+                              new InetSocketAddress("127.0.0.1", relay.getPort()),
+                              descriptor);
+    socket    = new SecureRtpSocket(rtpSocket, new CallMonitor(getContext()));
+
+    byte[] cipherKey = new byte[16];
+    byte[] macKey    = new byte[20];
+    byte[] salt      = new byte[14];
+    cipherKey[0] = 1;
+    macKey[0]    = 2;
+
+    socket.setKeys(cipherKey, macKey, salt, cipherKey, macKey, salt);
+    socket.setTimeout(100);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    socket.close();
+    relay.close();
+    super.tearDown();
+  }
+
+  public void testFailoverCarriesSrtpState() throws Exception {
+    for (int i=0;i<10;i++) {
+      send();
+      assertEquals(SecureRtpSocket.RECEIVE_OK, socket.receive(inPacket));
+      assertEquals(i, inPacket.getLogicalSequence());
+    }
+
+    relay.blackhole(localPort);
+
+    for (int i=0;i<5;i++) {
+      send();
+      assertEquals(SecureRtpSocket.RECEIVE_NONE, socket.receive(inPacket));
+    }
+
+    rtpSocket.failover();
+    assertEquals(1, relay.opens);
+
+    for (int i=15;i<30;i++) {
+      send();
+      assertEquals(SecureRtpSocket.RECEIVE_OK, socket.receive(inPacket));
+      assertEquals(i, inPacket.getLogicalSequence());
+    }
+
+    assertEquals(1, rtpSocket.sample().get("failovers"));
+    assertTrue((Long)rtpSocket.sample().get("reconnect-ms") >= 0);
+  }
+
+  public void testDuplicatesFromBothPathsAreDropped() throws Exception {
+    send();
+    assertEquals(SecureRtpSocket.RECEIVE_OK, socket.receive(inPacket));
+
+    rtpSocket.failover();
+
+    send();
+    SystemClock.sleep(50);
+    assertEquals(SecureRtpSocket.RECEIVE_OK, socket.receive(inPacket));
+    assertEquals(1, inPacket.getLogicalSequence());
+    assertEquals(SecureRtpSocket.RECEIVE_REJECTED, socket.receive(inPacket));
+    assertEquals(1, rtpSocket.sample().get("failovers"));
+
+    for (int i=2;i<10;i++) {
+      send();
+      assertEquals(SecureRtpSocket.RECEIVE_OK, socket.receive(inPacket));
+      assertEquals(i, inPacket.getLogicalSequence());
+      assertEquals(SecureRtpSocket.RECEIVE_NONE, socket.receive(inPacket));
+    }
+  }
+
+  public void testUnreachableRelayKeepsCurrentChannel() throws Exception {
+    relay.refusingOpens = true;
+
+    try {
+      rtpSocket.failover();
+      fail("Expected the open-port signal to time out");
+    } catch (IOException e) {
+      // Expected.
+    }
+
+    for (int i=0;i<5;i++) {
+      send();
+      assertEquals(SecureRtpSocket.RECEIVE_OK, socket.receive(inPacket));
+    }
+
+    assertEquals(0, rtpSocket.sample().get("failovers"));
+  }
+
+  private void send() throws IOException {
+    payload[0] = (byte)sequence;
+    outPacket.setPayload(payload, payload.length);
+    outPacket.setSequenceNumber(sequence++);
+    socket.send(outPacket);
+  }
+
+  private static int findFreePort() throws IOException {
+    DatagramSocket probe = new DatagramSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    return port;
+  }
+}
@@ -0,0 +1,164 @@
+package com.securecomcode.voice.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.securecomcode.voice.BenchmarkTestCase;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Selector;
+
+public class RtpSocketBenchmark extends BenchmarkTestCase {
+  private static final String TAG = "RtpSocketBenchmark";
+
+  private static final int PACKET_INTERVAL_MILLIS = 40;
+  private static final int CALL_MILLIS            = 2000;
+
+  private DatagramSocket peer;
+  private int localPort;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    peer      = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+    localPort = findFreePort();
+    peer.connect(InetAddress.getByName("127.0.0.1"), localPort);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    peer.close();
+    super.tearDown();
+  }
+
+  public void testEmptyPoll() throws Exception {
+    final int iterations = 200;
+    DatagramSocket legacy = new DatagramSocket(findFreePort());
+    DatagramPacket datagram = new DatagramPacket(new byte[4096], 4096);
+    int exceptions = 0;
+
+    long start = SystemClock.elapsedRealtime();
+    for (int i=0;i<iterations;i++) {
+      try {
+        legacy.setSoTimeout(1);
+        legacy.receive(datagram);
+      } catch (SocketTimeoutException e) {
+        exceptions++;
+      }
+    }
+    long legacyTime = SystemClock.elapsedRealtime() - start;
+    legacy.close();
+
+    RtpSocket socket = createSocket();
+    RtpPacket packet = new RtpPacket(4096);
+    socket.setTimeout(0);
+
+    start = SystemClock.elapsedRealtime();
+    for (int i=0;i<iterations * 10;i++) {
+      assertFalse(socket.receive(packet));
+    }
+    long pollTime = SystemClock.elapsedRealtime() - start;
+    socket.close();
+
+    assertEquals(iterations, exceptions);
+    Log.d(TAG, "Empty poll: DatagramSocket=" + (legacyTime * 1000.0 / iterations) + "us (" +
+               exceptions + " exceptions), DatagramChannel=" + (pollTime * 1000.0 / (iterations * 10)) +
+               "us (0 exceptions)");
+  }
+
+  /**
+   * Receives a simulated call's packet stream with the old blocking loop and with the
+   * event-driven drain, and reports socket calls and exceptions per second of call.
+   */
+  public void testCall() throws Exception {
+    DatagramSocket legacy = new DatagramSocket(localPort, InetAddress.getByName("127.0.0.1"));
+    DatagramPacket datagram = new DatagramPacket(new byte[4096], 4096);
+    int legacyCalls = 0, legacyExceptions = 0, legacyReceived = 0;
+
+    Thread sender = startSender();
+    long end = SystemClock.uptimeMillis() + CALL_MILLIS;
+    while (SystemClock.uptimeMillis() < end) {
+      try {
+        legacyCalls += 2;
+        legacy.setSoTimeout(1);
+        legacy.receive(datagram);
+        legacyReceived++;
+      } catch (SocketTimeoutException e) {
+        legacyExceptions++;
+      }
+    }
+    sender.join();
+    legacy.close();
+
+    RtpSocket socket   = createSocket();
+    Selector  selector = Selector.open();
+    RtpPacket packet   = new RtpPacket(4096);
+    int waits = 0, received = 0;
+
+    socket.register(selector);
+    socket.setTimeout(0);
+
+    sender = startSender();
+    end = SystemClock.uptimeMillis() + CALL_MILLIS;
+    while (SystemClock.uptimeMillis() < end) {
+      waits++;
+      selector.select(20);
+      selector.selectedKeys().clear();
+      while (socket.receive(packet)) received++;
+    }
+    sender.join();
+
+    int calls = waits + (Integer)socket.sample().get("reads") + (Integer)socket.sample().get("selects");
+    selector.close();
+    socket.close();
+
+    float seconds = CALL_MILLIS / 1000f;
+    Log.d(TAG, "Per second of call: DatagramSocket " + (legacyCalls / seconds) + " socket calls, " +
+               (legacyExceptions / seconds) + " exceptions, " + legacyReceived + " packets; " +
+               "DatagramChannel " + (calls / seconds) + " socket calls, 0 exceptions, " +
+               received + " packets");
+
+    assertTrue(calls < legacyCalls);
+    assertTrue(received >= legacyReceived * 9 / 10);
+  }
+
+  private RtpSocket createSocket() throws Exception {
+    return new RtpSocket(getContext(), localPort,
+                         new InetSocketAddress("127.0.0.1", peer.getLocalPort()), null);
+  }
+
+  private Thread startSender() {
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i=0;i<CALL_MILLIS / PACKET_INTERVAL_MILLIS;i++) {
+            sendPacket(i);
+            Thread.sleep(PACKET_INTERVAL_MILLIS);
+          }
+        } catch (Exception e) {
+          Log.w(TAG, e);
+        }
+      }
+    };
+    sender.start();
+    return sender;
+  }
+
+  private void sendPacket(int sequence) throws Exception {
+    RtpPacket packet = new RtpPacket(160);
+    packet.setSequenceNumber(sequence);
+    peer.send(new DatagramPacket(packet.getPacket(), packet.getPacketLength()));
+  }
+
+  private static int findFreePort() throws Exception {
+    DatagramSocket probe = new DatagramSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    return port;
+  }
+}
@@ -0,0 +1,77 @@
+package com.securecomcode.voice.network;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+
+public class RtpSocketTest extends AndroidTestCase {
+  private DatagramSocket peer;
+  private int localPort;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    peer      = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+    localPort = findFreePort();
+    peer.connect(InetAddress.getByName("127.0.0.1"), localPort);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    peer.close();
+    super.tearDown();
+  }
+
+  public void testDrainsBurstInOneWakeup() throws Exception {
+    RtpSocket socket   = createSocket();
+    Selector  selector = Selector.open();
+    RtpPacket packet   = new RtpPacket(4096);
+
+    try {
+      socket.register(selector);
+      socket.setTimeout(0);
+
+      for (int i=0;i<10;i++) sendPacket(i);
+
+      assertTrue(selector.select(1000) > 0);
+      SystemClock.sleep(50);
+
+      int received = 0;
+      while (socket.receive(packet)) {
+        assertEquals(172, packet.getPacketLength());
+        received++;
+      }
+
+      assertEquals(10, received);
+      assertEquals(11, socket.sample().get("reads"));
+      assertEquals(1, socket.sample().get("empty-reads"));
+      assertEquals(0, socket.sample().get("selects"));
+    } finally {
+      selector.close();
+      socket.close();
+    }
+  }
+
+  private RtpSocket createSocket() throws Exception {
+    return new RtpSocket(getContext(), localPort,
+                         new InetSocketAddress("127.0.0.1", peer.getLocalPort()), null);
+  }
+
+  private void sendPacket(int sequence) throws Exception {
+    RtpPacket packet = new RtpPacket(160);
+    packet.setSequenceNumber(sequence);
+    peer.send(new DatagramPacket(packet.getPacket(), packet.getPacketLength()));
+  }
+
+  private static int findFreePort() throws Exception {
+    DatagramSocket probe = new DatagramSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    return port;
+  }
+}
@@ -0,0 +1,89 @@
+package com.securecomcode.voice.util;
+
+import android.test.AndroidTestCase;
+
+public class RingBufferTest extends AndroidTestCase {
+
+  private static RingBuffer<int[]> createRing(int capacity) {
+    return new RingBuffer<int[]>(capacity, new Factory<int[]>() {
+      public int[] getInstance() {
+        return new int[1];
+      }
+    });
+  }
+
+  public void testFifoOrderAcrossWrap() {
+    RingBuffer<int[]> ring = createRing(4);
+
+    for (int i=0;i<10;i++) {
+      ring.claim()[0] = i;
+      ring.publish();
+      ring.claim()[0] = i + 100;
+      ring.publish();
+
+      assertEquals(2, ring.size());
+      assertEquals(i, ring.peek()[0]);
+      ring.release();
+      assertEquals(i + 100, ring.peek()[0]);
+      ring.release();
+      assertTrue(ring.isEmpty());
+    }
+  }
+
+  public void testOverflowAndUnderflowAreCounted() {
+    RingBuffer<int[]> ring = createRing(2);
+
+    assertNull(ring.peek());
+    assertEquals(0, ring.getUnderflowCount());
+    assertNull(ring.peekRequired());
+    assertEquals(1, ring.getUnderflowCount());
+
+    ring.claim();
+    ring.publish();
+    ring.claim();
+    ring.publish();
+    assertNull(ring.claim());
+    assertEquals(1, ring.getOverflowCount());
+
+    ring.clear();
+    assertTrue(ring.isEmpty());
+    assertNotNull(ring.claim());
+    assertEquals(1, ring.sample().get("overflow"));
+  }
+
+  public void testDrainingIsNotAnUnderflow() {
+    RingBuffer<int[]> ring = createRing(4);
+
+    for (int i=0;i<10;i++) {
+      ring.claim();
+      ring.publish();
+
+      while (ring.peek() != null) {
+        ring.release();
+      }
+    }
+
+    assertEquals(0, ring.getUnderflowCount());
+    assertEquals(0, ring.sample().get("underflow"));
+  }
+
+  public void testSlotsAreReused() {
+    RingBuffer<int[]> ring = createRing(2);
+    int[] first = ring.claim();
+    ring.publish();
+    ring.peek();
+    ring.release();
+    ring.claim();
+    ring.publish();
+    assertSame(first, ring.claim());
+  }
+
+  public void testRejectsCapacityThatIsNotAPowerOfTwo() {
+    try {
+      createRing(3);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}